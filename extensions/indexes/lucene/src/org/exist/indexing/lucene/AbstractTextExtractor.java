@@ -19,6 +19,12 @@
  */
 package org.exist.indexing.lucene;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.dom.QName;
 import org.exist.util.XMLString;
 
 public abstract class AbstractTextExtractor implements TextExtractor {
@@ -28,6 +34,13 @@ public abstract class AbstractTextExtractor implements TextExtractor {
 
     protected XMLString buffer = new XMLString();
 
+    private Map<String, List<String>> facets = null;
+
+    // the facet whose element content is currently being collected
+    private FacetConfig currentFacet = null;
+    private int facetDepth = 0;
+    private StringBuilder facetBuffer = null;
+
     public void configure(LuceneConfig config, LuceneIndexConfig idxConfig) {
         this.config = config;
         this.idxConfig = idxConfig;
@@ -40,4 +53,58 @@ public abstract class AbstractTextExtractor implements TextExtractor {
     public XMLString getText() {
         return buffer;
     }
+
+    public void attribute(QName name, String value) {
+        if (idxConfig != null && idxConfig.hasFacets()) {
+            final FacetConfig facet = idxConfig.getFacet(name);
+            if (facet != null) {
+                addFacet(facet, value);
+            }
+        }
+    }
+
+    public Map<String, List<String>> getFacets() {
+        return facets;
+    }
+
+    protected void facetStartElement(QName name) {
+        if (currentFacet != null) {
+            facetDepth++;
+        } else if (idxConfig != null && idxConfig.hasFacets()) {
+            currentFacet = idxConfig.getFacet(name);
+            if (currentFacet != null) {
+                facetDepth = 0;
+                facetBuffer = new StringBuilder();
+            }
+        }
+    }
+
+    protected void facetEndElement() {
+        if (currentFacet != null) {
+            if (facetDepth == 0) {
+                addFacet(currentFacet, facetBuffer);
+                currentFacet = null;
+                facetBuffer = null;
+            } else {
+                facetDepth--;
+            }
+        }
+    }
+
+    protected void facetCharacters(XMLString text) {
+        if (currentFacet != null) {
+            facetBuffer.append(text);
+        }
+    }
+
+    private void addFacet(FacetConfig facet, CharSequence value) {
+        final String trimmed = value.toString().trim();
+        if (trimmed.isEmpty()) {
+            return;
+        }
+        if (facets == null) {
+            facets = new HashMap<>();
+        }
+        facets.computeIfAbsent(facet.getDimension(), k -> new ArrayList<>()).add(trimmed);
+    }
 }
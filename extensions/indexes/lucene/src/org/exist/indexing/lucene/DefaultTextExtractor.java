@@ -28,6 +28,7 @@ public class DefaultTextExtractor extends AbstractTextExtractor {
     private boolean addSpaceBeforeNext = false;
     
     public int startElement(QName name) {
+        facetStartElement(name);
         if(isInlineNode(name)) {
             // discard not yet applied whitespaces
             addSpaceBeforeNext = false;
@@ -47,6 +48,7 @@ public class DefaultTextExtractor extends AbstractTextExtractor {
 	}
 
     public int endElement(QName name) {
+        facetEndElement();
         if (config.isIgnoredNode(name) || (idxConfig != null && idxConfig.isIgnoredNode(name)))
             stack--;
         else if (!isInlineNode(name)) {
@@ -67,6 +69,7 @@ public class DefaultTextExtractor extends AbstractTextExtractor {
     }
     
     public int characters(XMLString text) {
+        facetCharacters(text);
         if (stack == 0) {
             buffer.append(text);
             return text.length();
@@ -0,0 +1,73 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.lucene;
+
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.exist.dom.QName;
+import org.exist.util.DatabaseConfigurationException;
+import org.w3c.dom.Element;
+
+/**
+ * Configures a facet dimension on a Lucene index definition:
+ *
+ * <pre>{@code
+ * <text qname="book">
+ *     <facet dimension="year" qname="@published"/>
+ *     <facet dimension="author" qname="author"/>
+ * </text>
+ * }</pre>
+ *
+ * The values of a dimension are taken from the attributes or elements with
+ * the given qname found within the indexed node. They are stored as sorted set
+ * doc values, so facet counts can be computed from the index alone.
+ */
+public class FacetConfig {
+
+    private final static String DIMENSION_ATTR = "dimension";
+
+    private final String dimension;
+
+    private final QName qname;
+
+    public FacetConfig(Element config, Map<String, String> namespaces) throws DatabaseConfigurationException {
+        dimension = config.getAttribute(DIMENSION_ATTR);
+        if (StringUtils.isEmpty(dimension)) {
+            throw new DatabaseConfigurationException("Lucene configuration element 'facet' needs an attribute 'dimension'");
+        }
+        qname = LuceneIndexConfig.parseQName(config, namespaces);
+    }
+
+    public String getDimension() {
+        return dimension;
+    }
+
+    public QName getQName() {
+        return qname;
+    }
+
+    /**
+     * @return the name of the doc values field storing this dimension
+     */
+    public String getField() {
+        return LuceneUtil.FIELD_FACET_PREFIX + dimension;
+    }
+}
@@ -20,7 +20,9 @@
  */
 package org.exist.indexing.lucene;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import org.apache.commons.collections.MultiMap;
@@ -49,6 +51,7 @@ public class LuceneIndexConfig {
     private final static String HAS_ATTR_ELEMENT = "has-attribute";
     private final static String MATCH_SIBLING_ATTR_ELEMENT = "match-sibling-attribute";
     private final static String HAS_SIBLING_ATTR_ELEMENT = "has-sibling-attribute";
+    private final static String FACET_ELEMENT = "facet";
 
     public static final String QNAME_ATTR = "qname";
     public static final String MATCH_ATTR = "match";
@@ -64,6 +67,8 @@ public class LuceneIndexConfig {
 
     private Map<QName, String> specialNodes = null;
 
+    private List<FacetConfig> facets = null;
+
     private LuceneIndexConfig nextConfig = null;
 
     private FieldType type = null;
@@ -136,6 +141,14 @@ public class LuceneIndexConfig {
                             specialNodes.put(parseQName(qnameAttr, namespaces), N_INLINE);
                             break;
                         }
+                        case FACET_ELEMENT: {
+                            final FacetConfig facet = new FacetConfig(configElement, namespaces);
+                            if (facets == null) {
+                                facets = new ArrayList<>();
+                            }
+                            facets.add(facet);
+                            break;
+                        }
                         case MATCH_SIBLING_ATTR_ELEMENT:
                         case HAS_SIBLING_ATTR_ELEMENT:
                         case HAS_ATTR_ELEMENT:
@@ -283,6 +296,26 @@ public class LuceneIndexConfig {
         return specialNodes != null && specialNodes.get(qname) == N_INLINE;
     }
 
+    public boolean hasFacets() {
+        return facets != null;
+    }
+
+    /**
+     * @return the facet dimension whose values are taken from nodes
+     * with the given qname, or null if there is none
+     */
+    public FacetConfig getFacet(QName qname) {
+        if (facets != null) {
+            for (final FacetConfig facet : facets) {
+                final QName facetQName = facet.getQName();
+                if (facetQName.getNameType() == qname.getNameType() && facetQName.equals(qname)) {
+                    return facet;
+                }
+            }
+        }
+        return null;
+    }
+
     public static QName parseQName(Element config, Map<String, String> namespaces) throws DatabaseConfigurationException {
         String name = config.getAttribute(QNAME_ATTR);
         if (StringUtils.isEmpty(name))
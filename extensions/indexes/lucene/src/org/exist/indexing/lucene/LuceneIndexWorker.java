@@ -438,6 +438,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             final List<QName> definedIndexes = getDefinedIndexes(qnames);
             final NodeSet resultSet = new NewArrayNodeSet();
             final boolean returnAncestor = axis == NodeSet.ANCESTOR;
+            final QueryFacets facets = new QueryFacets();
             for (QName qname : definedIndexes) {
                 String field = LuceneUtil.encodeQName(qname, index.getBrokerPool().getSymbols());
                 Analyzer analyzer = getAnalyzer(null, qname, context.getBroker(), docs);
@@ -446,7 +447,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                     setOptions(options, parser.getConfiguration());
                     Query query = parser.parse(queryStr);
                     searchAndProcess(contextId, qname, docs, contextSet, resultSet,
-                            returnAncestor, searcher, query, context.getWatchDog());
+                            returnAncestor, searcher, query, facets, context.getWatchDog());
                 } catch(ParseException e) {
                     throw new XPathException("Lucene query syntax error: " + e.getMessage());
                 }
@@ -515,13 +516,14 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             final List<QName> definedIndexes = getDefinedIndexes(qnames);
             final NodeSet resultSet = new NewArrayNodeSet();
             final boolean returnAncestor = axis == NodeSet.ANCESTOR;
+            final QueryFacets facets = new QueryFacets();
             for (QName qname : definedIndexes) {
                 String field = LuceneUtil.encodeQName(qname, index.getBrokerPool().getSymbols());
                 analyzer = getAnalyzer(null, qname, context.getBroker(), docs);
                 Query query = queryTranslator.parse(field, queryRoot, analyzer, options);
                 if (query != null) {
                     searchAndProcess(contextId, qname, docs, contextSet, resultSet,
-                            returnAncestor, searcher, query, context.getWatchDog());
+                            returnAncestor, searcher, query, facets, context.getWatchDog());
                 }
             }
             return resultSet;
@@ -534,11 +536,12 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         return index.withSearcher(searcher -> {
             final NodeSet resultSet = new NewArrayNodeSet();
             final boolean returnAncestor = axis == NodeSet.ANCESTOR;
+            final QueryFacets facets = new QueryFacets();
             analyzer = getAnalyzer(field, null, context.getBroker(), docs);
             Query query = queryTranslator.parse(field, queryRoot, analyzer, options);
             if (query != null) {
                 searchAndProcess(contextId, null, docs, contextSet, resultSet,
-                        returnAncestor, searcher, query, context.getWatchDog());
+                        returnAncestor, searcher, query, facets, context.getWatchDog());
             }
             return resultSet;
         });
@@ -546,9 +549,10 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
     private void searchAndProcess(int contextId, QName qname, DocumentSet docs,
             NodeSet contextSet, NodeSet resultSet, boolean returnAncestor,
-            IndexSearcher searcher, Query query, XQueryWatchDog watchDog) throws IOException, TerminatedException {
-        LuceneHitCollector collector = new LuceneHitCollector(qname, query, docs, contextSet, resultSet, returnAncestor, contextId, watchDog);
+            IndexSearcher searcher, Query query, QueryFacets facets, XQueryWatchDog watchDog) throws IOException, TerminatedException {
+        LuceneHitCollector collector = new LuceneHitCollector(qname, query, docs, contextSet, resultSet, returnAncestor, contextId, facets, watchDog);
         searcher.search(query, collector);
+        facets.flush();
     }
 
     public NodeSet queryField(XQueryContext context, int contextId, DocumentSet docs, NodeSet contextSet,
@@ -557,6 +561,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         return index.withSearcher(searcher -> {
             NodeSet resultSet = new NewArrayNodeSet();
             boolean returnAncestor = axis == NodeSet.ANCESTOR;
+            QueryFacets facets = new QueryFacets();
             Analyzer analyzer = getAnalyzer(field, null, context.getBroker(), docs);
             LOG.debug("Using analyzer " + analyzer + " for " + queryString);
             QueryParserWrapper parser = getQueryParser(field, analyzer, docs);
@@ -564,7 +569,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 setOptions(options, parser.getConfiguration());
                 Query query = parser.parse(queryString);
                 searchAndProcess(contextId, null, docs, contextSet, resultSet,
-                        returnAncestor, searcher, query, context.getWatchDog());
+                        returnAncestor, searcher, query, facets, context.getWatchDog());
             } catch(ParseException e) {
                 throw new XPathException("Lucene query syntax error: " + e.getMessage());
             }
@@ -864,10 +869,11 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         private final boolean returnAncestor;
         private final int contextId;
         private final Query query;
+        private final QueryFacets facets;
         private final XQueryWatchDog watchdog;
 
         private LuceneHitCollector(QName qname, Query query, DocumentSet docs, NodeSet contextSet, NodeSet resultSet, boolean returnAncestor,
-                                   int contextId, XQueryWatchDog watchDog) {
+                                   int contextId, QueryFacets facets, XQueryWatchDog watchDog) {
             this.qname = qname;
             this.docs = docs;
             this.contextSet = contextSet;
@@ -875,6 +881,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             this.returnAncestor = returnAncestor;
             this.contextId = contextId;
             this.query = query;
+            this.facets = facets;
             this.watchdog = watchDog;
         }
 
@@ -888,6 +895,7 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             this.reader = atomicReaderContext.reader();
             this.docIdValues = this.reader.getNumericDocValues(FIELD_DOC_ID);
             this.nodeIdValues = this.reader.getBinaryDocValues(LuceneUtil.FIELD_NODE_ID);
+            this.facets.setNextReader(this.reader);
         }
 
         @Override
@@ -920,8 +928,9 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                         NodeProxy parentNode = contextSet.get(storedNode);
                         // NodeProxy parentNode = contextSet.parentWithChild(storedNode, false, true, NodeProxy.UNKNOWN_NODE_LEVEL);
                         if (parentNode != null) {
-                            LuceneMatch match = new LuceneMatch(contextId, nodeId, query);
+                            LuceneMatch match = new LuceneMatch(contextId, nodeId, query, facets);
                             match.setScore(score);
+                            facets.collect(doc);
                             parentNode.addMatch(match);
                             resultSet.add(parentNode, sizeHint);
                             if (Expression.NO_CONTEXT_ID != contextId) {
@@ -930,14 +939,16 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                                 parentNode.copyContext(storedNode);
                         }
                     } else {
-                        LuceneMatch match = new LuceneMatch(contextId, nodeId, query);
+                        LuceneMatch match = new LuceneMatch(contextId, nodeId, query, facets);
                         match.setScore(score);
+                        facets.collect(doc);
                         storedNode.addMatch(match);
                         resultSet.add(storedNode, sizeHint);
                     }
                 } else {
-                    LuceneMatch match = new LuceneMatch(contextId, nodeId, query);
+                    LuceneMatch match = new LuceneMatch(contextId, nodeId, query, facets);
                     match.setScore(score);
+                    facets.collect(doc);
                     storedNode.addMatch(match);
                     resultSet.add(storedNode);
                 }
@@ -1148,7 +1159,23 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
      * @param content
      */
     protected void indexText(NodeId nodeId, QName qname, NodePath path, LuceneIndexConfig config, CharSequence content) {
-        PendingDoc pending = new PendingDoc(nodeId, qname, path, content, config.getBoost(), config);
+        indexText(nodeId, qname, path, config, content, null);
+    }
+
+    /**
+     * Adds the passed character sequence to the lucene index, together with
+     * the values collected for the facet dimensions of the index configuration.
+     *
+     * @param nodeId
+     * @param qname
+     * @param path
+     * @param config
+     * @param content
+     * @param facets facet values keyed by dimension, may be null
+     */
+    protected void indexText(NodeId nodeId, QName qname, NodePath path, LuceneIndexConfig config, CharSequence content,
+            Map<String, List<String>> facets) {
+        PendingDoc pending = new PendingDoc(nodeId, qname, path, content, config.getBoost(), config, facets);
         addPending(pending);
     }
 
@@ -1164,7 +1191,12 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
      * @param content
      */
     protected void indexText(java.util.Collection<AttrImpl> attribs, NodeId nodeId, QName qname, NodePath path, LuceneIndexConfig config, CharSequence content) {
-        PendingDoc pending = new PendingDoc(nodeId, qname, path, content, config.getAttrBoost(attribs), config);
+        indexText(attribs, nodeId, qname, path, config, content, null);
+    }
+
+    protected void indexText(java.util.Collection<AttrImpl> attribs, NodeId nodeId, QName qname, NodePath path, LuceneIndexConfig config, CharSequence content,
+            Map<String, List<String>> facets) {
+        PendingDoc pending = new PendingDoc(nodeId, qname, path, content, config.getAttrBoost(attribs), config, facets);
         addPending(pending);
     }
     
@@ -1183,15 +1215,17 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         private final CharSequence text;
         private final float boost;
         private final LuceneIndexConfig idxConf;
+        private final Map<String, List<String>> facets;
 
         private PendingDoc(final NodeId nodeId, final QName qname, final NodePath path, final CharSequence text,
-                final float boost, final LuceneIndexConfig idxConf) {
+                final float boost, final LuceneIndexConfig idxConf, final Map<String, List<String>> facets) {
             this.nodeId = nodeId;
             this.qname = qname;
             this.path = path;
             this.text = text;
             this.idxConf = idxConf;
             this.boost = boost;
+            this.facets = facets;
         }
     }
 
@@ -1280,6 +1314,16 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
                 doc.add(fld);
 
+                // facet values are stored as doc values to be counted at query time
+                if (pending.facets != null) {
+                    for (final Map.Entry<String, List<String>> facet : pending.facets.entrySet()) {
+                        final String facetField = LuceneUtil.FIELD_FACET_PREFIX + facet.getKey();
+                        for (final String value : facet.getValue()) {
+                            doc.add(new SortedSetDocValuesField(facetField, new BytesRef(value)));
+                        }
+                    }
+                }
+
                 fDocIdIdx.setIntValue(currentDoc.getDocId());
                 doc.add(fDocIdIdx);
                 
@@ -1391,13 +1435,13 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                                             attributes.add((AttrImpl) attributes1.item(i));
                                         }
                                     }
-                                    indexText(attributes, element.getNodeId(), element.getQName(), path, extractor.getIndexConfig(), extractor.getText());
+                                    indexText(attributes, element.getNodeId(), element.getQName(), path, extractor.getIndexConfig(), extractor.getText(), extractor.getFacets());
                                     if (wasEmpty) {
                                         attributes.clear();
                                     }
                                 } else {
                                     // no attribute matching, index normally
-                                    indexText(element.getNodeId(), element.getQName(), path, extractor.getIndexConfig(), extractor.getText());
+                                    indexText(element.getNodeId(), element.getQName(), path, extractor.getIndexConfig(), extractor.getText(), extractor.getFacets());
                                 }
                             }
                         }
@@ -1424,6 +1468,12 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 attributes.add(attribCopy);
             }
 
+            if (mode == ReindexMode.STORE && contentStack != null) {
+                for (final TextExtractor extractor : contentStack) {
+                    extractor.attribute(attrib.getQName(), attrib.getValue());
+                }
+            }
+
             Iterator<LuceneIndexConfig> configIter = null;
             if (config != null)
                 configIter = config.getConfig(path);
@@ -1512,16 +1562,23 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
         private float score = 0.0f;
         private final Query query;
+        private final QueryFacets facets;
 
         public LuceneMatch(int contextId, NodeId nodeId, Query query) {
+            this(contextId, nodeId, query, null);
+        }
+
+        public LuceneMatch(int contextId, NodeId nodeId, Query query, QueryFacets facets) {
             super(contextId, nodeId, null);
             this.query = query;
+            this.facets = facets;
         }
 
         public LuceneMatch(LuceneMatch copy) {
             super(copy);
             this.score = copy.score;
             this.query = copy.query;
+            this.facets = copy.facets;
         }
 
         @Override
@@ -1551,6 +1608,14 @@ public class LuceneIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             return score;
         }
 
+        /**
+         * @return the facet counts of the query which generated this match,
+         * shared by all its hits, or null if not available
+         */
+        public QueryFacets getFacets() {
+            return facets;
+        }
+
         protected void setScore(float score) {
             this.score = score;
         }
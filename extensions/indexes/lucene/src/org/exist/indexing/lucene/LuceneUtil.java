@@ -52,6 +52,8 @@ public class LuceneUtil {
     public static final String FIELD_DOC_ID = "docId";
     public static final String FIELD_DOC_URI = "docUri";
 
+    public static final String FIELD_FACET_PREFIX = "facet-";
+
     public static byte[] createId(final int docId, final NodeId nodeId) {
         // build id from nodeId and docId
         final byte[] data = new byte[nodeId.size() + 4];
@@ -0,0 +1,136 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.SortedSetDocValues;
+
+/**
+ * Facet counts computed while collecting the hits of a Lucene query.
+ *
+ * Facet values are stored as sorted set doc values (see {@link FacetConfig}).
+ * For every segment visited by the collector, the ordinals of each hit are
+ * counted into a plain int array, which is allocated when the first hit
+ * with a value for the dimension is seen. The ordinals are only resolved to
+ * values once the collector moves to the next segment, so the cost per hit
+ * is an array increment per facet value.
+ */
+public class QueryFacets {
+
+    private final Map<String, Map<String, Long>> counts = new HashMap<>();
+
+    private List<SegmentCounts> segmentCounts = Collections.emptyList();
+
+    /**
+     * Called by the collector when it starts collecting hits from
+     * a new segment.
+     *
+     * @param reader the reader of the segment
+     * @throws IOException in case of an error reading the doc values
+     */
+    public void setNextReader(AtomicReader reader) throws IOException {
+        flush();
+        segmentCounts = new ArrayList<>();
+        for (final FieldInfo info : reader.getFieldInfos()) {
+            if (info.getDocValuesType() == FieldInfo.DocValuesType.SORTED_SET &&
+                    info.name.startsWith(LuceneUtil.FIELD_FACET_PREFIX)) {
+                final SortedSetDocValues values = reader.getSortedSetDocValues(info.name);
+                if (values != null) {
+                    segmentCounts.add(new SegmentCounts(
+                            info.name.substring(LuceneUtil.FIELD_FACET_PREFIX.length()), values));
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the facet values of a hit in the current segment.
+     *
+     * @param doc the segment relative lucene document number of the hit
+     */
+    public void collect(int doc) {
+        for (final SegmentCounts segment : segmentCounts) {
+            segment.collect(doc);
+        }
+    }
+
+    /**
+     * Resolve the counts of the current segment. Must be called once
+     * all hits have been collected.
+     */
+    public void flush() {
+        for (final SegmentCounts segment : segmentCounts) {
+            segment.flush(counts.computeIfAbsent(segment.dimension, k -> new HashMap<>()));
+        }
+        segmentCounts = Collections.emptyList();
+    }
+
+    /**
+     * @param dimension the facet dimension
+     * @return the number of hits per value of the given dimension
+     */
+    public Map<String, Long> getCounts(String dimension) {
+        final Map<String, Long> dimensionCounts = counts.get(dimension);
+        return dimensionCounts == null ? Collections.emptyMap() : dimensionCounts;
+    }
+
+    private static class SegmentCounts {
+
+        private final String dimension;
+        private final SortedSetDocValues values;
+        private int[] ordCounts = null;
+
+        private SegmentCounts(String dimension, SortedSetDocValues values) {
+            this.dimension = dimension;
+            this.values = values;
+        }
+
+        private void collect(int doc) {
+            values.setDocument(doc);
+            long ord;
+            while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                if (ordCounts == null) {
+                    ordCounts = new int[(int) values.getValueCount()];
+                }
+                ordCounts[(int) ord]++;
+            }
+        }
+
+        private void flush(Map<String, Long> target) {
+            if (ordCounts == null) {
+                return;
+            }
+            for (int ord = 0; ord < ordCounts.length; ord++) {
+                if (ordCounts[ord] > 0) {
+                    final String value = values.lookupOrd(ord).utf8ToString();
+                    target.merge(value, (long) ordCounts[ord], Long::sum);
+                }
+            }
+        }
+    }
+}
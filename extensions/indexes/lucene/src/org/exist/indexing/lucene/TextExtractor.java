@@ -19,6 +19,9 @@
  */
 package org.exist.indexing.lucene;
 
+import java.util.List;
+import java.util.Map;
+
 import org.exist.dom.QName;
 import org.exist.util.XMLString;
 
@@ -39,7 +42,15 @@ public interface TextExtractor {
     
     public int characters(XMLString value);
 
+    public void attribute(QName name, String value);
+
     public LuceneIndexConfig getIndexConfig();
     
     public XMLString getText();
+
+    /**
+     * @return the facet values collected for the dimensions configured
+     * on the index, keyed by dimension, or null if there are none
+     */
+    public Map<String, List<String>> getFacets();
 }
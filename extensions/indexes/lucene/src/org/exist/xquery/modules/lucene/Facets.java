@@ -0,0 +1,132 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.modules.lucene;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.exist.dom.QName;
+import org.exist.dom.persistent.Match;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.indexing.lucene.LuceneIndex;
+import org.exist.indexing.lucene.LuceneIndexWorker;
+import org.exist.indexing.lucene.QueryFacets;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+public class Facets extends BasicFunction {
+
+    private final static String DESCRIPTION =
+            "Returns the facet counts of a dimension for the query which generated the given nodes. " +
+            "Facet dimensions have to be configured on the lucene index definition in collection.xconf, " +
+            "e.g. <facet dimension=\"year\" qname=\"@published\"/>. The counts are read from the " +
+            "index and cover all hits of the ft:query call(s) that returned $nodes, even if the hits " +
+            "were filtered afterwards.";
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("facets", LuceneModule.NAMESPACE_URI, LuceneModule.PREFIX),
+            DESCRIPTION,
+            new SequenceType[] {
+                new FunctionParameterSequenceType("nodes", Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "nodes returned by ft:query"),
+                new FunctionParameterSequenceType("dimension", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "the facet dimension")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE,
+                "a map with the facet values as keys and the number of hits as values")
+        ),
+        new FunctionSignature(
+            new QName("facets", LuceneModule.NAMESPACE_URI, LuceneModule.PREFIX),
+            DESCRIPTION,
+            new SequenceType[] {
+                new FunctionParameterSequenceType("nodes", Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "nodes returned by ft:query"),
+                new FunctionParameterSequenceType("dimension", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "the facet dimension"),
+                new FunctionParameterSequenceType("count", Type.INTEGER, Cardinality.ZERO_OR_ONE,
+                    "return only the given number of values with the highest counts")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE,
+                "a map with the facet values as keys and the number of hits as values")
+        )
+    };
+
+    public Facets(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final String dimension = args[1].getStringValue();
+        int max = -1;
+        if (getArgumentCount() == 3 && !args[2].isEmpty()) {
+            max = ((IntegerValue) args[2].itemAt(0)).getInt();
+        }
+
+        // collect the facets of all distinct queries which contributed to the nodes
+        final Set<QueryFacets> queries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final SequenceIterator i = args[0].unorderedIterator(); i.hasNext(); ) {
+            final NodeValue node = (NodeValue) i.nextItem();
+            if (node.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+                continue;
+            }
+            Match match = ((NodeProxy) node).getMatches();
+            while (match != null) {
+                if (match.getIndexId().equals(LuceneIndex.ID)) {
+                    final QueryFacets facets = ((LuceneIndexWorker.LuceneMatch) match).getFacets();
+                    if (facets != null) {
+                        queries.add(facets);
+                    }
+                }
+                match = match.getNextMatch();
+            }
+        }
+
+        final Map<String, Long> counts = new HashMap<>();
+        for (final QueryFacets facets : queries) {
+            for (final Map.Entry<String, Long> entry : facets.getCounts(dimension).entrySet()) {
+                counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        if (max > -1 && entries.size() > max) {
+            entries.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+            entries = entries.subList(0, max);
+        }
+
+        final MapType map = new MapType(context);
+        for (final Map.Entry<String, Long> entry : entries) {
+            map.add(new StringValue(entry.getKey()), new IntegerValue(entry.getValue()));
+        }
+        return map;
+    }
+}
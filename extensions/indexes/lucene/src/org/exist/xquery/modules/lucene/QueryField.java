@@ -126,6 +126,7 @@ public class QueryField extends Query implements Optimizable {
             throw new XPathException(this, "Error while querying full text index: " + e.getMessage(), e);
         }
         LOG.debug("Lucene query took " + (System.currentTimeMillis() - start));
+        context.getDatabase().getQueryMetrics().recordIndexUse( "lucene", PerformanceStats.OPTIMIZED_INDEX );
         if( context.getProfiler().traceFunctions() ) {
             context.getProfiler().traceIndexUsage( context, "lucene", this, PerformanceStats.OPTIMIZED_INDEX, System.currentTimeMillis() - start );
         }
@@ -167,6 +168,7 @@ public class QueryField extends Query implements Optimizable {
             } catch (IOException | ParseException e) {
         		throw new XPathException(this, e.getMessage());
         	}
+        	context.getDatabase().getQueryMetrics().recordIndexUse( "lucene", PerformanceStats.BASIC_INDEX );
         	if( context.getProfiler().traceFunctions() ) {
         		context.getProfiler().traceIndexUsage( context, "lucene", this, PerformanceStats.BASIC_INDEX, System.currentTimeMillis() - start );
         	}
@@ -64,6 +64,7 @@ import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.BFile;
+import org.exist.storage.io.VariableByteArrayInput;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.storage.lock.LockManager;
@@ -361,6 +362,68 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
     public NodeSet search(final int contextId, final DocumentSet docs, final List<QName> qnames, final String query,
             final String ngram, final XQueryContext context, final NodeSet contextSet, final int axis)
             throws XPathException {
+        return search(contextId, readPostings(docs, qnames, query, context), ngram, context, contextSet, axis, null);
+    }
+
+    /**
+     * Read the posting lists of an ngram from the index. Only the entries of the given
+     * documents are kept. The returned postings can be passed to
+     * {@link #filter(Postings, XQueryContext, NodeSet, int, NodeSet)} and
+     * {@link #search(int, Postings, String, XQueryContext, NodeSet, int, NodeSet)}
+     * several times without accessing the index again.
+     *
+     * @param docs the documents to search
+     * @param qnames the qnames to search, or null to search all indexed qnames
+     * @param query the ngram to look up
+     * @param context the query context
+     * @return the posting lists of the ngram
+     * @throws XPathException in case of an error
+     */
+    public Postings readPostings(final DocumentSet docs, final List<QName> qnames, final String query,
+            final XQueryContext context) throws XPathException {
+        final Postings postings = new Postings(docs);
+        query(docs, qnames, query, context, new ReadCallback(postings));
+        return postings;
+    }
+
+    /**
+     * Search the posting lists of an ngram, but only return nodes which are contained in the
+     * given candidate set. Entries of other documents are skipped without being decoded
+     * and node proxies are only created for candidate nodes.
+     *
+     * @param candidates nodes found by a previous search, or null to return all nodes
+     */
+    public NodeSet search(final int contextId, final Postings postings, final String ngram, final XQueryContext context,
+            final NodeSet contextSet, final int axis, final NodeSet candidates) throws XPathException {
+        final DocumentSet searchDocs = candidates == null ? postings.docs : candidates.getDocumentSet();
+        final NodeSet result = new ExtArrayNodeSet(searchDocs.getDocumentCount(), 250);
+        new PostingsSearch(contextId, ngram, searchDocs, contextSet, context, result,
+                axis == NodeSet.ANCESTOR, candidates, true).search(postings);
+
+        result.iterate(); // ensure result is ready to use
+
+        return result;
+    }
+
+    /**
+     * Like {@link #search(int, Postings, String, XQueryContext, NodeSet, int, NodeSet)},
+     * but does not read the match offsets. Used to narrow down the candidate nodes
+     * before the matches are computed.
+     */
+    public NodeSet filter(final Postings postings, final XQueryContext context, final NodeSet contextSet, final int axis,
+            final NodeSet candidates) throws XPathException {
+        final DocumentSet searchDocs = candidates == null ? postings.docs : candidates.getDocumentSet();
+        final NodeSet result = new ExtArrayNodeSet(searchDocs.getDocumentCount(), 250);
+        new PostingsSearch(Expression.NO_CONTEXT_ID, null, searchDocs, contextSet, context, result,
+                axis == NodeSet.ANCESTOR, candidates, false).search(postings);
+
+        result.iterate(); // ensure result is ready to use
+
+        return result;
+    }
+
+    private void query(final DocumentSet docs, final List<QName> qnames, final String query, final XQueryContext context,
+            final BTreeCallback callback) throws XPathException {
         final List<QName> searchQnames;
         if (qnames == null || qnames.isEmpty()) {
             searchQnames = getDefinedIndexes(context.getBroker(), docs);
@@ -368,15 +431,13 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             searchQnames = qnames;
         }
 
-        final NodeSet result = new ExtArrayNodeSet(docs.getDocumentCount(), 250);
         for (final Iterator<Collection> iter = docs.getCollectionIterator(); iter.hasNext(); ) {
             final int collectionId = iter.next().getId();
             for (final QName qname : searchQnames) {
                 final NGramQNameKey key = new NGramQNameKey(collectionId, qname, index.getBrokerPool().getSymbols(), query);
                 try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(index.db.getLockName())) {
-                    final SearchCallback cb = new SearchCallback(contextId, query, ngram, docs, contextSet, context, result, axis == NodeSet.ANCESTOR);
                     final int op = query.codePointCount(0, query.length()) < getN() ? IndexQuery.TRUNC_RIGHT : IndexQuery.EQ;
-                    index.db.query(new IndexQuery(op, key), cb);
+                    index.db.query(new IndexQuery(op, key), callback);
                 } catch (final LockException e) {
                     LOG.warn("Failed to acquire lock for '" + FileUtils.fileName(index.db.getFile()) + "'", e);
                 } catch (final IOException | BTreeException e) {
@@ -384,10 +445,6 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 }
             }
         }
-
-        result.iterate(); // ensure result is ready to use
-
-        return result;
     }
 
     /**
@@ -930,28 +987,33 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         }
     }
 
-    private final class SearchCallback implements BTreeCallback {
-        private final int contextId;
-        @SuppressWarnings("unused")
-        private final String query;
-        private final String ngram;
+    /**
+     * The posting lists of an ngram, read once from the index. Every list holds the
+     * entries of one index key in the stored format, restricted to the searched documents.
+     */
+    public static final class Postings {
         private final DocumentSet docs;
-        private final NodeSet contextSet;
-        private final XQueryContext context;
-        private final NodeSet resultSet;
-        private final boolean returnAncestor;
+        private final List<String> keys = new ArrayList<>();
+        private final List<byte[]> lists = new ArrayList<>();
+        private long occurrences = 0;
 
-        SearchCallback(final int contextId, final String query, final String ngram, final DocumentSet docs,
-                       final NodeSet contextSet, final XQueryContext context, final NodeSet result,
-                       final boolean returnAncestor) {
-            this.contextId = contextId;
-            this.query = query;
-            this.ngram = ngram;
+        private Postings(final DocumentSet docs) {
             this.docs = docs;
-            this.context = context;
-            this.contextSet = contextSet;
-            this.resultSet = result;
-            this.returnAncestor = returnAncestor;
+        }
+
+        /**
+         * @return the number of nodes in the searched documents which contain the ngram
+         */
+        public long getOccurrenceCount() {
+            return occurrences;
+        }
+    }
+
+    private final class ReadCallback implements BTreeCallback {
+        private final Postings postings;
+
+        ReadCallback(final Postings postings) {
+            this.postings = postings;
         }
 
         @Override
@@ -965,50 +1027,30 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                     return true;
                 }
 
+                final VariableByteOutputStream os = new VariableByteOutputStream(256);
                 while (is.available() > 0) {
                     final int storedDocId = is.readInt();
                     final byte nameType = is.readByte();
                     final int occurrences = is.readInt();
                     //Read (variable) length of node IDs + frequency + offsets
                     final int length = is.readFixedInt();
-                    final DocumentImpl storedDocument = docs.getDoc(storedDocId);
 
-                    //Exit if the document is not concerned
-                    if (storedDocument == null) {
+                    //Skip the document if it is not concerned
+                    if (!postings.docs.contains(storedDocId)) {
                         is.skipBytes(length);
                         continue;
                     }
 
-                    NodeId previous = null;
-                    for (int m = 0; m < occurrences; m++) {
-                        final NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
-                        previous = nodeId;
-                        final int freq = is.readInt();
-                        final NodeProxy nodeProxy = new NodeProxy(storedDocument, nodeId, nameTypeToNodeType(nameType));
-                        // if a context set is specified, we can directly check if the
-                        // matching node is a descendant of one of the nodes
-                        // in the context set.
-                        if (contextSet != null) {
-                            final int sizeHint = contextSet.getSizeHint(storedDocument);
-                            if (returnAncestor) {
-                                final NodeProxy parentNode = contextSet.parentWithChild(nodeProxy, false, true, NodeProxy.UNKNOWN_NODE_LEVEL);
-                                if (parentNode != null) {
-                                    readMatches(ngram, is, nodeId, freq, parentNode);
-                                    resultSet.add(parentNode, sizeHint);
-                                } else {
-                                    is.skip(freq);
-                                }
-                            } else {
-                                readMatches(ngram, is, nodeId, freq, nodeProxy);
-                                resultSet.add(nodeProxy, sizeHint);
-                            }
-                            // otherwise, we add all text nodes without check
-                        } else {
-                            readMatches(ngram, is, nodeId, freq, nodeProxy);
-                            resultSet.add(nodeProxy, Constants.NO_SIZE_HINT);
-                        }
-                        context.proceed();
-                    }
+                    os.writeInt(storedDocId);
+                    os.writeByte(nameType);
+                    os.writeInt(occurrences);
+                    os.writeFixedInt(length);
+                    is.copyRaw(os, length);
+                    postings.occurrences += occurrences;
+                }
+                if (os.size() > 0) {
+                    postings.keys.add(ngram);
+                    postings.lists.add(os.toByteArray());
                 }
                 return false;
             } catch (final IOException e) {
@@ -1016,6 +1058,88 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 return true;
             }
         }
+    }
+
+    private final class PostingsSearch {
+        private final int contextId;
+        private final String ngram;
+        private final DocumentSet docs;
+        private final NodeSet contextSet;
+        private final XQueryContext context;
+        private final NodeSet resultSet;
+        private final boolean returnAncestor;
+        private final NodeSet candidates;
+        private final boolean withMatches;
+
+        PostingsSearch(final int contextId, final String ngram, final DocumentSet docs,
+                       final NodeSet contextSet, final XQueryContext context, final NodeSet result,
+                       final boolean returnAncestor, final NodeSet candidates, final boolean withMatches) {
+            this.contextId = contextId;
+            this.ngram = ngram;
+            this.docs = docs;
+            this.context = context;
+            this.contextSet = contextSet;
+            this.resultSet = result;
+            this.returnAncestor = returnAncestor;
+            this.candidates = candidates;
+            this.withMatches = withMatches;
+        }
+
+        void search(final Postings postings) throws XPathException {
+            try {
+                for (int i = 0; i < postings.lists.size(); i++) {
+                    search(postings.keys.get(i), new VariableByteArrayInput(postings.lists.get(i)));
+                }
+            } catch (final IOException e) {
+                LOG.error(e.getMessage(), e);
+            }
+        }
+
+        private void search(final String current, final VariableByteInput is) throws IOException, TerminatedException {
+            while (is.available() > 0) {
+                final int storedDocId = is.readInt();
+                final byte nameType = is.readByte();
+                final int occurrences = is.readInt();
+                //Read (variable) length of node IDs + frequency + offsets
+                final int length = is.readFixedInt();
+                final DocumentImpl storedDocument = docs.getDoc(storedDocId);
+
+                //Exit if the document is not concerned
+                if (storedDocument == null) {
+                    is.skipBytes(length);
+                    continue;
+                }
+
+                NodeId previous = null;
+                for (int m = 0; m < occurrences; m++) {
+                    final NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
+                    previous = nodeId;
+                    final int freq = is.readInt();
+                    // if a context set is specified, we can directly check if the
+                    // matching node is a descendant of one of the nodes
+                    // in the context set.
+                    if (contextSet != null && returnAncestor) {
+                        final NodeProxy nodeProxy = new NodeProxy(storedDocument, nodeId, nameTypeToNodeType(nameType));
+                        final NodeProxy parentNode = contextSet.parentWithChild(nodeProxy, false, true, NodeProxy.UNKNOWN_NODE_LEVEL);
+                        if (parentNode != null && (candidates == null || candidates.get(parentNode) != null)) {
+                            readMatches(current, is, nodeId, freq, parentNode);
+                            resultSet.add(parentNode, contextSet.getSizeHint(storedDocument));
+                        } else {
+                            is.skip(freq);
+                        }
+                    } else if (candidates == null || candidates.get(storedDocument, nodeId) != null) {
+                        // otherwise, we add all text nodes without check. If a candidate
+                        // set is given, the node proxy is only created for candidates.
+                        final NodeProxy nodeProxy = new NodeProxy(storedDocument, nodeId, nameTypeToNodeType(nameType));
+                        readMatches(current, is, nodeId, freq, nodeProxy);
+                        resultSet.add(nodeProxy, contextSet == null ? Constants.NO_SIZE_HINT : contextSet.getSizeHint(storedDocument));
+                    } else {
+                        is.skip(freq);
+                    }
+                    context.proceed();
+                }
+            }
+        }
 
         private short nameTypeToNodeType(final byte nameType) {
             switch (nameType) {
@@ -1033,6 +1157,10 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
         private void readMatches(final String current, final VariableByteInput is, final NodeId nodeId, final int freq,
                                  final NodeProxy parentNode) throws IOException {
+            if (!withMatches) {
+                is.skip(freq);
+                return;
+            }
             int diff = 0;
             if (current.length() > ngram.length()) {
                 diff = current.lastIndexOf(ngram);
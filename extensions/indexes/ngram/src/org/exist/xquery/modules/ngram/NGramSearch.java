@@ -483,19 +483,16 @@ public class NGramSearch extends Function implements Optimizable {
         if (ngrams.length == 0)
             return new EmptyNodeSet();
 
-        String firstNgramm = ngrams[0];
-        LOG.trace("First NGRAM: " + firstNgramm);
-        NodeSet result = index.search(getExpressionId(), docs, qnames, firstNgramm, firstNgramm, context, nodeSet, axis);
-
+        // fill up ngrams which are shorter than n with characters from the
+        // previous ngram. too short ngrams lead to a considerable performance loss.
+        final String[] filledNgrams = new String[ngrams.length];
+        filledNgrams[0] = ngrams[0];
         for (int i = 1; i < ngrams.length; i++) {
             String ngram = ngrams[i];
             int len = ngram.codePointCount(0, ngram.length());
             int fillSize = index.getN() - len;
             String filledNgram = ngram;
 
-            // if this ngram is shorter than n,
-            // fill it up with characters from the previous ngram. too short
-            // ngrams lead to a considerable performance loss.
             if (fillSize > 0) {
                 String filler = ngrams[i - 1];
                 StringBuilder buf = new StringBuilder();
@@ -509,8 +506,40 @@ public class NGramSearch extends Function implements Optimizable {
                 filledNgram = buf.toString();
                 LOG.debug("Filled: " + filledNgram);
             }
+            filledNgrams[i] = filledNgram;
+        }
+
+        // the posting list of every ngram is read once and used for all passes below
+        final NGramIndexWorker.Postings[] postings = new NGramIndexWorker.Postings[ngrams.length];
+        for (int i = 0; i < ngrams.length; i++) {
+            postings[i] = index.readPostings(docs, qnames, filledNgrams[i], context);
+        }
 
-            NodeSet nodes = index.search(getExpressionId(), docs, qnames, filledNgram, ngram, context, nodeSet, axis);
+        // intersect the nodes containing the ngrams, starting with the rarest
+        // ngram, so every following pass only has to check the remaining
+        // candidates. Matches are not read yet.
+        NodeSet candidates = null;
+        if (ngrams.length > 1) {
+            final Integer[] order = new Integer[ngrams.length];
+            for (int i = 0; i < ngrams.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (i1, i2) -> Long.compare(postings[i1].getOccurrenceCount(), postings[i2].getOccurrenceCount()));
+            for (final int i : order) {
+                LOG.trace("Filtering by NGRAM: " + filledNgrams[i] + " (" + postings[i].getOccurrenceCount() + ")");
+                candidates = index.filter(postings[i], context, nodeSet, axis, candidates);
+                if (candidates.isEmpty()) {
+                    return new EmptyNodeSet();
+                }
+            }
+        }
+
+        // read the matches of the remaining candidates in query order
+        LOG.trace("First NGRAM: " + ngrams[0]);
+        NodeSet result = index.search(getExpressionId(), postings[0], ngrams[0], context, nodeSet, axis, candidates);
+
+        for (int i = 1; i < ngrams.length; i++) {
+            NodeSet nodes = index.search(getExpressionId(), postings[i], ngrams[i], context, nodeSet, axis, candidates);
 
             final NodeSet nodesContainingFirstINgrams = result;
 
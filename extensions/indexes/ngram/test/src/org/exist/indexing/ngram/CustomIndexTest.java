@@ -28,6 +28,8 @@ import org.exist.collections.triggers.TriggerException;
 import org.exist.dom.persistent.DefaultDocumentSet;
 import org.exist.dom.persistent.DocumentSet;
 import org.exist.dom.persistent.MutableDocumentSet;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
@@ -536,6 +538,63 @@ public class CustomIndexTest {
         }
     }
 
+    @Test
+    public void queryMultipleNGrams() throws PermissionDeniedException, XPathException, EXistException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try(final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQuery xquery = pool.getXQueryService();
+            assertNotNull(xquery);
+            Sequence seq = xquery.execute(broker, "//item[ngram:contains(., 'cabinet')]/@id/string()", null);
+            assertEquals(1, seq.getItemCount());
+            assertEquals("3", seq.itemAt(0).getStringValue());
+
+            seq = xquery.execute(broker, "//item[ngram:contains(., 'table892')]/@id/string()", null);
+            assertEquals(1, seq.getItemCount());
+            assertEquals("2", seq.itemAt(0).getStringValue());
+
+            // all ngrams occur, but not in sequence
+            seq = xquery.execute(broker, "//item[ngram:contains(., 'chairtable')]", null);
+            assertEquals(0, seq.getItemCount());
+
+            // the last ngram does not occur at all
+            seq = xquery.execute(broker, "//item[ngram:contains(., 'cabinetxyz')]", null);
+            assertEquals(0, seq.getItemCount());
+
+            seq = xquery.execute(broker, "//section[ngram:contains(para, '56789')]/para[2]/string()", null);
+            assertEquals(1, seq.getItemCount());
+            assertEquals("56789", seq.itemAt(0).getStringValue());
+        }
+    }
+
+    @Test
+    public void reusePostings() throws PermissionDeniedException, XPathException, EXistException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try(final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final NGramIndexWorker index = (NGramIndexWorker) broker.getIndexController().getWorkerByIndexId(NGramIndex.ID);
+            final XQueryContext context = new XQueryContext(pool);
+
+            final NGramIndexWorker.Postings postings = index.readPostings(docs, null, "abl", context);
+            assertEquals(1, postings.getOccurrenceCount());
+            assertEquals(0, index.readPostings(docs, null, "xyz", context).getOccurrenceCount());
+
+            // the same postings serve the filter and the search pass
+            final NodeSet candidates = index.filter(postings, context, null, NodeSet.DESCENDANT, null);
+            assertEquals(1, candidates.getItemCount());
+            NodeSet result = index.search(0, postings, "abl", context, null, NodeSet.DESCENDANT, candidates);
+            assertEquals(1, result.getItemCount());
+            assertNotNull(((NodeProxy) result.itemAt(0)).getMatches());
+
+            result = index.search(0, postings, "abl", context, null, NodeSet.DESCENDANT, null);
+            assertEquals(1, result.getItemCount());
+
+            // candidates which do not contain the ngram are not returned
+            final NodeSet other = index.filter(index.readPostings(docs, null, "cha", context), context, null, NodeSet.DESCENDANT, null);
+            assertEquals(1, other.getItemCount());
+            result = index.search(0, postings, "abl", context, null, NodeSet.DESCENDANT, other);
+            assertEquals(0, result.getItemCount());
+        }
+    }
+
     @Test
     public void indexKeys() throws SAXException, PermissionDeniedException, XPathException, EXistException {
         final BrokerPool pool = existEmbeddedServer.getBrokerPool();
@@ -86,6 +86,7 @@ public class RangeIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
     public static final String FIELD_DOC_ID = "docId";
     public static final String FIELD_ADDRESS = "address";
     public static final String FIELD_ID = "id";
+    public static final String FIELD_SORT_PREFIX = "sort-";
 
     private static Set<String> LOAD_FIELDS = new TreeSet<String>();
     static {
@@ -490,10 +491,18 @@ public class RangeIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                         contentField = field.getName();
                     else
                         contentField = LuceneUtil.encodeQName(pending.getQName(), index.getBrokerPool().getSymbols());
-                    Field fld = pending.getConfig().convertToField(contentField, field.getContent().toString());
+                    final String content = field.getContent();
+                    Field fld = pending.getConfig().convertToField(contentField, content);
                     if (fld != null) {
                         doc.add(fld);
                     }
+                    // keep the string value as doc value, so order by can read it without accessing the node
+                    if (field.isStringValue()) {
+                        final BytesRef value = new BytesRef(content);
+                        if (value.length <= IndexWriter.MAX_TERM_LENGTH) {
+                            doc.add(new SortedDocValuesField(FIELD_SORT_PREFIX + contentField, value));
+                        }
+                    }
                 }
                 fDocIdIdx.setIntValue(currentDoc.getDocId());
                 doc.add(fDocIdIdx);
@@ -569,6 +578,64 @@ public class RangeIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         });
     }
 
+    /**
+     * Returns the string values of all nodes in the given document, which are indexed
+     * on the given qname. The values are read from doc values stored at index time,
+     * so the nodes do not need to be loaded. Only nodes whose string value was indexed
+     * unchanged are contained in the result, see {@link TextCollector.Field#isStringValue()}.
+     *
+     * @param document the document to look at
+     * @param qname the qname of the range index
+     * @return a map from node id to string value
+     * @throws IOException in case of an error reading the index
+     * @throws XPathException in case of an error reading the index
+     */
+    public Map<NodeId, String> getStringValues(DocumentImpl document, QName qname) throws IOException, XPathException {
+        final String field = FIELD_SORT_PREFIX + LuceneUtil.encodeQName(qname, index.getBrokerPool().getSymbols());
+        final BytesRefBuilder bytes = new BytesRefBuilder();
+        NumericUtils.intToPrefixCoded(document.getDocId(), 0, bytes);
+        final Query query = new TermQuery(new Term(FIELD_DOC_ID, bytes.toBytesRef()));
+        return index.withSearcher(searcher -> {
+            final Map<NodeId, String> values = new TreeMap<>();
+            searcher.search(query, new Collector() {
+                private BinaryDocValues nodeIdValues;
+                private SortedDocValues sortValues;
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                    // ignore
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    if (sortValues == null) {
+                        return;
+                    }
+                    final int ord = sortValues.getOrd(doc);
+                    if (ord < 0) {
+                        return;
+                    }
+                    final BytesRef ref = nodeIdValues.get(doc);
+                    final int units = ByteConversion.byteToShort(ref.bytes, ref.offset);
+                    final NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromData(units, ref.bytes, ref.offset + 2);
+                    values.put(nodeId, sortValues.lookupOrd(ord).utf8ToString());
+                }
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) throws IOException {
+                    nodeIdValues = context.reader().getBinaryDocValues(FIELD_NODE_ID);
+                    sortValues = context.reader().getSortedDocValues(field);
+                }
+
+                @Override
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+            return values;
+        });
+    }
+
 //    private OpenBitSet getDocs(DocumentSet docs, IndexSearcher searcher) throws IOException {
 //        OpenBitSet bits = new OpenBitSet(searcher.getIndexReader().maxDoc());
 //        for (Iterator i = docs.getDocumentIterator(); i.hasNext(); ) {
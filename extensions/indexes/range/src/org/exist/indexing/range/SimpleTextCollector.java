@@ -60,7 +60,7 @@ public class SimpleTextCollector implements TextCollector {
     @Override
     public List<Field> getFields() {
         List<Field> fields = new ArrayList<Field>(1);
-        fields.add(new Field(buf, wsTreatment, caseSensitive));
+        fields.add(new Field(buf, wsTreatment, caseSensitive, includeNested));
         return fields;
     }
 }
@@ -29,14 +29,20 @@ public interface TextCollector {
         protected final String name;
         protected final int wsTreatment;
         protected final boolean caseSensitive;
+        protected final boolean includeNested;
         protected XMLString content;
 
         public Field(XMLString content, int wsTreatment, boolean caseSensitive) {
+            this(content, wsTreatment, caseSensitive, true);
+        }
+
+        public Field(XMLString content, int wsTreatment, boolean caseSensitive, boolean includeNested) {
             this.content = content;
             this.attribute = false;
             this.name = null;
             this.wsTreatment = wsTreatment;
             this.caseSensitive = caseSensitive;
+            this.includeNested = includeNested;
         }
 
         public Field(String name, boolean isAttribute, int wsTreatment, boolean caseSensitive) {
@@ -45,6 +51,7 @@ public interface TextCollector {
             this.wsTreatment = wsTreatment;
             this.content = new XMLString();
             this.caseSensitive = caseSensitive;
+            this.includeNested = false;
         }
 
         public String getContent() {
@@ -57,6 +64,18 @@ public interface TextCollector {
             return content.toString();
         }
 
+        /**
+         * Returns true if the content of this field is identical to the
+         * string value of the indexed node, i.e. it was neither normalized
+         * nor lower-cased and includes the text of nested elements. Named
+         * fields of a complex index never return true.
+         *
+         * @return true if the field content equals the string value of the node
+         */
+        public boolean isStringValue() {
+            return name == null && includeNested && caseSensitive && wsTreatment == XMLString.SUPPRESS_NONE;
+        }
+
         public String getName() {
             return name;
         }
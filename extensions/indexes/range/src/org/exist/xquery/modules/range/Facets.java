@@ -0,0 +1,151 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.modules.range;
+
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.indexing.range.RangeIndex;
+import org.exist.indexing.range.RangeIndexWorker;
+import org.exist.numbering.NodeId;
+import org.exist.storage.ElementValue;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import javax.xml.XMLConstants;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Counts the distinct values of a range index below a set of nodes. The values are
+ * read from the doc values the range index keeps for every node whose string value
+ * is indexed unchanged, so neither the nodes nor their text have to be loaded.
+ */
+public class Facets extends BasicFunction {
+
+    private final static String DESCRIPTION =
+            "Returns the number of occurrences of each distinct value of a range index within the given nodes. " +
+            "Counted are all nodes with the name $qname which are either contained in $nodes or descendants " +
+            "of a node in $nodes. Use '@name' to count attribute values. The range index on $qname has to be " +
+            "defined on the qname (not as a field), must not normalize whitespace and must be case-sensitive.";
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("facets", RangeIndexModule.NAMESPACE_URI, RangeIndexModule.PREFIX),
+            DESCRIPTION,
+            new SequenceType[] {
+                new FunctionParameterSequenceType("nodes", Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "the nodes to compute the facets for"),
+                new FunctionParameterSequenceType("qname", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "the name of the indexed element or, prefixed with '@', attribute")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE,
+                "a map with the index values as keys and the number of occurrences as values")
+        ),
+        new FunctionSignature(
+            new QName("facets", RangeIndexModule.NAMESPACE_URI, RangeIndexModule.PREFIX),
+            DESCRIPTION,
+            new SequenceType[] {
+                new FunctionParameterSequenceType("nodes", Type.NODE, Cardinality.ZERO_OR_MORE,
+                    "the nodes to compute the facets for"),
+                new FunctionParameterSequenceType("qname", Type.STRING, Cardinality.EXACTLY_ONE,
+                    "the name of the indexed element or, prefixed with '@', attribute"),
+                new FunctionParameterSequenceType("count", Type.INTEGER, Cardinality.ZERO_OR_ONE,
+                    "return only the given number of values with the highest counts")
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE,
+                "a map with the index values as keys and the number of occurrences as values")
+        )
+    };
+
+    public Facets(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final QName qname = getQName(args[1].getStringValue());
+        int max = -1;
+        if (getArgumentCount() == 3 && !args[2].isEmpty()) {
+            max = ((IntegerValue) args[2].itemAt(0)).getInt();
+        }
+
+        // group the node ids by document, so the index is scanned once per document
+        final Map<DocumentImpl, Set<NodeId>> nodesByDoc = new TreeMap<>(
+                (d1, d2) -> Integer.compare(d1.getDocId(), d2.getDocId()));
+        for (final SequenceIterator i = args[0].unorderedIterator(); i.hasNext(); ) {
+            final NodeValue node = (NodeValue) i.nextItem();
+            if (node.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+                continue;
+            }
+            final NodeProxy proxy = (NodeProxy) node;
+            nodesByDoc.computeIfAbsent(proxy.getOwnerDocument(), k -> new TreeSet<>()).add(proxy.getNodeId());
+        }
+
+        final RangeIndexWorker index = (RangeIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(RangeIndex.ID);
+        final Map<String, Long> counts = new HashMap<>();
+        try {
+            for (final Map.Entry<DocumentImpl, Set<NodeId>> entry : nodesByDoc.entrySet()) {
+                final Set<NodeId> nodeIds = entry.getValue();
+                for (final Map.Entry<NodeId, String> value : index.getStringValues(entry.getKey(), qname).entrySet()) {
+                    if (isSelfOrDescendant(value.getKey(), nodeIds)) {
+                        counts.merge(value.getValue(), 1L, Long::sum);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new XPathException(this, ErrorCodes.FOER0000, "Error while reading facets from range index: " + e.getMessage(), null, e);
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        if (max > -1 && entries.size() > max) {
+            entries.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+            entries = entries.subList(0, max);
+        }
+
+        final MapType map = new MapType(context);
+        for (final Map.Entry<String, Long> entry : entries) {
+            map.add(new StringValue(entry.getKey()), new IntegerValue(entry.getValue()));
+        }
+        return map;
+    }
+
+    private QName getQName(String name) throws XPathException {
+        final boolean attribute = name.startsWith("@");
+        try {
+            if (attribute) {
+                return new QName(QName.parse(context, name.substring(1), XMLConstants.NULL_NS_URI), ElementValue.ATTRIBUTE);
+            }
+            return QName.parse(context, name);
+        } catch (QName.IllegalQNameException e) {
+            throw new XPathException(this, ErrorCodes.XPST0081, "Invalid qname: " + name);
+        }
+    }
+
+    private static boolean isSelfOrDescendant(NodeId nodeId, Set<NodeId> ancestors) {
+        for (NodeId current = nodeId; current != null; current = current.getParentId()) {
+            if (ancestors.contains(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
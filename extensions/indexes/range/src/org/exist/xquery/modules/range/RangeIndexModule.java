@@ -61,7 +61,9 @@ public class RangeIndexModule extends AbstractInternalModule {
         new FunctionDef(FieldLookup.signatures[10], FieldLookup.class),
         new FunctionDef(Optimize.signature, Optimize.class),
         new FunctionDef(IndexKeys.signatures[0], IndexKeys.class),
-        new FunctionDef(IndexKeys.signatures[1], IndexKeys.class)
+        new FunctionDef(IndexKeys.signatures[1], IndexKeys.class),
+        new FunctionDef(Facets.signatures[0], Facets.class),
+        new FunctionDef(Facets.signatures[1], Facets.class)
     };
 
     public final static Map<String, RangeIndex.Operator> OPERATOR_MAP = new HashMap<String, RangeIndex.Operator>();
@@ -21,7 +21,9 @@
  */
 package org.exist.xquery.modules.range;
 
+import org.exist.dom.QName;
 import org.exist.indexing.range.*;
+import org.exist.storage.ElementValue;
 import org.exist.storage.NodePath;
 import org.exist.xquery.*;
 import org.exist.xquery.Constants.Comparison;
@@ -31,7 +33,8 @@ import java.util.List;
 
 /**
  * Query rewriter for the range index. May replace path expressions like a[b = "c"] or a[b = "c"][d = "e"]
- * with either a[range:equals(b, "c")] or range:field-equals(...).
+ * with either a[range:equals(b, "c")] or range:field-equals(...). Sort expressions like $x/b in an
+ * order by clause are replaced with a {@link SortKeyLookup}.
  */
 public class RangeQueryRewriter extends QueryRewriter {
 
@@ -125,6 +128,32 @@ public class RangeQueryRewriter extends QueryRewriter {
         return null;
     }
 
+    @Override
+    public Expression rewriteOrderSpec(OrderSpec orderSpec) throws XPathException {
+        Expression sortExpr = orderSpec.getSortExpression();
+        while (sortExpr instanceof PathExpr && ((PathExpr) sortExpr).getSubExpressionCount() == 1) {
+            sortExpr = ((PathExpr) sortExpr).getSubExpression(0);
+        }
+        // only a single child or attribute step on a variable, e.g. $x/price, is supported
+        if (!(sortExpr instanceof PathExpr) || ((PathExpr) sortExpr).getSubExpressionCount() != 2) {
+            return null;
+        }
+        final PathExpr path = (PathExpr) sortExpr;
+        if (!(path.getSubExpression(0) instanceof VariableReference && path.getSubExpression(1) instanceof LocationStep)) {
+            return null;
+        }
+        final LocationStep step = (LocationStep) path.getSubExpression(1);
+        final int axis = step.getAxis();
+        final NodeTest test = step.getTest();
+        if (step.hasPredicates() || test.isWildcardTest() || test.getName() == null ||
+                !(axis == Constants.CHILD_AXIS || axis == Constants.ATTRIBUTE_AXIS)) {
+            return null;
+        }
+        final QName qname = new QName(test.getName(),
+                axis == Constants.ATTRIBUTE_AXIS ? ElementValue.ATTRIBUTE : ElementValue.ELEMENT);
+        return new SortKeyLookup(getContext(), path.getSubExpression(0), qname, orderSpec.getSortExpression());
+    }
+
     protected static Lookup rewrite(Expression expression, NodePath path) throws XPathException {
         ArrayList<Expression> eqArgs = new ArrayList<Expression>(2);
         if (expression instanceof GeneralComparison) {
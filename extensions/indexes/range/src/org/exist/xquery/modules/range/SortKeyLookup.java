@@ -0,0 +1,185 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.modules.range;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.indexing.range.RangeIndex;
+import org.exist.indexing.range.RangeIndexWorker;
+import org.exist.numbering.NodeId;
+import org.exist.storage.UpdateListener;
+import org.exist.xquery.*;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replaces a sort expression like $x/price in an order by clause. The string value of
+ * the child element or attribute is read from the doc values of the range index
+ * instead of loading the node. The values are fetched once per document and cached
+ * until the expression is reset for the next evaluation. An update to a document
+ * within the same query drops the cached values of the document.
+ *
+ * If the index has no value for a node, e.g. because the index definition normalizes
+ * whitespace or the node has several children of the same name, the original
+ * expression is evaluated instead.
+ */
+public class SortKeyLookup extends AbstractExpression {
+
+    private static final Logger LOG = LogManager.getLogger(SortKeyLookup.class);
+
+    private final Expression contextExpr;
+    private final QName qname;
+    private final Expression fallback;
+
+    private final Map<Integer, Map<NodeId, String>> keysByDoc = new ConcurrentHashMap<>();
+    private volatile UpdateListener listener = null;
+
+    public SortKeyLookup(XQueryContext context, Expression contextExpr, QName qname, Expression fallback) {
+        super(context);
+        this.contextExpr = contextExpr;
+        this.qname = qname;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        fallback.analyze(contextInfo);
+    }
+
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        final Sequence input = contextExpr.eval(contextSequence, contextItem);
+        if (input.hasOne() && Type.subTypeOf(input.getItemType(), Type.NODE)) {
+            final NodeValue node = (NodeValue) input.itemAt(0);
+            if (node.getImplementationType() == NodeValue.PERSISTENT_NODE) {
+                final NodeProxy proxy = (NodeProxy) node;
+                final String value = getKeys(proxy.getOwnerDocument()).get(proxy.getNodeId());
+                if (value != null) {
+                    return new UntypedAtomicValue(value);
+                }
+            }
+        }
+        return fallback.eval(contextSequence, contextItem);
+    }
+
+    private Map<NodeId, String> getKeys(DocumentImpl doc) throws XPathException {
+        Map<NodeId, String> keys = keysByDoc.get(doc.getDocId());
+        if (keys == null) {
+            registerUpdateListener();
+            keys = new TreeMap<>();
+            final RangeIndexWorker index = (RangeIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(RangeIndex.ID);
+            try {
+                for (final Map.Entry<NodeId, String> entry : index.getStringValues(doc, qname).entrySet()) {
+                    final NodeId parentId = entry.getKey().getParentId();
+                    if (keys.containsKey(parentId)) {
+                        // more than one child with this name: let the fallback raise the error
+                        keys.put(parentId, null);
+                    } else {
+                        keys.put(parentId, entry.getValue());
+                    }
+                }
+            } catch (IOException e) {
+                throw new XPathException(this, ErrorCodes.FOER0000, "Error while reading sort keys from range index: " + e.getMessage(), null, e);
+            }
+            keysByDoc.put(doc.getDocId(), keys);
+        }
+        return keys;
+    }
+
+    private synchronized void registerUpdateListener() {
+        if (listener == null) {
+            listener = new UpdateListener() {
+                @Override
+                public void documentUpdated(DocumentImpl document, int event) {
+                    if (document == null) {
+                        keysByDoc.clear();
+                    } else {
+                        keysByDoc.remove(document.getDocId());
+                    }
+                }
+
+                @Override
+                public void nodeMoved(NodeId oldNodeId, NodeHandle newNode) {
+                    keysByDoc.remove(newNode.getOwnerDocument().getDocId());
+                }
+
+                @Override
+                public void unsubscribe() {
+                    SortKeyLookup.this.listener = null;
+                }
+
+                @Override
+                public void debug() {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("UpdateListener: Line: " + SortKeyLookup.this.toString());
+                    }
+                }
+            };
+            context.registerUpdateListener(listener);
+        }
+    }
+
+    @Override
+    public int returnsType() {
+        return fallback.returnsType();
+    }
+
+    @Override
+    public int getCardinality() {
+        return fallback.getCardinality();
+    }
+
+    @Override
+    public int getDependencies() {
+        return fallback.getDependencies();
+    }
+
+    @Override
+    public void dump(ExpressionDumper dumper) {
+        fallback.dump(dumper);
+    }
+
+    @Override
+    public String toString() {
+        return fallback.toString();
+    }
+
+    @Override
+    public void accept(ExpressionVisitor visitor) {
+        fallback.accept(visitor);
+    }
+
+    @Override
+    public void resetState(boolean postOptimization) {
+        super.resetState(postOptimization);
+        fallback.resetState(postOptimization);
+        keysByDoc.clear();
+        listener = null;
+    }
+}
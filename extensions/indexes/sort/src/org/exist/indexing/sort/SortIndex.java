@@ -8,7 +8,7 @@ import org.exist.indexing.IndexWorker;
 import org.exist.indexing.RawBackupSupport;
 import org.exist.storage.DBBroker;
 import org.exist.storage.btree.DBException;
-import org.exist.storage.index.BTreeStore;
+import org.exist.storage.index.BFile;
 import org.exist.storage.lock.LockManager;
 import org.exist.storage.lock.ManagedLock;
 import org.exist.util.DatabaseConfigurationException;
@@ -18,6 +18,7 @@ import org.exist.util.LockException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -30,44 +31,51 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * Every sort index has an id by which it is identified and distinguished from other indexes
  * on the same node set.
+ * <p>
+ * For every index and document, the positions of all indexed nodes are stored together in a
+ * single entry, ordered by node id. Looking up the positions of many nodes thus requires one
+ * read per document instead of one B-tree lookup per node.
  */
 public class SortIndex extends AbstractIndex implements RawBackupSupport {
 
     public static final String ID = SortIndex.class.getName();
     public static final String FILE_NAME = "sort.dbx";
-    public final static short FILE_FORMAT_VERSION_ID = 3;
+    public final static short FILE_FORMAT_VERSION_ID = 4;
     public static final byte SORT_INDEX_ID = 0x10;
     protected static final Logger LOG = LogManager.getLogger(SortIndex.class);
-    protected BTreeStore btree;
+    protected BFile db;
+
+    // incremented whenever an index is created or removed, used to invalidate cached positions
+    private final AtomicLong modificationCount = new AtomicLong();
 
     @Override
     public void open() throws DatabaseConfigurationException {
         final Path file = getDataDir().resolve(FILE_NAME);
         LOG.debug("Creating '" + FileUtils.fileName(file) + "'...");
         try {
-            btree = new BTreeStore(pool, SORT_INDEX_ID, FILE_FORMAT_VERSION_ID, false,
-                    file, pool.getCacheManager());
+            db = new BFile(pool, SORT_INDEX_ID, FILE_FORMAT_VERSION_ID, false,
+                    file, pool.getCacheManager(), 1.4, 0.07);
         } catch (final DBException e) {
-            LOG.error("Failed to initialize structural index: " + e.getMessage(), e);
+            LOG.error("Failed to initialize sort index: " + e.getMessage(), e);
             throw new DatabaseConfigurationException(e.getMessage(), e);
         }
     }
 
     @Override
     public void close() throws DBException {
-        btree.close();
-        btree = null;
+        db.close();
+        db = null;
     }
 
     @Override
     public void sync() throws DBException {
-        if (btree == null)
+        if (db == null)
             return;
         final LockManager lockManager = pool.getLockManager();
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(btree.getLockName())) {
-            btree.flush();
+        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(db.getLockName())) {
+            db.flush();
         } catch (final LockException e) {
-            LOG.warn("Failed to acquire lock for '" + FileUtils.fileName(btree.getFile()) + "'", e);
+            LOG.warn("Failed to acquire lock for '" + FileUtils.fileName(db.getFile()) + "'", e);
             //TODO : throw an exception ? -pb
         } catch (final DBException e) {
             LOG.error(e.getMessage(), e);
@@ -77,7 +85,7 @@ public class SortIndex extends AbstractIndex implements RawBackupSupport {
 
     @Override
     public void remove() throws DBException {
-        btree.closeAndRemove();
+        db.closeAndRemove();
     }
 
     @Override
@@ -90,10 +98,18 @@ public class SortIndex extends AbstractIndex implements RawBackupSupport {
         return false;
     }
 
+    protected long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    protected void modified() {
+        modificationCount.incrementAndGet();
+    }
+
     @Override
     public void backupToArchive(final RawDataBackup backup) throws IOException {
-        try (final OutputStream os = backup.newEntry(FileUtils.fileName(btree.getFile()))) {
-            btree.backupToStream(os);
+        try (final OutputStream os = backup.newEntry(FileUtils.fileName(db.getFile()))) {
+            db.backupToStream(os);
         } finally {
             backup.closeEntry();
         }
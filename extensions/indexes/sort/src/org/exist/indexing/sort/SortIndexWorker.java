@@ -8,12 +8,15 @@ import org.exist.indexing.IndexWorker;
 import org.exist.indexing.MatchListener;
 import org.exist.indexing.StreamListener;
 import org.exist.indexing.StreamListener.ReindexMode;
+import org.exist.numbering.NodeId;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NodePath;
-import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.storage.io.VariableByteInput;
+import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.storage.lock.LockManager;
 import org.exist.storage.lock.ManagedLock;
 import org.exist.util.*;
@@ -24,6 +27,8 @@ import org.w3c.dom.NodeList;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,6 +39,7 @@ public class SortIndexWorker implements IndexWorker {
     private DocumentImpl document = null;
     private SortIndex index;
     private final LockManager lockManager;
+    private DocumentPositions cached = null;
 
     public SortIndexWorker(final SortIndex index) {
         this.index = index;
@@ -70,6 +76,9 @@ public class SortIndexWorker implements IndexWorker {
     /**
      * Create a new sort index identified by a name. The method iterates through all items in
      * the items list and adds the nodes to the index. It assumes that the list is already ordered.
+     * The nodes are then sorted by document and node id, so the positions of all nodes in a
+     * document can be written as one entry. Nodes of the document which were added to the index
+     * by a previous call keep their position, unless they are contained in the items list.
      *
      * @param name  the name by which the index will be identified
      * @param items ordered list of items to store
@@ -79,41 +88,162 @@ public class SortIndexWorker implements IndexWorker {
     public void createIndex(final String name, final List<SortItem> items) throws EXistException, LockException {
         // get an id for the new index
         final short id = getOrRegisterId(name);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            long idx = 0;
-            for (final SortItem item : items) {
-                final byte[] key = computeKey(id, item.getNode());
-                index.btree.addValue(new Value(key), idx++);
+        final List<Entry> entries = new ArrayList<>(items.size());
+        long idx = 0;
+        for (final SortItem item : items) {
+            entries.add(new Entry(item.getNode(), idx++));
+        }
+        // stable sort: if a node occurs twice, the last position wins
+        entries.sort(null);
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
+            final VariableByteOutputStream os = new VariableByteOutputStream(256);
+            int start = 0;
+            while (start < entries.size()) {
+                final int docId = entries.get(start).docId;
+                int end = start;
+                while (end < entries.size() && entries.get(end).docId == docId) {
+                    end++;
+                }
+                // merge with the nodes of the document indexed by a previous call
+                final DocumentPositions existing = readEntry(id, docId, 0);
+                final List<NodeId> nodeIds = new ArrayList<>(existing.nodeIds.length + end - start);
+                final List<Long> positions = new ArrayList<>(existing.nodeIds.length + end - start);
+                int e = 0;
+                for (int i = start; i < end; i++) {
+                    if (isOverwritten(entries, i)) {
+                        continue;
+                    }
+                    final Entry entry = entries.get(i);
+                    while (e < existing.nodeIds.length && existing.nodeIds[e].compareTo(entry.nodeId) < 0) {
+                        nodeIds.add(existing.nodeIds[e]);
+                        positions.add(existing.positions[e++]);
+                    }
+                    if (e < existing.nodeIds.length && existing.nodeIds[e].equals(entry.nodeId)) {
+                        e++;
+                    }
+                    nodeIds.add(entry.nodeId);
+                    positions.add(entry.position);
+                }
+                while (e < existing.nodeIds.length) {
+                    nodeIds.add(existing.nodeIds[e]);
+                    positions.add(existing.positions[e++]);
+                }
+
+                os.clear();
+                os.writeInt(nodeIds.size());
+                NodeId previous = null;
+                for (int i = 0; i < nodeIds.size(); i++) {
+                    previous = nodeIds.get(i).write(previous, os);
+                    os.writeLong(positions.get(i));
+                }
+                if (index.db.put(new Value(computeKey(id, docId)), os.data(), true) == BFile.UNKNOWN_ADDRESS) {
+                    throw new EXistException("Failed to store sort index entry for document " + docId);
+                }
+                start = end;
             }
-        } catch (final LockException | IOException | BTreeException e) {
+        } catch (final IOException e) {
             throw new EXistException("Exception caught while creating sort index: " + e.getMessage(), e);
+        } finally {
+            index.modified();
         }
     }
 
+    private static boolean isOverwritten(final List<Entry> entries, final int i) {
+        return i + 1 < entries.size() && entries.get(i).compareTo(entries.get(i + 1)) == 0;
+    }
+
     public boolean hasIndex(final String name) throws EXistException, LockException {
         return getId(name) > 0;
     }
 
     /**
      * Looks up the given node in the specified index and returns its original position
-     * in the ordered set as a long integer.
+     * in the ordered set as a long integer. The positions of the node's document are
+     * cached, so looking up further nodes from the same document does not access the index
+     * file again.
      *
      * @param name  the name of the index
      * @param proxy the node
-     * @return the original position of the node in the ordered set
+     * @return the original position of the node in the ordered set or -1 if the node was not found
      * @throws EXistException
      * @throws LockException
      */
     public long getIndex(final String name, final NodeProxy proxy) throws EXistException, LockException {
         final short id = getId(name);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeReadLock(index.btree.getLockName())) {
-            final byte[] key = computeKey(id, proxy);
-            return index.btree.findValue(new Value(key));
-        } catch (final LockException | IOException | BTreeException e) {
+        if (id < 0) {
+            return -1;
+        }
+        final int docId = proxy.getOwnerDocument().getDocId();
+        final long modificationCount = index.getModificationCount();
+        if (cached == null || cached.id != id || cached.docId != docId || cached.modificationCount != modificationCount) {
+            cached = readPositions(id, docId, modificationCount);
+        }
+        return cached.get(proxy.getNodeId());
+    }
+
+    /**
+     * Looks up all nodes in the given node set in the specified index. The positions are read
+     * once per document. The returned array contains the position of each node in the order
+     * in which the nodes are returned by the node set's iterator, or -1 for nodes which were
+     * not found.
+     *
+     * @param name  the name of the index
+     * @param nodes the nodes to look up
+     * @return the original positions of the nodes in the ordered set
+     * @throws EXistException
+     * @throws LockException
+     */
+    public long[] getIndex(final String name, final NodeSet nodes) throws EXistException, LockException {
+        final long[] result = new long[nodes.getLength()];
+        final short id = getId(name);
+        if (id < 0) {
+            Arrays.fill(result, -1);
+            return result;
+        }
+        final long modificationCount = index.getModificationCount();
+        final Map<Integer, DocumentPositions> positions = new HashMap<>();
+        int i = 0;
+        for (final NodeProxy proxy : nodes) {
+            final int docId = proxy.getOwnerDocument().getDocId();
+            DocumentPositions docPositions = positions.get(docId);
+            if (docPositions == null) {
+                docPositions = readPositions(id, docId, modificationCount);
+                positions.put(docId, docPositions);
+            }
+            result[i++] = docPositions.get(proxy.getNodeId());
+        }
+        return result;
+    }
+
+    private DocumentPositions readPositions(final short id, final int docId, final long modificationCount)
+            throws EXistException, LockException {
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(index.db.getLockName())) {
+            return readEntry(id, docId, modificationCount);
+        } catch (final IOException e) {
             throw new EXistException("Exception caught while reading sort index: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Read the entry of the given document. The caller has to hold a lock on the index file.
+     */
+    private DocumentPositions readEntry(final short id, final int docId, final long modificationCount) throws IOException {
+        final VariableByteInput is = index.db.getAsStream(new Value(computeKey(id, docId)));
+        if (is == null) {
+            return new DocumentPositions(id, docId, modificationCount, new NodeId[0], new long[0]);
+        }
+        final int count = is.readInt();
+        final NodeId[] nodeIds = new NodeId[count];
+        final long[] positions = new long[count];
+        NodeId previous = null;
+        for (int i = 0; i < count; i++) {
+            previous = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
+            nodeIds[i] = previous;
+            positions[i] = is.readLong();
+        }
+        return new DocumentPositions(id, docId, modificationCount, nodeIds, positions);
+    }
+
     /**
      * Completely remove the index identified by its name.
      *
@@ -123,15 +253,15 @@ public class SortIndexWorker implements IndexWorker {
      */
     public void remove(final String name) throws EXistException, LockException {
         final short id = getId(name);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            final byte[] fromKey = computeKey(id);
-            final byte[] toKey = computeKey((short) (id + 1));
-            final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(toKey));
-            index.btree.remove(query, null);
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
+            final IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(computeKey(id)));
+            index.db.removeAll(null, query);
 
             removeId(name);
-        } catch (final BTreeException | TerminatedException | IOException e) {
+        } catch (final BTreeException | IOException e) {
             throw new EXistException("Exception caught while deleting sort index: " + e.getMessage(), e);
+        } finally {
+            index.modified();
         }
     }
 
@@ -140,33 +270,26 @@ public class SortIndexWorker implements IndexWorker {
         remove(doc, id);
     }
 
-    private void remove(final DocumentImpl doc, final short id) throws LockException, EXistException {
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            final byte[] fromKey = computeKey(id, doc.getDocId());
-            final byte[] toKey = computeKey(id, doc.getDocId() + 1);
-            final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(toKey));
-            index.btree.remove(query, null);
-        } catch (final BTreeException | TerminatedException | IOException e) {
-            throw new EXistException("Exception caught while deleting sort index: " + e.getMessage(), e);
+    private void remove(final DocumentImpl doc, final short id) throws LockException {
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
+            index.db.remove(new Value(computeKey(id, doc.getDocId())));
+        } finally {
+            index.modified();
         }
     }
 
     public void remove(final DocumentImpl doc) {
-        if (index.btree == null)
+        if (index.db == null)
             return;
-        final byte[] fromKey = new byte[]{1};
-        final byte[] endKey = new byte[]{2};
-
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(endKey));
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
             final FindIdCallback callback = new FindIdCallback(true);
-            index.btree.query(query, callback);
+            index.db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { 1 })), callback);
 
-            for (final long id : callback.allIds) {
-                remove(doc, (short) id);
+            for (final short id : callback.allIds) {
+                remove(doc, id);
             }
 
-        } catch (final BTreeException | EXistException | LockException | TerminatedException | IOException e) {
+        } catch (final BTreeException | LockException | TerminatedException | IOException e) {
             SortIndex.LOG.debug("Exception caught while reading sort index: " + e.getMessage(), e);
         }
     }
@@ -182,12 +305,10 @@ public class SortIndexWorker implements IndexWorker {
     private short getOrRegisterId(final String name) throws EXistException, LockException {
         short id = getId(name);
         if (id < 0) {
-            final byte[] fromKey = {1};
-            final byte[] endKey = {2};
-            final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(endKey));
-            try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
+            final IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { 1 }));
+            try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
                 final FindIdCallback callback = new FindIdCallback(false);
-                index.btree.query(query, callback);
+                index.db.find(query, callback);
                 id = (short) (callback.max + 1);
                 registerId(id, name);
             } catch (final IOException | TerminatedException | BTreeException e) {
@@ -198,45 +319,40 @@ public class SortIndexWorker implements IndexWorker {
     }
 
     private void registerId(final short id, final String name) throws EXistException {
-        final byte[] key = new byte[1 + UTF8.encoded(name)];
-        key[0] = 1;
-        UTF8.encode(name, key, 1);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            index.btree.addValue(new Value(key), id);
-        } catch (final LockException | IOException | BTreeException e) {
+        final byte[] data = new byte[2];
+        ByteConversion.shortToByteH(id, data, 0);
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
+            if (index.db.put(new Value(computeKey(name)), data, true) == BFile.UNKNOWN_ADDRESS) {
+                throw new EXistException("Failed to register sort index: " + name);
+            }
+        } catch (final LockException | ReadOnlyException e) {
             throw new EXistException("Exception caught while reading sort index: " + e.getMessage(), e);
         }
     }
 
     private void removeId(final String name) throws EXistException {
-        final byte[] key = new byte[1 + UTF8.encoded(name)];
-        key[0] = 1;
-        UTF8.encode(name, key, 1);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeWriteLock(index.btree.getLockName())) {
-            index.btree.removeValue(new Value(key));
-        } catch (final LockException | IOException | BTreeException e) {
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(index.db.getLockName())) {
+            index.db.remove(new Value(computeKey(name)));
+        } catch (final LockException e) {
             throw new EXistException("Exception caught while reading sort index: " + e.getMessage(), e);
         }
     }
 
     private short getId(final String name) throws EXistException, LockException {
-        final byte[] key = new byte[1 + UTF8.encoded(name)];
-        key[0] = 1;
-        UTF8.encode(name, key, 1);
-        try(final ManagedLock<ReentrantLock> btreeLock = lockManager.acquireBtreeReadLock(index.btree.getLockName())) {
-            return (short) index.btree.findValue(new Value(key));
-        } catch (final BTreeException | IOException e) {
-            throw new EXistException("Exception caught while reading sort index: " + e.getMessage(), e);
+        try(final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(index.db.getLockName())) {
+            final Value value = index.db.get(new Value(computeKey(name)));
+            if (value == null) {
+                return -1;
+            }
+            return ByteConversion.byteToShortH(value.data(), value.start());
         }
     }
 
-    private byte[] computeKey(final short id, final NodeProxy proxy) {
-        final byte[] data = new byte[7 + proxy.getNodeId().size()];
-        data[0] = 0;
-        ByteConversion.shortToByteH(id, data, 1);
-        ByteConversion.intToByteH(proxy.getOwnerDocument().getDocId(), data, 3);
-        proxy.getNodeId().serialize(data, 7);
-        return data;
+    private byte[] computeKey(final String name) {
+        final byte[] key = new byte[1 + UTF8.encoded(name)];
+        key[0] = 1;
+        UTF8.encode(name, key, 1);
+        return key;
     }
 
     private byte[] computeKey(final short id, final int docId) {
@@ -298,21 +414,69 @@ public class SortIndexWorker implements IndexWorker {
         return new Occurrences[0];
     }
 
-    private final static class FindIdCallback implements BTreeCallback {
-        long max = 0;
-        List<Long> allIds = null;
+    private final static class FindIdCallback implements IndexCallback {
+        short max = 0;
+        List<Short> allIds = null;
 
         private FindIdCallback(final boolean findIds) {
             if (findIds)
                 allIds = new ArrayList<>(10);
         }
 
-        public boolean indexInfo(final Value value, final long pointer) throws TerminatedException {
-            max = Math.max(max, pointer);
+        @Override
+        public boolean indexInfo(final Value key, final Value value) {
+            final short id = ByteConversion.byteToShortH(value.data(), value.start());
+            max = (short) Math.max(max, id);
             if (allIds != null) {
-                allIds.add(pointer);
+                allIds.add(id);
             }
             return true;
         }
     }
+
+    /**
+     * A node to be stored, ordered by document and node id.
+     */
+    private final static class Entry implements Comparable<Entry> {
+        final int docId;
+        final NodeId nodeId;
+        final long position;
+
+        private Entry(final NodeProxy node, final long position) {
+            this.docId = node.getOwnerDocument().getDocId();
+            this.nodeId = node.getNodeId();
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            final int cmp = Integer.compare(docId, other.docId);
+            return cmp == 0 ? nodeId.compareTo(other.nodeId) : cmp;
+        }
+    }
+
+    /**
+     * The positions of the indexed nodes of one document, ordered by node id.
+     */
+    private final static class DocumentPositions {
+        final short id;
+        final int docId;
+        final long modificationCount;
+        final NodeId[] nodeIds;
+        final long[] positions;
+
+        private DocumentPositions(final short id, final int docId, final long modificationCount,
+                                  final NodeId[] nodeIds, final long[] positions) {
+            this.id = id;
+            this.docId = docId;
+            this.modificationCount = modificationCount;
+            this.nodeIds = nodeIds;
+            this.positions = positions;
+        }
+
+        long get(final NodeId nodeId) {
+            final int idx = Arrays.binarySearch(nodeIds, nodeId);
+            return idx < 0 ? -1 : positions[idx];
+        }
+    }
 }
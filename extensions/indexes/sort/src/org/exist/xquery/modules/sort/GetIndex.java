@@ -17,13 +17,15 @@ public class GetIndex extends BasicFunction {
                     "Look up a node in the sort index and return a number (&gt; 0) corresponding to the " +
                             "position of that node in the ordered set which was created by a previous call to " +
                             "the sort:create-index function. The function returns the empty sequence if the node " +
-                            "cannot be found in the index.",
+                            "cannot be found in the index. If more than one node is passed, the positions of all " +
+                            "nodes found in the index are returned in document order of the nodes. The index " +
+                            "is then read only once per document.",
                     new SequenceType[]{
                             new FunctionParameterSequenceType("id", Type.STRING, Cardinality.EXACTLY_ONE, "The name of the index."),
-                            new FunctionParameterSequenceType("node", Type.NODE, Cardinality.ZERO_OR_ONE, "The node to look up.")
+                            new FunctionParameterSequenceType("node", Type.NODE, Cardinality.ZERO_OR_MORE, "The node(s) to look up.")
                     },
-                    new FunctionReturnSequenceType(Type.LONG, Cardinality.ZERO_OR_ONE, "A number &gt; 0 or the empty " +
-                            "sequence if the $node argument was empty or the node could not be found in the index."));
+                    new FunctionReturnSequenceType(Type.LONG, Cardinality.ZERO_OR_MORE, "A number &gt; 0 for each node " +
+                            "found or the empty sequence if the $node argument was empty or no node could be found in the index."));
 
     public GetIndex(final XQueryContext context) {
         super(context, signature);
@@ -34,17 +36,25 @@ public class GetIndex extends BasicFunction {
         if (args[1].isEmpty())
             return Sequence.EMPTY_SEQUENCE;
         final String id = args[0].getStringValue();
-        final NodeProxy node = (NodeProxy) args[1].itemAt(0);
         final SortIndexWorker index = (SortIndexWorker)
                 context.getBroker().getIndexController().getWorkerByIndexId(SortIndex.ID);
-        long pos = 0;
         try {
-            pos = index.getIndex(id, node);
+            if (args[1].hasOne()) {
+                final long pos = index.getIndex(id, (NodeProxy) args[1].itemAt(0));
+                return pos < 0 ? Sequence.EMPTY_SEQUENCE : new IntegerValue(pos, Type.LONG);
+            }
+            final long[] positions = index.getIndex(id, args[1].toNodeSet());
+            final ValueSequence result = new ValueSequence(positions.length);
+            for (final long pos : positions) {
+                if (pos > -1) {
+                    result.add(new IntegerValue(pos, Type.LONG));
+                }
+            }
+            return result;
         } catch (final EXistException e) {
             throw new XPathException(this, e.getMessage(), e);
         } catch (final LockException e) {
             throw new XPathException(this, "Caught lock error while searching index. Giving up.", e);
         }
-        return pos < 0 ? Sequence.EMPTY_SEQUENCE : new IntegerValue(pos, Type.LONG);
     }
 }
@@ -836,7 +836,7 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         }
     }
 
-    private class SRSGeometry {
+    protected class SRSGeometry {
 
         private String SRSName;
         private Geometry geometry;
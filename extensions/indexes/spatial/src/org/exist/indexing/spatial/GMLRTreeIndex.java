@@ -0,0 +1,158 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.sql.Connection;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.backup.RawDataBackup;
+import org.exist.indexing.IndexWorker;
+import org.exist.indexing.RawBackupSupport;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.btree.BTreeException;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.FileUtils;
+import org.w3c.dom.Element;
+
+/**
+ * Spatial index which keeps the geometries and an {@link RTree} over their
+ * EPSG:4326 bounding boxes in a paged file of the database, instead of an
+ * external HSQLDB database. It serves the same spatial functions as
+ * {@link GMLHSQLIndex} and is configured in conf.xml with:
+ *
+ * <pre>
+ * &lt;module id="spatial-index" class="org.exist.indexing.spatial.GMLRTreeIndex" file="spatial.dbx"/&gt;
+ * </pre>
+ *
+ * There is no JDBC connection: {@link #acquireConnection(DBBroker)} returns null and
+ * the worker ignores the connection passed to it.
+ */
+public class GMLRTreeIndex extends AbstractGMLJDBCIndex implements RawBackupSupport {
+
+    public static final short FILE_FORMAT_VERSION_ID = 1;
+
+    public static final byte SPATIAL_INDEX_ID = 0x11;
+
+    /** first key byte of the geometry records */
+    static final byte KEY_GEOMETRY = 0;
+    /** first key byte of the R-tree nodes */
+    static final byte KEY_RTREE = 1;
+
+    private final static Logger LOG = LogManager.getLogger(GMLRTreeIndex.class);
+
+    protected BFile db;
+    protected RTree rtree;
+    private Path dataFile = null;
+
+    @Override
+    public void configure(BrokerPool pool, Path dataDir, Element config) throws DatabaseConfigurationException {
+        super.configure(pool, dataDir, config);
+        String fileName = "spatial.dbx";
+        if (config.hasAttribute("file"))
+            fileName = config.getAttribute("file");
+        dataFile = dataDir.resolve(fileName);
+    }
+
+    @Override
+    public void open() throws DatabaseConfigurationException {
+        try {
+            db = new BFile(pool, SPATIAL_INDEX_ID, FILE_FORMAT_VERSION_ID, false, dataFile, pool.getCacheManager(), 1.4, 0.07);
+        } catch (DBException e) {
+            throw new DatabaseConfigurationException("Failed to create index file: " + dataFile.toAbsolutePath().toString() + ": " +
+                e.getMessage());
+        }
+        rtree = new RTree(db, KEY_RTREE);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Opened GML index: " + dataFile.toAbsolutePath().toString());
+    }
+
+    @Override
+    public void sync() throws DBException {
+        db.flush();
+    }
+
+    @Override
+    public IndexWorker getWorker(DBBroker broker) {
+        AbstractGMLJDBCIndexWorker worker = workers.get(broker);
+        if (worker == null) {
+            worker = new GMLRTreeIndexWorker(this, broker);
+            workers.put(broker, worker);
+        }
+        return worker;
+    }
+
+    @Override
+    protected void checkDatabase() {
+        //Nothing to check : the index file is opened in open()
+    }
+
+    @Override
+    protected void shutdownDatabase() throws DBException {
+        if (db != null) {
+            db.close();
+        }
+    }
+
+    @Override
+    protected void deleteDatabase() throws DBException {
+        if (dataFile != null)
+            FileUtils.deleteQuietly(dataFile);
+    }
+
+    @Override
+    protected void removeIndexContent() throws DBException {
+        try {
+            db.removeAll(null, new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { KEY_GEOMETRY })));
+            rtree.clear();
+        } catch (IOException | BTreeException e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected Connection acquireConnection(DBBroker broker) {
+        return null;
+    }
+
+    @Override
+    protected void releaseConnection(DBBroker broker) {
+        //Nothing to release
+    }
+
+    @Override
+    public void backupToArchive(final RawDataBackup backup) throws IOException {
+        // do not use try-with-resources here, closing the OutputStream will close the entire backup
+        try {
+            final OutputStream os = backup.newEntry(FileUtils.fileName(db.getFile()));
+            db.backupToStream(os);
+        } finally {
+            backup.closeEntry();
+        }
+    }
+}
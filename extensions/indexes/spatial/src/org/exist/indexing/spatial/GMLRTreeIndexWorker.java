@@ -0,0 +1,639 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.*;
+import org.exist.indexing.StreamListener.ReindexMode;
+import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.NodePath;
+import org.exist.storage.btree.BTreeException;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.lock.LockManager;
+import org.exist.storage.lock.ManagedLock;
+import org.exist.util.ByteConversion;
+import org.exist.util.FixedByteArray;
+import org.exist.util.IndexCallback;
+import org.exist.util.LockException;
+import org.exist.util.io.FastByteArrayInputStream;
+import org.exist.xquery.QueryRewriter;
+import org.exist.xquery.TerminatedException;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValueFromInputStream;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.DoubleValue;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index worker of {@link GMLRTreeIndex}.
+ *
+ * Every geometry is stored as one record, keyed by collection id, document id and
+ * node id, holding the SRS name, the WKB of the original geometry and the WKB and
+ * bounding box of the EPSG:4326 geometry. The bounding box and the key of the record
+ * are added to the {@link RTree}, which is used to find the candidates of a spatial
+ * query. All other properties are computed from the stored geometries.
+ *
+ * The connection arguments inherited from {@link AbstractGMLJDBCIndexWorker} are always
+ * null and are ignored.
+ */
+public class GMLRTreeIndexWorker extends AbstractGMLJDBCIndexWorker {
+
+    private static final Logger LOG = LogManager.getLogger(GMLRTreeIndexWorker.class);
+
+    // key type + collection id + document id + node id units
+    private static final int KEY_NODE_ID_OFFSET = 13;
+    // bounding box + length of the SRS name
+    private static final int RECORD_HEADER_LENGTH = 34;
+
+    private final GMLRTreeIndex rtreeIndex;
+    private final LockManager lockManager;
+
+    public GMLRTreeIndexWorker(GMLRTreeIndex index, DBBroker broker) {
+        super(index, broker);
+        this.rtreeIndex = index;
+        this.lockManager = broker.getBrokerPool().getLockManager();
+    }
+
+    @Override
+    public void flush() {
+        if (currentDoc == null)
+            //Not concerned
+            return;
+        //Is the job already done ?
+        if (currentMode == ReindexMode.REMOVE_ALL_NODES && documentDeleted)
+            return;
+        try {
+            switch (currentMode) {
+                case STORE :
+                    saveDocumentNodes();
+                    break;
+                case REMOVE_SOME_NODES :
+                    if (currentNodeId != null) {
+                        try {
+                            if (!removeDocumentNode(currentDoc, currentNodeId, null))
+                                LOG.error("No data dropped for node " + currentNodeId.toString() + " from GML index");
+                        } finally {
+                            currentNodeId = null;
+                        }
+                    }
+                    break;
+                case REMOVE_ALL_NODES:
+                    final int nodeCount = removeDocument(currentDoc, null);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Dropped " + nodeCount + " nodes from GML index");
+                    documentDeleted = true;
+                    break;
+            }
+        } catch (SQLException e) {
+            LOG.error("Document: " + currentDoc + " NodeID: " + currentNodeId, e);
+        }
+    }
+
+    private void saveDocumentNodes() throws SQLException {
+        if (geometries.isEmpty())
+            return;
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(rtreeIndex.db.getLockName())) {
+            final List<RTree.Entry> entries = new ArrayList<>(geometries.size());
+            for (final Map.Entry<NodeId, SRSGeometry> entry : geometries.entrySet()) {
+                try {
+                    entries.add(storeGeometry(entry.getValue().getGeometry(), entry.getValue().getSRSName(),
+                            currentDoc, entry.getKey()));
+                } catch (SpatialIndexException e) {
+                    LOG.error("Unable to transform geometry for node: " + entry.getKey() + ". Indexing will be skipped", e);
+                }
+            }
+            //Add all geometries of the document at once : an empty tree is bulk loaded
+            rtreeIndex.rtree.insertAll(entries);
+        } catch (LockException | IOException e) {
+            throw new SQLException(e.getMessage(), e);
+        } finally {
+            geometries.clear();
+        }
+    }
+
+    /**
+     * Stores the record of a geometry. The caller has to add the returned
+     * entry to the R-tree.
+     */
+    private RTree.Entry storeGeometry(Geometry geometry, String srsName, DocumentImpl doc, NodeId nodeId)
+            throws SpatialIndexException, IOException {
+        final Geometry EPSG4326_geometry = transformGeometry(geometry, srsName, "EPSG:4326");
+        final Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+        final Value key = geometryKey(doc, nodeId);
+
+        //Replace an existing record
+        final Value oldValue = rtreeIndex.db.get(key);
+        if (oldValue != null)
+            rtreeIndex.rtree.remove(new GeometryRecord(oldValue.getData()).toEntry(key.getData()));
+
+        final byte[] srs = srsName.getBytes(UTF_8);
+        final byte[] wkb = wkbWriter.write(geometry);
+        final byte[] EPSG4326_wkb = wkbWriter.write(EPSG4326_geometry);
+        final byte[] data = new byte[RECORD_HEADER_LENGTH + srs.length + 4 + wkb.length + 4 + EPSG4326_wkb.length];
+        ByteConversion.longToByte(Double.doubleToLongBits(envelope.getMinX()), data, 0);
+        ByteConversion.longToByte(Double.doubleToLongBits(envelope.getMaxX()), data, 8);
+        ByteConversion.longToByte(Double.doubleToLongBits(envelope.getMinY()), data, 16);
+        ByteConversion.longToByte(Double.doubleToLongBits(envelope.getMaxY()), data, 24);
+        ByteConversion.shortToByte((short) srs.length, data, 32);
+        int pos = RECORD_HEADER_LENGTH;
+        System.arraycopy(srs, 0, data, pos, srs.length);
+        pos += srs.length;
+        ByteConversion.intToByte(wkb.length, data, pos);
+        System.arraycopy(wkb, 0, data, pos + 4, wkb.length);
+        pos += 4 + wkb.length;
+        ByteConversion.intToByte(EPSG4326_wkb.length, data, pos);
+        System.arraycopy(EPSG4326_wkb, 0, data, pos + 4, EPSG4326_wkb.length);
+        rtreeIndex.db.put(key, new FixedByteArray(data), true);
+
+        return new RTree.Entry(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(), key.getData());
+    }
+
+    @Override
+    protected boolean saveGeometryNode(Geometry geometry, String srsName, DocumentImpl doc, NodeId nodeId, PreparedStatement ps) throws SQLException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(rtreeIndex.db.getLockName())) {
+            rtreeIndex.rtree.insert(storeGeometry(geometry, srsName, doc, nodeId));
+            return true;
+        } catch (LockException | IOException | SpatialIndexException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected boolean removeDocumentNode(DocumentImpl doc, NodeId nodeId, Connection conn) throws SQLException {
+        final Value key = geometryKey(doc, nodeId);
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(rtreeIndex.db.getLockName())) {
+            final Value value = rtreeIndex.db.get(key);
+            if (value == null)
+                return false;
+            rtreeIndex.rtree.remove(new GeometryRecord(value.getData()).toEntry(key.getData()));
+            rtreeIndex.db.remove(key);
+            return true;
+        } catch (LockException | IOException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected int removeDocument(DocumentImpl doc, Connection conn) throws SQLException {
+        return removeGeometries(geometryKey(doc.getCollection().getId(), doc.getDocId()));
+    }
+
+    @Override
+    protected int removeCollection(Collection collection, Connection conn) throws SQLException {
+        return removeGeometries(geometryKey(collection.getId()));
+    }
+
+    /**
+     * Removes all geometries whose key starts with the given prefix.
+     *
+     * @return the number of removed geometries
+     */
+    private int removeGeometries(Value prefix) throws SQLException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeWriteLock(rtreeIndex.db.getLockName())) {
+            final IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, prefix);
+            final List<RTree.Entry> entries = new ArrayList<>();
+            rtreeIndex.db.find(query, (key, value) -> {
+                entries.add(new GeometryRecord(value.getData()).toEntry(key.getData()));
+                return true;
+            });
+            for (final RTree.Entry entry : entries) {
+                rtreeIndex.rtree.remove(entry);
+            }
+            rtreeIndex.db.removeAll(null, query);
+            return entries.size();
+        } catch (LockException | IOException | BTreeException | TerminatedException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Connection acquireConnection() {
+        return null;
+    }
+
+    @Override
+    protected void releaseConnection(Connection conn) {
+        //Nothing to release
+    }
+
+    @Override
+    protected NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException {
+        final Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final List<byte[]> candidates = new ArrayList<>();
+            if (spatialOp == SpatialOperator.DISJOINT) {
+                //Nothing much we can do with the R-tree : check every geometry
+                scanGeometries(contextSet == null ? null : contextSet.getDocumentSet(), (key, value) -> {
+                    candidates.add(key.getData());
+                    return true;
+                });
+            } else {
+                rtreeIndex.rtree.search(spatialOp, envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(),
+                        entry -> candidates.add(entry.getData()));
+            }
+
+            int disjointPostFiltered = 0;
+            final NodeSet result = new ExtArrayNodeSet();
+            final Map<Integer, DocumentImpl> documents = new HashMap<>();
+            for (final byte[] key : candidates) {
+                final NodeProxy p = getNode(broker, contextSet, documents, key);
+                //Node is in the context : check if it is accurate
+                //contextSet.contains(p) would have made more sense but there is a problem with
+                //VirtualNodeSet when on the DESCENDANT_OR_SELF axis
+                if (p == null || (contextSet != null && contextSet.get(p) == null))
+                    continue;
+                final GeometryRecord record = readGeometry(key);
+                if (record == null)
+                    continue;
+                boolean geometryMatches = false;
+                if (spatialOp == SpatialOperator.DISJOINT) {
+                    //No BBox intersection : obviously disjoint
+                    if (!record.intersects(envelope)) {
+                        geometryMatches = true;
+                        disjointPostFiltered++;
+                    }
+                }
+                //Possible match : check the geometry
+                if (!geometryMatches) {
+                    final Geometry geometry = wkbReader.read(record.EPSG4326_wkb);
+                    switch (spatialOp) {
+                    case SpatialOperator.EQUALS:
+                        geometryMatches = geometry.equals(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.DISJOINT:
+                        geometryMatches = geometry.disjoint(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.INTERSECTS:
+                        geometryMatches = geometry.intersects(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.TOUCHES:
+                        geometryMatches = geometry.touches(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.CROSSES:
+                        geometryMatches = geometry.crosses(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.WITHIN:
+                        geometryMatches = geometry.within(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.CONTAINS:
+                        geometryMatches = geometry.contains(EPSG4326_geometry);
+                        break;
+                    case SpatialOperator.OVERLAPS:
+                        geometryMatches = geometry.overlaps(EPSG4326_geometry);
+                        break;
+                    }
+                }
+                if (geometryMatches)
+                    result.add(p);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(candidates.size() + " eligible geometries, " + result.getItemCount() + " selected" +
+                    (spatialOp == SpatialOperator.DISJOINT ? "(" + disjointPostFiltered + " post filtered)" : ""));
+            }
+            return result;
+        } catch (LockException | IOException | BTreeException | TerminatedException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Map<Geometry, String> getGeometriesForDocument(DocumentImpl doc, Connection conn) throws SQLException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final List<byte[]> wkbs = new ArrayList<>();
+            rtreeIndex.db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, geometryKey(doc.getCollection().getId(), doc.getDocId())),
+                    (key, value) -> {
+                        wkbs.add(new GeometryRecord(value.getData()).EPSG4326_wkb);
+                        return true;
+                    });
+            final Map<Geometry, String> map = new TreeMap<>();
+            for (final byte[] wkb : wkbs) {
+                final Geometry EPSG4326_geometry = wkbReader.read(wkb);
+                //Returns the EPSG:4326 WKT for every geometry to make occurrence aggregation consistent
+                map.put(EPSG4326_geometry, wktWriter.write(EPSG4326_geometry));
+            }
+            return map;
+        } catch (LockException | IOException | BTreeException | TerminatedException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Geometry getGeometryForNode(DBBroker broker, NodeProxy p, boolean getEPSG4326, Connection conn) throws SQLException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final GeometryRecord record = readGeometry(geometryKey(p.getOwnerDocument(), p.getNodeId()).getData());
+            if (record == null)
+                //Nothing returned
+                return null;
+            return wkbReader.read(getEPSG4326 ? record.EPSG4326_wkb : record.wkb);
+        } catch (LockException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected Geometry[] getGeometriesForNodes(DBBroker broker, NodeSet contextSet, boolean getEPSG4326, Connection conn) throws SQLException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final Geometry[] result = new Geometry[contextSet.getLength()];
+            int index = 0;
+            for (final NodeProxy p : contextSet) {
+                final GeometryRecord record = readGeometry(geometryKey(p.getOwnerDocument(), p.getNodeId()).getData());
+                result[index++] = record == null ? null : wkbReader.read(getEPSG4326 ? record.EPSG4326_wkb : record.wkb);
+            }
+            return result;
+        } catch (LockException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected AtomicValue getGeometricPropertyForNode(XQueryContext context, NodeProxy p, Connection conn, String propertyName) throws SQLException, XPathException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final GeometryRecord record = readGeometry(geometryKey(p.getOwnerDocument(), p.getNodeId()).getData());
+            if (record == null)
+                //Nothing returned
+                return AtomicValue.EMPTY_VALUE;
+            return getGeometricProperty(context, record, propertyName);
+        } catch (LockException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected ValueSequence getGeometricPropertyForNodes(XQueryContext context, NodeSet contextSet, Connection conn, String propertyName) throws SQLException, XPathException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final ValueSequence result = new ValueSequence(contextSet.getLength());
+            for (final NodeProxy p : contextSet) {
+                final GeometryRecord record = readGeometry(geometryKey(p.getOwnerDocument(), p.getNodeId()).getData());
+                if (record != null)
+                    result.add(getGeometricProperty(context, record, propertyName));
+            }
+            return result;
+        } catch (LockException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    private AtomicValue getGeometricProperty(XQueryContext context, GeometryRecord record, String propertyName)
+            throws ParseException, XPathException {
+        final boolean EPSG4326 = propertyName.startsWith("EPSG4326_");
+        final String name = EPSG4326 ? propertyName.substring("EPSG4326_".length()) : propertyName;
+        final byte[] wkb = EPSG4326 ? record.EPSG4326_wkb : record.wkb;
+        switch (name) {
+            case "SRS_NAME":
+                return new StringValue(record.srsName);
+            case "WKB":
+                return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), new FastByteArrayInputStream(wkb));
+        }
+        final Geometry geometry = wkbReader.read(wkb);
+        switch (name) {
+            case "GEOMETRY_TYPE":
+                return new StringValue(geometry.getGeometryType());
+            case "WKT":
+                return new StringValue(wktWriter.write(geometry));
+            case "MINX":
+                return new DoubleValue(geometry.getEnvelopeInternal().getMinX());
+            case "MAXX":
+                return new DoubleValue(geometry.getEnvelopeInternal().getMaxX());
+            case "MINY":
+                return new DoubleValue(geometry.getEnvelopeInternal().getMinY());
+            case "MAXY":
+                return new DoubleValue(geometry.getEnvelopeInternal().getMaxY());
+            case "CENTROID_X":
+                return new DoubleValue(geometry.getCentroid().getCoordinate().x);
+            case "CENTROID_Y":
+                return new DoubleValue(geometry.getCentroid().getCoordinate().y);
+            case "AREA":
+                return new DoubleValue(geometry.getArea());
+            //As discussed earlier, all instances of SFS geometry classes
+            //are topologically closed by definition.
+            //For empty Curves, isClosed is defined to have the value false.
+            case "IS_CLOSED":
+                return new BooleanValue(!geometry.isEmpty());
+            case "IS_SIMPLE":
+                return new BooleanValue(geometry.isSimple());
+            case "IS_VALID":
+                return new BooleanValue(geometry.isValid());
+            default:
+                throw new XPathException("Unknown spatial property: " + propertyName);
+        }
+    }
+
+    @Override
+    protected boolean checkIndex(DBBroker broker, Connection conn) throws SQLException, SpatialIndexException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager.acquireBtreeReadLock(rtreeIndex.db.getLockName())) {
+            final Map<byte[], GeometryRecord> records = new LinkedHashMap<>();
+            scanGeometries(null, (key, value) -> {
+                records.put(key.getData(), new GeometryRecord(value.getData()));
+                return true;
+            });
+            if (records.size() != rtreeIndex.rtree.getSize()) {
+                LOG.info("Inconsistent R-tree: " + rtreeIndex.rtree.getSize() + " entries for " + records.size() + " geometries");
+                return false;
+            }
+            final Map<Integer, DocumentImpl> documents = new HashMap<>();
+            for (final Map.Entry<byte[], GeometryRecord> entry : records.entrySet()) {
+                final GeometryRecord record = entry.getValue();
+                final Geometry original_geometry = wkbReader.read(record.wkb);
+                final Geometry EPSG4326_geometry = wkbReader.read(record.EPSG4326_wkb);
+                if (!transformGeometry(original_geometry, record.srsName, "EPSG:4326").equals(EPSG4326_geometry)) {
+                    LOG.info("Transformed original geometry inconsistent with stored tranformed one");
+                    return false;
+                }
+                final Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+                if (envelope.getMinX() != record.minX || envelope.getMaxX() != record.maxX ||
+                        envelope.getMinY() != record.minY || envelope.getMaxY() != record.maxY) {
+                    LOG.info("Inconsistent bounding box: " + record.minX + " " + record.maxX + " " + record.minY + " " + record.maxY);
+                    return false;
+                }
+                final NodeProxy p = getNode(broker, null, documents, entry.getKey());
+                if (p == null) {
+                    LOG.info("Document " + ByteConversion.byteToInt(entry.getKey(), 5) + " doesn't exist");
+                    return false;
+                }
+                final IStoredNode node = broker.objectWith(p);
+                if (node == null) {
+                    LOG.info("Node " + p.getNodeId() + "doesn't exist");
+                    return false;
+                }
+                if (!AbstractGMLJDBCIndexWorker.GML_NS.equals(node.getNamespaceURI())) {
+                    LOG.info("GML indexed node (" + node.getNodeId()+ ") is in the '" +
+                            node.getNamespaceURI() + "' namespace. '" +
+                            AbstractGMLJDBCIndexWorker.GML_NS + "' was expected !");
+                    return false;
+                }
+            }
+            return true;
+        } catch (LockException | IOException | BTreeException | TerminatedException | ParseException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calls the callback for the geometries of all collections of the given documents,
+     * or for all geometries if docs is null.
+     */
+    private void scanGeometries(DocumentSet docs, IndexCallback callback) throws IOException, BTreeException, TerminatedException {
+        if (docs == null) {
+            rtreeIndex.db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { GMLRTreeIndex.KEY_GEOMETRY })), callback);
+        } else {
+            for (final Iterator<Collection> i = docs.getCollectionIterator(); i.hasNext(); ) {
+                rtreeIndex.db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, geometryKey(i.next().getId())), callback);
+            }
+        }
+    }
+
+    private GeometryRecord readGeometry(byte[] key) {
+        final Value value = rtreeIndex.db.get(new Value(key));
+        return value == null ? null : new GeometryRecord(value.getData());
+    }
+
+    /**
+     * Returns the node a geometry key refers to, or null if its document is not in
+     * the context set or is not accessible.
+     */
+    private NodeProxy getNode(DBBroker broker, NodeSet contextSet, Map<Integer, DocumentImpl> documents, byte[] key) {
+        final int collectionId = ByteConversion.byteToInt(key, 1);
+        final int docId = ByteConversion.byteToInt(key, 5);
+        DocumentImpl doc;
+        if (contextSet != null) {
+            doc = contextSet.getDocumentSet().getDoc(docId);
+        } else {
+            doc = documents.get(docId);
+            if (doc == null && !documents.containsKey(docId)) {
+                try {
+                    doc = broker.getResourceById(collectionId, DocumentImpl.XML_FILE, docId);
+                } catch (PermissionDeniedException e) {
+                    LOG.debug(e);
+                    //Ignore since the broker has no right on the document
+                }
+                documents.put(docId, doc);
+            }
+        }
+        if (doc == null)
+            return null;
+        final int units = ByteConversion.byteToInt(key, 9);
+        final NodeId nodeId = broker.getBrokerPool().getNodeFactory().createFromData(units, key, KEY_NODE_ID_OFFSET);
+        return new NodeProxy(doc, nodeId);
+    }
+
+    private static Value geometryKey(int collectionId) {
+        final byte[] data = new byte[5];
+        data[0] = GMLRTreeIndex.KEY_GEOMETRY;
+        ByteConversion.intToByte(collectionId, data, 1);
+        return new Value(data);
+    }
+
+    private static Value geometryKey(int collectionId, int docId) {
+        final byte[] data = new byte[9];
+        data[0] = GMLRTreeIndex.KEY_GEOMETRY;
+        ByteConversion.intToByte(collectionId, data, 1);
+        ByteConversion.intToByte(docId, data, 5);
+        return new Value(data);
+    }
+
+    private static Value geometryKey(DocumentImpl doc, NodeId nodeId) {
+        final byte[] data = new byte[KEY_NODE_ID_OFFSET + nodeId.size()];
+        data[0] = GMLRTreeIndex.KEY_GEOMETRY;
+        ByteConversion.intToByte(doc.getCollection().getId(), data, 1);
+        ByteConversion.intToByte(doc.getDocId(), data, 5);
+        ByteConversion.intToByte(nodeId.units(), data, 9);
+        nodeId.serialize(data, KEY_NODE_ID_OFFSET);
+        return new Value(data);
+    }
+
+    @Override
+    public <T extends IStoredNode> IStoredNode getReindexRoot(IStoredNode<T> node, NodePath path, boolean insert, boolean includeSelf) {
+        return null;
+    }
+
+    @Override
+    public QueryRewriter getQueryRewriter(XQueryContext context) {
+        return null;
+    }
+
+    /**
+     * A stored geometry.
+     */
+    private static class GeometryRecord {
+
+        private final double minX;
+        private final double maxX;
+        private final double minY;
+        private final double maxY;
+        private final String srsName;
+        private final byte[] wkb;
+        private final byte[] EPSG4326_wkb;
+
+        private GeometryRecord(byte[] data) {
+            minX = Double.longBitsToDouble(ByteConversion.byteToLong(data, 0));
+            maxX = Double.longBitsToDouble(ByteConversion.byteToLong(data, 8));
+            minY = Double.longBitsToDouble(ByteConversion.byteToLong(data, 16));
+            maxY = Double.longBitsToDouble(ByteConversion.byteToLong(data, 24));
+            final int srsLength = ByteConversion.byteToShort(data, 32);
+            int pos = RECORD_HEADER_LENGTH;
+            srsName = new String(data, pos, srsLength, UTF_8);
+            pos += srsLength;
+            final int wkbLength = ByteConversion.byteToInt(data, pos);
+            wkb = Arrays.copyOfRange(data, pos + 4, pos + 4 + wkbLength);
+            pos += 4 + wkbLength;
+            final int EPSG4326_wkbLength = ByteConversion.byteToInt(data, pos);
+            EPSG4326_wkb = Arrays.copyOfRange(data, pos + 4, pos + 4 + EPSG4326_wkbLength);
+        }
+
+        private boolean intersects(Envelope envelope) {
+            return maxX >= envelope.getMinX() && minX <= envelope.getMaxX() &&
+                    maxY >= envelope.getMinY() && minY <= envelope.getMaxY();
+        }
+
+        private RTree.Entry toEntry(byte[] key) {
+            return new RTree.Entry(minX, maxX, minY, maxY, key);
+        }
+    }
+}
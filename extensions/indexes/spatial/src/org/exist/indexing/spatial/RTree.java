@@ -0,0 +1,666 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.storage.btree.BTreeException;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.util.ByteConversion;
+import org.exist.util.FixedByteArray;
+
+/**
+ * An R-tree over the bounding boxes of indexed geometries. Every node of the tree
+ * is stored as a value of a {@link BFile}, so the tree is paged and cached like
+ * the other index files of the database.
+ *
+ * Leaf entries carry an opaque byte array which identifies the indexed geometry.
+ * Single entries are inserted along the path of least enlargement and overflowing
+ * nodes are split with Guttman's quadratic split. A batch of entries added to an
+ * empty tree is packed bottom up with the Sort-Tile-Recursive algorithm instead,
+ * which gives fully packed nodes with little overlap.
+ *
+ * The tree does not lock anything: the caller has to hold the lock of the underlying
+ * file, a read lock for {@link #search(int, double, double, double, double, Callback)}
+ * and a write lock for all other operations.
+ */
+public class RTree {
+
+    public final static int MAX_ENTRIES = 50;
+    public final static int MIN_ENTRIES = 20;
+
+    private final static long UNKNOWN_NODE = -1;
+
+    // level byte + entry count
+    private final static int NODE_HEADER_LENGTH = 3;
+    private final static int BOUNDS_LENGTH = 32;
+
+    private final BFile db;
+    private final byte keyType;
+
+    private long root = UNKNOWN_NODE;
+    private long nextNode = 0;
+    private long size = 0;
+
+    /**
+     * @param db the file to store the nodes in
+     * @param keyType the first byte of all keys used by the tree. Other data
+     *                stored in the same file must use a different one.
+     */
+    public RTree(BFile db, byte keyType) {
+        this.db = db;
+        this.keyType = keyType;
+        final Value meta = db.get(metaKey());
+        if (meta != null) {
+            final byte[] data = meta.getData();
+            root = ByteConversion.byteToLong(data, 0);
+            nextNode = ByteConversion.byteToLong(data, 8);
+            size = ByteConversion.byteToLong(data, 16);
+        }
+    }
+
+    /**
+     * @return the number of leaf entries in the tree
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of levels of the tree, 0 if the tree is empty
+     */
+    public int getHeight() throws IOException {
+        return root == UNKNOWN_NODE ? 0 : readNode(root).level + 1;
+    }
+
+    public void insert(Entry entry) throws IOException {
+        insertEntry(entry, 0);
+        size++;
+        writeMeta();
+    }
+
+    /**
+     * Add a batch of entries. If the tree is empty, it is bulk loaded from the
+     * entries, otherwise they are inserted one by one in spatial order, so that
+     * consecutive inserts mostly touch the same nodes.
+     *
+     * @param entries the leaf entries to add
+     */
+    public void insertAll(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final List<Entry> sorted = new ArrayList<>(entries);
+        if (root == UNKNOWN_NODE && sorted.size() > MAX_ENTRIES) {
+            bulkLoad(sorted);
+        } else {
+            sortTiles(sorted);
+            for (final Entry entry : sorted) {
+                insertEntry(entry, 0);
+            }
+        }
+        size += entries.size();
+        writeMeta();
+    }
+
+    /**
+     * Remove a leaf entry. The bounds of the given entry have to be the
+     * bounds it was inserted with.
+     *
+     * @param entry the entry to remove
+     * @return true if the entry was found
+     */
+    public boolean remove(Entry entry) throws IOException {
+        if (root == UNKNOWN_NODE) {
+            return false;
+        }
+        final List<Node> orphans = new ArrayList<>();
+        if (!remove(readNode(root), entry, orphans)) {
+            return false;
+        }
+        // reinsert the entries of underflowing nodes at their original level,
+        // starting with the highest level
+        orphans.sort((n1, n2) -> n2.level - n1.level);
+        for (final Node orphan : orphans) {
+            for (final Entry orphanEntry : orphan.entries) {
+                insertEntry(orphanEntry, orphan.level);
+            }
+        }
+        // shorten the tree
+        Node rootNode = readNode(root);
+        while (rootNode.level > 0 && rootNode.entries.size() == 1) {
+            db.remove(nodeKey(rootNode.num));
+            root = rootNode.entries.get(0).child;
+            rootNode = readNode(root);
+        }
+        if (rootNode.entries.isEmpty()) {
+            db.remove(nodeKey(rootNode.num));
+            root = UNKNOWN_NODE;
+        }
+        size--;
+        writeMeta();
+        return true;
+    }
+
+    /**
+     * Remove all nodes of the tree.
+     */
+    public void clear() throws IOException, BTreeException {
+        db.removeAll(null, new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { keyType })));
+        root = UNKNOWN_NODE;
+        nextNode = 0;
+        size = 0;
+    }
+
+    /**
+     * Find all leaf entries whose bounds may satisfy the spatial operator with
+     * the given bounds. For {@link SpatialOperator#DISJOINT} the tree cannot help,
+     * the caller has to scan all entries.
+     *
+     * @param spatialOp one of the {@link SpatialOperator} constants
+     * @param minX minimum x of the query bounds
+     * @param maxX maximum x of the query bounds
+     * @param minY minimum y of the query bounds
+     * @param maxY maximum y of the query bounds
+     * @param callback called for every matching entry
+     */
+    public void search(int spatialOp, double minX, double maxX, double minY, double maxY, Callback callback) throws IOException {
+        if (spatialOp == SpatialOperator.DISJOINT || spatialOp == SpatialOperator.UNKNOWN) {
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        }
+        if (root == UNKNOWN_NODE) {
+            return;
+        }
+        search(readNode(root), spatialOp, new Entry(minX, maxX, minY, maxY, null), callback);
+    }
+
+    private void search(Node node, int spatialOp, Entry query, Callback callback) throws IOException {
+        for (final Entry entry : node.entries) {
+            if (node.level == 0) {
+                if (matches(spatialOp, entry, query)) {
+                    callback.found(entry);
+                }
+            } else if (mayContainMatches(spatialOp, entry, query)) {
+                search(readNode(entry.child), spatialOp, query, callback);
+            }
+        }
+    }
+
+    private static boolean matches(int spatialOp, Entry entry, Entry query) {
+        switch (spatialOp) {
+            //BBoxes are equal
+            case SpatialOperator.EQUALS:
+                return entry.sameBounds(query);
+            //BBox is fully within
+            case SpatialOperator.WITHIN:
+                return query.contains(entry);
+            //BBox fully contains
+            case SpatialOperator.CONTAINS:
+                return entry.contains(query);
+            //BBoxes intersect themselves
+            default:
+                return entry.intersects(query);
+        }
+    }
+
+    private static boolean mayContainMatches(int spatialOp, Entry entry, Entry query) {
+        switch (spatialOp) {
+            case SpatialOperator.EQUALS:
+            case SpatialOperator.CONTAINS:
+                return entry.contains(query);
+            default:
+                return entry.intersects(query);
+        }
+    }
+
+    private void insertEntry(Entry entry, int level) throws IOException {
+        if (root == UNKNOWN_NODE) {
+            final Node leaf = new Node(nextNode++, 0);
+            leaf.entries.add(entry);
+            writeNode(leaf);
+            root = leaf.num;
+            return;
+        }
+        final Node rootNode = readNode(root);
+        final Node sibling = insert(rootNode, entry, level);
+        if (sibling != null) {
+            // the root was split: grow the tree
+            final Node newRoot = new Node(nextNode++, rootNode.level + 1);
+            newRoot.entries.add(rootNode.toEntry());
+            newRoot.entries.add(sibling.toEntry());
+            writeNode(newRoot);
+            root = newRoot.num;
+        }
+    }
+
+    /**
+     * Insert the entry below the given node.
+     *
+     * @return the new sibling of node if it had to be split, null otherwise
+     */
+    private Node insert(Node node, Entry entry, int level) throws IOException {
+        boolean changed = true;
+        if (node.level == level) {
+            node.entries.add(entry);
+        } else {
+            final Entry chosen = chooseSubtree(node, entry);
+            final Node child = readNode(chosen.child);
+            final Node childSibling = insert(child, entry, level);
+            if (childSibling == null) {
+                changed = chosen.extend(entry);
+            } else {
+                chosen.setBounds(child);
+                node.entries.add(childSibling.toEntry());
+            }
+        }
+        Node sibling = null;
+        if (node.entries.size() > MAX_ENTRIES) {
+            sibling = split(node);
+            writeNode(sibling);
+        }
+        if (changed) {
+            writeNode(node);
+        }
+        return sibling;
+    }
+
+    private static Entry chooseSubtree(Node node, Entry entry) {
+        Entry best = null;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (final Entry candidate : node.entries) {
+            final double area = candidate.area();
+            final double enlargement = candidate.unionArea(entry) - area;
+            if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                best = candidate;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Guttman's quadratic split. The entries of the node are distributed between
+     * the node and a new sibling.
+     */
+    private Node split(Node node) {
+        final List<Entry> remaining = new ArrayList<>(node.entries);
+
+        // pick the two entries which would waste the most area if put together
+        int seed1 = 0;
+        int seed2 = 1;
+        double worst = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < remaining.size(); i++) {
+            final Entry e1 = remaining.get(i);
+            for (int j = i + 1; j < remaining.size(); j++) {
+                final Entry e2 = remaining.get(j);
+                final double waste = e1.unionArea(e2) - e1.area() - e2.area();
+                if (waste > worst) {
+                    worst = waste;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+
+        final Node sibling = new Node(nextNode++, node.level);
+        node.entries.clear();
+        final Entry entry2 = remaining.remove(seed2);
+        final Entry entry1 = remaining.remove(seed1);
+        node.entries.add(entry1);
+        sibling.entries.add(entry2);
+        final Entry bounds1 = entry1.copyBounds();
+        final Entry bounds2 = entry2.copyBounds();
+
+        while (!remaining.isEmpty()) {
+            // make sure both nodes get the minimum number of entries
+            if (node.entries.size() + remaining.size() == MIN_ENTRIES) {
+                node.entries.addAll(remaining);
+                break;
+            }
+            if (sibling.entries.size() + remaining.size() == MIN_ENTRIES) {
+                sibling.entries.addAll(remaining);
+                break;
+            }
+            // pick the entry with the strongest preference for one of the nodes
+            int next = 0;
+            double maxDiff = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < remaining.size(); i++) {
+                final Entry entry = remaining.get(i);
+                final double diff = Math.abs((bounds1.unionArea(entry) - bounds1.area()) -
+                        (bounds2.unionArea(entry) - bounds2.area()));
+                if (diff > maxDiff) {
+                    maxDiff = diff;
+                    next = i;
+                }
+            }
+            final Entry entry = remaining.remove(next);
+            final double enlargement1 = bounds1.unionArea(entry) - bounds1.area();
+            final double enlargement2 = bounds2.unionArea(entry) - bounds2.area();
+            final boolean first;
+            if (enlargement1 != enlargement2) {
+                first = enlargement1 < enlargement2;
+            } else if (bounds1.area() != bounds2.area()) {
+                first = bounds1.area() < bounds2.area();
+            } else {
+                first = node.entries.size() <= sibling.entries.size();
+            }
+            if (first) {
+                node.entries.add(entry);
+                bounds1.extend(entry);
+            } else {
+                sibling.entries.add(entry);
+                bounds2.extend(entry);
+            }
+        }
+        return sibling;
+    }
+
+    private boolean remove(Node node, Entry entry, List<Node> orphans) throws IOException {
+        if (node.level == 0) {
+            for (final Iterator<Entry> i = node.entries.iterator(); i.hasNext(); ) {
+                if (Arrays.equals(i.next().data, entry.data)) {
+                    i.remove();
+                    writeNode(node);
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (final Iterator<Entry> i = node.entries.iterator(); i.hasNext(); ) {
+            final Entry childEntry = i.next();
+            if (!childEntry.contains(entry)) {
+                continue;
+            }
+            final Node child = readNode(childEntry.child);
+            if (remove(child, entry, orphans)) {
+                if (child.entries.size() < MIN_ENTRIES) {
+                    // detach the node, its entries are reinserted later
+                    i.remove();
+                    db.remove(nodeKey(child.num));
+                    orphans.add(child);
+                } else {
+                    childEntry.setBounds(child);
+                }
+                writeNode(node);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sort-Tile-Recursive bulk loading: the entries are sorted into vertical
+     * slices by x, each slice is sorted by y and cut into full nodes. The
+     * same is repeated for the nodes of each level until a single root remains.
+     */
+    private void bulkLoad(List<Entry> entries) throws IOException {
+        List<Entry> levelEntries = entries;
+        int level = 0;
+        while (true) {
+            sortTiles(levelEntries);
+            final List<Entry> nodeEntries = new ArrayList<>(levelEntries.size() / MAX_ENTRIES + 1);
+            Node node = null;
+            for (final Entry entry : levelEntries) {
+                if (node == null || node.entries.size() == MAX_ENTRIES) {
+                    if (node != null) {
+                        writeNode(node);
+                        nodeEntries.add(node.toEntry());
+                    }
+                    node = new Node(nextNode++, level);
+                }
+                node.entries.add(entry);
+            }
+            writeNode(node);
+            if (nodeEntries.isEmpty()) {
+                root = node.num;
+                return;
+            }
+            nodeEntries.add(node.toEntry());
+            levelEntries = nodeEntries;
+            level++;
+        }
+    }
+
+    /**
+     * Sort the entries in the order of the Sort-Tile-Recursive algorithm: into
+     * slices by x, within each slice by y.
+     */
+    private static void sortTiles(List<Entry> entries) {
+        final int nodeCount = (entries.size() + MAX_ENTRIES - 1) / MAX_ENTRIES;
+        final int sliceSize = (int) Math.ceil(Math.sqrt(nodeCount)) * MAX_ENTRIES;
+        entries.sort(Comparator.comparingDouble(Entry::centerX));
+        for (int start = 0; start < entries.size(); start += sliceSize) {
+            entries.subList(start, Math.min(start + sliceSize, entries.size()))
+                    .sort(Comparator.comparingDouble(Entry::centerY));
+        }
+    }
+
+    private Node readNode(long num) throws IOException {
+        final Value value = db.get(nodeKey(num));
+        if (value == null) {
+            throw new IOException("R-tree node " + num + " not found in " + db.getFile());
+        }
+        final byte[] data = value.getData();
+        final Node node = new Node(num, data[0]);
+        final int count = ByteConversion.byteToShort(data, 1);
+        int pos = NODE_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            final Entry entry = new Entry(
+                    Double.longBitsToDouble(ByteConversion.byteToLong(data, pos)),
+                    Double.longBitsToDouble(ByteConversion.byteToLong(data, pos + 8)),
+                    Double.longBitsToDouble(ByteConversion.byteToLong(data, pos + 16)),
+                    Double.longBitsToDouble(ByteConversion.byteToLong(data, pos + 24)),
+                    null);
+            pos += BOUNDS_LENGTH;
+            if (node.level == 0) {
+                final int length = ByteConversion.byteToShort(data, pos);
+                entry.data = Arrays.copyOfRange(data, pos + 2, pos + 2 + length);
+                pos += 2 + length;
+            } else {
+                entry.child = ByteConversion.byteToLong(data, pos);
+                pos += 8;
+            }
+            node.entries.add(entry);
+        }
+        return node;
+    }
+
+    private void writeNode(Node node) {
+        int length = NODE_HEADER_LENGTH;
+        for (final Entry entry : node.entries) {
+            length += BOUNDS_LENGTH + (node.level == 0 ? 2 + entry.data.length : 8);
+        }
+        final byte[] data = new byte[length];
+        data[0] = (byte) node.level;
+        ByteConversion.shortToByte((short) node.entries.size(), data, 1);
+        int pos = NODE_HEADER_LENGTH;
+        for (final Entry entry : node.entries) {
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.minX), data, pos);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.maxX), data, pos + 8);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.minY), data, pos + 16);
+            ByteConversion.longToByte(Double.doubleToLongBits(entry.maxY), data, pos + 24);
+            pos += BOUNDS_LENGTH;
+            if (node.level == 0) {
+                ByteConversion.shortToByte((short) entry.data.length, data, pos);
+                System.arraycopy(entry.data, 0, data, pos + 2, entry.data.length);
+                pos += 2 + entry.data.length;
+            } else {
+                ByteConversion.longToByte(entry.child, data, pos);
+                pos += 8;
+            }
+        }
+        db.put(nodeKey(node.num), new FixedByteArray(data), true);
+    }
+
+    private void writeMeta() {
+        final byte[] data = new byte[24];
+        ByteConversion.longToByte(root, data, 0);
+        ByteConversion.longToByte(nextNode, data, 8);
+        ByteConversion.longToByte(size, data, 16);
+        db.put(metaKey(), new FixedByteArray(data), true);
+    }
+
+    private Value metaKey() {
+        return new Value(new byte[] { keyType });
+    }
+
+    private Value nodeKey(long num) {
+        final byte[] data = new byte[9];
+        data[0] = keyType;
+        ByteConversion.longToByte(num, data, 1);
+        return new Value(data);
+    }
+
+    public interface Callback {
+
+        void found(Entry entry) throws IOException;
+    }
+
+    /**
+     * A bounding box with either the data of an indexed geometry (in leaf nodes)
+     * or the number of a child node.
+     */
+    public static class Entry {
+
+        private double minX;
+        private double maxX;
+        private double minY;
+        private double maxY;
+        private long child = UNKNOWN_NODE;
+        private byte[] data;
+
+        public Entry(double minX, double maxX, double minY, double maxY, byte[] data) {
+            this.minX = minX;
+            this.maxX = maxX;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.data = data;
+        }
+
+        public double getMinX() {
+            return minX;
+        }
+
+        public double getMaxX() {
+            return maxX;
+        }
+
+        public double getMinY() {
+            return minY;
+        }
+
+        public double getMaxY() {
+            return maxY;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        private double centerX() {
+            return (minX + maxX) / 2;
+        }
+
+        private double centerY() {
+            return (minY + maxY) / 2;
+        }
+
+        private double area() {
+            return (maxX - minX) * (maxY - minY);
+        }
+
+        private double unionArea(Entry other) {
+            return (Math.max(maxX, other.maxX) - Math.min(minX, other.minX)) *
+                    (Math.max(maxY, other.maxY) - Math.min(minY, other.minY));
+        }
+
+        private boolean intersects(Entry other) {
+            return maxX >= other.minX && minX <= other.maxX && maxY >= other.minY && minY <= other.maxY;
+        }
+
+        private boolean contains(Entry other) {
+            return minX <= other.minX && maxX >= other.maxX && minY <= other.minY && maxY >= other.maxY;
+        }
+
+        private boolean sameBounds(Entry other) {
+            return minX == other.minX && maxX == other.maxX && minY == other.minY && maxY == other.maxY;
+        }
+
+        /**
+         * Grow the bounds to include the other entry.
+         *
+         * @return true if the bounds changed
+         */
+        private boolean extend(Entry other) {
+            if (contains(other)) {
+                return false;
+            }
+            minX = Math.min(minX, other.minX);
+            maxX = Math.max(maxX, other.maxX);
+            minY = Math.min(minY, other.minY);
+            maxY = Math.max(maxY, other.maxY);
+            return true;
+        }
+
+        private void setBounds(Node node) {
+            final Entry first = node.entries.get(0);
+            minX = first.minX;
+            maxX = first.maxX;
+            minY = first.minY;
+            maxY = first.maxY;
+            for (final Entry entry : node.entries) {
+                extend(entry);
+            }
+        }
+
+        private Entry copyBounds() {
+            return new Entry(minX, maxX, minY, maxY, null);
+        }
+    }
+
+    private static class Node {
+
+        private final long num;
+        private final int level;
+        private final List<Entry> entries = new ArrayList<>(MAX_ENTRIES + 1);
+
+        private Node(long num, int level) {
+            this.num = num;
+            this.level = level;
+        }
+
+        private Entry toEntry() {
+            final Entry entry = new Entry(0, 0, 0, 0, null);
+            entry.setBounds(this);
+            entry.child = num;
+            return entry;
+        }
+    }
+}
@@ -28,7 +28,9 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    GMLIndexTest.class
+    GMLIndexTest.class,
+    GMLRTreeIndexTest.class,
+    RTreeTest.class
 })
 public class AllSpatialTests {
 }
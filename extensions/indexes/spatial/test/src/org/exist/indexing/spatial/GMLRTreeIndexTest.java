@@ -0,0 +1,267 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationException;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.indexing.IndexManager;
+import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.Configuration;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.exist.util.PropertiesBuilder.propertiesBuilder;
+import static org.junit.Assert.*;
+
+/**
+ * Stores the same GML documents into a database using {@link GMLRTreeIndex} and into a
+ * database using {@link GMLHSQLIndex}, and checks that both indexes return the same
+ * nodes for every spatial operator.
+ */
+public class GMLRTreeIndexTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/test-rtree-index");
+    private static final int DOCUMENTS = 20;
+    private static final int QUERIES = 20;
+
+    private static final int[] OPERATORS = {
+            SpatialOperator.EQUALS, SpatialOperator.DISJOINT, SpatialOperator.INTERSECTS,
+            SpatialOperator.TOUCHES, SpatialOperator.CROSSES, SpatialOperator.WITHIN,
+            SpatialOperator.CONTAINS, SpatialOperator.OVERLAPS
+    };
+
+    private static final String COLLECTION_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "        <gml/>" +
+        "   </index>" +
+        "</collection>";
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    @ClassRule
+    public static final ExistEmbeddedServer rtreeServer = new ExistEmbeddedServer("rtree-test", null,
+            spatialIndex("<module id='spatial-index' file='spatial.dbx' class='org.exist.indexing.spatial.GMLRTreeIndex'/>"),
+            true, true);
+
+    @ClassRule
+    public static final ExistEmbeddedServer hsqlServer = new ExistEmbeddedServer("hsql-test", null,
+            spatialIndex("<module id='spatial-index' connectionTimeout='10000' flushAfter='300' class='org.exist.indexing.spatial.GMLHSQLIndex'/>"),
+            true, true);
+
+    @BeforeClass
+    public static void storeDocuments() throws EXistException, PermissionDeniedException, IOException, SAXException,
+            LockException, CollectionConfigurationException {
+        for (final ExistEmbeddedServer server : Arrays.asList(rtreeServer, hsqlServer)) {
+            final Random random = new Random(42);
+            final BrokerPool pool = server.getBrokerPool();
+            final TransactionManager transact = pool.getTransactionManager();
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                    final Txn transaction = transact.beginTransaction()) {
+                final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+                broker.saveCollection(transaction, collection);
+                final CollectionConfigurationManager mgr = pool.getConfigurationManager();
+                mgr.addConfiguration(transaction, broker, collection, COLLECTION_CONFIG);
+
+                for (int d = 0; d < DOCUMENTS; d++) {
+                    final String xml = randomDocument(random);
+                    final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                            XmldbURI.create("features" + d + ".xml"), xml);
+                    collection.store(transaction, broker, info, xml);
+                }
+                transact.commit(transaction);
+            }
+        }
+    }
+
+    @Test
+    public void checkIndex() throws EXistException {
+        for (final ExistEmbeddedServer server : Arrays.asList(rtreeServer, hsqlServer)) {
+            final BrokerPool pool = server.getBrokerPool();
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+                assertTrue(getWorker(broker).checkIndex(broker));
+            }
+        }
+    }
+
+    @Test
+    public void sameResultsAsHSQLIndex() throws EXistException, SpatialIndexException {
+        final Random random = new Random(43);
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            final double x = random.nextDouble() * 20 - 10;
+            final double y = random.nextDouble() * 20 - 10;
+            final Geometry window = GEOMETRY_FACTORY.toGeometry(new Envelope(x, x + random.nextDouble() * 10,
+                    y, y + random.nextDouble() * 10));
+            for (final int operator : OPERATORS) {
+                final List<String> expected = search(hsqlServer, window, operator);
+                final List<String> actual = search(rtreeServer, window, operator);
+                assertEquals("operator " + operator + " on " + window, expected, actual);
+                if (operator == SpatialOperator.INTERSECTS) {
+                    found += actual.size();
+                }
+            }
+        }
+        assertTrue(found > 0);
+    }
+
+    @Test
+    public void sameGeometriesAsHSQLIndex() throws EXistException, PermissionDeniedException, XPathException {
+        final String query = "import module namespace spatial='http://exist-db.org/xquery/spatial' " +
+                "at 'java:org.exist.xquery.modules.spatial.SpatialModule'; " +
+                "declare namespace gml = 'http://www.opengis.net/gml'; " +
+                "for $p in collection('" + COLLECTION_URI + "')//gml:Polygon " +
+                "return (spatial:getMinX($p), spatial:getMaxY($p), spatial:getArea($p))";
+        assertEquals(execute(hsqlServer, query), execute(rtreeServer, query));
+    }
+
+    @Test
+    public void removeDocument() throws EXistException, PermissionDeniedException, LockException, IOException,
+            TriggerException, TransactionException, SpatialIndexException {
+        final XmldbURI docName = XmldbURI.create("features0.xml");
+        final Geometry all = GEOMETRY_FACTORY.toGeometry(new Envelope(-20, 20, -20, 20));
+        final int before = search(rtreeServer, all, SpatialOperator.INTERSECTS).size();
+        for (final ExistEmbeddedServer server : Arrays.asList(rtreeServer, hsqlServer)) {
+            final BrokerPool pool = server.getBrokerPool();
+            final TransactionManager transact = pool.getTransactionManager();
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                    final Txn transaction = transact.beginTransaction();
+                    final Collection collection = broker.openCollection(COLLECTION_URI, LockMode.WRITE_LOCK)) {
+                assertNotNull(collection);
+                collection.removeXMLResource(transaction, broker, docName);
+                transact.commit(transaction);
+            }
+        }
+        final List<String> actual = search(rtreeServer, all, SpatialOperator.INTERSECTS);
+        assertTrue(actual.size() < before);
+        for (final String node : actual) {
+            assertFalse(node, node.startsWith(docName + "#"));
+        }
+        assertEquals(search(hsqlServer, all, SpatialOperator.INTERSECTS), actual);
+    }
+
+    private static List<String> search(final ExistEmbeddedServer server, final Geometry geometry, final int operator)
+            throws EXistException, SpatialIndexException {
+        final BrokerPool pool = server.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final NodeSet result = getWorker(broker).search(broker, null, geometry, operator);
+            final List<String> nodes = new ArrayList<>();
+            for (final NodeProxy p : result) {
+                nodes.add(p.getOwnerDocument().getFileURI() + "#" + p.getNodeId());
+            }
+            Collections.sort(nodes);
+            return nodes;
+        }
+    }
+
+    private static List<String> execute(final ExistEmbeddedServer server, final String query)
+            throws EXistException, PermissionDeniedException, XPathException {
+        final BrokerPool pool = server.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Sequence seq = pool.getXQueryService().execute(broker, query, null);
+            final List<String> values = new ArrayList<>();
+            for (int i = 0; i < seq.getItemCount(); i++) {
+                values.add(seq.itemAt(i).getStringValue());
+            }
+            return values;
+        }
+    }
+
+    private static AbstractGMLJDBCIndexWorker getWorker(final DBBroker broker) {
+        final AbstractGMLJDBCIndexWorker worker = (AbstractGMLJDBCIndexWorker)
+                broker.getIndexController().getWorkerByIndexId(AbstractGMLJDBCIndex.ID);
+        assertNotNull(worker);
+        return worker;
+    }
+
+    /**
+     * Polygons and points in EPSG:4326 on a small area, so that many of them overlap,
+     * touch or contain each other. Some polygons are repeated to test EQUALS.
+     */
+    private static String randomDocument(final Random random) {
+        final StringBuilder xml = new StringBuilder("<features xmlns:gml='http://www.opengis.net/gml'>");
+        for (int i = 0; i < 10; i++) {
+            final double x = Math.round(random.nextDouble() * 30 - 15);
+            final double y = Math.round(random.nextDouble() * 30 - 15);
+            final double w = 1 + Math.round(random.nextDouble() * 4);
+            final double h = 1 + Math.round(random.nextDouble() * 4);
+            xml.append("<feature><gml:Polygon srsName='EPSG:4326'><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>")
+                    .append(x).append(',').append(y).append(' ')
+                    .append(x + w).append(',').append(y).append(' ')
+                    .append(x + w).append(',').append(y + h).append(' ')
+                    .append(x).append(',').append(y + h).append(' ')
+                    .append(x).append(',').append(y)
+                    .append("</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon></feature>");
+            xml.append("<feature><gml:Point srsName='EPSG:4326'><gml:coordinates>")
+                    .append(x + w / 2).append(',').append(y + h / 2)
+                    .append("</gml:coordinates></gml:Point></feature>");
+        }
+        xml.append("<feature><gml:Polygon srsName='EPSG:4326'><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>")
+                .append("0,0 2,0 2,2 0,2 0,0")
+                .append("</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon></feature>");
+        xml.append("</features>");
+        return xml.toString();
+    }
+
+    private static Properties spatialIndex(final String module) {
+        try {
+            final Element config = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new InputSource(new StringReader(module))).getDocumentElement();
+            return propertiesBuilder()
+                    .put(IndexManager.PROPERTY_INDEXER_MODULES, new Configuration.IndexModuleConfig[] {
+                            new Configuration.IndexModuleConfig(config.getAttribute("id"), config.getAttribute("class"), config)
+                    })
+                    .build();
+        } catch (final ParserConfigurationException | SAXException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
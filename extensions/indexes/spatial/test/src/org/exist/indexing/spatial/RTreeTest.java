@@ -0,0 +1,229 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import org.exist.indexing.spatial.AbstractGMLJDBCIndex.SpatialOperator;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.index.BFile;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.ByteConversion;
+import org.exist.util.FileUtils;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Low-level tests on the R-tree used by {@link GMLRTreeIndex}. Search results are
+ * compared to a scan over all entries.
+ */
+public class RTreeTest {
+
+    private final static byte RTREE_TEST_FILE_ID = 0x7F;
+    private final static short RTREE_TEST_FILE_VERSION = Short.MIN_VALUE;
+
+    private static final int COUNT = 5000;
+    private static final int QUERIES = 50;
+
+    private static final int[] OPERATORS = {
+            SpatialOperator.EQUALS, SpatialOperator.WITHIN, SpatialOperator.CONTAINS,
+            SpatialOperator.INTERSECTS, SpatialOperator.OVERLAPS
+    };
+
+    private Path file = null;
+
+    @Test
+    public void insert() throws DBException, IOException {
+        final Random random = new Random(42);
+        final List<RTree.Entry> entries = randomEntries(random, COUNT);
+        try (final BFile db = createFile()) {
+            final RTree rtree = new RTree(db, (byte) 1);
+            for (final RTree.Entry entry : entries) {
+                rtree.insert(entry);
+            }
+            assertEquals(COUNT, rtree.getSize());
+            assertSearches(random, rtree, entries);
+        }
+    }
+
+    @Test
+    public void bulkLoad() throws DBException, IOException {
+        final Random random = new Random(43);
+        final List<RTree.Entry> entries = randomEntries(random, COUNT);
+        try (final BFile db = createFile()) {
+            final RTree rtree = new RTree(db, (byte) 1);
+            rtree.insertAll(new ArrayList<>(entries));
+            assertEquals(COUNT, rtree.getSize());
+            assertSearches(random, rtree, entries);
+
+            // a second batch goes through single inserts
+            final List<RTree.Entry> more = randomEntries(random, 500);
+            rtree.insertAll(new ArrayList<>(more));
+            entries.addAll(more);
+            assertEquals(COUNT + 500, rtree.getSize());
+            assertSearches(random, rtree, entries);
+        }
+    }
+
+    @Test
+    public void remove() throws DBException, IOException {
+        final Random random = new Random(44);
+        final List<RTree.Entry> entries = randomEntries(random, COUNT);
+        try (final BFile db = createFile()) {
+            final RTree rtree = new RTree(db, (byte) 1);
+            rtree.insertAll(new ArrayList<>(entries));
+
+            Collections.shuffle(entries, random);
+            final List<RTree.Entry> removed = new ArrayList<>(entries.subList(0, COUNT / 2));
+            entries.subList(0, COUNT / 2).clear();
+            for (final RTree.Entry entry : removed) {
+                assertTrue(rtree.remove(entry));
+            }
+            assertFalse(rtree.remove(removed.get(0)));
+            assertEquals(COUNT - COUNT / 2, rtree.getSize());
+            assertSearches(random, rtree, entries);
+
+            for (final RTree.Entry entry : entries) {
+                assertTrue(rtree.remove(entry));
+            }
+            assertEquals(0, rtree.getSize());
+            assertTrue(search(rtree, SpatialOperator.INTERSECTS, -180, 180, -90, 90).isEmpty());
+        }
+    }
+
+    @Test
+    public void clear() throws Exception {
+        final Random random = new Random(45);
+        try (final BFile db = createFile()) {
+            final RTree rtree = new RTree(db, (byte) 1);
+            rtree.insertAll(randomEntries(random, COUNT));
+            rtree.clear();
+            assertEquals(0, rtree.getSize());
+            assertTrue(search(rtree, SpatialOperator.INTERSECTS, -180, 180, -90, 90).isEmpty());
+
+            final List<RTree.Entry> entries = randomEntries(random, 100);
+            rtree.insertAll(new ArrayList<>(entries));
+            assertSearches(random, rtree, entries);
+        }
+    }
+
+    @Test
+    public void reopen() throws DBException, IOException {
+        final Random random = new Random(46);
+        final List<RTree.Entry> entries = randomEntries(random, COUNT);
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final BFile db = createFile()) {
+            new RTree(db, (byte) 1).insertAll(new ArrayList<>(entries));
+            db.flush();
+        }
+        try (final BFile db = new BFile(pool, RTREE_TEST_FILE_ID, RTREE_TEST_FILE_VERSION, false, file, pool.getCacheManager(), 1.4, 0.07)) {
+            final RTree rtree = new RTree(db, (byte) 1);
+            assertEquals(COUNT, rtree.getSize());
+            assertSearches(random, rtree, entries);
+        }
+    }
+
+    private void assertSearches(Random random, RTree rtree, List<RTree.Entry> entries) throws IOException {
+        for (final int op : OPERATORS) {
+            for (int i = 0; i < QUERIES; i++) {
+                final RTree.Entry query;
+                if (op == SpatialOperator.EQUALS || op == SpatialOperator.CONTAINS) {
+                    // use an existing box, otherwise nothing would ever match
+                    final RTree.Entry e = entries.get(random.nextInt(entries.size()));
+                    query = new RTree.Entry(e.getMinX(), e.getMaxX(), e.getMinY(), e.getMaxY(), null);
+                } else {
+                    final double x = random.nextDouble() * 340 - 180;
+                    final double y = random.nextDouble() * 160 - 90;
+                    query = new RTree.Entry(x, x + random.nextDouble() * 20, y, y + random.nextDouble() * 20, null);
+                }
+                final Set<Integer> expected = new TreeSet<>();
+                for (final RTree.Entry entry : entries) {
+                    if (matches(op, entry, query)) {
+                        expected.add(ByteConversion.byteToInt(entry.getData(), 0));
+                    }
+                }
+                assertEquals("operator " + op, expected,
+                        search(rtree, op, query.getMinX(), query.getMaxX(), query.getMinY(), query.getMaxY()));
+            }
+        }
+    }
+
+    private static boolean matches(int op, RTree.Entry entry, RTree.Entry query) {
+        final boolean intersects = entry.getMinX() <= query.getMaxX() && entry.getMaxX() >= query.getMinX() &&
+                entry.getMinY() <= query.getMaxY() && entry.getMaxY() >= query.getMinY();
+        switch (op) {
+            case SpatialOperator.EQUALS:
+                return entry.getMinX() == query.getMinX() && entry.getMaxX() == query.getMaxX() &&
+                        entry.getMinY() == query.getMinY() && entry.getMaxY() == query.getMaxY();
+            case SpatialOperator.WITHIN:
+                return entry.getMinX() >= query.getMinX() && entry.getMaxX() <= query.getMaxX() &&
+                        entry.getMinY() >= query.getMinY() && entry.getMaxY() <= query.getMaxY();
+            case SpatialOperator.CONTAINS:
+                return entry.getMinX() <= query.getMinX() && entry.getMaxX() >= query.getMaxX() &&
+                        entry.getMinY() <= query.getMinY() && entry.getMaxY() >= query.getMaxY();
+            default:
+                return intersects;
+        }
+    }
+
+    private static Set<Integer> search(RTree rtree, int op, double minX, double maxX, double minY, double maxY) throws IOException {
+        final Set<Integer> found = new TreeSet<>();
+        rtree.search(op, minX, maxX, minY, maxY, entry -> assertTrue(found.add(ByteConversion.byteToInt(entry.getData(), 0))));
+        return found;
+    }
+
+    private static List<RTree.Entry> randomEntries(Random random, int count) {
+        final List<RTree.Entry> entries = new ArrayList<>(count);
+        final int offset = random.nextInt(1000) * 1000000;
+        for (int i = 0; i < count; i++) {
+            final double x = random.nextDouble() * 355 - 180;
+            final double y = random.nextDouble() * 175 - 90;
+            final byte[] data = new byte[4];
+            ByteConversion.intToByte(offset + i, data, 0);
+            entries.add(new RTree.Entry(x, x + random.nextDouble() * 5, y, y + random.nextDouble() * 5, data));
+        }
+        return entries;
+    }
+
+    private BFile createFile() throws DBException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        return new BFile(pool, RTREE_TEST_FILE_ID, RTREE_TEST_FILE_VERSION, false, file, pool.getCacheManager(), 1.4, 0.07);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, false);
+
+    @Before
+    public void initialize() {
+        file = Paths.get(System.getProperty("exist.home", ".")).resolve("test/junit/rtree.dbx");
+        assertFalse(Files.exists(file));
+    }
+
+    @After
+    public void cleanUp() {
+        FileUtils.deleteQuietly(file);
+    }
+}
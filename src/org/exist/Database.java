@@ -45,6 +45,7 @@ import org.exist.storage.ProcessMonitor;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.util.Configuration;
 import org.exist.xquery.PerformanceStats;
+import org.exist.xquery.QueryMetrics;
 
 /**
  * Database controller, all operation synchronized by this instance. (singleton)
@@ -135,6 +136,8 @@ public interface Database {
 
     public PerformanceStats getPerformanceStats();
 
+    public QueryMetrics getQueryMetrics();
+
     // old configuration
     public Configuration getConfiguration();
 
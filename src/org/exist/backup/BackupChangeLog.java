@@ -0,0 +1,495 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.backup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerPoolService;
+import org.exist.storage.BrokerPoolServiceException;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.xmldb.XmldbURI;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps track of the collections and resources which were changed since the
+ * last backup, so that an incremental backup by {@link SystemExport} only has
+ * to export these, instead of walking the whole database.
+ *
+ * The changes are recorded by the {@link org.exist.storage.NativeBroker} when
+ * a transaction commits, and appended to the file data/backup-changes.txt,
+ * which is synced to disk before the commit completes and compacted at startup.
+ * Each backup starts a new epoch, which is stored in its properties; an
+ * incremental backup can only use the changes if its previous backup started
+ * the current epoch, otherwise it falls back to walking the database.
+ *
+ * A clean shutdown is marked at the end of the file. Without the mark, the
+ * database was not shut down cleanly and the recovery may have redone
+ * transactions whose changes are missing, so a new epoch is started.
+ *
+ * The change log is enabled with the backup-change-log attribute of the
+ * db-connection element in conf.xml.
+ */
+public class BackupChangeLog implements BrokerPoolService {
+
+    private final static Logger LOG = LogManager.getLogger(BackupChangeLog.class);
+
+    public static final String CONFIGURATION_ATTRIBUTE = "backup-change-log";
+    public static final String PROPERTY_BACKUP_CHANGE_LOG = "db-connection.backup-change-log";
+
+    public static final String FILE_NAME = "backup-changes.txt";
+
+    private static final char EPOCH = 'E';
+    private static final char MODIFIED = 'M';
+    private static final char DELETED = 'D';
+    private static final char COLLECTION = 'C';
+    private static final char COLLECTION_TREE = 'T';
+    private static final char COLLECTION_DELETED = 'X';
+    private static final char SHUTDOWN = 'S';
+
+    private Path file;
+
+    @GuardedBy("this") private String epoch;
+    @GuardedBy("this") private Map<XmldbURI, CollectionChanges> changes = new HashMap<>();
+    @GuardedBy("this") private FileChannel channel;
+    @GuardedBy("this") private Writer log;
+
+    /**
+     * The changes of the running transactions, by transaction id.
+     */
+    private final ConcurrentMap<Long, PendingChanges> pending = new ConcurrentHashMap<>();
+
+    @Override
+    public void prepare(final BrokerPool brokerPool) throws BrokerPoolServiceException {
+        final Path dataDir = (Path) brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        this.file = dataDir.resolve(FILE_NAME);
+        synchronized (this) {
+            if (Files.exists(file)) {
+                try {
+                    if (!read()) {
+                        LOG.warn("The database was not shut down cleanly, the backup change log " + file.toAbsolutePath() + " may be incomplete and the next backup will walk the database");
+                        epoch = null;
+                        changes.clear();
+                    }
+                } catch (final IOException e) {
+                    LOG.warn("Unable to read the backup change log " + file.toAbsolutePath() + ", the next backup will be a full one: " + e.getMessage());
+                    epoch = null;
+                    changes.clear();
+                }
+            }
+            if (epoch == null) {
+                epoch = newEpoch();
+            }
+
+            try {
+                rewrite();
+            } catch (final IOException e) {
+                throw new BrokerPoolServiceException("Unable to write the backup change log " + file.toAbsolutePath(), e);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (log != null) {
+                try {
+                    log.write(SHUTDOWN + " " + epoch + "\n");
+                    log.flush();
+                    channel.force(false);
+                    log.close();
+                } catch (final IOException e) {
+                    LOG.warn("Unable to close the backup change log: " + e.getMessage(), e);
+                }
+                log = null;
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Records that a resource was stored or its metadata changed.
+     */
+    public void modified(@Nullable final Txn transaction, final XmldbURI uri) {
+        record(transaction, MODIFIED, uri);
+    }
+
+    /**
+     * Records that a resource was removed.
+     */
+    public void deleted(@Nullable final Txn transaction, final XmldbURI uri) {
+        record(transaction, DELETED, uri);
+    }
+
+    /**
+     * Records that a collection was created or its metadata changed.
+     */
+    public void collectionModified(@Nullable final Txn transaction, final XmldbURI uri) {
+        record(transaction, COLLECTION, uri);
+    }
+
+    /**
+     * Records that a collection, with all of its resources and descendants,
+     * appeared at a new location.
+     */
+    public void collectionMoved(@Nullable final Txn transaction, final XmldbURI uri) {
+        record(transaction, COLLECTION_TREE, uri);
+    }
+
+    /**
+     * Records that a collection was removed.
+     */
+    public void collectionDeleted(@Nullable final Txn transaction, final XmldbURI uri) {
+        record(transaction, COLLECTION_DELETED, uri);
+    }
+
+    private void record(@Nullable final Txn transaction, final char op, final XmldbURI uri) {
+        if (uri.startsWith(XmldbURI.TEMP_COLLECTION_URI)) {
+            return;
+        }
+
+        if (transaction == null) {
+            apply(Collections.singletonList(new Change(op, uri)));
+        } else {
+            pending.computeIfAbsent(transaction.getId(), id -> {
+                final PendingChanges pendingChanges = new PendingChanges(id);
+                transaction.registerListener(pendingChanges);
+                return pendingChanges;
+            }).add(op, uri);
+        }
+    }
+
+    /**
+     * @return the id of the current epoch
+     */
+    public synchronized String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Ends the current epoch and starts a new one.
+     *
+     * @return the changes of the ended epoch
+     *
+     * @throws IOException if the change log cannot be written
+     */
+    public synchronized Changes startEpoch() throws IOException {
+        final Changes ended = new Changes(epoch, changes);
+        epoch = newEpoch();
+        changes = new HashMap<>();
+        rewrite();
+        return ended;
+    }
+
+    private static String newEpoch() {
+        return UUID.randomUUID().toString();
+    }
+
+    private synchronized void apply(final List<Change> committed) {
+        for (final Change change : committed) {
+            apply(change.op, change.uri);
+        }
+
+        if (log != null) {
+            try {
+                for (final Change change : committed) {
+                    log.write(change.op);
+                    log.write(' ');
+                    log.write(change.uri.toString());
+                    log.write('\n');
+                }
+                log.flush();
+                // the transaction is committed, the changes must survive a crash
+                channel.force(false);
+            } catch (final IOException e) {
+                LOG.error("Unable to write the backup change log, the next backup will be a full one: " + e.getMessage(), e);
+                // the changes are not persistent, so they must not be used by a backup
+                epoch = newEpoch();
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void apply(final char op, final XmldbURI uri) {
+        switch (op) {
+            case MODIFIED:
+                collection(uri.removeLastSegment()).modified.add(uri.lastSegment());
+                break;
+
+            case DELETED:
+                final CollectionChanges parent = collection(uri.removeLastSegment());
+                parent.modified.remove(uri.lastSegment());
+                parent.deleted.add(uri.lastSegment());
+                break;
+
+            case COLLECTION:
+                collection(uri).modified();
+                break;
+
+            case COLLECTION_TREE:
+                collection(uri).moved();
+                break;
+
+            case COLLECTION_DELETED:
+                for (final Iterator<XmldbURI> i = changes.keySet().iterator(); i.hasNext(); ) {
+                    if (i.next().startsWith(uri)) {
+                        i.remove();
+                    }
+                }
+                if (!uri.equals(XmldbURI.ROOT_COLLECTION_URI)) {
+                    collection(uri.removeLastSegment()).deletedCollections.add(uri.lastSegment());
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown change: " + op);
+        }
+    }
+
+    @GuardedBy("this")
+    private CollectionChanges collection(final XmldbURI uri) {
+        return changes.computeIfAbsent(uri, k -> new CollectionChanges());
+    }
+
+    /**
+     * Reads the change log.
+     *
+     * @return true if the change log ends with the mark of a clean shutdown
+     */
+    @GuardedBy("this")
+    private boolean read() throws IOException {
+        boolean shutdown = false;
+        try (final BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    // an incomplete last line
+                    shutdown = false;
+                    continue;
+                }
+                final char op = line.charAt(0);
+                final String value = line.substring(2);
+                shutdown = op == SHUTDOWN;
+                if (op == EPOCH) {
+                    epoch = value;
+                } else if (epoch != null && op != SHUTDOWN) {
+                    apply(op, XmldbURI.create(value));
+                }
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return shutdown;
+    }
+
+    /**
+     * Writes the compacted changes of the current epoch to the change log.
+     */
+    @GuardedBy("this")
+    private void rewrite() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+            channel = null;
+        }
+
+        final Path tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+        try (final FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                final Writer writer = Channels.newWriter(tempChannel, UTF_8.newEncoder(), -1)) {
+            writer.write(EPOCH + " " + epoch + "\n");
+            for (final Map.Entry<XmldbURI, CollectionChanges> entry : changes.entrySet()) {
+                final XmldbURI uri = entry.getKey();
+                final CollectionChanges collection = entry.getValue();
+                for (final XmldbURI name : collection.deletedCollections) {
+                    writer.write(COLLECTION_DELETED + " " + uri.append(name) + "\n");
+                }
+                if (collection.tree) {
+                    writer.write(COLLECTION_TREE + " " + uri + "\n");
+                } else if (collection.entry) {
+                    writer.write(COLLECTION + " " + uri + "\n");
+                }
+                for (final XmldbURI name : collection.deleted) {
+                    writer.write(DELETED + " " + uri.append(name) + "\n");
+                }
+                for (final XmldbURI name : collection.modified) {
+                    writer.write(MODIFIED + " " + uri.append(name) + "\n");
+                }
+            }
+            writer.flush();
+            tempChannel.force(false);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log = Channels.newWriter(channel, UTF_8.newEncoder(), -1);
+    }
+
+    private static class Change {
+        final char op;
+        final XmldbURI uri;
+
+        Change(final char op, final XmldbURI uri) {
+            this.op = op;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * The changes made by a transaction, applied when it commits.
+     */
+    private class PendingChanges implements TxnListener {
+        private final long transactionId;
+        private final List<Change> changes = new ArrayList<>();
+
+        PendingChanges(final long transactionId) {
+            this.transactionId = transactionId;
+        }
+
+        synchronized void add(final char op, final XmldbURI uri) {
+            // the metadata of a resource is often stored several times by a transaction
+            if (!changes.isEmpty()) {
+                final Change last = changes.get(changes.size() - 1);
+                if (last.op == op && last.uri.equals(uri)) {
+                    return;
+                }
+            }
+            changes.add(new Change(op, uri));
+        }
+
+        @Override
+        public void commit() {
+            pending.remove(transactionId);
+            synchronized (this) {
+                apply(changes);
+            }
+        }
+
+        @Override
+        public void abort() {
+            pending.remove(transactionId);
+        }
+    }
+
+    /**
+     * The changes to a collection.
+     */
+    public static class CollectionChanges {
+        private boolean entry = false;
+        private boolean tree = false;
+        private final Set<XmldbURI> modified = new LinkedHashSet<>();
+        private final Set<XmldbURI> deleted = new LinkedHashSet<>();
+        private final Set<XmldbURI> deletedCollections = new LinkedHashSet<>();
+
+        private void modified() {
+            entry = true;
+        }
+
+        private void moved() {
+            entry = true;
+            tree = true;
+        }
+
+        /**
+         * @return true if the metadata of the collection itself changed
+         */
+        public boolean isEntryModified() {
+            return entry;
+        }
+
+        /**
+         * @return true if the collection and its descendants have to be exported completely
+         */
+        public boolean isTreeModified() {
+            return tree;
+        }
+
+        /**
+         * @return the names of the resources which were stored or changed
+         */
+        public Set<XmldbURI> getModified() {
+            return modified;
+        }
+
+        /**
+         * @return the names of the resources which were removed, they may have been stored again afterwards
+         */
+        public Set<XmldbURI> getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the names of the child collections which were removed, they may have been created again afterwards
+         */
+        public Set<XmldbURI> getDeletedCollections() {
+            return deletedCollections;
+        }
+    }
+
+    /**
+     * The changes of an epoch.
+     */
+    public static class Changes {
+        private final String epoch;
+        private final Map<XmldbURI, CollectionChanges> collections;
+
+        private Changes(final String epoch, final Map<XmldbURI, CollectionChanges> collections) {
+            this.epoch = epoch;
+            this.collections = collections;
+        }
+
+        public String getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return the changes by collection URI
+         */
+        public Map<XmldbURI, CollectionChanges> getCollections() {
+            return collections;
+        }
+    }
+}
@@ -44,6 +44,7 @@ public interface BackupDescriptor
     String NUMBER_IN_SEQUENCE_PROP_NAME = "nr-in-sequence";
     String INCREMENTAL_PROP_NAME        = "incremental";
     String DATE_PROP_NAME               = "date";
+    String CHANGE_LOG_EPOCH_PROP_NAME   = "change-log-epoch";
 
     EXistInputSource getInputSource();
 
@@ -47,6 +47,7 @@ import org.xmldb.api.DatabaseManager;
 import org.xmldb.api.base.Collection;
 import org.xmldb.api.base.ErrorCodes;
 import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.XPathQueryService;
 
 /**
  * Restore.java.
@@ -89,9 +90,32 @@ public class Restore {
             }
 
         } finally {
+            clearCaches(listener, uri, username, password);
             listener.restoreFinished();
         }
     }
+
+    /**
+     * Clears the compiled queries and stylesheets on the server. The triggers which
+     * remove them when a module changes are disabled while parts of the backup are restored.
+     */
+    private void clearCaches(final RestoreListener listener, final String uri, final String username, final String password) {
+        try {
+            final Collection root = DatabaseManager.getCollection(rootUri(uri).toString(), username, password);
+            final XPathQueryService service = (XPathQueryService)root.getService("XPathQueryService", "1.0");
+            service.query("system:clear-xquery-cache(), system:clear-stylesheet-cache()");
+        } catch(final XMLDBException | URISyntaxException e) {
+            listener.warn("Failed to clear the compiled queries and stylesheets: " + e.getMessage());
+        }
+    }
+
+    private XmldbURI rootUri(final String uri) throws URISyntaxException {
+        if(!uri.endsWith(XmldbURI.ROOT_COLLECTION)) {
+            return XmldbURI.xmldbUriFor(uri + XmldbURI.ROOT_COLLECTION);
+        } else {
+            return XmldbURI.xmldbUriFor(uri);
+        }
+    }
     
     private Deque<BackupDescriptor> getBackupDescriptors(Path contents) throws XMLDBException, IOException {
         
@@ -150,15 +174,7 @@ public class Restore {
     }
     
     private String setAdminCredentials(String uri, String username, String password, String adminPassword) throws XMLDBException, URISyntaxException {
-        final XmldbURI dbUri;
-
-        if(!uri.endsWith(XmldbURI.ROOT_COLLECTION)) {
-            dbUri = XmldbURI.xmldbUriFor(uri + XmldbURI.ROOT_COLLECTION);
-        } else {
-            dbUri = XmldbURI.xmldbUriFor(uri);
-        }
-        
-        final Collection root = DatabaseManager.getCollection(dbUri.toString(), username, password);
+        final Collection root = DatabaseManager.getCollection(rootUri(uri).toString(), username, password);
         final UserManagementService mgmt = (UserManagementService)root.getService("UserManagementService", "1.0");
         final Account dba  = mgmt.getAccount(SecurityManager.DBA_USER);
         if (dba == null) {
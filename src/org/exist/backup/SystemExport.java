@@ -44,6 +44,7 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.DataBackup;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.ProcessMonitor;
+import org.exist.storage.lock.Lock.LockMode;
 import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.CollectionStore;
@@ -72,6 +73,7 @@ import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.NamespaceSupport;
 
+import javax.annotation.Nullable;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
@@ -224,6 +226,23 @@ public class SystemExport {
             } catch (final XPathException e) {
             }
 
+            // the changes since the previous backup can only be used if it started the ended epoch
+            BackupChangeLog.Changes changes = null;
+            final Optional<BackupChangeLog> changeLog = broker.getBrokerPool().getBackupChangeLog();
+            if (changeLog.isPresent()) {
+                final BackupChangeLog.Changes ended = changeLog.get().startEpoch();
+                properties.setProperty(BackupDescriptor.CHANGE_LOG_EPOCH_PROP_NAME, changeLog.get().getEpoch());
+
+                if (incremental && prevBackup != null) {
+                    final Properties prevProp = prevBackup.getProperties();
+                    if (prevProp != null && ended.getEpoch().equals(prevProp.getProperty(BackupDescriptor.CHANGE_LOG_EPOCH_PROP_NAME))) {
+                        changes = ended;
+                    } else {
+                        LOG.info("The backup change log does not continue from the previous backup, walking the database");
+                    }
+                }
+            }
+
             backupFile = directory.createBackup(incremental && (prevBackup != null), zip);
 
             final FunctionE<Path, BackupWriter, IOException> fWriter;
@@ -240,11 +259,15 @@ public class SystemExport {
 //            output.addToRoot(RepoBackup.REPO_ARCHIVE, repoBackup);
 //            FileUtils.forceDelete(repoBackup);
 
-                final Date date = (prevBackup == null) ? null : prevBackup.getDate();
-                final CollectionCallback cb = new CollectionCallback(output, date, prevBackup, errorList, true);
-                broker.getCollectionsFailsafe(cb);
+                if (changes != null) {
+                    exportChanges(output, changes, errorList);
+                } else {
+                    final Date date = (prevBackup == null) ? null : prevBackup.getDate();
+                    final CollectionCallback cb = new CollectionCallback(output, date, prevBackup, errorList, true);
+                    broker.getCollectionsFailsafe(cb);
 
-                exportOrphans(output, cb.getDocs(), errorList);
+                    exportOrphans(output, cb.getDocs(), errorList);
+                }
             }
 
             return backupFile;
@@ -257,6 +280,90 @@ public class SystemExport {
                 FileUtils.deleteQuietly(backupFile);
             }
             return null;
+        } catch (final PermissionDeniedException | LockException e) {
+            reportError("An error occurred while exporting the changed collections: '" + e.getMessage() + "'. Aborting export.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Export only the collections and resources recorded by the {@link BackupChangeLog} since the previous backup, instead of walking the
+     * whole database. The ancestors of the changed collections are written without resources, so that the restore can reach them.
+     *
+     * @param output    the output writer
+     * @param changes   the changes since the previous backup
+     * @param errorList a list of {@link ErrorReport} objects as returned by methods in {@link ConsistencyCheck}
+     */
+    private void exportChanges(BackupWriter output, BackupChangeLog.Changes changes, List<ErrorReport> errorList) throws IOException, TerminatedException, PermissionDeniedException, LockException {
+        final Map<XmldbURI, BackupChangeLog.CollectionChanges> changed = changes.getCollections();
+
+        // the collections to export, with the child collections to include
+        final Map<XmldbURI, Set<XmldbURI>> collections = new TreeMap<>();
+        collections.put(XmldbURI.ROOT_COLLECTION_URI, new HashSet<>());
+        for (final XmldbURI uri : changed.keySet()) {
+            if (hasMovedAncestor(changed, uri)) {
+                continue;
+            }
+            collections.computeIfAbsent(uri, k -> new HashSet<>());
+            for (XmldbURI child = uri; !child.equals(XmldbURI.ROOT_COLLECTION_URI); child = child.removeLastSegment()) {
+                collections.computeIfAbsent(child.removeLastSegment(), k -> new HashSet<>()).add(child.lastSegment());
+            }
+        }
+
+        final MutableDocumentSet docs = new DefaultDocumentSet();
+        for (final Map.Entry<XmldbURI, Set<XmldbURI>> entry : collections.entrySet()) {
+            final XmldbURI uri = entry.getKey();
+            final BackupChangeLog.CollectionChanges collectionChanges = changed.get(uri);
+
+            if (callback != null) {
+                callback.startCollection(uri.toString());
+            }
+
+            try (final Collection collection = broker.openCollection(uri, LockMode.READ_LOCK)) {
+                if (collection == null) {
+                    // removed since, which is recorded by its parent
+                    continue;
+                }
+
+                if (collectionChanges != null && collectionChanges.isTreeModified()) {
+                    exportTree(collection, output, errorList, docs);
+                } else {
+                    export(bh, collection, output, null, null, errorList, docs,
+                            collectionChanges == null ? new BackupChangeLog.CollectionChanges() : collectionChanges, entry.getValue());
+                }
+            } catch (final SAXException e) {
+                reportError("Caught exception while exporting collection: " + uri, e);
+            }
+        }
+    }
+
+    private static boolean hasMovedAncestor(Map<XmldbURI, BackupChangeLog.CollectionChanges> changed, XmldbURI uri) {
+        for (XmldbURI ancestor = uri; !ancestor.equals(XmldbURI.ROOT_COLLECTION_URI); ) {
+            ancestor = ancestor.removeLastSegment();
+            final BackupChangeLog.CollectionChanges changes = changed.get(ancestor);
+            if (changes != null && changes.isTreeModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Export a collection and its descendants completely.
+     */
+    private void exportTree(Collection current, BackupWriter output, List<ErrorReport> errorList, MutableDocumentSet docs) throws IOException, SAXException, TerminatedException, PermissionDeniedException, LockException {
+        export(bh, current, output, null, null, errorList, docs);
+
+        for (final Iterator<XmldbURI> i = current.collectionIteratorNoLock(broker); i.hasNext(); ) {
+            final XmldbURI childUri = current.getURI().append(i.next());
+            if (isDamagedChild(childUri.lastSegment(), errorList)) {
+                continue;
+            }
+            try (final Collection child = broker.openCollection(childUri, LockMode.READ_LOCK)) {
+                if (child != null) {
+                    exportTree(child, output, errorList, docs);
+                }
+            }
         }
     }
 
@@ -374,6 +481,17 @@ public class SystemExport {
      * @throws TerminatedException DOCUMENT ME!
      */
     private void export(BackupHandler bh, Collection current, BackupWriter output, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList, MutableDocumentSet docs) throws IOException, SAXException, TerminatedException, PermissionDeniedException {
+        export(bh, current, output, date, prevBackup, errorList, docs, null, null);
+    }
+
+    /**
+     * Export a collection, or only its changes if they are given.
+     *
+     * @param changes  the changes to the collection since the previous backup, or null to export all of its resources
+     * @param children the child collections to write, or null to write all of them
+     */
+    private void export(BackupHandler bh, Collection current, BackupWriter output, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList, MutableDocumentSet docs,
+            @Nullable BackupChangeLog.CollectionChanges changes, @Nullable Set<XmldbURI> children) throws IOException, SAXException, TerminatedException, PermissionDeniedException {
 //        if( callback != null ) {
 //            callback.startCollection( current.getURI().toString() );
 //        }
@@ -418,10 +536,20 @@ public class SystemExport {
 
             bh.backup(current, serializer);
 
-            final int docsCount = current.getDocumentCountNoLock(broker);
+            if (changes != null) {
+                // written first, as a removed resource or collection may have been created again
+                for (final XmldbURI name : changes.getDeletedCollections()) {
+                    writeDeleted(serializer, name, "collection");
+                }
+                for (final XmldbURI name : changes.getDeleted()) {
+                    writeDeleted(serializer, name, "resource");
+                }
+            }
+
+            final int docsCount = changes == null ? current.getDocumentCountNoLock(broker) : changes.getModified().size();
             int count = 0;
 
-            for (final Iterator<DocumentImpl> i = current.iteratorNoLock(broker); i.hasNext(); count++) {
+            for (final Iterator<DocumentImpl> i = changes == null ? current.iteratorNoLock(broker) : changedDocuments(current, changes); i.hasNext(); count++) {
                 final DocumentImpl doc = i.next();
 
                 if (isDamaged(doc, errorList)) {
@@ -443,6 +571,10 @@ public class SystemExport {
                     continue;
                 }
 
+                if (children != null && !children.contains(childUri)) {
+                    continue;
+                }
+
                 if (isDamagedChild(childUri, errorList)) {
                     reportError("Skipping damaged child collection " + childUri, null);
                     continue;
@@ -482,6 +614,25 @@ public class SystemExport {
     }
 
 
+    private Iterator<DocumentImpl> changedDocuments(Collection current, BackupChangeLog.CollectionChanges changes) throws PermissionDeniedException {
+        final List<DocumentImpl> changedDocs = new ArrayList<>(changes.getModified().size());
+        for (final XmldbURI name : changes.getModified()) {
+            final DocumentImpl doc = current.getDocument(broker, name);
+            if (doc != null) {
+                changedDocs.add(doc);
+            }
+        }
+        return changedDocs.iterator();
+    }
+
+    private static void writeDeleted(SAXSerializer serializer, XmldbURI name, String type) throws SAXException {
+        final AttributesImpl attr = new AttributesImpl();
+        attr.addAttribute(Namespaces.EXIST_NS, "name", "name", "CDATA", name.toString());
+        attr.addAttribute(Namespaces.EXIST_NS, "type", "type", "CDATA", type);
+        serializer.startElement(Namespaces.EXIST_NS, "deleted", "deleted", attr);
+        serializer.endElement(Namespaces.EXIST_NS, "deleted", "deleted");
+    }
+
     private void exportDocument(BackupHandler bh, BackupWriter output, Date date, BackupDescriptor prevBackup, SAXSerializer serializer, int docsCount, int count, DocumentImpl doc) throws IOException, SAXException, TerminatedException {
         if (callback != null) {
             callback.startDocument(doc.getFileURI().toString(), count, docsCount);
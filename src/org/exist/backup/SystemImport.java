@@ -33,6 +33,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.Database;
+import org.exist.backup.restore.ParallelRestore;
 import org.exist.backup.restore.SystemImportHandler;
 import org.exist.backup.restore.listener.RestoreListener;
 import org.exist.config.ConfigurationException;
@@ -59,11 +60,22 @@ public class SystemImport {
     public final static Logger LOG = LogManager.getLogger( SystemImport.class );
 
     private Database db;
+    private final int threads;
     
     public SystemImport(Database db) {
-    	this.db = db;
+    	this(db, 1);
 	}
 
+    /**
+     * @param db the database to restore into
+     * @param threads the number of worker threads which restore collections concurrently;
+     *     with more than one, the indexes are built by a parallel reindex after the documents are stored
+     */
+    public SystemImport(Database db, int threads) {
+        this.db = db;
+        this.threads = threads;
+    }
+
     public void restore(RestoreListener listener, String username, Object credentials, String newCredentials, final Path f, String uri) throws XMLDBException, IOException, SAXException, ParserConfigurationException, URISyntaxException, AuthenticationException, ConfigurationException, PermissionDeniedException {
         
         //login
@@ -75,24 +87,43 @@ public class SystemImport {
 	        final Deque<BackupDescriptor> descriptors = getBackupDescriptors(f);
 
             final XMLReaderPool parserPool = broker.getBrokerPool().getParserPool();
+            final ParallelRestore parallelRestore = threads > 1 ? new ParallelRestore(db, broker.getCurrentSubject(), listener, threads) : null;
+            final RestoreListener restoreListener = parallelRestore != null ? parallelRestore.getListener() : listener;
 	        XMLReader reader = null;
 	        try {
                 reader = parserPool.borrowXMLReader();
 
-                listener.restoreStarting();
+                restoreListener.restoreStarting();
 	
 	            while(!descriptors.isEmpty()) {
 	                final BackupDescriptor descriptor = descriptors.pop();
 	                final EXistInputSource is = descriptor.getInputSource();
 	                is.setEncoding( "UTF-8" );
 	
-	                final SystemImportHandler handler = new SystemImportHandler(broker, listener, uri, descriptor);
+	                final SystemImportHandler handler = new SystemImportHandler(broker, restoreListener, uri, descriptor, parallelRestore);
 	                
 	                reader.setContentHandler(handler);
 	                reader.parse(is);
+
+                    // the backups of an incremental sequence are restored in order
+                    if (parallelRestore != null) {
+                        parallelRestore.await();
+                    }
 	            }
+
+                if (parallelRestore != null) {
+                    parallelRestore.finish(broker, uri);
+                }
 	        } finally {
-	            listener.restoreFinished();
+                // the restored modules replace those the compiled queries and stylesheets were read from
+                broker.getBrokerPool().getXQueryPool().clear();
+                broker.getBrokerPool().getTemplatesFactory().clear();
+
+	            restoreListener.restoreFinished();
+
+                if (parallelRestore != null) {
+                    parallelRestore.close();
+                }
 
                 if (reader != null) {
                     parserPool.returnXMLReader(reader);
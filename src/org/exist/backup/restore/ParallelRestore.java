@@ -0,0 +1,426 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.backup.restore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Observable;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Database;
+import org.exist.backup.BackupDescriptor;
+import org.exist.backup.restore.listener.RestoreListener;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.EXistInputSource;
+import org.exist.util.LockException;
+import org.exist.util.NamedThreadFactory;
+import org.exist.util.XMLReaderPool;
+import org.exist.xmldb.XmldbURI;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Restores the collections of a backup with several worker threads, each
+ * with its own broker, so that the documents of different collections are
+ * stored concurrently.
+ *
+ * The collection configurations in /db/system/config are restored after all
+ * other collections, so that the documents are stored without their custom
+ * indexes, which are then built by reindexing the configured collections,
+ * collection by collection in parallel.
+ *
+ * @see org.exist.backup.SystemImport
+ */
+public class ParallelRestore implements AutoCloseable {
+
+    private final static Logger LOG = LogManager.getLogger(ParallelRestore.class);
+
+    private static final XmldbURI CONFIG_COLLECTION_NAME = XmldbURI.CONFIG_COLLECTION_URI.lastSegment();
+    private static final String COLLECTION_CONFIG_SUFFIX = ".xconf";
+
+    /**
+     * The number of restored resources between two progress reports.
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final Database db;
+    private final Subject subject;
+    private final SynchronizedRestoreListener listener;
+    private final ExecutorService executor;
+
+    /**
+     * Has a party for the restoring thread and for each running task.
+     */
+    private final Phaser running = new Phaser(1);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private final List<BackupDescriptor> deferredConfigurations = new ArrayList<>();
+    private final Set<XmldbURI> restoredCollections = ConcurrentHashMap.newKeySet();
+
+    private final long start = System.currentTimeMillis();
+    private final AtomicLong restored = new AtomicLong();
+
+    public ParallelRestore(final Database db, final Subject subject, final RestoreListener listener, final int threads) {
+        this.db = db;
+        this.subject = subject;
+        this.listener = new SynchronizedRestoreListener(listener);
+        this.executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory(db.getThreadGroup(), db.getId(), "restore"));
+    }
+
+    /**
+     * @return the listener to report to, which may be called by several threads
+     */
+    public RestoreListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Restores a sub-collection of a collection by a worker thread, or defers
+     * it if it is the collection configuration collection.
+     *
+     * @param parentUri the URI of the parent collection
+     * @param name the name of the sub-collection
+     * @param descriptor the descriptor of the sub-collection
+     * @param dbBaseUri the base URI of the database
+     */
+    void restoreSubCollection(final XmldbURI parentUri, final String name, final BackupDescriptor descriptor, final String dbBaseUri) {
+        if (parentUri.equals(XmldbURI.SYSTEM_COLLECTION_URI) && CONFIG_COLLECTION_NAME.toString().equals(name)) {
+            synchronized (deferredConfigurations) {
+                deferredConfigurations.add(descriptor);
+            }
+            return;
+        }
+
+        submit(() -> {
+            try (final DBBroker broker = db.get(Optional.of(subject))) {
+                restore(broker, descriptor, dbBaseUri, true);
+            }
+        });
+    }
+
+    private void restore(final DBBroker broker, final BackupDescriptor descriptor, final String dbBaseUri,
+            final boolean parallel) throws IOException, SAXException {
+        final XMLReaderPool parserPool = broker.getBrokerPool().getParserPool();
+        XMLReader reader = null;
+        try {
+            reader = parserPool.borrowXMLReader();
+
+            final EXistInputSource is = descriptor.getInputSource();
+            is.setEncoding("UTF-8");
+
+            reader.setContentHandler(new SystemImportHandler(broker, listener, dbBaseUri, descriptor, parallel ? this : null));
+            reader.parse(is);
+        } finally {
+            if (reader != null) {
+                parserPool.returnXMLReader(reader);
+            }
+        }
+    }
+
+    /**
+     * Records a restored collection, which has to be reindexed if it is configured.
+     */
+    void restoredCollection(final XmldbURI uri) {
+        restoredCollections.add(uri);
+    }
+
+    private void submit(final Task task) {
+        running.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } catch (final Exception e) {
+                    LOG.error(e.getMessage(), e);
+                    listener.error(e.getMessage());
+                    failure.compareAndSet(null, e);
+                } finally {
+                    running.arriveAndDeregister();
+                }
+            });
+        } catch (final RuntimeException e) {
+            running.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all of the submitted sub-collections, and their
+     * sub-collections, are restored.
+     *
+     * @throws SAXException if the restore of a collection failed
+     */
+    public void await() throws SAXException {
+        running.arriveAndAwaitAdvance();
+
+        final Exception e = failure.get();
+        if (e != null) {
+            throw e instanceof SAXException ? (SAXException) e : new SAXException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Restores the deferred collection configurations, and then reindexes the
+     * configured collections which were restored. Each collection below a
+     * configured collection is reindexed by a separate task, so that a
+     * configuration of /db does not reindex the whole database on a single
+     * thread.
+     *
+     * @param broker the broker of the restoring thread
+     * @param dbBaseUri the base URI of the database
+     *
+     * @throws SAXException if the restore of a collection configuration failed
+     */
+    public void finish(final DBBroker broker, final String dbBaseUri) throws SAXException {
+        final List<BackupDescriptor> configurations;
+        synchronized (deferredConfigurations) {
+            configurations = new ArrayList<>(deferredConfigurations);
+            deferredConfigurations.clear();
+        }
+        if (configurations.isEmpty()) {
+            reportProgress();
+            return;
+        }
+
+        // collection configurations are small, they are restored in order by the restoring thread
+        for (final BackupDescriptor descriptor : configurations) {
+            try {
+                restore(broker, descriptor, dbBaseUri, false);
+            } catch (final IOException e) {
+                throw new SAXException("Could not read collection configurations for processing: " + e.getMessage(), e);
+            }
+        }
+        reportProgress();
+
+        try {
+            for (final XmldbURI uri : getConfiguredCollections(broker)) {
+                if (!isRestored(uri)) {
+                    continue;
+                }
+
+                submitReindex(broker, uri);
+            }
+        } catch (final PermissionDeniedException | LockException e) {
+            throw new SAXException("Could not read collection configurations for reindexing: " + e.getMessage(), e);
+        }
+        await();
+
+        listener.info("Reindexed the restored collections in " + (System.currentTimeMillis() - start) / 1000 + "s since the restore started");
+    }
+
+    /**
+     * Submits the reindex of the documents of a collection and of each of
+     * its descendants.
+     */
+    private void submitReindex(final DBBroker broker, final XmldbURI uri) throws PermissionDeniedException, LockException {
+        final List<XmldbURI> children = new ArrayList<>();
+        try (final Collection collection = broker.openCollection(uri, LockMode.READ_LOCK)) {
+            if (collection == null) {
+                return;
+            }
+            for (final Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+                children.add(uri.append(i.next()));
+            }
+        }
+
+        submit(() -> {
+            listener.info("Reindexing collection " + uri);
+            final TransactionManager transactionManager = db.getTransactionManager();
+            try (final DBBroker reindexBroker = db.get(Optional.of(subject));
+                    final Txn transaction = transactionManager.beginTransaction()) {
+                reindexBroker.reindexCollectionDocuments(transaction, uri);
+                transactionManager.commit(transaction);
+            }
+        });
+
+        for (final XmldbURI child : children) {
+            submitReindex(broker, child);
+        }
+    }
+
+    /**
+     * @return true if the collection or one of its descendants was restored
+     */
+    private boolean isRestored(final XmldbURI uri) {
+        for (final XmldbURI restoredUri : restoredCollections) {
+            if (restoredUri.startsWith(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the top-most collections which have a collection configuration,
+     * the configurations of their descendants are applied by reindexing them.
+     */
+    private static List<XmldbURI> getConfiguredCollections(final DBBroker broker) throws PermissionDeniedException, LockException {
+        final List<XmldbURI> configured = new ArrayList<>();
+        findConfiguredCollections(broker, XmldbURI.CONFIG_COLLECTION_URI, configured);
+        return configured;
+    }
+
+    private static void findConfiguredCollections(final DBBroker broker, final XmldbURI configUri, final List<XmldbURI> configured)
+            throws PermissionDeniedException, LockException {
+        final List<XmldbURI> children = new ArrayList<>();
+        try (final Collection collection = broker.openCollection(configUri, LockMode.READ_LOCK)) {
+            if (collection == null) {
+                return;
+            }
+
+            for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+                if (i.next().getFileURI().toString().endsWith(COLLECTION_CONFIG_SUFFIX)) {
+                    final String path = configUri.getCollectionPath().substring(XmldbURI.CONFIG_COLLECTION.length());
+                    if (!path.isEmpty()) {
+                        configured.add(XmldbURI.create(path));
+                        return;
+                    }
+                }
+            }
+
+            for (final Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+                children.add(configUri.append(i.next()));
+            }
+        }
+
+        for (final XmldbURI child : children) {
+            findConfiguredCollections(broker, child, configured);
+        }
+    }
+
+    private void reportProgress() {
+        listener.progress(restored.get(), System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Serializes the calls of the worker threads to the listener, and reports
+     * the progress of the restore.
+     */
+    private class SynchronizedRestoreListener implements RestoreListener {
+        private final RestoreListener listener;
+
+        SynchronizedRestoreListener(final RestoreListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void createCollection(final String collection) {
+            listener.createCollection(collection);
+        }
+
+        @Override
+        public synchronized void restored(final String resource) {
+            listener.restored(resource);
+            if (restored.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                reportProgress();
+            }
+        }
+
+        @Override
+        public synchronized void info(final String message) {
+            listener.info(message);
+        }
+
+        @Override
+        public synchronized void warn(final String message) {
+            listener.warn(message);
+        }
+
+        @Override
+        public synchronized void error(final String message) {
+            listener.error(message);
+        }
+
+        @Override
+        public synchronized String warningsAndErrorsAsString() {
+            return listener.warningsAndErrorsAsString();
+        }
+
+        @Override
+        public synchronized boolean hasProblems() {
+            return listener.hasProblems();
+        }
+
+        @Override
+        public synchronized void setCurrentCollection(final String currentCollectionName) {
+            listener.setCurrentCollection(currentCollectionName);
+        }
+
+        @Override
+        public synchronized void setCurrentResource(final String currentResourceName) {
+            listener.setCurrentResource(currentResourceName);
+        }
+
+        @Override
+        public synchronized void restoreStarting() {
+            listener.restoreStarting();
+        }
+
+        @Override
+        public synchronized void restoreFinished() {
+            listener.restoreFinished();
+        }
+
+        @Override
+        public synchronized void observe(final Observable observable) {
+            listener.observe(observable);
+        }
+
+        @Override
+        public synchronized void setCurrentBackup(final String currentBackup) {
+            listener.setCurrentBackup(currentBackup);
+        }
+
+        @Override
+        public synchronized void progress(final long restored, final long elapsed) {
+            listener.progress(restored, elapsed);
+        }
+    }
+}
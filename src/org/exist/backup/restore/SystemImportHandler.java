@@ -51,6 +51,7 @@ import org.exist.xquery.value.DateTimeValue;
 import java.net.URISyntaxException;
 import java.util.*;
 
+import javax.annotation.Nullable;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.logging.log4j.LogManager;
@@ -88,6 +89,7 @@ public class SystemImportHandler extends DefaultHandler {
     private final RestoreListener listener;
     private final String dbBaseUri;
     private final BackupDescriptor descriptor;
+    @Nullable private final ParallelRestore parallelRestore;
     
     //handler state
     private int version = 0;
@@ -95,10 +97,18 @@ public class SystemImportHandler extends DefaultHandler {
     private Deque<DeferredPermission> deferredPermissions = new ArrayDeque<>();
     
     public SystemImportHandler(DBBroker broker, RestoreListener listener, String dbBaseUri, BackupDescriptor descriptor) {
+        this(broker, listener, dbBaseUri, descriptor, null);
+    }
+
+    /**
+     * @param parallelRestore restores the sub-collections by worker threads, or null to restore them in this thread
+     */
+    public SystemImportHandler(DBBroker broker, RestoreListener listener, String dbBaseUri, BackupDescriptor descriptor, @Nullable ParallelRestore parallelRestore) {
         this.broker = broker;
         this.listener = listener;
         this.dbBaseUri = dbBaseUri;
         this.descriptor = descriptor;
+        this.parallelRestore = parallelRestore;
         
         rh = broker.getDatabase().getPluginsManager().getRestoreHandler();
     }
@@ -216,6 +226,10 @@ public class SystemImportHandler extends DefaultHandler {
             if(currentCollection == null) {
                 throw new SAXException("Collection not found: " + collUri);
             }
+
+            if(parallelRestore != null) {
+                parallelRestore.restoredCollection(collUri);
+            }
             
             final DeferredPermission deferredPermission;
             if(name.startsWith(XmldbURI.SYSTEM_COLLECTION)) {
@@ -252,7 +266,9 @@ public class SystemImportHandler extends DefaultHandler {
         
         //parse the sub-collection descriptor and restore
         final BackupDescriptor subDescriptor = descriptor.getChildBackupDescriptor(name);
-        if(subDescriptor != null) {
+        if(subDescriptor != null && parallelRestore != null) {
+            parallelRestore.restoreSubCollection(currentCollection.getURI(), name, subDescriptor, dbBaseUri);
+        } else if(subDescriptor != null) {
 
             final XMLReaderPool parserPool = broker.getBrokerPool().getParserPool();
             XMLReader reader = null;
@@ -116,6 +116,12 @@ public abstract class AbstractRestoreListener implements RestoreListener {
         info("Restored " + resource);
     }
 
+    @Override
+    public void progress(long restored, long elapsed) {
+        final long seconds = Math.max(1, elapsed / 1000);
+        info("Restored " + restored + " resources in " + (elapsed / 1000) + "s (" + (restored / seconds) + " resources/s)");
+    }
+
     @Override
     public void warn(String message) {
         problems.add(new Warning(message));
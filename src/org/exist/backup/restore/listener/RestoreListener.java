@@ -54,4 +54,13 @@ public interface RestoreListener {
     public void observe(Observable observable);
 
     public void setCurrentBackup(String currentBackup);
+
+    /**
+     * Reports the progress of a restore.
+     *
+     * @param restored the number of resources restored so far
+     * @param elapsed the milliseconds since the restore started
+     */
+    public default void progress(long restored, long elapsed) {
+    }
 }
\ No newline at end of file
@@ -65,6 +65,7 @@ public class CollectionConfiguration {
     private static final String TRIGGERS_ELEMENT = "triggers";
     private static final String TRIGGER_ELEMENT = "trigger";
     private static final String CLASS_ATTRIBUTE = "class";
+    private static final String AFTER_COMMIT_ATTRIBUTE = "after-commit";
     private static final String PARAMETER_ELEMENT = "parameter";
 
     /**
@@ -316,7 +317,9 @@ public class CollectionConfiguration {
 
             boolean added = false;
             if (DocumentTrigger.class.isAssignableFrom(clazz)) {
-                docTriggers.add(new DocumentTriggerProxy((Class<? extends DocumentTrigger>) clazz, parameters));
+                final String afterCommit = triggerElement.getAttribute(AFTER_COMMIT_ATTRIBUTE);
+                docTriggers.add(new DocumentTriggerProxy((Class<? extends DocumentTrigger>) clazz, parameters,
+                        "true".equals(afterCommit) || "1".equals(afterCommit) || "yes".equals(afterCommit)));
                 added = true;
             }
 
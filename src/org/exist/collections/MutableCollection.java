@@ -1004,7 +1004,7 @@ public void removeXMLResource(final Txn transaction, final DBBroker broker, fina
 
                     trigger.afterDeleteDocument(broker, transaction, getURI().append(name));
 
-                    broker.getBrokerPool().getNotificationService().notifyUpdate(doc, UpdateListener.REMOVE);
+                    broker.getBrokerPool().getNotificationService().notifyUpdate(transaction, doc, UpdateListener.REMOVE);
 
                 } finally {
                     broker.getBrokerPool().getProcessMonitor().endJob();
@@ -1234,7 +1234,7 @@ public void removeXMLResource(final Txn transaction, final DBBroker broker, fina
             info.getTriggers().afterUpdateDocument(broker, transaction, document);
         }
         
-        db.getNotificationService().notifyUpdate(document, (info.isCreating() ? UpdateListener.ADD : UpdateListener.UPDATE));
+        db.getNotificationService().notifyUpdate(transaction, document, (info.isCreating() ? UpdateListener.ADD : UpdateListener.UPDATE));
         //Is it a collection configuration file ?
         final XmldbURI docName = document.getFileURI();
         //WARNING : there is no reason to lock the collection since setPath() is normally called in a safe way
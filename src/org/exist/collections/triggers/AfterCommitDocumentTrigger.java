@@ -0,0 +1,220 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.collections.triggers;
+
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.Subject;
+import org.exist.storage.AfterCommitListener;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.DocumentEvent;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Stands in for a document trigger configured with after-commit="yes": the
+ * after events are delivered to the trigger once the transaction has
+ * committed, by a worker of the {@link org.exist.storage.NotificationService},
+ * so that the trigger does not slow down the transaction. The before events
+ * are not delivered, and the trigger does not filter the SAX stream of the
+ * document.
+ *
+ * The events of a batch are delivered by the same trigger instance, in a new
+ * transaction per batch and user which made the changes. The document of an
+ * event is read again by its URI and passed to the trigger under a read lock,
+ * events of documents which have been removed since are skipped.
+ */
+public class AfterCommitDocumentTrigger implements DocumentTrigger, AfterCommitListener {
+
+    private final DocumentTriggerProxy proxy;
+    private final XmldbURI collectionUri;
+
+    public AfterCommitDocumentTrigger(final DocumentTriggerProxy proxy, final XmldbURI collectionUri) {
+        this.proxy = proxy;
+        this.collectionUri = collectionUri;
+    }
+
+    @Override
+    public void configure(final DBBroker broker, final Txn transaction, final Collection parent, final Map<String, List<? extends Object>> parameters) {
+    }
+
+    @Override
+    public void beforeCreateDocument(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+    }
+
+    @Override
+    public void afterCreateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        afterCommit(broker, txn, DocumentEvent.Type.CREATE, document.getURI(), null, document);
+    }
+
+    @Override
+    public void beforeUpdateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        afterCommit(broker, txn, DocumentEvent.Type.UPDATE, document.getURI(), null, document);
+    }
+
+    @Override
+    public void beforeUpdateDocumentMetadata(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocumentMetadata(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        afterCommit(broker, txn, DocumentEvent.Type.UPDATE_METADATA, document.getURI(), null, document);
+    }
+
+    @Override
+    public void beforeCopyDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterCopyDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI oldUri) {
+        afterCommit(broker, txn, DocumentEvent.Type.COPY, document.getURI(), oldUri, document);
+    }
+
+    @Override
+    public void beforeMoveDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterMoveDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI oldUri) {
+        afterCommit(broker, txn, DocumentEvent.Type.MOVE, document.getURI(), oldUri, document);
+    }
+
+    @Override
+    public void beforeDeleteDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterDeleteDocument(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+        afterCommit(broker, txn, DocumentEvent.Type.DELETE, uri, null, null);
+    }
+
+    @Override
+    public boolean isValidating() {
+        return false;
+    }
+
+    @Override
+    public void setValidating(final boolean validating) {
+    }
+
+    private void afterCommit(final DBBroker broker, final Txn txn, final DocumentEvent.Type type, final XmldbURI documentUri,
+            final XmldbURI oldDocumentUri, final DocumentImpl document) {
+        final DocumentEvent event = new DocumentEvent(type, collectionUri, documentUri, oldDocumentUri, document, broker.getCurrentSubject());
+        broker.getBrokerPool().getNotificationService().afterCommit(txn, this, event);
+    }
+
+    @Override
+    public void afterCommit(final BrokerPool pool, final XmldbURI collectionUri, final List<DocumentEvent> events) {
+        int start = 0;
+        while (start < events.size()) {
+            final Subject subject = events.get(start).getSubject();
+            int end = start + 1;
+            while (end < events.size() && events.get(end).getSubject() == subject) {
+                end++;
+            }
+            deliver(pool, collectionUri, subject, events.subList(start, end));
+            start = end;
+        }
+    }
+
+    private void deliver(final BrokerPool pool, final XmldbURI collectionUri, final Subject subject, final List<DocumentEvent> events) {
+        try (final DBBroker broker = pool.get(Optional.ofNullable(subject));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final DocumentTrigger trigger;
+            try (final Collection collection = broker.openCollection(collectionUri, LockMode.READ_LOCK)) {
+                if (collection == null) {
+                    LOG.warn("Collection " + collectionUri + " was removed, discarding " + events.size() + " events for " + proxy.getClazz().getName());
+                    return;
+                }
+                trigger = proxy.newInstance(broker, transaction, collection);
+            }
+
+            for (final DocumentEvent event : events) {
+                try {
+                    if (event.getType() == DocumentEvent.Type.DELETE) {
+                        trigger.afterDeleteDocument(broker, transaction, event.getDocumentUri());
+                        continue;
+                    }
+                    // the document may have changed or been removed since the event, so it is read again
+                    try (final LockedDocument lockedDocument = broker.getXMLResource(event.getDocumentUri(), LockMode.READ_LOCK)) {
+                        if (lockedDocument == null) {
+                            LOG.debug("Document " + event.getDocumentUri() + " was removed, skipping " + event + " for " + proxy.getClazz().getName());
+                            continue;
+                        }
+                        deliver(broker, transaction, trigger, event, lockedDocument.getDocument());
+                    }
+                } catch (final Exception e) {
+                    LOG.error("Trigger " + proxy.getClazz().getName() + " failed for " + event + ": " + e.getMessage(), e);
+                }
+            }
+            transaction.commit();
+        } catch (final Exception e) {
+            LOG.error("Unable to deliver " + events.size() + " events to trigger " + proxy.getClazz().getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void deliver(final DBBroker broker, final Txn transaction, final DocumentTrigger trigger, final DocumentEvent event,
+            final DocumentImpl document) throws TriggerException {
+        switch (event.getType()) {
+            case CREATE:
+                trigger.afterCreateDocument(broker, transaction, document);
+                break;
+            case UPDATE:
+                trigger.afterUpdateDocument(broker, transaction, document);
+                break;
+            case UPDATE_METADATA:
+                trigger.afterUpdateDocumentMetadata(broker, transaction, document);
+                break;
+            case COPY:
+                trigger.afterCopyDocument(broker, transaction, document, event.getOldDocumentUri());
+                break;
+            case MOVE:
+                trigger.afterMoveDocument(broker, transaction, document, event.getOldDocumentUri());
+                break;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        // the events of all the stand-ins for a configured trigger are delivered in the same batches
+        return o instanceof AfterCommitDocumentTrigger && ((AfterCommitDocumentTrigger) o).proxy == proxy;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(proxy);
+    }
+
+    @Override
+    public String toString() {
+        return "after-commit " + proxy.getClazz().getName();
+    }
+}
@@ -28,11 +28,29 @@ import java.util.Map;
  */
 public class DocumentTriggerProxy extends AbstractTriggerProxy<DocumentTrigger> {
 
+    private final boolean afterCommit;
+
     public DocumentTriggerProxy(final Class<? extends DocumentTrigger> clazz) {
         super(clazz);
+        this.afterCommit = false;
     }
     
     public DocumentTriggerProxy(final Class<? extends DocumentTrigger> clazz, final Map<String, List<? extends Object>> parameters) {
+        this(clazz, parameters, false);
+    }
+
+    /**
+     * @param clazz the class of the trigger
+     * @param parameters the parameters of the trigger
+     * @param afterCommit true if the after events are delivered to the trigger
+     *     once the transaction has committed, see {@link AfterCommitDocumentTrigger}
+     */
+    public DocumentTriggerProxy(final Class<? extends DocumentTrigger> clazz, final Map<String, List<? extends Object>> parameters, final boolean afterCommit) {
         super(clazz, parameters);
+        this.afterCommit = afterCommit;
+    }
+
+    public boolean isAfterCommit() {
+        return afterCommit;
     }
 }
@@ -83,6 +83,11 @@ public class DocumentTriggers implements DocumentTrigger, ContentHandler, Lexica
         if (docTriggers != null) {
             for (TriggerProxy<? extends DocumentTrigger> docTrigger : docTriggers) {
                 
+                if (collection != null && docTrigger instanceof DocumentTriggerProxy && ((DocumentTriggerProxy) docTrigger).isAfterCommit()) {
+                    register(new AfterCommitDocumentTrigger((DocumentTriggerProxy) docTrigger, collection.getURI()));
+                    continue;
+                }
+
                 DocumentTrigger instance = docTrigger.newInstance(broker, transaction, collection);
                 
                 register(instance);
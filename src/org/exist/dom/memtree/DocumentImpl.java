@@ -33,6 +33,7 @@ import org.exist.numbering.NodeIdFactory;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.ElementValue;
+import org.exist.storage.ResourceUsage;
 import org.exist.storage.serializers.Serializer;
 import org.exist.util.hashtable.NamePool;
 import org.exist.util.serializer.AttrList;
@@ -212,6 +213,7 @@ public class DocumentImpl extends NodeImpl<DocumentImpl> implements Document {
         nodeName[size] = qname != null ? namePool.getSharedName(qname) : null;
         alpha[size] = -1; // undefined
         next[size] = -1;
+        ResourceUsage.memtreeNodeCreated();
         return (size++);
     }
 
@@ -0,0 +1,864 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.dom.persistent;
+
+import org.exist.numbering.NodeId;
+import org.exist.util.hashtable.Int2ObjectHashMap;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.w3c.dom.Node;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A node set which stores its nodes in primitive arrays rather than as one
+ * {@link NodeProxy} per node, for large results.
+ *
+ * For each document, the set keeps the encoded DLN node ids packed one after
+ * the other in a single byte array, in document order, together with parallel
+ * arrays of offsets, internal addresses and node types. A node of the set
+ * costs about 20 bytes instead of the 100 bytes or more of a NodeProxy with
+ * its NodeId.
+ *
+ * The nodes which carry matches or context items when they are added keep
+ * their NodeProxy. Other NodeProxy objects are created on demand when the set
+ * is iterated, accessed or joined, and are then retained, so that the matches
+ * and contexts added to them are not lost and the same object is returned for
+ * a node, as by the other node sets. The set therefore saves memory for
+ * results which are mostly built, merged and counted, rather than read node by
+ * node.
+ *
+ * Like {@link NewArrayNodeSet}, nodes may be added in any order, the set is
+ * sorted and duplicates removed when it is first read. The union,
+ * intersection and difference of two compact sets are computed by merging
+ * the encoded node ids, document by document. Child, descendant and parent
+ * steps are evaluated by a {@link StructuralJoin} reading the encoded node
+ * ids in place.
+ */
+public class CompactNodeSet extends AbstractNodeSet {
+
+    private static final int INITIAL_PART_SIZE = 16;
+
+    private final Int2ObjectHashMap<Part> partsByDoc = new Int2ObjectHashMap<>();
+    private Part[] parts = new Part[8];
+    private int partCount = 0;
+    private Part lastPart = null;
+
+    /**
+     * The position of the first node of each part, set when the set is sorted
+     */
+    private int[] partStarts = new int[8];
+    private int size = 0;
+
+    private boolean isSorted = true;
+    private int state = 0;
+    private int itemType = Type.ANY_TYPE;
+
+    public CompactNodeSet() {
+    }
+
+    public CompactNodeSet(final CompactNodeSet other) {
+        addAll(other);
+    }
+
+    @Override
+    public NodeSet copy() {
+        return new CompactNodeSet(this);
+    }
+
+    @Override
+    public void add(final NodeProxy proxy) {
+        final DocumentImpl doc = proxy.getOwnerDocument();
+        final Part part = getOrCreatePart(doc);
+        part.add(proxy);
+        if (!part.sorted || part != parts[partCount - 1]) {
+            isSorted = false;
+        }
+        if (isSorted) {
+            size++;
+        }
+        checkItemType(proxy.getType());
+        setHasChanged();
+    }
+
+    @Override
+    public void addAll(final NodeSet other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        if (other instanceof CompactNodeSet) {
+            final CompactNodeSet compact = (CompactNodeSet) other;
+            compact.sort();
+            for (int i = 0; i < compact.partCount; i++) {
+                final Part from = compact.parts[i];
+                final Part to = getOrCreatePart(from.doc);
+                for (int j = 0; j < from.length; j++) {
+                    to.append(from, j, from.proxy(j));
+                }
+            }
+            isSorted = false;
+            if (compact.itemType != Type.ANY_TYPE) {
+                checkItemType(compact.itemType);
+            }
+            setHasChanged();
+        } else {
+            for (final NodeProxy node : other) {
+                add(node);
+            }
+        }
+    }
+
+    private Part getOrCreatePart(final DocumentImpl doc) {
+        final int docId = doc.getDocId();
+        if (lastPart != null && lastPart.doc.getDocId() == docId) {
+            return lastPart;
+        }
+        Part part = partsByDoc.get(docId);
+        if (part == null) {
+            part = new Part(doc, INITIAL_PART_SIZE);
+            if (partCount == parts.length) {
+                parts = Arrays.copyOf(parts, partCount << 1);
+            }
+            if (partCount > 0 && parts[partCount - 1].doc.getDocId() > docId) {
+                isSorted = false;
+            }
+            if (partStarts.length < parts.length) {
+                partStarts = Arrays.copyOf(partStarts, parts.length);
+            }
+            partStarts[partCount] = size;
+            parts[partCount++] = part;
+            partsByDoc.put(docId, part);
+        }
+        lastPart = part;
+        return part;
+    }
+
+    private void checkItemType(final int type) {
+        if (itemType == Type.NODE || itemType == type) {
+            return;
+        }
+        if (itemType == Type.ANY_TYPE) {
+            itemType = type;
+        } else {
+            itemType = Type.NODE;
+        }
+    }
+
+    private void setHasChanged() {
+        this.state = (state == Integer.MAX_VALUE ? 0 : state + 1);
+    }
+
+    /**
+     * Sorts the nodes of each document into document order, removing
+     * duplicates and merging their matches, and the documents by id.
+     */
+    public void sort() {
+        if (isSorted) {
+            return;
+        }
+        Arrays.sort(parts, 0, partCount, (p1, p2) -> Integer.compare(p1.doc.getDocId(), p2.doc.getDocId()));
+        if (partStarts.length < partCount) {
+            partStarts = new int[parts.length];
+        }
+        size = 0;
+        for (int i = 0; i < partCount; i++) {
+            parts[i].sort();
+            partStarts[i] = size;
+            size += parts[i].length;
+        }
+        isSorted = true;
+    }
+
+    private int findPart(final int docId) {
+        int low = 0;
+        int high = partCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = parts[mid].doc.getDocId();
+            if (midVal < docId) {
+                low = mid + 1;
+            } else if (midVal > docId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Finds the part which holds the node at the given position.
+     */
+    private int findPartOf(final int pos) {
+        int low = 0;
+        int high = partCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (partStarts[mid] <= pos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return partCount == 0;
+    }
+
+    @Override
+    public boolean hasOne() {
+        return getLength() == 1;
+    }
+
+    @Override
+    public int getLength() {
+        sort();
+        return size;
+    }
+
+    @Override
+    public long getItemCountLong() {
+        return getLength();
+    }
+
+    @Override
+    public int getItemType() {
+        return itemType == Type.ANY_TYPE ? Type.NODE : itemType;
+    }
+
+    @Override
+    public NodeProxy get(final int pos) {
+        sort();
+        if (pos < 0 || pos >= size) {
+            return null;
+        }
+        final int partIdx = findPartOf(pos);
+        return parts[partIdx].retain(pos - partStarts[partIdx]);
+    }
+
+    @Override
+    public Item itemAt(final int pos) {
+        return get(pos);
+    }
+
+    @Override
+    public Node item(final int pos) {
+        final NodeProxy p = get(pos);
+        return p == null ? null : p.getNode();
+    }
+
+    @Override
+    public NodeProxy get(final NodeProxy p) {
+        return get(p.getOwnerDocument(), p.getNodeId());
+    }
+
+    @Override
+    public NodeProxy get(final DocumentImpl doc, final NodeId nodeId) {
+        sort();
+        final int partIdx = findPart(doc.getDocId());
+        if (partIdx < 0) {
+            return null;
+        }
+        final Part part = parts[partIdx];
+        final int idx = part.indexOf(nodeId);
+        return idx < 0 ? null : part.retain(idx);
+    }
+
+    @Override
+    public boolean contains(final NodeProxy proxy) {
+        sort();
+        final int partIdx = findPart(proxy.getOwnerDocument().getDocId());
+        return partIdx > -1 && parts[partIdx].indexOf(proxy.getNodeId()) > -1;
+    }
+
+    @Override
+    public int getSizeHint(final DocumentImpl doc) {
+        sort();
+        final int partIdx = findPart(doc.getDocId());
+        return partIdx < 0 ? super.getSizeHint(doc) : parts[partIdx].length;
+    }
+
+    @Override
+    public DocumentSet getDocumentSet() {
+        sort();
+        final DefaultDocumentSet docs = new DefaultDocumentSet(partCount);
+        for (int i = 0; i < partCount; i++) {
+            docs.add(parts[i].doc, false);
+        }
+        return docs;
+    }
+
+    @Override
+    public NodeSetIterator iterator() {
+        sort();
+        return new CompactIterator();
+    }
+
+    @Override
+    public SequenceIterator iterate() {
+        sort();
+        return new CompactIterator();
+    }
+
+    @Override
+    public SequenceIterator unorderedIterator() {
+        sort();
+        return new CompactIterator();
+    }
+
+    @Override
+    public NodeSet union(final NodeSet other) {
+        if (!(other instanceof CompactNodeSet)) {
+            return super.union(other);
+        }
+        if (isEmpty()) {
+            return other;
+        } else if (other.isEmpty()) {
+            return this;
+        }
+        return merge((CompactNodeSet) other, true, true, true);
+    }
+
+    @Override
+    public NodeSet intersection(final NodeSet other) {
+        if (!(other instanceof CompactNodeSet)) {
+            return super.intersection(other);
+        }
+        return merge((CompactNodeSet) other, false, true, false);
+    }
+
+    @Override
+    public NodeSet except(final NodeSet other) {
+        if (!(other instanceof CompactNodeSet)) {
+            return super.except(other);
+        }
+        return merge((CompactNodeSet) other, true, false, false);
+    }
+
+    @Override
+    public NodeSet selectParentChild(final NodeSet al, final int mode, final int contextId) {
+        if (!StructuralJoin.canJoin(al)) {
+            return super.selectParentChild(al, mode, contextId);
+        }
+        return StructuralJoin.getDescendantsInSet(this, al, true, false, mode, contextId, true);
+    }
+
+    @Override
+    public NodeSet selectAncestorDescendant(final NodeSet al, final int mode, final boolean includeSelf,
+            final int contextId, final boolean copyMatches) {
+        if (!StructuralJoin.canJoin(al)) {
+            return super.selectAncestorDescendant(al, mode, includeSelf, contextId, copyMatches);
+        }
+        return StructuralJoin.getDescendantsInSet(this, al, false, includeSelf, mode, contextId, copyMatches);
+    }
+
+    /**
+     * Gets an input for a {@link StructuralJoin}, which reads the encoded
+     * node ids of the set in place.
+     */
+    StructuralJoin.Input joinInput() {
+        sort();
+        return new PartInput();
+    }
+
+    /**
+     * Merges this set with another, document by document, comparing the
+     * encoded node ids.
+     *
+     * @param other the other set
+     * @param onlyThis keep the nodes which are only in this set
+     * @param both keep the nodes which are in both sets, with the matches of both
+     * @param onlyOther keep the nodes which are only in the other set
+     */
+    private CompactNodeSet merge(final CompactNodeSet other, final boolean onlyThis, final boolean both,
+            final boolean onlyOther) {
+        sort();
+        other.sort();
+        final CompactNodeSet result = new CompactNodeSet();
+        int i = 0;
+        int j = 0;
+        while (i < partCount || j < other.partCount) {
+            final int docId = i < partCount ? parts[i].doc.getDocId() : Integer.MAX_VALUE;
+            final int otherDocId = j < other.partCount ? other.parts[j].doc.getDocId() : Integer.MAX_VALUE;
+            if (docId < otherDocId) {
+                if (onlyThis) {
+                    result.appendAll(parts[i]);
+                }
+                i++;
+            } else if (docId > otherDocId) {
+                if (onlyOther) {
+                    result.appendAll(other.parts[j]);
+                }
+                j++;
+            } else {
+                final Part p1 = parts[i++];
+                final Part p2 = other.parts[j++];
+                final Part to = new Part(p1.doc, Math.max(p1.length, p2.length));
+                int k = 0;
+                int l = 0;
+                while (k < p1.length || l < p2.length) {
+                    final int cmp = k == p1.length ? 1 : (l == p2.length ? -1 : EncodedNodeIds.compare(p1, k, p2, l));
+                    if (cmp < 0) {
+                        if (onlyThis) {
+                            to.append(p1, k, p1.proxy(k));
+                        }
+                        k++;
+                    } else if (cmp > 0) {
+                        if (onlyOther) {
+                            to.append(p2, l, p2.proxy(l));
+                        }
+                        l++;
+                    } else {
+                        if (both) {
+                            NodeProxy proxy = p1.proxy(k);
+                            final NodeProxy otherProxy = p2.proxy(l);
+                            if (otherProxy != null) {
+                                if (proxy == null) {
+                                    proxy = p1.node(k);
+                                }
+                                proxy.addMatches(otherProxy);
+                            }
+                            to.append(p1, k, proxy);
+                        }
+                        k++;
+                        l++;
+                    }
+                }
+                if (to.length > 0) {
+                    result.appendPart(to);
+                }
+            }
+        }
+        result.itemType = itemType == other.itemType ? itemType : Type.NODE;
+        return result;
+    }
+
+    private void appendAll(final Part part) {
+        final Part to = new Part(part.doc, part.length);
+        for (int i = 0; i < part.length; i++) {
+            to.append(part, i, part.proxy(i));
+        }
+        appendPart(to);
+    }
+
+    /**
+     * Appends a sorted part for a document which comes after the
+     * documents of this set.
+     */
+    private void appendPart(final Part part) {
+        if (partCount == parts.length) {
+            parts = Arrays.copyOf(parts, partCount << 1);
+        }
+        if (partStarts.length < parts.length) {
+            partStarts = Arrays.copyOf(partStarts, parts.length);
+        }
+        partStarts[partCount] = size;
+        parts[partCount++] = part;
+        partsByDoc.put(part.doc.getDocId(), part);
+        size += part.length;
+        lastPart = part;
+    }
+
+    @Override
+    public void setSelfAsContext(final int contextId) throws XPathException {
+        sort();
+        for (int i = 0; i < partCount; i++) {
+            final Part part = parts[i];
+            for (int j = 0; j < part.length; j++) {
+                final NodeProxy p = part.retain(j);
+                p.addContextNode(contextId, p);
+            }
+        }
+    }
+
+    @Override
+    public void clearContext(final int contextId) throws XPathException {
+        for (int i = 0; i < partCount; i++) {
+            final Part part = parts[i];
+            if (part.proxies != null) {
+                for (int j = 0; j < part.length; j++) {
+                    if (part.proxies[j] != null) {
+                        part.proxies[j].clearContext(contextId);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void nodeMoved(final NodeId oldNodeId, final NodeHandle newNode) {
+        sort();
+        final int partIdx = findPart(newNode.getOwnerDocument().getDocId());
+        if (partIdx < 0) {
+            return;
+        }
+        final Part part = parts[partIdx];
+        final int idx = part.indexOf(oldNodeId);
+        if (idx > -1) {
+            final NodeProxy p = part.retain(idx);
+            p.nodeMoved(oldNodeId, newNode);
+            part.remove(idx);
+            part.add(p, true);
+            isSorted = false;
+            setHasChanged();
+        }
+    }
+
+    @Override
+    public boolean hasChanged(final int previousState) {
+        return state != previousState;
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactNodeSet#" + super.toString();
+    }
+
+    /**
+     * The nodes of a document.
+     */
+    private static final class Part extends EncodedNodeIds {
+        final DocumentImpl doc;
+
+        long[] addresses;
+        short[] types;
+
+        /**
+         * The NodeProxy of the nodes which have matches or context items, or null
+         */
+        NodeProxy[] proxies = null;
+
+        boolean sorted = true;
+
+        Part(final DocumentImpl doc, final int capacity) {
+            super(capacity);
+            this.doc = doc;
+            final int nodes = Math.max(capacity, 1);
+            this.addresses = new long[nodes];
+            this.types = new short[nodes];
+        }
+
+        @Override
+        void grow(final int nodes) {
+            super.grow(nodes);
+            addresses = Arrays.copyOf(addresses, nodes);
+            types = Arrays.copyOf(types, nodes);
+            if (proxies != null) {
+                proxies = Arrays.copyOf(proxies, nodes);
+            }
+        }
+
+        void add(final NodeProxy proxy) {
+            add(proxy, proxy.getMatches() != null || proxy.getContext() != null);
+        }
+
+        /**
+         * @param retain true to keep the NodeProxy of the node
+         */
+        void add(final NodeProxy proxy, final boolean retain) {
+            final NodeId nodeId = proxy.getNodeId();
+            final int units = nodeId.units();
+            ensureCapacity(nodeId.size());
+            nodeId.serialize(ids, idsLength);
+            final NodeProxy retained = retain ? proxy : null;
+            appendEncoded((units + 7) >>> 3, ((units - 1) & 7) + 1, proxy.getInternalAddress(),
+                    proxy.getNodeType(), retained);
+        }
+
+        /**
+         * Appends the node at the given position of another part.
+         */
+        void append(final Part from, final int idx, final NodeProxy retained) {
+            final int idBytes = from.offsets[idx + 1] - from.offsets[idx];
+            ensureCapacity(idBytes);
+            System.arraycopy(from.ids, from.offsets[idx], ids, idsLength, idBytes);
+            appendEncoded(idBytes, from.lastBits[idx], from.addresses[idx], from.types[idx], retained);
+        }
+
+        private void appendEncoded(final int idBytes, final int bits, final long address, final short type,
+                final NodeProxy retained) {
+            addresses[length] = address;
+            types[length] = type;
+            if (retained != null) {
+                if (proxies == null) {
+                    proxies = new NodeProxy[addresses.length];
+                }
+                proxies[length] = retained;
+            }
+            appendEncoded(idBytes, bits);
+            if (sorted && length > 1 && compare(this, length - 2, this, length - 1) >= 0) {
+                sorted = false;
+            }
+        }
+
+        @Override
+        void remove(final int idx) {
+            final int moved = length - idx - 1;
+            System.arraycopy(addresses, idx + 1, addresses, idx, moved);
+            System.arraycopy(types, idx + 1, types, idx, moved);
+            if (proxies != null) {
+                System.arraycopy(proxies, idx + 1, proxies, idx, moved);
+                proxies[length - 1] = null;
+            }
+            super.remove(idx);
+        }
+
+        NodeProxy proxy(final int idx) {
+            return proxies == null ? null : proxies[idx];
+        }
+
+        /**
+         * Gets a NodeProxy for the node at the given position,
+         * which is not retained by the part unless it was before.
+         */
+        NodeProxy node(final int idx) {
+            final NodeProxy proxy = proxy(idx);
+            if (proxy != null) {
+                return proxy;
+            }
+            return new NodeProxy(doc, nodeId(idx), types[idx], addresses[idx]);
+        }
+
+        /**
+         * Gets a NodeProxy for the node at the given position,
+         * which is retained by the part.
+         */
+        NodeProxy retain(final int idx) {
+            if (proxies == null) {
+                proxies = new NodeProxy[addresses.length];
+            }
+            if (proxies[idx] == null) {
+                proxies[idx] = node(idx);
+            }
+            return proxies[idx];
+        }
+
+        /**
+         * Sorts the nodes into document order and removes duplicates.
+         */
+        void sort() {
+            if (sorted) {
+                return;
+            }
+            final int[] order = new int[length];
+            for (int i = 0; i < length; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[length], 0, length);
+
+            final Part sortedPart = new Part(doc, length);
+            sortedPart.ids = new byte[idsLength];
+            int last = -1;
+            for (final int idx : order) {
+                if (last > -1 && compare(this, last, this, idx) == 0) {
+                    // duplicate: keep the first node, with the matches of both
+                    final NodeProxy proxy = proxy(idx);
+                    if (proxy != null) {
+                        final int pos = sortedPart.length - 1;
+                        final NodeProxy kept = sortedPart.proxy(pos);
+                        if (kept == null) {
+                            sortedPart.retainAs(pos, proxy);
+                        } else {
+                            kept.addMatches(proxy);
+                        }
+                    }
+                    continue;
+                }
+                sortedPart.append(this, idx, proxy(idx));
+                last = idx;
+            }
+
+            this.ids = sortedPart.ids;
+            this.idsLength = sortedPart.idsLength;
+            this.offsets = sortedPart.offsets;
+            this.lastBits = sortedPart.lastBits;
+            this.addresses = sortedPart.addresses;
+            this.types = sortedPart.types;
+            this.proxies = sortedPart.proxies;
+            this.length = sortedPart.length;
+            this.sorted = true;
+        }
+
+        private void retainAs(final int idx, final NodeProxy proxy) {
+            if (proxies == null) {
+                proxies = new NodeProxy[addresses.length];
+            }
+            proxies[idx] = proxy;
+        }
+
+        private void mergeSort(final int[] order, final int[] tmp, final int from, final int to) {
+            if (to - from < 2) {
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            mergeSort(order, tmp, from, mid);
+            mergeSort(order, tmp, mid, to);
+            if (compare(this, order[mid - 1], this, order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, tmp, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < mid && compare(this, tmp[i], this, tmp[j]) <= 0)) {
+                    order[k] = tmp[i++];
+                } else {
+                    order[k] = tmp[j++];
+                }
+            }
+        }
+    }
+
+    private class PartInput extends StructuralJoin.Input {
+        private int partIdx = -1;
+
+        @Override
+        boolean nextDocument() {
+            if (++partIdx == partCount) {
+                return false;
+            }
+            final Part part = parts[partIdx];
+            doc = part.doc;
+            ids = part;
+            return true;
+        }
+
+        @Override
+        NodeProxy node(final int idx) {
+            return parts[partIdx].retain(idx);
+        }
+    }
+
+    private class CompactIterator implements NodeSetIterator, SequenceIterator {
+        private int partIdx = 0;
+        private int pos = 0;
+
+        /**
+         * The position of the iterator in the set, or -1 once it has been exhausted
+         */
+        private int index = 0;
+
+        private void advance() {
+            while (partIdx < partCount && pos >= parts[partIdx].length) {
+                partIdx++;
+                pos = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (index < 0) {
+                return false;
+            }
+            advance();
+            return partIdx < partCount;
+        }
+
+        @Override
+        public NodeProxy next() {
+            final NodeProxy next = nextNode();
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            return next;
+        }
+
+        @Override
+        public Item nextItem() {
+            return nextNode();
+        }
+
+        private NodeProxy nextNode() {
+            if (!hasNext()) {
+                index = -1;
+                return null;
+            }
+            index++;
+            return parts[partIdx].retain(pos++);
+        }
+
+        @Override
+        public NodeProxy peekNode() {
+            if (!hasNext()) {
+                index = -1;
+                return null;
+            }
+            return parts[partIdx].retain(pos);
+        }
+
+        @Override
+        public long skippable() {
+            return index < 0 ? 0 : size - index;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long skip = Math.min(n, skippable());
+            if (skip > 0) {
+                index += skip;
+                if (index >= size) {
+                    partIdx = partCount;
+                    pos = 0;
+                } else {
+                    partIdx = findPartOf(index);
+                    pos = index - partStarts[partIdx];
+                }
+            }
+            return skip;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setPosition(final NodeProxy proxy) {
+            final int idx = findPart(proxy.getOwnerDocument().getDocId());
+            if (idx > -1) {
+                final int nodeIdx = parts[idx].indexOf(proxy.getNodeId());
+                if (nodeIdx > -1) {
+                    partIdx = idx;
+                    pos = nodeIdx;
+                    index = partStarts[idx] + nodeIdx;
+                    return;
+                }
+            }
+            partIdx = partCount;
+            index = -1;
+        }
+    }
+}
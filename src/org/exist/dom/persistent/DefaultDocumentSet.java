@@ -41,6 +41,10 @@ import java.util.*;
  * It also contains methods to retrieve the collections these documents
  * belong to.
  *
+ * The documents are kept in insertion order in an array, and found by their
+ * id through an open addressing hash table of int indexes into the array, so
+ * that no boxed keys or map entries are allocated per document.
+ *
  * @author wolf
  * @author aretter
  */
@@ -48,25 +52,78 @@ import java.util.*;
 public class DefaultDocumentSet implements MutableDocumentSet {
 
     private static final int DEFAULT_SIZE = 29;
-    private static final float DEFAULT_GROWTH = 1.75f;
 
     private final BitSet docIds = new BitSet();
-    private final Map<Integer, DocumentImpl> docs;
     private final BitSet collectionIds = new BitSet();
     private final Set<Collection> collections = new LinkedHashSet<>();
 
+    /**
+     * The documents in insertion order
+     */
+    private DocumentImpl[] docs;
+    private int docCount = 0;
+
+    /**
+     * Open addressing hash table of the documents by id, a slot holds the
+     * index of a document in {@link #docs} plus one, or 0 if it is free
+     */
+    private int[] slots;
+
     public DefaultDocumentSet() {
         this(DEFAULT_SIZE);
     }
 
     public DefaultDocumentSet(final int initialSize) {
-        this.docs = new LinkedHashMap<>(initialSize, DEFAULT_GROWTH);
+        this.docs = new DocumentImpl[Math.max(initialSize, 1)];
+        this.slots = new int[tableSize(docs.length)];
+    }
+
+    /**
+     * Gets the size of a hash table which keeps the load factor
+     * at or below 0.5 for the given number of documents.
+     */
+    private static int tableSize(final int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+    }
+
+    private static int hash(final int docId) {
+        // spread the bits of sequential ids
+        final int h = docId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the slot of a document in the hash table.
+     *
+     * @return the slot holding the document, or the free slot where it would be inserted
+     */
+    private int findSlot(final int docId) {
+        final int mask = slots.length - 1;
+        int slot = hash(docId) & mask;
+        while (slots[slot] != 0 && docs[slots[slot] - 1].getDocId() != docId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void ensureCapacity() {
+        if (docCount == docs.length) {
+            docs = Arrays.copyOf(docs, docs.length << 1);
+        }
+        if ((docCount + 1) << 1 > slots.length) {
+            slots = new int[slots.length << 1];
+            for (int i = 0; i < docCount; i++) {
+                slots[findSlot(docs[i].getDocId())] = i + 1;
+            }
+        }
     }
 
     @Override
     public void clear() {
         this.docIds.clear();
-        this.docs.clear();
+        Arrays.fill(docs, 0, docCount, null);
+        this.docCount = 0;
+        Arrays.fill(slots, 0);
         this.collectionIds.clear();
         this.collections.clear();
     }
@@ -83,8 +140,15 @@ public class DefaultDocumentSet implements MutableDocumentSet {
             return;
         }
 
-        docIds.set(docId);
-        docs.put(docId, doc);
+        if (docIds.get(docId)) {
+            // replace the document, keeping its position
+            docs[slots[findSlot(docId)] - 1] = doc;
+        } else {
+            ensureCapacity();
+            slots[findSlot(docId)] = docCount + 1;
+            docs[docCount++] = doc;
+            docIds.set(docId);
+        }
         final Collection collection = doc.getCollection();
         if (collection != null && !collectionIds.get(collection.getId())) {
             collectionIds.set(collection.getId());
@@ -116,7 +180,7 @@ public class DefaultDocumentSet implements MutableDocumentSet {
 
     @Override
     public Iterator<DocumentImpl> getDocumentIterator() {
-        return docs.values().iterator();
+        return new DocumentIterator();
     }
 
     @Override
@@ -126,19 +190,23 @@ public class DefaultDocumentSet implements MutableDocumentSet {
 
     @Override
     public int getDocumentCount() {
-        return docs.size();
+        return docCount;
     }
 
     @Override
     public DocumentImpl getDoc(final int docId) {
-        return docs.get(docId);
+        if (docId < 0 || !docIds.get(docId)) {
+            return null;
+        }
+        return docs[slots[findSlot(docId)] - 1];
     }
 
     @Override
     public XmldbURI[] getNames() {
-        final XmldbURI[] result = docs.values().stream()
-                .map(DocumentImpl::getFileURI)
-                .toArray(XmldbURI[]::new);
+        final XmldbURI[] result = new XmldbURI[docCount];
+        for (int i = 0; i < docCount; i++) {
+            result[i] = docs[i].getFileURI();
+        }
         Arrays.sort(result);
         return result;
     }
@@ -202,7 +270,7 @@ public class DefaultDocumentSet implements MutableDocumentSet {
 
     @Override
     public boolean contains(final int id) {
-        return docIds.get(id);
+        return id >= 0 && docIds.get(id);
     }
 
     @Override
@@ -222,14 +290,7 @@ public class DefaultDocumentSet implements MutableDocumentSet {
     }
 
     public int getMaxDocId() {
-        int max = DocumentImpl.UNKNOWN_DOCUMENT_ID;
-        for (final Iterator<DocumentImpl> i = getDocumentIterator(); i.hasNext(); ) {
-            final DocumentImpl d = i.next();
-            if (d.getDocId() > max) {
-                max = d.getDocId();
-            }
-        }
-        return max;
+        return docCount == 0 ? DocumentImpl.UNKNOWN_DOCUMENT_ID : docIds.length() - 1;
     }
 
     @Override
@@ -297,4 +358,21 @@ public class DefaultDocumentSet implements MutableDocumentSet {
         }
         return result.toString();
     }
+
+    private class DocumentIterator implements Iterator<DocumentImpl> {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+            return next < docCount;
+        }
+
+        @Override
+        public DocumentImpl next() {
+            if (next >= docCount) {
+                throw new NoSuchElementException();
+            }
+            return docs[next++];
+        }
+    }
 }
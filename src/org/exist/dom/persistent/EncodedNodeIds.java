@@ -0,0 +1,216 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.dom.persistent;
+
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
+
+import java.util.Arrays;
+
+/**
+ * The encoded DLN node ids of a sequence of nodes of one document, packed
+ * one after the other into a single byte array.
+ *
+ * Stores the nodes of a {@link CompactNodeSet}, and is the input of a
+ * {@link StructuralJoin}, which compares and relates the nodes on their
+ * encoded ids.
+ */
+class EncodedNodeIds {
+
+    /**
+     * The encoded node ids, one after the other
+     */
+    byte[] ids;
+    int idsLength = 0;
+
+    /**
+     * The offset of the id of each node in {@link #ids}
+     */
+    int[] offsets;
+
+    /**
+     * The number of bits used in the last byte of the id of each node
+     */
+    byte[] lastBits;
+
+    int length = 0;
+
+    EncodedNodeIds(final int capacity) {
+        final int nodes = Math.max(capacity, 1);
+        this.ids = new byte[nodes * 4];
+        this.offsets = new int[nodes + 1];
+        this.lastBits = new byte[nodes];
+    }
+
+    void clear() {
+        length = 0;
+        idsLength = 0;
+    }
+
+    /**
+     * Makes room for one more node, with an id of the given size.
+     */
+    void ensureCapacity(final int idBytes) {
+        if (length == lastBits.length) {
+            grow(length << 1);
+        }
+        if (idsLength + idBytes > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length << 1, idsLength + idBytes));
+        }
+    }
+
+    void grow(final int nodes) {
+        offsets = Arrays.copyOf(offsets, nodes + 1);
+        lastBits = Arrays.copyOf(lastBits, nodes);
+    }
+
+    void add(final NodeId nodeId) {
+        ensureCapacity(nodeId.size());
+        nodeId.serialize(ids, idsLength);
+        final int units = nodeId.units();
+        appendEncoded((units + 7) >>> 3, ((units - 1) & 7) + 1);
+    }
+
+    /**
+     * Completes the addition of a node whose id has been written at the end of {@link #ids}.
+     */
+    void appendEncoded(final int idBytes, final int bits) {
+        offsets[length] = idsLength;
+        idsLength += idBytes;
+        offsets[length + 1] = idsLength;
+        lastBits[length] = (byte) bits;
+        length++;
+    }
+
+    void remove(final int idx) {
+        final int idBytes = offsets[idx + 1] - offsets[idx];
+        System.arraycopy(ids, offsets[idx + 1], ids, offsets[idx], idsLength - offsets[idx + 1]);
+        idsLength -= idBytes;
+        for (int i = idx; i < length; i++) {
+            offsets[i] = offsets[i + 1] - idBytes;
+        }
+        System.arraycopy(lastBits, idx + 1, lastBits, idx, length - idx - 1);
+        length--;
+    }
+
+    int units(final int idx) {
+        return ((offsets[idx + 1] - offsets[idx] - 1) << 3) + lastBits[idx];
+    }
+
+    NodeId nodeId(final int idx) {
+        final int offset = offsets[idx];
+        final int units = units(idx);
+        if (DLN.isDocumentNode(ids, offset, units)) {
+            return NodeId.DOCUMENT_NODE;
+        }
+        return new DLN(units, ids, offset);
+    }
+
+    /**
+     * Finds a node by binary search, the nodes must be in document order.
+     *
+     * @return the position of the node, or (-(insertion point) - 1) if it was not found
+     */
+    int indexOf(final NodeId nodeId) {
+        final byte[] key = new byte[nodeId.size()];
+        nodeId.serialize(key, 0);
+        final int units = nodeId.units();
+        final int keyLength = (units + 7) >>> 3;
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            int cmp = compare(ids, offsets[mid], offsets[mid + 1] - offsets[mid], key, 0, keyLength);
+            if (cmp == 0) {
+                cmp = units(mid) - units;
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Finds the first node at or after position from which does not precede
+     * the given node of another sequence. The nodes must be in document order.
+     */
+    int search(final int from, final EncodedNodeIds other, final int otherIdx) {
+        int low = from;
+        int high = length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(this, mid, other, otherIdx) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks if the node at the given position is an ancestor of, or the
+     * same node as, the node at the given position of another sequence.
+     */
+    boolean isAncestorOrSelf(final int idx, final EncodedNodeIds other, final int otherIdx) {
+        return DLN.isDescendantOrSelfOf(other.ids, other.offsets[otherIdx], other.units(otherIdx),
+                ids, offsets[idx], units(idx));
+    }
+
+    /**
+     * Checks if the node at the given position is the parent of the node
+     * at the given position of another sequence.
+     */
+    boolean isParent(final int idx, final EncodedNodeIds other, final int otherIdx) {
+        return DLN.computeRelation(other.ids, other.offsets[otherIdx], other.units(otherIdx),
+                ids, offsets[idx], units(idx)) == NodeId.IS_CHILD;
+    }
+
+    /**
+     * Compares two nodes in document order.
+     */
+    static int compare(final EncodedNodeIds n1, final int idx1, final EncodedNodeIds n2, final int idx2) {
+        final int cmp = compare(n1.ids, n1.offsets[idx1], n1.offsets[idx1 + 1] - n1.offsets[idx1],
+                n2.ids, n2.offsets[idx2], n2.offsets[idx2 + 1] - n2.offsets[idx2]);
+        return cmp != 0 ? cmp : n1.lastBits[idx1] - n2.lastBits[idx2];
+    }
+
+    /**
+     * Compares two encoded node ids in document order, as
+     * {@link DLN#compareTo(NodeId)} does.
+     */
+    static int compare(final byte[] a, final int aOffset, final int aLength, final byte[] b, final int bOffset,
+            final int bLength) {
+        final int limit = Math.min(aLength, bLength);
+        for (int i = 0; i < limit; i++) {
+            final byte b1 = a[aOffset + i];
+            final byte b2 = b[bOffset + i];
+            if (b1 != b2) {
+                return (b1 & 0xFF) - (b2 & 0xFF);
+            }
+        }
+        return aLength - bLength;
+    }
+}
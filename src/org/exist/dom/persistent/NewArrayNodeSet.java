@@ -241,6 +241,10 @@ public class NewArrayNodeSet extends AbstractArrayNodeSet implements ExtNodeSet,
     protected final NodeSet getDescendantsInSet(final NodeSet al, final boolean childOnly,
             final boolean includeSelf, final int mode, final int contextId, final boolean copyMatches) {
         sort();
+        if(StructuralJoin.canJoin(al) && StructuralJoin.isWorthwhile(al.getLength(), size)) {
+            return StructuralJoin.getDescendantsInSet(this, al, childOnly, includeSelf, mode, contextId,
+                copyMatches);
+        }
         final NodeSet result = new NewArrayNodeSet();
         int docIdx;
         for(final NodeProxy node : al) {
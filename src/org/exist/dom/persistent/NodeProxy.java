@@ -28,6 +28,7 @@ import org.exist.numbering.NodeId;
 import org.exist.stax.IEmbeddedXMLStreamReader;
 import org.exist.storage.DBBroker;
 import org.exist.storage.RangeIndexSpec;
+import org.exist.storage.ResourceUsage;
 import org.exist.storage.StorageAddress;
 import org.exist.storage.lock.LockManager;
 import org.exist.storage.lock.ManagedDocumentLock;
@@ -157,6 +158,7 @@ public class NodeProxy implements NodeSet, NodeValue, NodeHandle, DocumentSet, C
         this.nodeType = nodeType;
         this.internalAddress = address;
         this.nodeId = nodeId;
+        ResourceUsage.nodeProxyCreated();
     }
 
     public void update(final ElementImpl element) {
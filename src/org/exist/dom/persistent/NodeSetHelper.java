@@ -299,6 +299,9 @@ public final class NodeSetHelper {
      */
     public static NodeSet selectAncestors(final NodeSet al, final NodeSet dl,
             final boolean includeSelf, final int contextId) {
+        if(StructuralJoin.canJoin(al) && StructuralJoin.canJoin(dl)) {
+            return StructuralJoin.selectAncestors(al, dl, includeSelf, contextId);
+        }
         final NodeSet result = new NewArrayNodeSet();
         for(final NodeProxy descendant : dl) {
             final NodeSet ancestors = ancestorsForChild(al, descendant, false, includeSelf);
@@ -0,0 +1,323 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.dom.persistent;
+
+import org.exist.xquery.Expression;
+
+import java.util.Arrays;
+
+/**
+ * A stack based structural join, or staircase join, between a set of
+ * potential ancestor nodes and a set of potential descendant nodes.
+ *
+ * The nodes of a document are read once from both sets, in document order.
+ * The chain of ancestors containing the current descendant is kept on a
+ * stack, and the descendants preceding the next ancestor are skipped by
+ * binary search when the stack is empty. The nodes are compared and related
+ * on their encoded DLN ids ({@link EncodedNodeIds}), so the join does not
+ * create NodeId objects or allocate anything per pair of nodes.
+ *
+ * See S. Al-Khalifa et al., "Structural Joins: A Primitive for Efficient XML
+ * Query Pattern Matching", and T. Grust et al., "Staircase Join: Teach a
+ * Relational DBMS to Watch its (Axis) Steps".
+ */
+final class StructuralJoin {
+
+    /**
+     * Reading all nodes of both sets is only worth it if there are not
+     * much fewer ancestors than descendants. Otherwise, looking up the
+     * descendants of each ancestor by binary search is cheaper.
+     */
+    private static final int MAX_DESCENDANTS_PER_ANCESTOR = 64;
+
+    /**
+     * Receives the related pairs of nodes found by a join, as positions
+     * in the current document of the ancestor and descendant inputs.
+     */
+    interface Pairs {
+        void pair(int ancestor, int descendant);
+    }
+
+    private final boolean childOnly;
+    private final boolean includeSelf;
+    private int[] stack = new int[16];
+
+    /**
+     * @param childOnly   only pair descendants with their parent
+     * @param includeSelf also pair a node with itself, if it is in both
+     *                    sets. Ignored if childOnly is set.
+     */
+    StructuralJoin(final boolean childOnly, final boolean includeSelf) {
+        this.childOnly = childOnly;
+        this.includeSelf = includeSelf && !childOnly;
+    }
+
+    /**
+     * Checks if a node set can be read by a join: it has to iterate its
+     * nodes in document order, grouped by document in ascending order of
+     * the document ids.
+     */
+    static boolean canJoin(final NodeSet set) {
+        return set instanceof NewArrayNodeSet || set instanceof CompactNodeSet;
+    }
+
+    /**
+     * Checks if joining is expected to be cheaper than looking up the
+     * descendants of each ancestor.
+     */
+    static boolean isWorthwhile(final int ancestors, final int descendants) {
+        return (long) ancestors * MAX_DESCENDANTS_PER_ANCESTOR >= descendants;
+    }
+
+    static Input input(final NodeSet set) {
+        if (set instanceof CompactNodeSet) {
+            return ((CompactNodeSet) set).joinInput();
+        }
+        return new IteratorInput(set);
+    }
+
+    /**
+     * Joins two node sets, document by document.
+     */
+    void join(final Input ancestors, final Input descendants, final Pairs pairs) {
+        boolean hasAncestors = ancestors.nextDocument();
+        boolean hasDescendants = descendants.nextDocument();
+        while (hasAncestors && hasDescendants) {
+            final int cmp = Integer.compare(ancestors.doc.getDocId(), descendants.doc.getDocId());
+            if (cmp < 0) {
+                hasAncestors = ancestors.nextDocument();
+            } else if (cmp > 0) {
+                hasDescendants = descendants.nextDocument();
+            } else {
+                join(ancestors.ids, descendants.ids, pairs);
+                hasAncestors = ancestors.nextDocument();
+                hasDescendants = descendants.nextDocument();
+            }
+        }
+    }
+
+    /**
+     * Joins the nodes of one document. The descendants are paired in
+     * document order, each one with its ancestors from the outermost
+     * to the innermost.
+     */
+    void join(final EncodedNodeIds ancestors, final EncodedNodeIds descendants, final Pairs pairs) {
+        int depth = 0;
+        int next = 0;
+        for (int d = 0; d < descendants.length; d++) {
+            // push the ancestors starting before the descendant, or with it
+            while (next < ancestors.length && EncodedNodeIds.compare(ancestors, next, descendants, d) <= 0) {
+                while (depth > 0 && !ancestors.isAncestorOrSelf(stack[depth - 1], ancestors, next)) {
+                    depth--;
+                }
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth << 1);
+                }
+                stack[depth++] = next++;
+            }
+            // pop the ancestors ending before the descendant
+            while (depth > 0 && !ancestors.isAncestorOrSelf(stack[depth - 1], descendants, d)) {
+                depth--;
+            }
+            if (depth == 0) {
+                if (next == ancestors.length) {
+                    return;
+                }
+                // skip the descendants preceding the next ancestor
+                d = descendants.search(d + 1, ancestors, next) - 1;
+                continue;
+            }
+            int top = depth - 1;
+            if (!includeSelf && EncodedNodeIds.compare(ancestors, stack[top], descendants, d) == 0) {
+                top--;
+            }
+            if (childOnly) {
+                if (top > -1 && ancestors.isParent(stack[top], descendants, d)) {
+                    pairs.pair(stack[top], d);
+                }
+            } else {
+                for (int i = 0; i <= top; i++) {
+                    pairs.pair(stack[i], d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the nodes of the descendant set which are children or
+     * descendants of a node in the ancestor set, or the ancestors having
+     * such nodes, as {@link AbstractArrayNodeSet#getDescendantsInSet} does.
+     *
+     * @param dl          the potential descendants
+     * @param al          the potential ancestors
+     * @param childOnly   only include child nodes, not descendant nodes
+     * @param includeSelf include the self:: axis
+     * @param mode        {@link NodeSet#DESCENDANT} to return the descendants found,
+     *                    {@link NodeSet#ANCESTOR} to return the ancestors
+     */
+    static NodeSet getDescendantsInSet(final NodeSet dl, final NodeSet al, final boolean childOnly,
+            final boolean includeSelf, final int mode, final int contextId, final boolean copyMatches) {
+        if (mode != NodeSet.DESCENDANT && mode != NodeSet.ANCESTOR) {
+            throw new IllegalArgumentException("Bad 'mode' argument");
+        }
+        final NodeSet result = new NewArrayNodeSet();
+        final Input ancestors = input(al);
+        final Input descendants = input(dl);
+        new StructuralJoin(childOnly, includeSelf).join(ancestors, descendants, new Pairs() {
+            // the node added last, which is not added again for the next pair
+            private NodeProxy last = null;
+
+            @Override
+            public void pair(final int a, final int d) {
+                final NodeProxy ancestor = ancestors.node(a);
+                final NodeProxy descendant = descendants.node(d);
+                if (mode == NodeSet.DESCENDANT) {
+                    if (Expression.NO_CONTEXT_ID != contextId) {
+                        descendant.deepCopyContext(ancestor, contextId);
+                    } else {
+                        descendant.copyContext(ancestor);
+                    }
+                    if (copyMatches) {
+                        descendant.addMatches(ancestor);
+                    }
+                    add(descendant);
+                } else {
+                    if (Expression.NO_CONTEXT_ID != contextId) {
+                        ancestor.deepCopyContext(descendant, contextId);
+                    } else {
+                        ancestor.copyContext(descendant);
+                    }
+                    if (copyMatches) {
+                        ancestor.addMatches(descendant);
+                    }
+                    add(ancestor);
+                }
+            }
+
+            private void add(final NodeProxy node) {
+                if (node != last) {
+                    result.add(node);
+                    last = node;
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Finds the nodes of the ancestor set which are ancestors of a node
+     * in the descendant set, as {@link NodeSetHelper#selectAncestors} does.
+     */
+    static NodeSet selectAncestors(final NodeSet al, final NodeSet dl, final boolean includeSelf,
+            final int contextId) {
+        final NodeSet result = new NewArrayNodeSet();
+        final Input ancestors = input(al);
+        final Input descendants = input(dl);
+        new StructuralJoin(false, includeSelf).join(ancestors, descendants, new Pairs() {
+            private DocumentImpl doc = null;
+            private boolean[] found;
+
+            @Override
+            public void pair(final int a, final int d) {
+                if (ancestors.doc != doc) {
+                    doc = ancestors.doc;
+                    found = new boolean[ancestors.ids.length];
+                }
+                final NodeProxy ancestor = ancestors.node(a);
+                final NodeProxy descendant = descendants.node(d);
+                if (!found[a]) {
+                    found[a] = true;
+                    if (Expression.IGNORE_CONTEXT != contextId) {
+                        if (Expression.NO_CONTEXT_ID != contextId) {
+                            ancestor.addContextNode(contextId, descendant);
+                        } else {
+                            ancestor.copyContext(descendant);
+                        }
+                    }
+                    ancestor.addMatches(descendant);
+                    result.add(ancestor);
+                } else if (Expression.NO_CONTEXT_ID != contextId) {
+                    ancestor.addContextNode(contextId, descendant);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The nodes of a node set, read document by document.
+     */
+    abstract static class Input {
+        DocumentImpl doc = null;
+        EncodedNodeIds ids = null;
+
+        /**
+         * Moves to the nodes of the next document.
+         *
+         * @return false if there are no more documents
+         */
+        abstract boolean nextDocument();
+
+        /**
+         * Gets the NodeProxy of the node at the given position in the
+         * current document. Returns the same object for repeated calls.
+         */
+        abstract NodeProxy node(int idx);
+    }
+
+    /**
+     * Reads the nodes of a node set from its iterator, encoding the node ids
+     * of each document.
+     */
+    private static final class IteratorInput extends Input {
+        private final NodeSetIterator iterator;
+        private NodeProxy next;
+        private NodeProxy[] nodes = new NodeProxy[16];
+
+        IteratorInput(final NodeSet set) {
+            this.iterator = set.iterator();
+            this.next = iterator.hasNext() ? iterator.next() : null;
+            this.ids = new EncodedNodeIds(16);
+        }
+
+        @Override
+        boolean nextDocument() {
+            if (next == null) {
+                return false;
+            }
+            doc = next.getOwnerDocument();
+            ids.clear();
+            do {
+                if (ids.length == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length << 1);
+                }
+                nodes[ids.length] = next;
+                ids.add(next.getNodeId());
+                next = iterator.hasNext() ? iterator.next() : null;
+            } while (next != null && next.getOwnerDocument().getDocId() == doc.getDocId());
+            return true;
+        }
+
+        @Override
+        NodeProxy node(final int idx) {
+            return nodes[idx];
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.blob.BlobStore;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Base64BinaryDocument;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueFromFile;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Sends binary content as the body of an HTTP response, answering conditional
+ * (If-None-Match) and byte range (Range, If-Range) requests.
+ *
+ * Content which is stored in a file is written from a {@link FileChannel}: when running
+ * in Jetty the file regions are handed to the connector as mapped buffers, otherwise
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} is used, so that the
+ * content is not copied through an intermediate stream.
+ */
+public class BinaryResponse {
+
+    private final static Logger LOG = LogManager.getLogger(BinaryResponse.class);
+
+    public static final String BYTES_UNIT = "bytes";
+
+    /**
+     * A Range header asking for more ranges than this is ignored and
+     * the whole content is sent
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final long MAX_MAPPED_REGION = 64 * 1024 * 1024;
+
+    private static final boolean JETTY = isJetty();
+
+    private BinaryResponse() {
+    }
+
+    /**
+     * Gets the entity tag of a binary document.
+     *
+     * The tag is strong and derived from the digest of the content when the document is
+     * kept in the {@link BlobStore}. Otherwise a weak tag is derived from the document id,
+     * its last modification time and its length.
+     *
+     * @param broker the database broker
+     * @param doc the binary document
+     *
+     * @return the entity tag, quoted as for the ETag header
+     *
+     * @throws IOException if the digest cannot be read
+     */
+    public static String getETag(final DBBroker broker, final BinaryDocument doc) throws IOException {
+        final Optional<BlobStore> blobStore = broker.getBrokerPool().getBlobStore();
+        if (blobStore.isPresent()) {
+            final String digest = blobStore.get().getContentDigest(doc.getURI());
+            if (digest != null) {
+                return '"' + digest + '"';
+            }
+        }
+        return "W/\"" + Integer.toHexString(doc.getDocId()) + '-' + Long.toHexString(doc.getMetadata().getLastModified())
+                + '-' + Long.toHexString(doc.getContentLength()) + '"';
+    }
+
+    /**
+     * Checks the If-None-Match header of a request against the entity tag of the content.
+     * When it returns true, the caller should answer with 304 (Not Modified) and
+     * must ignore any If-Modified-Since header.
+     *
+     * @param request the HTTP request
+     * @param etag the entity tag of the content
+     *
+     * @return true if the client already has the content
+     */
+    public static boolean isNotModified(final HttpServletRequest request, final String etag) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        return ifNoneMatch != null && matches(ifNoneMatch, etag, false);
+    }
+
+    /**
+     * Sends the content of a file, or the ranges of it asked for by the request.
+     *
+     * The content type must already be set on the response.
+     *
+     * @param request the HTTP request, or null to always send the whole content
+     * @param response the HTTP response
+     * @param file the file to send
+     * @param etag the entity tag of the content, or null
+     * @param lastModified the last modification time of the content, or -1 if unknown
+     *
+     * @throws IOException if the file cannot be read or the response cannot be written
+     */
+    public static void send(@Nullable final HttpServletRequest request, final HttpServletResponse response, final Path file,
+            @Nullable final String etag, final long lastModified) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long length = channel.size();
+
+            response.setHeader("Accept-Ranges", BYTES_UNIT);
+            if (etag != null) {
+                response.setHeader("ETag", etag);
+            }
+
+            final List<long[]> ranges = request == null ? null : getRanges(request, etag, lastModified, length);
+            if (ranges == null) {
+                response.setHeader("Content-Length", Long.toString(length));
+                final OutputStream os = response.getOutputStream();
+                transfer(channel, 0, length, os);
+                os.flush();
+
+            } else if (ranges.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", BYTES_UNIT + " */" + length);
+                response.setHeader("Content-Length", "0");
+
+            } else if (ranges.size() == 1) {
+                final long[] range = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", contentRange(range, length));
+                response.setHeader("Content-Length", Long.toString(range[1] - range[0] + 1));
+                final OutputStream os = response.getOutputStream();
+                transfer(channel, range[0], range[1] - range[0] + 1, os);
+                os.flush();
+
+            } else {
+                sendMultipart(response, channel, ranges, length);
+            }
+        }
+    }
+
+    /**
+     * Sends a binary value, answering range and conditional requests when the
+     * value is backed by a file or a binary document.
+     *
+     * The content type must already be set on the response.
+     *
+     * @param broker the database broker
+     * @param request the HTTP request, or null to always send the whole content
+     * @param response the HTTP response
+     * @param binary the binary value to send
+     *
+     * @throws IOException if the content cannot be read or the response cannot be written
+     */
+    public static void send(final DBBroker broker, @Nullable final HttpServletRequest request,
+            final HttpServletResponse response, final BinaryValue binary) throws IOException {
+        if (binary instanceof BinaryValueFromFile) {
+            final Path file = ((BinaryValueFromFile) binary).getFile();
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            final long lastModified = attrs.lastModifiedTime().toMillis();
+            final String etag = "W/\"" + Long.toHexString(lastModified) + '-' + Long.toHexString(attrs.size()) + '"';
+            if (request != null && isNotModified(request, etag)) {
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            send(request, response, file, etag, lastModified);
+            return;
+
+        } else if (binary instanceof Base64BinaryDocument && ((Base64BinaryDocument) binary).getUrl() != null) {
+            final Base64BinaryDocument binaryDoc = (Base64BinaryDocument) binary;
+            try (final LockedDocument lockedDoc = broker.getXMLResource(XmldbURI.xmldbUriFor(binaryDoc.getUrl()), LockMode.READ_LOCK)) {
+                final DocumentImpl doc = lockedDoc == null ? null : lockedDoc.getDocument();
+                // only if the document has not been replaced since the value was read
+                if (doc != null && doc.getResourceType() == DocumentImpl.BINARY_FILE
+                        && doc.getMetadata().getLastModified() == binaryDoc.getLastModified()) {
+                    final String etag = getETag(broker, (BinaryDocument) doc);
+                    if (request != null && isNotModified(request, etag)) {
+                        response.setHeader("ETag", etag);
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        return;
+                    }
+                    send(request, response, broker.getBinaryFile((BinaryDocument) doc), etag, binaryDoc.getLastModified());
+                    return;
+                }
+            } catch (final URISyntaxException | PermissionDeniedException e) {
+                LOG.debug("Unable to access " + binaryDoc.getUrl() + ", sending the content of the value: " + e.getMessage());
+            }
+        }
+
+        final OutputStream os = response.getOutputStream();
+        binary.streamBinaryTo(os);
+        os.flush();
+    }
+
+    private static List<long[]> getRanges(final HttpServletRequest request, @Nullable final String etag, final long lastModified,
+            final long length) {
+        final String range = request.getHeader("Range");
+        if (range == null || !isRangeCurrent(request, etag, lastModified)) {
+            return null;
+        }
+        return parseRanges(range, length);
+    }
+
+    /**
+     * An If-Range header only allows a partial response if it carries the
+     * strong entity tag or the exact last modification time of the content.
+     */
+    private static boolean isRangeCurrent(final HttpServletRequest request, @Nullable final String etag, final long lastModified) {
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && matches(ifRange, etag, true);
+        }
+        try {
+            // Last-Modified is sent rounded up to the second
+            return lastModified > -1 && request.getDateHeader("If-Range") / 1000 == (lastModified + 999) / 1000;
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @param header the value of the Range header
+     * @param length the length of the content
+     *
+     * @return null if the header is not a valid byte range set or asks for too many ranges,
+     *     an empty list if none of the ranges can be satisfied, otherwise the ranges as
+     *     {first, last} positions, sorted and with overlapping or adjacent ranges coalesced
+     */
+    static List<long[]> parseRanges(final String header, final long length) {
+        if (!header.startsWith(BYTES_UNIT + "=")) {
+            return null;
+        }
+        final String[] specs = header.substring(BYTES_UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        final List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (final String s : specs) {
+                final String spec = s.trim();
+                final int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                final long first;
+                final long last;
+                if (dash == 0) {
+                    // suffix range: the last n bytes
+                    final long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    } else if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        final long end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < first) {
+                            return null;
+                        }
+                        last = Math.min(end, length - 1);
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new long[] { first, last });
+                }
+            }
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        final List<long[]> coalesced = new ArrayList<>(ranges.size());
+        for (final long[] range : ranges) {
+            final long[] previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                coalesced.add(range);
+            }
+        }
+        return coalesced;
+    }
+
+    static boolean matches(final String header, final String etag, final boolean strong) {
+        if (strong && etag.startsWith("W/")) {
+            return false;
+        }
+        final String opaqueTag = opaqueTag(etag);
+        for (final String s : header.split(",")) {
+            final String candidate = s.trim();
+            if ("*".equals(candidate)) {
+                return true;
+            }
+            if (strong && candidate.startsWith("W/")) {
+                continue;
+            }
+            if (opaqueTag(candidate).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static void sendMultipart(final HttpServletResponse response, final FileChannel channel, final List<long[]> ranges,
+            final long length) throws IOException {
+        final String boundary = UUID.randomUUID().toString();
+        final String contentType = response.getContentType();
+
+        final byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            final long[] range = ranges.get(i);
+            final StringBuilder header = new StringBuilder();
+            header.append("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                header.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            header.append("Content-Range: ").append(contentRange(range, length)).append("\r\n\r\n");
+            partHeaders[i] = header.toString().getBytes(ISO_8859_1);
+            contentLength += partHeaders[i].length + range[1] - range[0] + 1;
+        }
+        final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(ISO_8859_1);
+        contentLength += end.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", Long.toString(contentLength));
+
+        final OutputStream os = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            final long[] range = ranges.get(i);
+            os.write(partHeaders[i]);
+            transfer(channel, range[0], range[1] - range[0] + 1, os);
+        }
+        os.write(end);
+        os.flush();
+    }
+
+    private static String contentRange(final long[] range, final long length) {
+        return BYTES_UNIT + ' ' + range[0] + '-' + range[1] + '/' + length;
+    }
+
+    private static void transfer(final FileChannel channel, long position, long count, final OutputStream os) throws IOException {
+        if (JETTY && JettyOutput.transfer(channel, position, count, os)) {
+            return;
+        }
+        final WritableByteChannel target = Channels.newChannel(os);
+        while (count > 0) {
+            final long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file at position " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static boolean isJetty() {
+        try {
+            Class.forName("org.eclipse.jetty.server.HttpOutput", false, BinaryResponse.class.getClassLoader());
+            return true;
+        } catch (final ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Only loaded when Jetty is on the classpath.
+     */
+    private static class JettyOutput {
+
+        static boolean transfer(final FileChannel channel, long position, long count, final OutputStream os) throws IOException {
+            if (!(os instanceof HttpOutput)) {
+                return false;
+            }
+            final HttpOutput output = (HttpOutput) os;
+            while (count > 0) {
+                final long size = Math.min(count, MAX_MAPPED_REGION);
+                final ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                output.write(region);
+                position += size;
+                count -= size;
+            }
+            return true;
+        }
+    }
+}
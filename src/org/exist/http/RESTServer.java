@@ -24,7 +24,6 @@ package org.exist.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
@@ -98,7 +97,9 @@ import org.exist.xmldb.XmldbURI;
 import org.exist.xqj.Marshaller;
 import org.exist.xquery.CompiledXQuery;
 import org.exist.xquery.Constants;
+import org.exist.xquery.ErrorCodes;
 import org.exist.xquery.NameTest;
+import org.exist.xquery.ResultStream;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQuery;
 import org.exist.xquery.XQueryContext;
@@ -248,6 +249,10 @@ public class RESTServer {
      * <li>_indent: if set to "yes", the returned XML will be pretty-printed.
      * </li>
      *
+     * <li>_stream: if set to "yes", the result of the query is serialized
+     * while the query is evaluated, instead of being held in memory.
+     * Ignored if the result is wrapped or cached.</li>
+     *
      * <li>_source: if set to "yes" and a resource with mime-type
      * "application/xquery" is requested then the xquery will not be executed,
      * instead the source of the document will be returned. Must be enabled in
@@ -346,6 +351,9 @@ public class RESTServer {
         if ((option = getParameter(request, Cache)) != null) {
             cache = "yes".equals(option);
         }
+        if ((option = getParameter(request, Stream)) != null) {
+            outputProperties.setProperty("_stream", option);
+        }
         if ((option = getParameter(request, Indent)) != null) {
             outputProperties.setProperty(OutputKeys.INDENT, option);
         }
@@ -579,6 +587,10 @@ public class RESTServer {
                 // must be set so
                 response.addHeader("Content-Length", Long.toString(resource.getContentLength()));
                 setCreatedAndLastModifiedHeaders(response, metadata.getCreated(), metadata.getLastModified());
+                if (resource.getResourceType() == DocumentImpl.BINARY_FILE) {
+                    response.setHeader("Accept-Ranges", BinaryResponse.BYTES_UNIT);
+                    response.setHeader("ETag", BinaryResponse.getETag(broker, (BinaryDocument) resource));
+                }
             } else {
                 try(final Collection col = broker.openCollection(pathUri, LockMode.READ_LOCK)) {
                     //no resource or collection
@@ -1314,6 +1326,11 @@ public class RESTServer {
 
             try {
                 final long executeStart = System.currentTimeMillis();
+                if (!wrap && !cache && "yes".equals(outputProperties.getProperty("_stream"))) {
+                    streamResults(response, broker, transaction, xquery, compiled, howmany, start, typed,
+                            outputProperties, compilationTime, executeStart);
+                    return;
+                }
                 final Sequence resultSequence = xquery.execute(broker, compiled, null, outputProperties);
                 final long executionTime = System.currentTimeMillis() - executeStart;
 
@@ -1508,6 +1525,11 @@ public class RESTServer {
 
         try {
             final long executeStart = System.currentTimeMillis();
+            if (!wrap && "yes".equals(outputProperties.getProperty("_stream"))) {
+                streamResults(response, broker, transaction, xquery, compiled, -1, 1, false, outputProperties,
+                        compilationTime, executeStart);
+                return;
+            }
             final Sequence result = xquery.execute(broker, compiled, null, outputProperties);
             writeResults(response, broker, transaction, result, -1, 1, false, outputProperties, wrap, compilationTime, System.currentTimeMillis() - executeStart);
 
@@ -1632,13 +1654,24 @@ public class RESTServer {
         setCreatedAndLastModifiedHeaders(response, metadata.getCreated(), lastModified);
 
 
+        //handle If-None-Match request header, which takes precedence over If-Modified-Since
+        final String etag = resource.getResourceType() == DocumentImpl.BINARY_FILE ?
+                BinaryResponse.getETag(broker, (BinaryDocument) resource) : null;
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+            if (BinaryResponse.isNotModified(request, etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
         /**
          * HTTP 1.1 RFC 2616 Section 14.25 *
          */
         //handle If-Modified-Since request header
         try {
             final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-            if (ifModifiedSince > -1) {
+            if (ifModifiedSince > -1 && (etag == null || request.getHeader("If-None-Match") == null)) {
 
                 /*
                  a) A date which is later than the server's
@@ -1679,15 +1712,9 @@ public class RESTServer {
                 response.setContentType(asMimeType);
             }
 
-            // As HttpServletResponse.setContentLength is limited to integers,
+            // sets Content-Length as a header, as HttpServletResponse.setContentLength is limited to integers,
             // (see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4187336)
-            // next sentence:
-            //	response.setContentLength(resource.getContentLength());
-            // must be set so
-            response.addHeader("Content-Length", Long.toString(resource.getContentLength()));
-            final OutputStream os = response.getOutputStream();
-            broker.readBinaryResource((BinaryDocument) resource, os);
-            os.flush();
+            BinaryResponse.send(request, response, broker.getBinaryFile((BinaryDocument) resource), etag, lastModified);
         } else {
             // xml resource
 
@@ -2052,19 +2079,7 @@ public class RESTServer {
 
             // set output headers
             final String encoding = outputProperties.getProperty(OutputKeys.ENCODING);
-            if (!response.containsHeader("Content-Type")) {
-                String mimeType = outputProperties.getProperty(OutputKeys.MEDIA_TYPE);
-                if (mimeType != null) {
-                    final int semicolon = mimeType.indexOf(';');
-                    if (semicolon != Constants.STRING_NOT_FOUND) {
-                        mimeType = mimeType.substring(0, semicolon);
-                    }
-                    if (wrap) {
-                        mimeType = "application/xml";
-                    }
-                    response.setContentType(mimeType + "; charset=" + encoding);
-                }
-            }
+            setResultContentType(response, outputProperties, wrap);
             if (wrap) {
                 outputProperties.setProperty("method", "xml");
             }
@@ -2088,6 +2103,160 @@ public class RESTServer {
         }
     }
 
+    private static void setResultContentType(final HttpServletResponse response, final Properties outputProperties,
+            final boolean wrap) {
+        if (!response.containsHeader("Content-Type")) {
+            String mimeType = outputProperties.getProperty(OutputKeys.MEDIA_TYPE);
+            if (mimeType != null) {
+                final int semicolon = mimeType.indexOf(';');
+                if (semicolon != Constants.STRING_NOT_FOUND) {
+                    mimeType = mimeType.substring(0, semicolon);
+                }
+                if (wrap) {
+                    mimeType = "application/xml";
+                }
+                response.setContentType(mimeType + "; charset=" + outputProperties.getProperty(OutputKeys.ENCODING));
+            }
+        }
+    }
+
+    /**
+     * Executes a query and serializes its result while the query is evaluated,
+     * see {@link XQuery#execute(DBBroker, CompiledXQuery, Sequence, Properties, ResultStream)}.
+     * No content length is known, so the servlet container sends the response
+     * with chunked transfer encoding once it outgrows the response buffer.
+     *
+     * The items before start are skipped, and the items after the first
+     * howmany are evaluated but not serialized. If the output method needs
+     * the whole result (json or adaptive), the result is collected and
+     * written by {@link #writeResults} as usual.
+     */
+    private void streamResults(final HttpServletResponse response, final DBBroker broker, final Txn transaction,
+            final XQuery xquery, final CompiledXQuery compiled, final int howmany, final int start,
+            final boolean typed, final Properties outputProperties, final long compilationTime,
+            final long executeStart) throws XPathException, PermissionDeniedException, BadRequestException {
+        outputProperties.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+        final StreamedResult result = new StreamedResult(response, broker, typed, outputProperties, howmany, start);
+        final Sequence collected;
+        try {
+            xquery.execute(broker, compiled, null, outputProperties, result);
+            collected = result.finish();
+        } finally {
+            // the result is not finished if the query fails
+            result.release();
+        }
+        if (collected != null) {
+            writeResults(response, broker, transaction, collected, howmany, start, typed, outputProperties, false,
+                    compilationTime, System.currentTimeMillis() - executeStart);
+        }
+    }
+
+    /**
+     * Serializes the items of a query result to the response as they are
+     * produced, see {@link #streamResults}.
+     */
+    private static class StreamedResult implements ResultStream {
+        private final HttpServletResponse response;
+        private final DBBroker broker;
+        private final boolean typed;
+        private final Properties outputProperties;
+        private final int first;
+        private final int last;
+
+        private boolean started = false;
+        private int position = 0;
+        private Writer writer = null;
+        private XQuerySerializer serializer = null;
+        // the result, if the output method does not allow to stream it
+        private ValueSequence collected = null;
+
+        StreamedResult(final HttpServletResponse response, final DBBroker broker, final boolean typed,
+                final Properties outputProperties, final int howmany, final int start) {
+            this.response = response;
+            this.broker = broker;
+            this.typed = typed;
+            this.outputProperties = outputProperties;
+            this.first = start;
+            this.last = howmany > 0 ? start + howmany - 1 : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void add(final Sequence items) throws XPathException {
+            if (!started) {
+                start();
+            }
+            if (collected != null) {
+                collected.addAll(items);
+                return;
+            }
+            for (final SequenceIterator i = items.iterate(); i.hasNext(); ) {
+                final Item item = i.nextItem();
+                position++;
+                if (serializer != null && position >= first && position <= last) {
+                    try {
+                        serializer.serializeItem(item);
+                    } catch (final SAXException e) {
+                        throw new XPathException(ErrorCodes.ERROR, "Error while serializing xml: " + e.toString(), e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Ends the serialized result.
+         *
+         * @return the collected result, if it has to be written as a whole
+         */
+        Sequence finish() throws BadRequestException {
+            try {
+                if (!started) {
+                    start();
+                }
+                if (serializer != null) {
+                    serializer.endSequence();
+                    writer.flush();
+                    writer.close();
+                }
+            } catch (final XPathException | SAXException | IOException e) {
+                throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
+            }
+            return collected;
+        }
+
+        /**
+         * Releases the serializer, if the result has not been finished.
+         */
+        void release() {
+            if (serializer != null) {
+                serializer.releaseSequence();
+            }
+        }
+
+        private void start() throws XPathException {
+            started = true;
+            // some xquery functions can write directly to the output stream
+            // (response:stream-binary() etc...), the result is not written then
+            if (response.isCommitted()) {
+                return;
+            }
+            try {
+                writer = new OutputStreamWriter(response.getOutputStream(),
+                        outputProperties.getProperty(OutputKeys.ENCODING));
+                serializer = new XQuerySerializer(broker, outputProperties, writer);
+                if (!serializer.canSerializeInParts()) {
+                    writer = null;
+                    serializer = null;
+                    collected = new ValueSequence();
+                    return;
+                }
+                setResultContentType(response, outputProperties, false);
+                serializer.startSequence(typed);
+            } catch (final IOException | SAXException e) {
+                throw new XPathException(ErrorCodes.ERROR, "Error while serializing xml: " + e.toString(), e);
+            }
+        }
+    }
+
     private void writeResultJSON(final HttpServletResponse response,
         final DBBroker broker, final Txn transaction, final Sequence results, int howmany,
         int start, final Properties outputProperties, final boolean wrap, final long compilationTime, final long executionTime)
@@ -224,6 +224,26 @@ enum RESTServerParameter {
      */
     Cache,
 
+    /**
+     * Can be used in the Query String of a GET request when
+     * supplying an XPath or XQuery, or executing a stored XQuery,
+     * it causes the result of the query to be serialized while the
+     * query is evaluated, instead of after the whole result has been
+     * evaluated into memory. The result is sent with chunked transfer
+     * encoding.
+     * 
+     * Only the body of the query is streamed, if it is a FLWOR expression
+     * without "order by" or "group by" clauses, or a sequence of such
+     * expressions. The parameter is ignored if the results are wrapped or
+     * cached. If an error occurs after the first part of the result has
+     * been sent, the error is appended to it.
+     * 
+     * Contexts: GET
+     * 
+     * The value of the parameter should be either "yes" or "no".
+     */
+    Stream,
+
     /**
      * Can be used in the Query String of a GET request
      * to indicate that an XML result should be indented.
@@ -335,6 +335,13 @@ public class HttpRequestWrapper implements RequestWrapper {
         return servletRequest.getContextPath();
     }
 
+    /**
+     * @return the wrapped servlet request
+     */
+    public HttpServletRequest getServletRequest() {
+        return servletRequest;
+    }
+
     /**
      * @see javax.servlet.http.HttpServletRequest#getHeader(String)
      */
@@ -253,6 +253,13 @@ public class HttpResponseWrapper implements ResponseWrapper {
 	public OutputStream getOutputStream() throws IOException {
 		return response.getOutputStream();
 	}
+
+	/**
+	 * @return the wrapped servlet response
+	 */
+	public HttpServletResponse getServletResponse() {
+		return response;
+	}
 	
 	// TODO: remove this hack after fixing HTTP 1.1 :)
 	private String encode(String value){
@@ -44,6 +44,7 @@ import javax.xml.transform.OutputKeys;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.EXistException;
+import org.exist.http.BinaryResponse;
 import org.exist.http.Descriptor;
 import org.exist.security.AuthenticationException;
 import org.exist.security.Permission;
@@ -67,6 +68,7 @@ import org.exist.xquery.XQueryContext;
 import org.exist.xquery.functions.request.RequestModule;
 import org.exist.xquery.functions.response.ResponseModule;
 import org.exist.xquery.functions.session.SessionModule;
+import org.exist.xquery.value.BinaryValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.Item;
 import org.exist.debuggee.DebuggeeFactory;
@@ -520,6 +522,11 @@ public class XQueryServlet extends AbstractExistHttpServlet {
             
             if (requestAttr != null && (XmldbURI.API_LOCAL.equals(collectionURI.getApiName())) ) {
                 request.setAttribute(requestAttr, resultSequence);
+
+            } else if ("binary".equals(outputProperties.getProperty(OutputKeys.METHOD)) && resultSequence.hasOne()
+                    && resultSequence.itemAt(0) instanceof BinaryValue) {
+                // send the bytes of the binary item rather than its serialization
+                BinaryResponse.send(broker, request, response, (BinaryValue) resultSequence.itemAt(0));
                 
             } else {
                 XQuerySerializer serializer = new XQuerySerializer(broker, outputProperties, output);
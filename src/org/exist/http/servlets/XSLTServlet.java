@@ -43,7 +43,6 @@ import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Type;
 import org.exist.xquery.value.ValueSequence;
 import org.exist.xslt.Stylesheet;
-import org.exist.xslt.TemplatesFactory;
 import org.exist.xslt.TransformerFactoryAllocator;
 
 import org.exist.xslt.XSLTErrorsListener;
@@ -337,7 +336,7 @@ public class XSLTServlet extends HttpServlet {
             }
         }
 
-        return TemplatesFactory.stylesheet(stylesheet, "", isCaching());
+        return pool.getTemplatesFactory().stylesheet(stylesheet, "", isCaching());
     }
 
     /*
@@ -0,0 +1,192 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.jetty;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.exist.util.ThreadUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Jetty thread pool which runs every task, and so every HTTP and XML-RPC
+ * request, on a new virtual thread. Requests which wait for a broker, a lock
+ * or a slow external call then do not hold an operating system thread, and
+ * the number of concurrent requests is not bounded by the size of a pool.
+ *
+ * The minimum and maximum number of threads, idle timeout and detailed dump
+ * may be set for compatibility with the configuration of a
+ * {@link QueuedThreadPool}, but are not used. The database still bounds the
+ * number of concurrent queries by the number of its brokers.
+ *
+ * Virtual threads are available from Java 21, use {@link #create(boolean)}
+ * to fall back to a {@link QueuedThreadPool} on older JVMs.
+ */
+public class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool.SizedThreadPool {
+
+    private static final Logger LOG = LogManager.getLogger(VirtualThreadPool.class);
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final AtomicLong threadIds = new AtomicLong();
+    private volatile CountDownLatch stopped = new CountDownLatch(1);
+    private String name = "qtp-virtual-" + hashCode();
+    private int minThreads = 8;
+    private int maxThreads = 200;
+    private int idleTimeout = 60000;
+    private boolean detailedDump = false;
+
+    /**
+     * Creates the thread pool of the server.
+     *
+     * @param virtual true to run requests on virtual threads
+     * @return a {@link VirtualThreadPool} if virtual threads are requested and
+     *     supported by the JVM, a {@link QueuedThreadPool} otherwise
+     */
+    public static ThreadPool create(final boolean virtual) {
+        if (virtual) {
+            if (ThreadUtils.isVirtualThreadSupported()) {
+                LOG.info("Running requests on virtual threads");
+                return new VirtualThreadPool();
+            }
+            LOG.warn("Virtual threads are not supported by this JVM, running requests on a pool of platform threads");
+        }
+        return new QueuedThreadPool();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        stopped = new CountDownLatch(1);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+
+        // give the running tasks some time to complete, then interrupt them
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getStopTimeout());
+        while (!threads.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        for (final Thread thread : threads) {
+            LOG.warn("Interrupting {} on stop", thread.getName());
+            thread.interrupt();
+        }
+        stopped.countDown();
+    }
+
+    @Override
+    public void execute(final Runnable job) {
+        if (!isRunning()) {
+            throw new RejectedExecutionException(name + " is not running");
+        }
+        final Thread thread = ThreadUtils.newVirtualThread(name + "-" + threadIds.incrementAndGet(), () -> {
+            try {
+                job.run();
+            } catch (final Throwable t) {
+                LOG.warn("Task {} failed: {}", job, t.getMessage(), t);
+            } finally {
+                threads.remove(Thread.currentThread());
+            }
+        });
+        threads.add(thread);
+        thread.start();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    @Override
+    public int getThreads() {
+        return threads.size();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    @Override
+    public void setMinThreads(final int minThreads) {
+        this.minThreads = minThreads;
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    @Override
+    public void setMaxThreads(final int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(final int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isDetailedDump() {
+        return detailedDump;
+    }
+
+    public void setDetailedDump(final boolean detailedDump) {
+        this.detailedDump = detailedDump;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String name) {
+        if (isRunning()) {
+            throw new IllegalStateException(this + " is running");
+        }
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]@%x{%s,threads=%d}", getClass().getSimpleName(), name, hashCode(), getState(), threads.size());
+    }
+}
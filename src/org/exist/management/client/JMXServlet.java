@@ -99,6 +99,24 @@ public class JMXServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
+        if (!isAccessAllowed(request, response)) {
+            return;
+        }
+
+        // Perform actual writing of data
+        writeXmlData(request, response);
+    }
+
+    /**
+     * Verify if request is from localhost or provides the secret token, send an error otherwise.
+     *
+     * @param request The HTTP request
+     * @param response The HTTP response
+     * @return TRUE if access is allowed, otherwise FALSE
+     * @throws IOException if the error cannot be sent
+     */
+    protected boolean isAccessAllowed(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
         // Verify if request is from localhost or if user has specific servlet/container managed role.
         if (isFromLocalHost(request)) {
             // Localhost is always authorized to access
@@ -111,11 +129,9 @@ public class JMXServlet extends HttpServlet {
         } else {
             // Check if user is already authorized, e.g. via MONEX allow user too
             response.sendError(HttpServletResponse.SC_FORBIDDEN, "Access allowed for localhost, or when correct token has been provided.");
-            return;
+            return false;
         }
-
-        // Perform actual writing of data
-        writeXmlData(request, response);
+        return true;
     }
 
     private void writeXmlData(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
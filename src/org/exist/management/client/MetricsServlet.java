@@ -0,0 +1,118 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.management.client;
+
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+import org.exist.xquery.QueryMetrics;
+import org.exist.xquery.QueryMetrics.IndexUse;
+import org.exist.xquery.QueryMetrics.Latency;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A servlet which returns the always-on query metrics of the database in the
+ * Prometheus text exposition format, e.g.:
+ * <p>
+ * /exist/metrics
+ * <p>
+ * Access is granted as for {@link JMXServlet}: to localhost, or when the
+ * token of the JMX servlet is provided in parameter "token".
+ */
+public class MetricsServlet extends JMXServlet {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        if (!isAccessAllowed(request, response)) {
+            return;
+        }
+
+        final BrokerPool pool;
+        try {
+            pool = BrokerPool.getInstance();
+        } catch (final EXistException e) {
+            throw new ServletException("Database is not available: " + e.getMessage(), e);
+        }
+
+        response.setContentType(CONTENT_TYPE);
+        final Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        writeMetrics(pool.getQueryMetrics(), writer);
+        writer.flush();
+    }
+
+    /**
+     * Write the query metrics in the Prometheus text exposition format.
+     *
+     * @param metrics the query metrics
+     * @param writer the writer to write to
+     * @throws IOException if the metrics cannot be written
+     */
+    public static void writeMetrics(final QueryMetrics metrics, final Writer writer) throws IOException {
+        final List<Latency> queries = metrics.getQueries();
+        writeHistograms(writer, "exist_query_duration_seconds", "Execution time of queries by source.", "source", queries);
+
+        writer.write("# HELP exist_query_items_returned_total Number of items returned by queries by source.\n");
+        writer.write("# TYPE exist_query_items_returned_total counter\n");
+        for (final Latency query : queries) {
+            writer.write("exist_query_items_returned_total{source=\"" + escape(query.getName()) + "\"} " + query.getItems() + "\n");
+        }
+
+        writeHistograms(writer, "exist_function_duration_seconds", "Execution time of user-declared functions.", "function", metrics.getFunctions());
+
+        writer.write("# HELP exist_index_uses_total Number of index uses by index type and mode.\n");
+        writer.write("# TYPE exist_index_uses_total counter\n");
+        for (final IndexUse use : metrics.getIndexUses()) {
+            writer.write("exist_index_uses_total{index=\"" + escape(use.getIndexType()) + "\",mode=\"" + use.getMode() + "\"} " + use.getCount() + "\n");
+        }
+    }
+
+    private static void writeHistograms(final Writer writer, final String metric, final String help, final String label,
+            final List<Latency> latencies) throws IOException {
+        writer.write("# HELP " + metric + " " + help + "\n");
+        writer.write("# TYPE " + metric + " histogram\n");
+        for (final Latency latency : latencies) {
+            final String name = label + "=\"" + escape(latency.getName()) + "\"";
+            final long[] buckets = latency.getBuckets();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                final String le = i < QueryMetrics.LATENCY_BUCKETS.length ?
+                        BigDecimal.valueOf(QueryMetrics.LATENCY_BUCKETS[i]).toPlainString() : "+Inf";
+                writer.write(metric + "_bucket{" + name + ",le=\"" + le + "\"} " + cumulative + "\n");
+            }
+            writer.write(metric + "_sum{" + name + "} " + (latency.getTotalTime() / 1_000_000_000.0) + "\n");
+            writer.write(metric + "_count{" + name + "} " + latency.getCount() + "\n");
+        }
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -87,6 +87,26 @@ public class Database implements DatabaseMXBean {
         return pool.total();
     }
 
+    @Override
+    public long getBrokerLeases() {
+        return pool.getBrokerLeases();
+    }
+
+    @Override
+    public long getBrokerWaits() {
+        return pool.getBrokerWaits();
+    }
+
+    @Override
+    public long getBrokerWaitTime() {
+        return pool.getBrokerWaitTime();
+    }
+
+    @Override
+    public long getMaxBrokerWaitTime() {
+        return pool.getMaxBrokerWaitTime();
+    }
+
     @Override
     public List<ActiveBroker> getActiveBrokersMap() {
         final List<ActiveBroker> brokersList = new ArrayList<>();
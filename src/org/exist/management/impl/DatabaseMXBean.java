@@ -36,6 +36,26 @@ public interface DatabaseMXBean extends PerInstanceMBean {
     int getActiveBrokers();
 
     int getTotalBrokers();
+
+    /**
+     * @return the number of broker leases which did not re-use the active broker of the thread
+     */
+    long getBrokerLeases();
+
+    /**
+     * @return the number of broker leases which waited for a broker to become available
+     */
+    long getBrokerWaits();
+
+    /**
+     * @return the total time in milliseconds broker leases waited for a broker
+     */
+    long getBrokerWaitTime();
+
+    /**
+     * @return the longest time in milliseconds a broker lease waited for a broker
+     */
+    long getMaxBrokerWaitTime();
     
     long getReservedMem();
 
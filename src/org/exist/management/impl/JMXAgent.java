@@ -94,7 +94,11 @@ public class JMXAgent implements Agent {
                 new DiskUsage(instance),
                 new ProcessReport(instance),
                 new BinaryValues(instance),
-                new CollectionCache(instance)
+                new CollectionCache(instance),
+                new TemplatesCache(instance),
+                new Fragmentation(instance),
+                new QueryMetrics(instance),
+                new Notifications(instance)
         );
 
         for (final PerInstanceMBean perInstanceMBean : perInstanceMBeans) {
@@ -0,0 +1,121 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * JMX MXBean for examining the delivery of document changes
+ * to the listeners and triggers which run after commit
+ */
+public class Notifications implements NotificationsMXBean {
+
+    private final BrokerPool instance;
+
+    public Notifications(final BrokerPool instance) {
+        this.instance = instance;
+    }
+
+    public static String getAllInstancesQuery() {
+        return getName("*");
+    }
+
+    private static String getName(final String instanceId) {
+        return "org.exist.management." + instanceId + ":type=Notifications";
+    }
+
+    @Override
+    public ObjectName getName() throws MalformedObjectNameException {
+        return new ObjectName(getName(instance.getId()));
+    }
+
+    @Override
+    public String getInstanceId() {
+        return instance.getId();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return instance.getNotificationService().getQueueSize();
+    }
+
+    @Override
+    public int getQueuedEvents() {
+        return instance.getNotificationService().getQueuedEvents();
+    }
+
+    @Override
+    public int getMaxQueuedEvents() {
+        return instance.getNotificationService().getMaxQueuedEvents();
+    }
+
+    @Override
+    public long getSubmittedEvents() {
+        return instance.getNotificationService().getSubmittedEvents();
+    }
+
+    @Override
+    public long getDeliveredEvents() {
+        return instance.getNotificationService().getDeliveredEvents();
+    }
+
+    @Override
+    public long getCoalescedEvents() {
+        return instance.getNotificationService().getCoalescedEvents();
+    }
+
+    @Override
+    public long getFailedEvents() {
+        return instance.getNotificationService().getFailedEvents();
+    }
+
+    @Override
+    public long getBatches() {
+        return instance.getNotificationService().getBatches();
+    }
+
+    @Override
+    public long getBlockedEnqueues() {
+        return instance.getNotificationService().getBlockedEnqueues();
+    }
+
+    @Override
+    public long getBlockedTime() {
+        return instance.getNotificationService().getBlockedTime();
+    }
+
+    @Override
+    public long getOverflowedEvents() {
+        return instance.getNotificationService().getOverflowedEvents();
+    }
+
+    @Override
+    public long getMaxDeliveryLag() {
+        return instance.getNotificationService().getMaxDeliveryLag();
+    }
+
+    @Override
+    public void resetMaximums() {
+        instance.getNotificationService().resetMaximums();
+    }
+}
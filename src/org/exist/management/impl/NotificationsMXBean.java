@@ -0,0 +1,77 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.management.impl;
+
+/**
+ * JMX MXBean interface for examining the delivery of document changes
+ * to the listeners and triggers which run after commit
+ */
+public interface NotificationsMXBean extends PerInstanceMBean {
+
+    int getQueueSize();
+
+    int getQueuedEvents();
+
+    int getMaxQueuedEvents();
+
+    long getSubmittedEvents();
+
+    long getDeliveredEvents();
+
+    long getCoalescedEvents();
+
+    long getFailedEvents();
+
+    long getBatches();
+
+    /**
+     * Get the number of times a transaction waited for the listeners as a queue was full
+     *
+     * @return the number of waits
+     */
+    long getBlockedEnqueues();
+
+    /**
+     * Get the total time transactions waited for the listeners as a queue was full
+     *
+     * @return the time in milliseconds
+     */
+    long getBlockedTime();
+
+    /**
+     * Get the number of events delivered by the committing thread,
+     * as a queue was full and waiting for the listeners timed out
+     *
+     * @return the number of events
+     */
+    long getOverflowedEvents();
+
+    /**
+     * Get the maximum time from a change to its delivery
+     *
+     * @return the time in milliseconds
+     */
+    long getMaxDeliveryLag();
+
+    /**
+     * Discard the maximums recorded so far
+     */
+    void resetMaximums();
+}
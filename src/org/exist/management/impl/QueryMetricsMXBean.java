@@ -0,0 +1,64 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.management.impl;
+
+import org.exist.xquery.QueryMetrics.IndexUse;
+import org.exist.xquery.QueryMetrics.Latency;
+
+import java.util.List;
+
+/**
+ * JMX MXBean interface for examining the always-on metrics of query execution
+ */
+public interface QueryMetricsMXBean extends PerInstanceMBean {
+
+    /**
+     * Get the upper bounds of the latency histogram buckets
+     *
+     * @return the upper bounds in seconds
+     */
+    double[] getLatencyBuckets();
+
+    /**
+     * Get the latency histograms and the number of items returned per query source
+     *
+     * @return the metrics of the query sources
+     */
+    List<Latency> getQueries();
+
+    /**
+     * Get the latency histograms of the user-declared functions
+     *
+     * @return the metrics of the functions
+     */
+    List<Latency> getFunctions();
+
+    /**
+     * Get the number of index uses per index type and mode
+     *
+     * @return the index uses
+     */
+    List<IndexUse> getIndexUses();
+
+    /**
+     * Discard all metrics recorded so far
+     */
+    void reset();
+}
@@ -33,6 +33,13 @@ public class RecentQueryHistory {
     private long mostRecentExecutionTime;
     private long mostRecentExecutionDuration;
     private String requestURI;
+    private long pageReads;
+    private long pageWrites;
+    private long cacheHits;
+    private long cacheMisses;
+    private long nodeProxies;
+    private long memtreeNodes;
+    private long allocatedBytes;
 
     public RecentQueryHistory(int idx, ProcessMonitor.QueryHistory queryHistory) {
         this.idx = idx;
@@ -41,6 +48,13 @@ public class RecentQueryHistory {
         this.mostRecentExecutionTime = queryHistory.getMostRecentExecutionTime();
         this.mostRecentExecutionDuration = queryHistory.getMostRecentExecutionDuration();
         this.requestURI = queryHistory.getRequestURI();
+        this.pageReads = queryHistory.getPageReads();
+        this.pageWrites = queryHistory.getPageWrites();
+        this.cacheHits = queryHistory.getCacheHits();
+        this.cacheMisses = queryHistory.getCacheMisses();
+        this.nodeProxies = queryHistory.getNodeProxies();
+        this.memtreeNodes = queryHistory.getMemtreeNodes();
+        this.allocatedBytes = queryHistory.getAllocatedBytes();
     }
 
     public int getIdx() {
@@ -66,4 +80,32 @@ public class RecentQueryHistory {
     public String getRequestURI() {
         return requestURI;
     }
+
+    public long getPageReads() {
+        return pageReads;
+    }
+
+    public long getPageWrites() {
+        return pageWrites;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public long getNodeProxies() {
+        return nodeProxies;
+    }
+
+    public long getMemtreeNodes() {
+        return memtreeNodes;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
 }
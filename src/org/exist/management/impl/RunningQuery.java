@@ -20,6 +20,7 @@
 
 package org.exist.management.impl;
 
+import org.exist.storage.ResourceUsage;
 import org.exist.xquery.XQueryWatchDog;
 
 /**
@@ -34,6 +35,10 @@ public class RunningQuery {
     String requestURI;
     String thread;
     long elapsed;
+    long pageReads;
+    long pageWrites;
+    long cacheMisses;
+    long allocatedBytes;
 
     public RunningQuery(final XQueryWatchDog watchdog, final String requestURI) {
         this.id = Integer.valueOf(watchdog.getContext().hashCode());
@@ -43,6 +48,11 @@ public class RunningQuery {
         this.requestURI = requestURI;
         this.thread = watchdog.getRunningThread();
         this.elapsed = System.currentTimeMillis() - watchdog.getStartTime();
+        final ResourceUsage usage = watchdog.getResourceUsage();
+        this.pageReads = usage.getPageReads();
+        this.pageWrites = usage.getPageWrites();
+        this.cacheMisses = usage.getCacheMisses();
+        this.allocatedBytes = usage.getAllocatedBytes();
     }
 
     public int getId() {
@@ -72,4 +82,20 @@ public class RunningQuery {
     public long getElapsed() {
         return elapsed;
     }
+
+    public long getPageReads() {
+        return pageReads;
+    }
+
+    public long getPageWrites() {
+        return pageWrites;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
 }
@@ -298,6 +298,68 @@ public class DLN extends DLNBase implements NodeId {
         return -1;
     }
 
+    /**
+     * Checks if an encoded id is the id of the document node,
+     * see {@link NodeId#DOCUMENT_NODE}.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param units the number of bits used by the id
+     */
+    public static boolean isDocumentNode(final byte[] data, final int offset, final int units) {
+        return units == BITS_PER_UNIT && (data[offset] & 0xF0) == 0;
+    }
+
+    /**
+     * Checks if an encoded id is the same as or a descendant of another
+     * encoded id, without decoding either of them. The document node
+     * is an ancestor of all other nodes.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param units the number of bits used by the id
+     * @param ancestor the array containing the encoded id of the potential ancestor
+     * @param ancestorOffset the offset of the ancestor id in ancestor
+     * @param ancestorUnits the number of bits used by the ancestor id
+     */
+    public static boolean isDescendantOrSelfOf(final byte[] data, final int offset, final int units,
+            final byte[] ancestor, final int ancestorOffset, final int ancestorUnits) {
+        if (isDocumentNode(ancestor, ancestorOffset, ancestorUnits)) {
+            return true;
+        }
+        return startsWith(data, offset, units, ancestor, ancestorOffset, ancestorUnits) &&
+            (units == ancestorUnits || isLevelSeparator(data, offset, ancestorUnits));
+    }
+
+    /**
+     * Computes the relation of an encoded id to the encoded id of a
+     * potential ancestor, without decoding either of them. Returns
+     * the same values as {@link #computeRelation(NodeId)}.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param units the number of bits used by the id
+     * @param ancestor the array containing the encoded id of the potential ancestor
+     * @param ancestorOffset the offset of the ancestor id in ancestor
+     * @param ancestorUnits the number of bits used by the ancestor id
+     */
+    public static int computeRelation(final byte[] data, final int offset, final int units,
+            final byte[] ancestor, final int ancestorOffset, final int ancestorUnits) {
+        if (isDocumentNode(ancestor, ancestorOffset, ancestorUnits)) {
+            if (isDocumentNode(data, offset, units)) {
+                return IS_SELF;
+            }
+            return getLevelCount(data, offset, units, 0) == 1 ? IS_CHILD : IS_DESCENDANT;
+        }
+        if (!isDescendantOrSelfOf(data, offset, units, ancestor, ancestorOffset, ancestorUnits)) {
+            return -1;
+        }
+        if (units == ancestorUnits) {
+            return IS_SELF;
+        }
+        return getLevelCount(data, offset, units, ancestorUnits + 1) == 1 ? IS_CHILD : IS_DESCENDANT;
+    }
+
     @Override
     public boolean isSiblingOf(final NodeId sibling) {
         final NodeId parent = getParentId();
@@ -290,16 +290,32 @@ public class DLNBase {
         return bits.length;
     }
 
-    private static int unitsUsed(int startBit, final byte[] bits) {
+    private static int unitsUsed(final int startBit, final byte[] bits) {
+        return unitsUsed(bits, 0, startBit);
+    }
+
+    private static int unitsUsed(final byte[] data, final int offset, int startBit) {
         int units = 1;
-        while ((bits[startBit >> UNIT_SHIFT] & (1 << ((7 - startBit++) & 7))) != 0) {
+        while ((data[offset + (startBit >> UNIT_SHIFT)] & (1 << ((7 - startBit++) & 7))) != 0) {
             ++units;
         }
         return units;
     }
 
     public boolean isLevelSeparator(final int index) {
-        return (bits[index >> UNIT_SHIFT] & (1 << ((7 - index) & 7))) == 0;
+        return isLevelSeparator(bits, 0, index);
+    }
+
+    /**
+     * Checks if the bit at the given index of an encoded id
+     * is a level separator.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param index the index of the bit, counted from the start of the id
+     */
+    public static boolean isLevelSeparator(final byte[] data, final int offset, final int index) {
+        return (data[offset + (index >> UNIT_SHIFT)] & (1 << ((7 - index) & 7))) == 0;
     }
     
     /**
@@ -309,14 +325,29 @@ public class DLNBase {
      * @return the number of levels in this id
      */
     public int getLevelCount(final int startOffset) {
+        return getLevelCount(bits, 0, bitIndex + 1, startOffset);
+    }
+
+    /**
+     * Returns the number of levels of an encoded id, starting
+     * at the given bit.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param units the number of bits used by the id
+     * @param startOffset the bit to start at
+     * @return the number of levels
+     */
+    public static int getLevelCount(final byte[] data, final int offset, final int units, final int startOffset) {
+        final int lastBit = units - 1;
         int bit = startOffset;
         int count = 0;
-        while (bit > -1 && bit <= bitIndex) {
-            final int units = unitsUsed(bit, bits);
-            bit += units;
-            bit += bitWidth(units);
-            if (bit < bitIndex) {
-                if ((bits[bit >> UNIT_SHIFT] & (1 << ((7 - bit++) & 7))) == LEVEL_SEPARATOR) {
+        while (bit > -1 && bit <= lastBit) {
+            final int fieldUnits = unitsUsed(data, offset, bit);
+            bit += fieldUnits;
+            bit += bitWidth(fieldUnits);
+            if (bit < lastBit) {
+                if ((data[offset + (bit >> UNIT_SHIFT)] & (1 << ((7 - bit++) & 7))) == LEVEL_SEPARATOR) {
                     ++count;
                 }
             } else {
@@ -526,17 +557,33 @@ public class DLNBase {
      * @param other
      */
     public boolean startsWith(final DLNBase other) {
-        if (other.bitIndex > bitIndex) {
+        return startsWith(bits, 0, bitIndex + 1, other.bits, 0, other.bitIndex + 1);
+    }
+
+    /**
+     * Checks if an encoded id starts with the same bit sequence
+     * as another encoded id, without decoding either of them.
+     *
+     * @param data the array containing the encoded id
+     * @param offset the offset of the id in data
+     * @param units the number of bits used by the id
+     * @param prefix the array containing the encoded prefix id
+     * @param prefixOffset the offset of the prefix id in prefix
+     * @param prefixUnits the number of bits used by the prefix id
+     */
+    public static boolean startsWith(final byte[] data, final int offset, final int units,
+            final byte[] prefix, final int prefixOffset, final int prefixUnits) {
+        if (prefixUnits > units) {
             return false;
         }
-        final int bytes = other.bitIndex / 8;
-        final int remaining = other.bitIndex % 8;
+        final int bytes = (prefixUnits - 1) / 8;
+        final int remaining = (prefixUnits - 1) % 8;
         for (int i = 0; i < bytes; i++) {
-            if (bits[i] != other.bits[i]) {
+            if (data[offset + i] != prefix[prefixOffset + i]) {
                 return false;
             }
         }
-        return (bits[bytes] & BIT_MASK[remaining]) == (other.bits[bytes] & BIT_MASK[remaining]);
+        return (data[offset + bytes] & BIT_MASK[remaining]) == (prefix[prefixOffset + bytes] & BIT_MASK[remaining]);
     }
 
     public String debug() {
@@ -0,0 +1,48 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import org.exist.xmldb.XmldbURI;
+
+import java.util.List;
+
+/**
+ * Listener which receives the changes to documents once the transactions
+ * which made them have committed, on a worker thread of the
+ * {@link NotificationService} rather than the thread which made them.
+ *
+ * The events of a collection are delivered in batches, in the order in which
+ * they were committed. A listener is never called concurrently for the same
+ * collection, but may be for different collections.
+ *
+ * Listeners which implement {@link Object#equals(Object)} receive a single
+ * batch for the events of all the equal listeners.
+ */
+public interface AfterCommitListener {
+
+    /**
+     * Called with a batch of the committed changes to the documents of a collection.
+     *
+     * @param pool the database instance
+     * @param collectionUri the URI of the collection
+     * @param events the changes, in the order in which they were committed
+     */
+    void afterCommit(BrokerPool pool, XmldbURI collectionUri, List<DocumentEvent> events);
+}
@@ -28,6 +28,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.Database;
 import org.exist.EXistException;
+import org.exist.backup.BackupChangeLog;
 import org.exist.collections.Collection;
 import org.exist.collections.CollectionCache;
 import org.exist.collections.CollectionConfiguration;
@@ -54,6 +55,7 @@ import org.exist.scheduler.impl.SystemTaskJobImpl;
 import org.exist.security.*;
 import org.exist.security.SecurityManager;
 import org.exist.security.internal.SecurityManagerImpl;
+import org.exist.storage.blob.BlobStore;
 import org.exist.storage.journal.JournalManager;
 import org.exist.storage.lock.FileLockService;
 import org.exist.storage.lock.LockManager;
@@ -67,7 +69,13 @@ import org.exist.util.*;
 import org.exist.xmldb.ShutdownListener;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.PerformanceStats;
+import org.exist.xquery.ParallelPathEvaluator;
+import org.exist.xquery.QueryMetrics;
 import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryParseCache;
+import org.exist.xslt.TemplatesCacheService;
+import org.exist.xslt.TemplatesFactory;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -82,6 +90,11 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -106,6 +119,11 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
 
     private final static Logger LOG = LogManager.getLogger(BrokerPool.class);
 
+    /**
+     * Interval in seconds at which a thread waiting for a broker logs that it is still waiting
+     */
+    private final static long BROKER_WAIT_LOG_INTERVAL = 10;
+
     private final BrokerPoolServicesManager servicesManager = new BrokerPoolServicesManager();
 
     private StatusReporter statusReporter = null;
@@ -182,7 +200,7 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
     /**
      * The number of brokers for the database instance
      */
-    private int brokersCount = 0;
+    private volatile int brokersCount = 0;
 
     /**
      * The minimal number of brokers for the database instance
@@ -197,9 +215,40 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
     private final int maxBrokers;
 
     /**
-     * The number of inactive brokers for the database instance
+     * The inactive brokers of the database instance
+     */
+    private final Queue<DBBroker> inactiveBrokers;
+
+    /**
+     * One permit for each broker which may be leased, threads waiting
+     * for a broker are served in order
+     */
+    private final Semaphore brokerPermits;
+
+    /**
+     * <code>true</code> while a task runs on the idle database instance,
+     * threads leasing a broker meanwhile wait for it to finish
+     */
+    private volatile boolean idleTaskRunning = false;
+
+    /**
+     * Guards the tasks run on the idle database instance, the service mode and
+     * the creation of brokers, threads wait on {@link #idleStateChanged} for
+     * the tasks to finish. A lock is used rather than the monitor of the
+     * instance, so that virtual threads waiting for a broker, creating one, or
+     * running a cache synchronization, do not pin their carrier thread.
      */
-    private final Deque<DBBroker> inactiveBrokers = new ArrayDeque<>();
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition idleStateChanged = idleLock.newCondition();
+
+    /**
+     * Statistics of the broker leases which did not re-use the active
+     * broker of the thread
+     */
+    private final LongAdder brokerLeases = new LongAdder();
+    private final LongAdder brokerWaits = new LongAdder();
+    private final LongAdder brokerWaitTime = new LongAdder();
+    private final AtomicLong maxBrokerWaitTime = new AtomicLong();
 
     /**
      * The number of active brokers for the database instance
@@ -226,7 +275,7 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
      */
     //TODO : rename as syncScheduled ?
     //TODO : alternatively, delete this member and create a Sync.NOSYNC event
-    private boolean syncRequired = false;
+    private volatile boolean syncRequired = false;
 
     /**
      * The kind of scheduled cache synchronization event.
@@ -251,6 +300,13 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
      */
     private Optional<JournalManager> journalManager = Optional.empty();
 
+    /**
+     * The content addressed store for binary documents, if enabled.
+     */
+    private Optional<BlobStore> blobStore = Optional.empty();
+
+    private Optional<BackupChangeLog> backupChangeLog = Optional.empty();
+
     /**
      * The transaction manager of the database instance.
      */
@@ -322,17 +378,42 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
      */
     private XQueryPool xQueryPool;
 
+    /**
+     * The factory which caches the database instance's compiled XSLT stylesheets.
+     */
+    private TemplatesFactory templatesFactory;
+
+    /**
+     * The cache of parsed XQueries, if enabled.
+     */
+    private Optional<XQueryParseCache> xQueryParseCache = Optional.empty();
+
     /**
      * The monitor in which the database instance's strong>running</strong> XQueries are managed.
      */
     private ProcessMonitor processMonitor;
 
+    /**
+     * The fragmentation of the modified documents
+     */
+    private FragmentationMonitor fragmentationMonitor;
+
     /**
      * Global performance stats to gather function execution statistics
      * from all queries running on this database instance.
      */
     private PerformanceStats xqueryStats;
 
+    /**
+     * Always-on metrics of all queries running on this database instance.
+     */
+    private QueryMetrics queryMetrics;
+
+    /**
+     * Evaluates the steps of path expressions in parallel for the documents of their context.
+     */
+    private ParallelPathEvaluator parallelPathEvaluator;
+
     /**
      * The global manager for accessing collection configuration files from the database instance.
      */
@@ -353,8 +434,8 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
 
     private final Lock globalXUpdateLock = new ReentrantLock();
 
-    private Subject serviceModeUser = null;
-    private boolean inServiceMode = false;
+    private volatile Subject serviceModeUser = null;
+    private volatile boolean inServiceMode = false;
 
     //the time that the database was started
     private final Calendar startupTime = Calendar.getInstance();
@@ -397,6 +478,9 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         this.minBrokers = conf.getProperty(PROPERTY_MIN_CONNECTIONS, minBrokers);
         this.maxBrokers = conf.getProperty(PROPERTY_MAX_CONNECTIONS, maxBrokers);
         LOG.info("database instance '" + instanceName + "' will have between " + nf.format(this.minBrokers) + " and " + nf.format(this.maxBrokers) + " brokers");
+        // one more broker may be created to shut down the database instance
+        this.inactiveBrokers = new MpmcAtomicArrayQueue<>(this.maxBrokers + 1);
+        this.brokerPermits = new Semaphore(this.maxBrokers, true);
 
         this.majorSyncPeriod = conf.getProperty(PROPERTY_SYNC_PERIOD, DEFAULT_SYNCH_PERIOD);
         LOG.info("database instance '" + instanceName + "' will be synchronized every " + nf.format(/*this.*/majorSyncPeriod) + " ms");
@@ -465,8 +549,14 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
 
         this.cacheManager = servicesManager.register(new DefaultCacheManager(this));
         this.xQueryPool = servicesManager.register(new XQueryPool());
+        if(conf.getProperty(XQueryParseCache.PROPERTY_PARSE_CACHE, false)) {
+            this.xQueryParseCache = Optional.of(servicesManager.register(new XQueryParseCache()));
+        }
         this.processMonitor = servicesManager.register(new ProcessMonitor());
+        this.fragmentationMonitor = servicesManager.register(new FragmentationMonitor());
         this.xqueryStats = servicesManager.register(new PerformanceStats(this));
+        this.queryMetrics = servicesManager.register(new QueryMetrics());
+        this.parallelPathEvaluator = servicesManager.register(new ParallelPathEvaluator());
         final XMLReaderObjectFactory xmlReaderObjectFactory = servicesManager.register(new XMLReaderObjectFactory());
         this.xmlReaderPool = servicesManager.register(new XMLReaderPool(xmlReaderObjectFactory, 5, 0));
         final int bufferSize = Optional.of(conf.getInteger(PROPERTY_COLLECTION_CACHE_SIZE))
@@ -480,6 +570,14 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
                 servicesManager.register(journalManager.get());
         }
 
+        if(conf.getProperty(BlobStore.PROPERTY_BLOB_STORE, false)) {
+            this.blobStore = Optional.of(servicesManager.register(new BlobStore()));
+        }
+
+        if(conf.getProperty(BackupChangeLog.PROPERTY_BACKUP_CHANGE_LOG, false)) {
+            this.backupChangeLog = Optional.of(servicesManager.register(new BackupChangeLog()));
+        }
+
         final SystemTaskManager systemTaskManager = servicesManager.register(new SystemTaskManager(this));
         this.transactionManager = servicesManager.register(new TransactionManager(this, journalManager, systemTaskManager));
 
@@ -501,6 +599,8 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
 
         this.startupTriggersManager = servicesManager.register(new StartupTriggersManager());
 
+        this.templatesFactory = servicesManager.register(new TemplatesCacheService()).getTemplatesFactory();
+
         //configure the registered services
         try {
             servicesManager.configureServices(conf);
@@ -862,6 +962,46 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         return maxBrokers;
     }
 
+    /**
+     * Returns the number of broker leases which did not re-use the
+     * active broker of the thread.
+     *
+     * @return The number of broker leases
+     */
+    public long getBrokerLeases() {
+        return brokerLeases.sum();
+    }
+
+    /**
+     * Returns the number of broker leases which had to wait for a broker
+     * to become available.
+     *
+     * @return The number of broker leases which waited
+     */
+    public long getBrokerWaits() {
+        return brokerWaits.sum();
+    }
+
+    /**
+     * Returns the total time broker leases have waited for a broker
+     * to become available.
+     *
+     * @return The total wait time in milliseconds
+     */
+    public long getBrokerWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(brokerWaitTime.sum());
+    }
+
+    /**
+     * Returns the longest time a broker lease has waited for a broker
+     * to become available.
+     *
+     * @return The maximal wait time in milliseconds
+     */
+    public long getMaxBrokerWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxBrokerWaitTime.get());
+    }
+
     public int total() {
         return brokersCount;
     }
@@ -966,6 +1106,24 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         return journalManager;
     }
 
+    /**
+     * Returns the content addressed store for binary documents.
+     *
+     * @return The blob store, or empty if binary documents are stored in the fs directory
+     */
+    public Optional<BlobStore> getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Returns the log of the changes since the last backup.
+     *
+     * @return The backup change log, or empty if it is not enabled
+     */
+    public Optional<BackupChangeLog> getBackupChangeLog() {
+        return backupChangeLog;
+    }
+
     public TransactionManager getTransactionManager() {
         return transactionManager;
     }
@@ -1019,6 +1177,24 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         return xQueryPool;
     }
 
+    /**
+     * Returns the factory which caches the database instance's compiled XSLT stylesheets.
+     *
+     * @return The factory
+     */
+    public TemplatesFactory getTemplatesFactory() {
+        return templatesFactory;
+    }
+
+    /**
+     * Returns the cache of parsed XQueries.
+     *
+     * @return The cache, or empty if XQueries are parsed for every compilation
+     */
+    public Optional<XQueryParseCache> getXQueryParseCache() {
+        return xQueryParseCache;
+    }
+
     /**
      * Retuns the XQuery Service
      *
@@ -1037,6 +1213,15 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         return processMonitor;
     }
 
+    /**
+     * Returns the monitor which keeps track of the fragmentation of the modified documents.
+     *
+     * @return The monitor
+     */
+    public FragmentationMonitor getFragmentationMonitor() {
+        return fragmentationMonitor;
+    }
+
     /**
      * Returns the global profiler used to gather execution statistics
      * from all XQueries running on this db instance.
@@ -1047,6 +1232,26 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         return xqueryStats;
     }
 
+    /**
+     * Returns the always-on metrics of all XQueries running on this
+     * db instance.
+     *
+     * @return the query metrics
+     */
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * Returns the evaluator of the steps of path expressions in parallel
+     * for the documents of their context.
+     *
+     * @return the parallel path evaluator
+     */
+    public ParallelPathEvaluator getParallelPathEvaluator() {
+        return parallelPathEvaluator;
+    }
+
     /**
      * Returns a pool in which the database instance's readers are stored.
      *
@@ -1076,15 +1281,22 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
      * @throws EXistException
      */
     protected DBBroker createBroker() throws EXistException {
-        //TODO : in the future, don't pass the whole configuration, just the part relevant to brokers
-        final DBBroker broker = BrokerFactory.getInstance(this, this.getConfiguration());
-        inactiveBrokers.push(broker);
-        brokersCount++;
-        broker.setId(broker.getClass().getName() + '_' + instanceName + "_" + brokersCount);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Created broker '" + broker.getId() + " for database instance '" + instanceName + "'");
+        idleLock.lock();
+        try {
+            //TODO : in the future, don't pass the whole configuration, just the part relevant to brokers
+            final DBBroker broker = BrokerFactory.getInstance(this, this.getConfiguration());
+            if(!inactiveBrokers.offer(broker)) {
+                throw new EXistException("Unable to create more than " + brokersCount + " brokers for database instance '" + instanceName + "'");
+            }
+            brokersCount++;
+            broker.setId(broker.getClass().getName() + '_' + instanceName + "_" + brokersCount);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Created broker '" + broker.getId() + " for database instance '" + instanceName + "'");
+            }
+            return broker;
+        } finally {
+            idleLock.unlock();
         }
-        return broker;
     }
 
     /**
@@ -1154,6 +1366,24 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
      */
     //TODO : rename as getBroker ? getInstance (when refactored) ?
     public DBBroker get(final Optional<Subject> subject) throws EXistException {
+        return get(subject, true);
+    }
+
+    /**
+     * Returns an active broker for the database instance, if one is available
+     * without waiting. Used by tasks which can fall back to another thread
+     * holding a broker, and must not wait for one themselves.
+     *
+     * @param subject Optionally a subject to set on the broker, if a user is not provided then the
+     *                current user assigned to the broker will be re-used
+     * @return The broker, or empty if all the brokers are leased
+     * @throws EXistException If the instance is not available (stopped or not configured)
+     */
+    public Optional<DBBroker> tryGet(final Optional<Subject> subject) throws EXistException {
+        return Optional.ofNullable(get(subject, false));
+    }
+
+    private DBBroker get(final Optional<Subject> subject, final boolean wait) throws EXistException {
         Objects.requireNonNull(subject, "Subject cannot be null, use BrokerPool#getBroker() instead");
 
         if(!isInstanceConfigured()) {
@@ -1187,64 +1417,154 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
 
         //No active broker : get one ASAP
 
-        while(serviceModeUser != null && subject.isPresent() && !subject.equals(Optional.ofNullable(serviceModeUser))) {
-            try {
-                LOG.debug("Db instance is in service mode. Waiting for db to become available again ...");
-                wait();
-            } catch(final InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOG.error("Interrupt detected");
-            }
+        if(!wait && (serviceModeUser != null || !tryAcquireBrokerPermit())) {
+            return null;
         }
 
-        synchronized(this) {
-            //Are there any available brokers ?
-            if(inactiveBrokers.isEmpty()) {
-                //There are no available brokers. If allowed...
-                if(brokersCount < maxBrokers)
-                //... create one
-                {
-                    createBroker();
-                } else
-                    //... or wait until there is one available
-                    while(inactiveBrokers.isEmpty()) {
-                        LOG.debug("waiting for a broker to become available");
-                        try {
-                            this.wait();
-                        } catch(final InterruptedException e) {
-                            //nothing to be done!
-                        }
+        if(wait && serviceModeUser != null && subject.isPresent() && !subject.equals(Optional.ofNullable(serviceModeUser))) {
+            idleLock.lock();
+            try {
+                while(serviceModeUser != null && !subject.equals(Optional.ofNullable(serviceModeUser))) {
+                    try {
+                        LOG.debug("Db instance is in service mode. Waiting for db to become available again ...");
+                        idleStateChanged.await();
+                    } catch(final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        LOG.error("Interrupt detected");
                     }
+                }
+            } finally {
+                idleLock.unlock();
             }
-            broker = inactiveBrokers.pop();
-            broker.prepare();
+        }
 
-            //activate the broker
-            activeBrokers.put(Thread.currentThread(), broker);
+        if(wait) {
+            acquireBrokerPermit();
+        }
 
-            if(LOG.isTraceEnabled()) {
-                LOG.trace("+++ " + Thread.currentThread() + Stacktrace.top(Thread.currentThread().getStackTrace(), Stacktrace.DEFAULT_STACK_TOP));
+        //With a permit, there is an available broker, or one may be created
+        try {
+            while((broker = inactiveBrokers.poll()) == null) {
+                createBrokerIfAllowed();
             }
+        } catch(final EXistException | RuntimeException e) {
+            brokerPermits.release();
+            throw e;
+        }
+        broker.prepare();
+
+        //activate the broker
+        activeBrokers.put(Thread.currentThread(), broker);
+
+        //A cache synchronization may have started on the idle database before the broker was activated
+        if(idleTaskRunning) {
+            awaitIdleTask();
+        }
+
+        if(LOG.isTraceEnabled()) {
+            LOG.trace("+++ " + Thread.currentThread() + Stacktrace.top(Thread.currentThread().getStackTrace(), Stacktrace.DEFAULT_STACK_TOP));
+        }
+
+        if(watchdog.isPresent()) {
+            watchdog.get().add(broker);
+        }
+
+        broker.incReferenceCount();
 
-            if(watchdog.isPresent()) {
-                watchdog.get().add(broker);
+        broker.pushSubject(subject.orElseGet(securityManager::getGuestSubject));
+
+        if(LOG.isTraceEnabled()) {
+            if(!brokerLeaseChangeTrace.containsKey(broker.getId())) {
+                brokerLeaseChangeTrace.put(broker.getId(), new TraceableStateChanges<>());
             }
+            brokerLeaseChangeTrace.get(broker.getId()).add(TraceableBrokerLeaseChange.get(new TraceableBrokerLeaseChange.BrokerInfo(broker.getId(), broker.getReferenceCount())));
+        }
 
-            broker.incReferenceCount();
+        return broker;
+    }
 
-            broker.pushSubject(subject.orElseGet(securityManager::getGuestSubject));
+    /**
+     * Acquires a permit to lease a broker, if one is available without waiting.
+     */
+    private boolean tryAcquireBrokerPermit() {
+        try {
+            if(brokerPermits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                brokerLeases.increment();
+                return true;
+            }
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
 
-            if(LOG.isTraceEnabled()) {
-                if(!brokerLeaseChangeTrace.containsKey(broker.getId())) {
-                    brokerLeaseChangeTrace.put(broker.getId(), new TraceableStateChanges<>());
+    /**
+     * Acquires a permit to lease a broker, waiting in order with
+     * the other threads if all the brokers are leased.
+     */
+    private void acquireBrokerPermit() {
+        brokerLeases.increment();
+        boolean interrupted = false;
+        try {
+            if(brokerPermits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch(final InterruptedException e) {
+            interrupted = true;
+        }
+
+        final long start = System.nanoTime();
+        while(true) {
+            LOG.debug("waiting for a broker to become available");
+            try {
+                if(brokerPermits.tryAcquire(BROKER_WAIT_LOG_INTERVAL, TimeUnit.SECONDS)) {
+                    break;
                 }
-                brokerLeaseChangeTrace.get(broker.getId()).add(TraceableBrokerLeaseChange.get(new TraceableBrokerLeaseChange.BrokerInfo(broker.getId(), broker.getReferenceCount())));
+            } catch(final InterruptedException e) {
+                //nothing to be done, but keep the interrupt status!
+                interrupted = true;
             }
+        }
+        final long waited = System.nanoTime() - start;
+        brokerWaits.increment();
+        brokerWaitTime.add(waited);
+        maxBrokerWaitTime.accumulateAndGet(waited, Math::max);
 
-            //Inform the other threads that we have a new-comer
-            // TODO: do they really need to be informed here???????
-            this.notifyAll();
-            return broker;
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void createBrokerIfAllowed() throws EXistException {
+        idleLock.lock();
+        try {
+            if(!inactiveBrokers.isEmpty()) {
+                return;
+            }
+            if(brokersCount < maxBrokers) {
+                createBroker();
+                return;
+            }
+        } finally {
+            idleLock.unlock();
+        }
+        //a broker is being returned
+        Thread.yield();
+    }
+
+    private void awaitIdleTask() {
+        idleLock.lock();
+        try {
+            while(idleTaskRunning) {
+                try {
+                    idleStateChanged.await();
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOG.error("Interrupt detected");
+                }
+            }
+        } finally {
+            idleLock.unlock();
         }
     }
 
@@ -1277,67 +1597,87 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
             return;
         }
 
-        synchronized(this) {
-            //Broker is no more used : inactivate it
-            for(final DBBroker inactiveBroker : inactiveBrokers) {
-                if(broker == inactiveBroker) {
-                    LOG.error("Broker " + broker.getId() + " is already in the inactive list!!!");
-                    return;
+        //Broker is no more used : inactivate it
+        if(!activeBrokers.remove(Thread.currentThread(), broker)) {
+            Thread owner = null;
+            for(final Entry<Thread, DBBroker> activeBroker : activeBrokers.entrySet()) {
+                if(activeBroker.getValue() == broker) {
+                    owner = activeBroker.getKey();
+                    break;
                 }
             }
-
-            if(activeBrokers.remove(Thread.currentThread()) == null) {
-                LOG.error("release() has been called from the wrong thread for broker " + broker.getId());
-                // Cleanup the state of activeBrokers
-                for(final Entry<Thread, DBBroker> activeBroker : activeBrokers.entrySet()) {
-                    if(activeBroker.getValue() == broker) {
-                        final String msg = "release() has been called from '" + Thread.currentThread() + "', but occupied at '" + activeBroker.getKey() + "'.";
-                        final EXistException ex = new EXistException(msg);
-                        LOG.error(msg, ex);
-                        activeBrokers.remove(activeBroker.getKey());
-                        break;
-                    }
-                }
-            } else {
-                if(LOG.isTraceEnabled()) {
-                    LOG.trace("--- " + Thread.currentThread() + Stacktrace.top(Thread.currentThread().getStackTrace(), Stacktrace.DEFAULT_STACK_TOP));
-                }
+            if(owner == null) {
+                LOG.error("Broker " + broker.getId() + " is already in the inactive list!!!");
+                return;
             }
-            
-            Subject lastUser = broker.popSubject();
-
-            //guard to ensure that the broker has popped all its subjects
-            if(lastUser == null || broker.getCurrentSubject() != null) {
-                LOG.warn("Broker " + broker.getId() + " was returned with extraneous Subjects, cleaning...", new IllegalStateException("DBBroker pushSubject/popSubject mismatch").fillInStackTrace());
-                if(LOG.isTraceEnabled()) {
-                    broker.traceSubjectChanges();
-                }
 
-                //cleanup any remaining erroneous subjects
-                while(broker.getCurrentSubject() != null) {
-                    lastUser = broker.popSubject();
-                }
+            LOG.error("release() has been called from the wrong thread for broker " + broker.getId());
+            // Cleanup the state of activeBrokers
+            final String msg = "release() has been called from '" + Thread.currentThread() + "', but occupied at '" + owner + "'.";
+            final EXistException ex = new EXistException(msg);
+            LOG.error(msg, ex);
+            activeBrokers.remove(owner);
+        } else {
+            if(LOG.isTraceEnabled()) {
+                LOG.trace("--- " + Thread.currentThread() + Stacktrace.top(Thread.currentThread().getStackTrace(), Stacktrace.DEFAULT_STACK_TOP));
             }
+        }
 
-            inactiveBrokers.push(broker);
-            watchdog.ifPresent(wd -> wd.remove(broker));
+        Subject lastUser = broker.popSubject();
 
+        //guard to ensure that the broker has popped all its subjects
+        if(lastUser == null || broker.getCurrentSubject() != null) {
+            LOG.warn("Broker " + broker.getId() + " was returned with extraneous Subjects, cleaning...", new IllegalStateException("DBBroker pushSubject/popSubject mismatch").fillInStackTrace());
             if(LOG.isTraceEnabled()) {
-                if(!brokerLeaseChangeTraceHistory.containsKey(broker.getId())) {
-                    brokerLeaseChangeTraceHistory.put(broker.getId(), new ArrayList<>());
-                }
-                try {
-                    brokerLeaseChangeTraceHistory.get(broker.getId()).add((TraceableStateChanges<TraceableBrokerLeaseChange.BrokerInfo, TraceableBrokerLeaseChange.Change>) brokerLeaseChangeTrace.get(broker.getId()).clone());
-                    brokerLeaseChangeTrace.get(broker.getId()).clear();
-                } catch(final CloneNotSupportedException e) {
-                    LOG.error(e);
-                }
+                broker.traceSubjectChanges();
+            }
+
+            //cleanup any remaining erroneous subjects
+            while(broker.getCurrentSubject() != null) {
+                lastUser = broker.popSubject();
+            }
+        }
+
+        //If the database is now idle, do some useful stuff
+        if(activeBrokers.isEmpty() && (syncRequired || serviceModeUser != null || isShuttingDown())) {
+            runIdleTasks(broker, lastUser);
+        }
 
-                broker.clearSubjectChangesTrace();
+        watchdog.ifPresent(wd -> wd.remove(broker));
+
+        if(LOG.isTraceEnabled()) {
+            if(!brokerLeaseChangeTraceHistory.containsKey(broker.getId())) {
+                brokerLeaseChangeTraceHistory.put(broker.getId(), new ArrayList<>());
+            }
+            try {
+                brokerLeaseChangeTraceHistory.get(broker.getId()).add((TraceableStateChanges<TraceableBrokerLeaseChange.BrokerInfo, TraceableBrokerLeaseChange.Change>) brokerLeaseChangeTrace.get(broker.getId()).clone());
+                brokerLeaseChangeTrace.get(broker.getId()).clear();
+            } catch(final CloneNotSupportedException e) {
+                LOG.error(e);
             }
 
-            //If the database is now idle, do some useful stuff
-            if(activeBrokers.size() == 0) {
+            broker.clearSubjectChangesTrace();
+        }
+
+        //The broker must be available before its permit is
+        if(!inactiveBrokers.offer(broker)) {
+            LOG.error("Broker " + broker.getId() + " could not be returned to the inactive list");
+        }
+        brokerPermits.release();
+    }
+
+    /**
+     * Runs the tasks which are deferred until the database instance is idle,
+     * unless another broker has been leased meanwhile.
+     *
+     * @param broker The broker being released, which is not yet inactive
+     * @param lastUser The last user of the broker
+     */
+    private void runIdleTasks(final DBBroker broker, final Subject lastUser) {
+        idleLock.lock();
+        idleTaskRunning = true;
+        try {
+            if(activeBrokers.isEmpty()) {
                 //TODO : use a "clean" dedicated method (we have some below) ?
                 if(syncRequired) {
                     //Note that the broker is not yet really inactive ;-)
@@ -1349,8 +1689,11 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
                     inServiceMode = true;
                 }
             }
+        } finally {
+            idleTaskRunning = false;
             //Inform the other threads that someone is gone
-            this.notifyAll();
+            idleStateChanged.signalAll();
+            idleLock.unlock();
         }
     }
 
@@ -1360,16 +1703,19 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         }
 
         serviceModeUser = user;
-        synchronized(this) {
+        idleLock.lock();
+        try {
             if(activeBrokers.size() != 0) {
                 while(!inServiceMode) {
                     try {
-                        wait();
+                        idleStateChanged.await();
                     } catch(final InterruptedException e) {
                         //nothing to be done
                     }
                 }
             }
+        } finally {
+            idleLock.unlock();
         }
 
         inServiceMode = true;
@@ -1388,8 +1734,11 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         }
         serviceModeUser = null;
         inServiceMode = false;
-        synchronized(this) {
-            this.notifyAll();
+        idleLock.lock();
+        try {
+            idleStateChanged.signalAll();
+        } finally {
+            idleLock.unlock();
         }
     }
 
@@ -1479,32 +1828,40 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         }
 
         LOG.debug("Triggering sync: " + syncEvent);
-        synchronized(this) {
-            //Are there available brokers ?
-            // TOUNDERSTAND (pb) : the trigger is ignored !
-            // WM: yes, it seems wrong!!
-//			if(inactiveBrokers.size() == 0)
-//				return;
-            //TODO : switch on syncEvent and throw an exception if it is inaccurate ?
-            //Is the database instance idle ?
-            if(inactiveBrokers.size() == brokersCount) {
-                //Borrow a broker
-                //TODO : this broker is *not* marked as active and may be reused by another process !
-                // No other brokers are running at this time, so there's no risk.
-                //TODO : use get() then release the broker ?
-                // No, might lead to a deadlock.
-                final DBBroker broker = inactiveBrokers.pop();
-                broker.prepare();
-                //Do the synchronization job
-                sync(broker, syncEvent);
-                inactiveBrokers.push(broker);
-                syncRequired = false;
-            } else {
-                //Put the synchronization job into the queue
-                //TODO : check that we don't replace high priority Sync.MAJOR_SYNC by a lesser priority sync !
-                this.syncEvent = syncEvent;
-                syncRequired = true;
+        idleLock.lock();
+        try {
+            //Brokers leased meanwhile wait for the synchronization to finish
+            idleTaskRunning = true;
+            try {
+                //TODO : switch on syncEvent and throw an exception if it is inaccurate ?
+                //Is the database instance idle ?
+                final DBBroker broker = activeBrokers.isEmpty() ? inactiveBrokers.poll() : null;
+                if(broker != null) {
+                    //Borrow a broker
+                    //TODO : this broker is *not* marked as active !
+                    // Brokers leased meanwhile wait until it is returned, so there's no risk.
+                    //TODO : use get() then release the broker ?
+                    // No, might lead to a deadlock.
+                    try {
+                        broker.prepare();
+                        //Do the synchronization job
+                        sync(broker, syncEvent);
+                        syncRequired = false;
+                    } finally {
+                        inactiveBrokers.offer(broker);
+                    }
+                } else {
+                    //Put the synchronization job into the queue
+                    //TODO : check that we don't replace high priority Sync.MAJOR_SYNC by a lesser priority sync !
+                    this.syncEvent = syncEvent;
+                    syncRequired = true;
+                }
+            } finally {
+                idleTaskRunning = false;
+                idleStateChanged.signalAll();
             }
+        } finally {
+            idleLock.unlock();
         }
     }
 
@@ -1570,44 +1927,55 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
                 statusReporter = new StatusReporter(SIGNAL_SHUTDOWN);
                 statusObservers.forEach(statusReporter::addObserver);
 
-                synchronized (this) {
-                    final Thread statusThread = newInstanceThread(this, "shutdown-status-reporter", statusReporter);
-                    statusThread.start();
+                final Thread statusThread = newInstanceThread(this, "shutdown-status-reporter", statusReporter);
+                statusThread.start();
 
-                    // DW: only in debug mode
-                    if (LOG.isDebugEnabled()) {
-                        notificationService.debug();
-                    }
+                // DW: only in debug mode
+                if (LOG.isDebugEnabled()) {
+                    notificationService.debug();
+                }
 
-                    //Notify all running tasks that we are shutting down
+                //Notify all running tasks that we are shutting down
 
-                    //Notify all running XQueries that we are shutting down
-                    processMonitor.killAll(500);
+                //Notify all running XQueries that we are shutting down
+                processMonitor.killAll(500);
 
-                    if (isRecoveryEnabled()) {
-                        journalManager.ifPresent(jm -> jm.flush(true, true));
-                    }
+                if (isRecoveryEnabled()) {
+                    journalManager.ifPresent(jm -> jm.flush(true, true));
+                }
 
-                    final long waitStart = System.currentTimeMillis();
-                    //Are there active brokers ?
-                    if (activeBrokers.size() > 0) {
-                        printSystemInfo();
-                        LOG.info("Waiting " + maxShutdownWait + "ms for remaining threads to shut down...");
+                final long waitStart = System.currentTimeMillis();
+                //Are there active brokers ?
+                if (activeBrokers.size() > 0) {
+                    printSystemInfo();
+                    LOG.info("Waiting " + maxShutdownWait + "ms for remaining threads to shut down...");
+                    // the last broker released while shutting down runs the idle tasks, which signal idleStateChanged
+                    idleLock.lock();
+                    try {
                         while (activeBrokers.size() > 0) {
                             try {
                                 //Wait until they become inactive...
-                                this.wait(1000);
+                                if (maxShutdownWait > -1) {
+                                    final long remaining = maxShutdownWait - (System.currentTimeMillis() - waitStart);
+                                    //...or force the shutdown
+                                    if (remaining <= 0) {
+                                        LOG.warn("Not all threads returned. Forcing shutdown ...");
+                                        break;
+                                    }
+                                    idleStateChanged.await(remaining, TimeUnit.MILLISECONDS);
+                                } else {
+                                    idleStateChanged.await();
+                                }
                             } catch (final InterruptedException e) {
                                 //nothing to be done
                             }
-
-                            //...or force the shutdown
-                            if (maxShutdownWait > -1 && System.currentTimeMillis() - waitStart > maxShutdownWait) {
-                                LOG.warn("Not all threads returned. Forcing shutdown ...");
-                                break;
-                            }
                         }
+                    } finally {
+                        idleLock.unlock();
                     }
+                }
+
+                synchronized (this) {
                     LOG.debug("Calling shutdown ...");
 
                     //TODO : replace the following code by get()/release() statements ?
@@ -1687,7 +2055,11 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
                 transactionManager = null;
                 collectionCache = null;
                 xQueryPool = null;
+                templatesFactory = null;
+                xQueryParseCache = Optional.empty();
+                backupChangeLog = Optional.empty();
                 processMonitor = null;
+                fragmentationMonitor = null;
                 collectionConfigurationManager = null;
                 notificationService = null;
                 indexManager = null;
@@ -1775,10 +2147,13 @@ public class BrokerPool extends BrokerPools implements BrokerPoolConstants, Data
         if(syncRequired) {
             return;
         }
-        synchronized(this) {
+        idleLock.lock();
+        try {
             syncEvent = Sync.MAJOR;
             syncRequired = true;
             checkpoint = true;
+        } finally {
+            idleLock.unlock();
         }
     }
 
@@ -88,6 +88,12 @@ public abstract class DBBroker extends Observable implements AutoCloseable {
     //TODO : move elsewhere
     public final static String PROPERTY_XUPDATE_FRAGMENTATION_FACTOR = "xupdate.fragmentation";
 
+    //TODO : move elsewhere
+    public final static String XUPDATE_BACKGROUND_DEFRAGMENTATION_ATTRIBUTE = "background-defragmentation";
+
+    //TODO : move elsewhere
+    public final static String PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION = "xupdate.background-defragmentation";
+
     //TODO : move elsewhere
     public final static String XUPDATE_CONSISTENCY_CHECKS_ATTRIBUTE = "enable-consistency-checks";
 
@@ -514,6 +520,19 @@ public abstract class DBBroker extends Observable implements AutoCloseable {
     public abstract void reindexCollection(Txn transaction, @EnsureLocked(mode=LockMode.WRITE_LOCK, type=LockType.COLLECTION) XmldbURI collectionUri)
             throws PermissionDeniedException, IOException, LockException;
 
+    /**
+     * Reindex the documents of a Collection, but not of its descendants
+     *
+     * @param transaction
+     * @param collectionUri The URI of the Collection to reindex
+     *
+     * @throws PermissionDeniedException If the current user does not have appropriate permissions
+     * @throws LockException If an exception occurs whilst acquiring locks
+     * @throws IOException If an error occurs whilst reindexing the Collection on disk
+     */
+    public abstract void reindexCollectionDocuments(Txn transaction, @EnsureLocked(mode=LockMode.WRITE_LOCK, type=LockType.COLLECTION) XmldbURI collectionUri)
+            throws PermissionDeniedException, IOException, LockException;
+
     public abstract void reindexXMLResource(final Txn txn,
             @EnsureLocked(mode=LockMode.WRITE_LOCK) final DocumentImpl doc);
 
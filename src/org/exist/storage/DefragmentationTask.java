@@ -0,0 +1,152 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.UserJavaJob;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Defragments the documents tracked by the {@link FragmentationMonitor}
+ * which exceed the allowed number of page splits, the most fragmented
+ * first. Schedule it in conf.xml with:
+ *
+ * <pre>
+ * &lt;job type="user" class="org.exist.storage.DefragmentationTask" period="600000"&gt;
+ *     &lt;parameter name="max-pages" value="5000"/&gt;
+ * &lt;/job&gt;
+ * </pre>
+ *
+ * The job runs alongside other database operations: a document is rebuilt
+ * under its own write lock only, which is released before the next document
+ * is taken. A document is copied to new pages as a whole, so the max-pages
+ * budget of a run is checked before a document is started: documents which
+ * do not fit into what is left of it are left to the next runs, and documents
+ * with more pages than max-pages are never defragmented by the job. The
+ * optional split-count parameter overrides the allowed-fragmentation of the
+ * xupdate settings.
+ */
+public class DefragmentationTask extends UserJavaJob {
+
+    private final static Logger LOG = LogManager.getLogger(DefragmentationTask.class);
+
+    public final static String MAX_PAGES_PROP_NAME = "max-pages";
+    public final static String SPLIT_COUNT_PROP_NAME = "split-count";
+
+    private final static long DEFAULT_MAX_PAGES = 5000;
+
+    private String name = "Defragmentation Task";
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void execute(final BrokerPool brokerPool, final Map<String, ?> params) throws JobException {
+        final long maxPages = getParameter(params, MAX_PAGES_PROP_NAME, DEFAULT_MAX_PAGES);
+        final int splitCount = (int) getParameter(params, SPLIT_COUNT_PROP_NAME, -1);
+
+        try (final DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()))) {
+            defragment(broker, maxPages, splitCount);
+        } catch (final EXistException e) {
+            throw new JobException(JobException.JobExceptionAction.JOB_ABORT, "Unable to defragment documents: " + e.getMessage());
+        }
+    }
+
+    private static long getParameter(final Map<String, ?> params, final String name, final long defaultValue) throws JobException {
+        final Object value = params == null ? null : params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (final NumberFormatException e) {
+            throw new JobException(JobException.JobExceptionAction.JOB_ABORT_THIS, "Parameter '" + name + "' has to be an integer");
+        }
+    }
+
+    private void defragment(final DBBroker broker, final long maxPages, final int splitCount) throws EXistException {
+        final FragmentationMonitor monitor = broker.getBrokerPool().getFragmentationMonitor();
+        final int allowed = splitCount < 0 ? monitor.getAllowedFragmentation() : splitCount;
+
+        final long start = System.currentTimeMillis();
+        int documents = 0;
+        long pages = 0;
+        for (final XmldbURI uri : monitor.getFragmented(allowed)) {
+            if (pages >= maxPages) {
+                break;
+            }
+            try (final LockedDocument lockedDoc = broker.getXMLResource(uri, LockMode.WRITE_LOCK)) {
+                if (lockedDoc == null) {
+                    monitor.remove(uri);
+                    continue;
+                }
+
+                final DocumentImpl doc = lockedDoc.getDocument();
+                if (doc.getMetadata().getSplitCount() <= allowed) {
+                    monitor.update(doc);
+                    continue;
+                }
+
+                final long pageCount = doc.getMetadata().getPageCount();
+                if (pageCount > maxPages) {
+                    LOG.warn("Unable to defragment " + uri + ": its " + pageCount + " pages exceed the " + MAX_PAGES_PROP_NAME
+                            + " of " + maxPages);
+                    continue;
+                }
+                if (pages + pageCount > maxPages) {
+                    // a smaller document may still fit
+                    continue;
+                }
+
+                try (final Txn transaction = broker.getBrokerPool().getTransactionManager().beginTransaction()) {
+                    broker.defragXMLResource(transaction, doc);
+                    transaction.commit();
+                }
+                pages += pageCount;
+                documents++;
+            } catch (final PermissionDeniedException e) {
+                LOG.warn("Unable to defragment " + uri + ": " + e.getMessage());
+            }
+        }
+
+        if (documents > 0) {
+            LOG.info("Defragmented " + documents + " documents with " + pages + " pages in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import net.jcip.annotations.Immutable;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Subject;
+import org.exist.xmldb.XmldbURI;
+
+import javax.annotation.Nullable;
+
+/**
+ * A change to a document, delivered to the {@link AfterCommitListener}s
+ * once the transaction which made it has committed.
+ */
+@Immutable
+public final class DocumentEvent {
+
+    public enum Type {
+        CREATE, UPDATE, UPDATE_METADATA, COPY, MOVE, DELETE;
+
+        /**
+         * @param event one of {@link UpdateListener#ADD}, {@link UpdateListener#UPDATE}
+         *     or {@link UpdateListener#REMOVE}
+         * @return the type of the event
+         */
+        public static Type fromUpdateListenerEvent(final int event) {
+            switch (event) {
+                case UpdateListener.ADD:
+                    return CREATE;
+                case UpdateListener.REMOVE:
+                    return DELETE;
+                default:
+                    return UPDATE;
+            }
+        }
+    }
+
+    private final Type type;
+    private final XmldbURI collectionUri;
+    private final XmldbURI documentUri;
+    private final @Nullable XmldbURI oldDocumentUri;
+    private final @Nullable DocumentImpl document;
+    private final @Nullable Subject subject;
+    private final long created = System.nanoTime();
+
+    /**
+     * @param type the type of the change
+     * @param collectionUri the collection whose listeners receive the event,
+     *     events are delivered in batches per collection
+     * @param documentUri the URI of the document
+     * @param oldDocumentUri the URI of the document before it was copied or
+     *     moved, or null
+     * @param document the document, or null if it was deleted
+     * @param subject the user who made the change, or null if unknown
+     */
+    public DocumentEvent(final Type type, final XmldbURI collectionUri, final XmldbURI documentUri,
+            @Nullable final XmldbURI oldDocumentUri, @Nullable final DocumentImpl document, @Nullable final Subject subject) {
+        this.type = type;
+        this.collectionUri = collectionUri;
+        this.documentUri = documentUri;
+        this.oldDocumentUri = oldDocumentUri;
+        this.document = document;
+        this.subject = subject;
+    }
+
+    public DocumentEvent(final Type type, final DocumentImpl document, @Nullable final Subject subject) {
+        this(type, document.getCollection().getURI(), document.getURI(), null, document, subject);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public XmldbURI getCollectionUri() {
+        return collectionUri;
+    }
+
+    public XmldbURI getDocumentUri() {
+        return documentUri;
+    }
+
+    public @Nullable XmldbURI getOldDocumentUri() {
+        return oldDocumentUri;
+    }
+
+    public @Nullable DocumentImpl getDocument() {
+        return document;
+    }
+
+    public @Nullable Subject getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the event was created
+     */
+    long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + documentUri;
+    }
+}
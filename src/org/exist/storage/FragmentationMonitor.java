@@ -0,0 +1,174 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Keeps track of the fragmentation of the documents which were modified,
+ * i.e. the number of DOM pages which were split by inserting nodes.
+ *
+ * Documents are only tracked if {@link DBBroker#XUPDATE_BACKGROUND_DEFRAGMENTATION_ATTRIBUTE}
+ * is enabled. Updates then no longer defragment a document which exceeds the
+ * allowed fragmentation themselves, but leave it to the {@link DefragmentationTask}.
+ */
+public class FragmentationMonitor implements BrokerPoolService {
+
+    private final ConcurrentMap<XmldbURI, DocumentFragmentation> documents = new ConcurrentHashMap<>();
+
+    private int allowedFragmentation = -1;
+    private boolean background = false;
+
+    @Override
+    public void configure(final Configuration configuration) {
+        final Integer fragmentation = (Integer) configuration.getProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
+        if (fragmentation != null) {
+            this.allowedFragmentation = fragmentation;
+        }
+        this.background = configuration.getProperty(DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION, false);
+    }
+
+    /**
+     * @return the number of page splits allowed within a document before it is defragmented
+     */
+    public int getAllowedFragmentation() {
+        return allowedFragmentation;
+    }
+
+    /**
+     * @return true if fragmented documents are defragmented by the {@link DefragmentationTask}
+     */
+    public boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Records the fragmentation of a document after it was modified,
+     * if documents are defragmented in the background.
+     *
+     * @param doc the document
+     */
+    public void update(final DocumentImpl doc) {
+        if (!background) {
+            return;
+        }
+        final int splitCount = doc.getMetadata().getSplitCount();
+        if (splitCount > 0) {
+            documents.put(doc.getURI(), new DocumentFragmentation(doc.getURI().toString(), splitCount,
+                    doc.getMetadata().getPageCount()));
+        } else {
+            documents.remove(doc.getURI());
+        }
+    }
+
+    /**
+     * Stops tracking a document, e.g. because it was removed.
+     *
+     * @param uri the URI of the document
+     */
+    public void remove(final XmldbURI uri) {
+        documents.remove(uri);
+    }
+
+    /**
+     * Tracks a moved document under its new URI.
+     *
+     * @param source the URI of the document before the move
+     * @param destination the URI of the document after the move
+     */
+    public void move(final XmldbURI source, final XmldbURI destination) {
+        final DocumentFragmentation fragmentation = documents.remove(source);
+        if (fragmentation != null) {
+            documents.put(destination, new DocumentFragmentation(destination.toString(), fragmentation.getSplitCount(),
+                    fragmentation.getPageCount()));
+        }
+    }
+
+    /**
+     * Tracks the documents of a moved collection and its descendants under their new URIs.
+     *
+     * @param source the URI of the collection before the move
+     * @param destination the URI of the collection after the move
+     */
+    public void moveCollection(final XmldbURI source, final XmldbURI destination) {
+        for (final XmldbURI uri : new ArrayList<>(documents.keySet())) {
+            if (uri.startsWith(source)) {
+                move(uri, XmldbURI.create(destination.toString() + uri.toString().substring(source.toString().length())));
+            }
+        }
+    }
+
+    /**
+     * @return the fragmentation of the tracked documents, the most fragmented first
+     */
+    public List<DocumentFragmentation> getDocuments() {
+        final List<DocumentFragmentation> fragmentation = new ArrayList<>(documents.values());
+        fragmentation.sort(Comparator.comparingInt(DocumentFragmentation::getSplitCount).reversed());
+        return fragmentation;
+    }
+
+    /**
+     * @param splitCount the number of page splits
+     * @return the URIs of the tracked documents with more page splits, the most fragmented first
+     */
+    public List<XmldbURI> getFragmented(final int splitCount) {
+        final List<XmldbURI> fragmented = new ArrayList<>();
+        for (final DocumentFragmentation fragmentation : getDocuments()) {
+            if (fragmentation.getSplitCount() > splitCount) {
+                fragmented.add(XmldbURI.create(fragmentation.getUri()));
+            }
+        }
+        return fragmented;
+    }
+
+    public static class DocumentFragmentation {
+        private final String uri;
+        private final int splitCount;
+        private final long pageCount;
+
+        @ConstructorProperties({"uri", "splitCount", "pageCount"})
+        public DocumentFragmentation(final String uri, final int splitCount, final long pageCount) {
+            this.uri = uri;
+            this.splitCount = splitCount;
+            this.pageCount = pageCount;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public int getSplitCount() {
+            return splitCount;
+        }
+
+        public long getPageCount() {
+            return pageCount;
+        }
+    }
+}
@@ -41,6 +41,8 @@ import org.exist.security.*;
 import org.exist.security.internal.aider.ACEAider;
 import org.exist.stax.EmbeddedXMLStreamReader;
 import org.exist.stax.IEmbeddedXMLStreamReader;
+import org.exist.storage.blob.BlobReferenceLoggable;
+import org.exist.storage.blob.BlobStore;
 import org.exist.storage.btree.*;
 import org.exist.storage.btree.Paged.Page;
 import org.exist.storage.dom.DOMFile;
@@ -121,12 +123,14 @@ public class NativeBroker extends DBBroker {
     public final static byte LOG_CREATE_BINARY = 0x41;
     public final static byte LOG_REPLACE_BINARY = 0x42;
     public final static byte LOG_DELETE_BINARY = 0x43;
+    public final static byte LOG_BLOB_REFERENCE = 0x44;
 
     static {
         LogEntryTypes.addEntryType(LOG_RENAME_BINARY, RenameBinaryLoggable::new);
         LogEntryTypes.addEntryType(LOG_CREATE_BINARY, CreateBinaryLoggable::new);
         LogEntryTypes.addEntryType(LOG_REPLACE_BINARY, ReplaceBinaryLoggable::new);
         LogEntryTypes.addEntryType(LOG_DELETE_BINARY, DeleteBinaryLoggable::new);
+        LogEntryTypes.addEntryType(LOG_BLOB_REFERENCE, BlobReferenceLoggable::new);
     }
 
     public static final byte PREPEND_DB_ALWAYS = 0;
@@ -527,6 +531,9 @@ public class NativeBroker extends DBBroker {
         }
         pool.getSymbols().backupToArchive(backup);
         backupBinary(backup, getFsDir(), "");
+        if (pool.getBlobStore().isPresent()) {
+            pool.getBlobStore().get().backupToArchive(backup);
+        }
         pool.getIndexManager().backupToArchive(backup);
         //TODO backup counters
         //TODO USE zip64 or tar to create snapshots larger then 4Gb
@@ -1494,6 +1501,7 @@ public class NativeBroker extends DBBroker {
 
                     // Need to move each collection in the source tree individually, so recurse.
                     moveCollectionRecursive(transaction, trigger, sourceCollectionParent, sourceCollection, targetCollection, newName, false);
+                    pool.getFragmentationMonitor().moveCollection(sourceCollectionUri, destinationCollectionUri);
 
                     // For binary resources, though, just move the top level directory and all descendants come with it.
 //                    moveCollectionBinaries(transaction, fsSourceDir, targetCollection, newName);
@@ -1700,10 +1708,12 @@ public class NativeBroker extends DBBroker {
             final Value key = new CollectionStore.CollectionKey(sourceCollectionUri.toString());
             collectionsDb.remove(transaction, key);
         }
+        pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.collectionDeleted(transaction, sourceCollectionUri));
 
         // set source path to destination... source is now the destination
         sourceCollection.setPath(destinationCollectionUri);
         saveCollection(transaction, sourceCollection);
+        pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.collectionMoved(transaction, destinationCollectionUri));
 
         // add destination to target
         targetCollection.addCollection(this, sourceCollection);
@@ -1716,6 +1726,9 @@ public class NativeBroker extends DBBroker {
         }
 
         // move the binaries in the collection
+        if (pool.getBlobStore().isPresent()) {
+            pool.getBlobStore().get().moveCollection(transaction, sourceCollectionUri, destinationCollectionUri);
+        }
         moveCollectionBinaries(transaction, fsSourceDir, destinationCollectionUri);
 
         // move the descendants
@@ -1792,6 +1805,7 @@ public class NativeBroker extends DBBroker {
                 try(final ManagedLock<ReentrantLock> collectionsDbLock = lockManager.acquireBtreeWriteLock(collectionsDb.getLockName())) {
                     final Value key = new CollectionStore.CollectionKey(collectionUri.getRawCollectionPath());
                     collectionsDb.remove(transaction, key);
+                    pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.collectionDeleted(transaction, collectionUri));
 
                     //TODO(AR) is this the correct place to invalidate the config?
                     // Notify the collection configuration manager
@@ -1909,7 +1923,7 @@ public class NativeBroker extends DBBroker {
 
     private void removeCollectionBinary(final Txn transaction, final BinaryDocument doc, final StreamableDigest streamableDigest) throws IOException {
         final Path binFile = getCollectionFile(getFsDir(), doc.getURI(), false);
-        if (Files.exists(binFile)) {
+        if (!removeBlob(transaction, doc.getURI()) && Files.exists(binFile)) {
             if (fsJournalDir.isPresent()) {
                 streamableDigest.reset();
                 FileUtils.digest(binFile, streamableDigest);
@@ -2026,6 +2040,7 @@ public class NativeBroker extends DBBroker {
                 }
                 collection.setAddress(address);
             }
+            pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.collectionModified(transaction, collection.getURI()));
         } catch(final ReadOnlyException e) {
             throw new IOException(DATABASE_IS_READ_ONLY, e);
         } catch(final LockException e) {
@@ -2060,6 +2075,16 @@ public class NativeBroker extends DBBroker {
 
     @Override
     public void reindexCollection(final Txn transaction, final XmldbURI collectionUri) throws PermissionDeniedException, IOException, LockException {
+        reindexCollection(transaction, collectionUri, true);
+    }
+
+    @Override
+    public void reindexCollectionDocuments(final Txn transaction, final XmldbURI collectionUri) throws PermissionDeniedException, IOException, LockException {
+        reindexCollection(transaction, collectionUri, false);
+    }
+
+    private void reindexCollection(final Txn transaction, final XmldbURI collectionUri, final boolean descend)
+            throws PermissionDeniedException, IOException, LockException {
         if(isReadOnly()) {
             throw new IOException(DATABASE_IS_READ_ONLY);
         }
@@ -2074,7 +2099,11 @@ public class NativeBroker extends DBBroker {
 
             LOG.info("Start indexing collection {}", collection.getURI().toString());
             pool.getProcessMonitor().startJob(ProcessMonitor.ACTION_REINDEX_COLLECTION, collection.getURI());
-            reindexCollection(transaction, collection, IndexMode.STORE);
+            if (descend) {
+                reindexCollection(transaction, collection, IndexMode.STORE);
+            } else {
+                reindexDocuments(transaction, collection, IndexMode.STORE);
+            }
         } catch(final PermissionDeniedException | IOException e) {
             LOG.error("An error occurred during reindex: " + e.getMessage(), e);
         } finally {
@@ -2087,6 +2116,29 @@ public class NativeBroker extends DBBroker {
     private void reindexCollection(final Txn transaction,
             @EnsureLocked(mode=LockMode.READ_LOCK) final Collection collection, final IndexMode mode)
             throws PermissionDeniedException, IOException, LockException {
+        reindexDocuments(transaction, collection, mode);
+
+        // descend into child collections
+        try {
+            for (final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
+                final XmldbURI childName = i.next();
+                final XmldbURI childUri = collection.getURI().append(childName);
+                try(final Collection child = openCollection(childUri, LockMode.READ_LOCK)) {
+                    if (child == null) {
+                        throw new IOException("Collection '" + childUri + "' not found");
+                    } else {
+                        reindexCollection(transaction, child, mode);
+                    }
+                }
+            }
+        } catch(final LockException e) {
+            LOG.error("LockException while reindexing child collections of collection '" + collection.getURI() + ". Skipping...", e);
+        }
+    }
+
+    private void reindexDocuments(final Txn transaction,
+            @EnsureLocked(mode=LockMode.READ_LOCK) final Collection collection, final IndexMode mode)
+            throws PermissionDeniedException, IOException, LockException {
         if(!collection.getPermissionsNoLock().validate(getCurrentSubject(), Permission.WRITE)) {
             throw new PermissionDeniedException("Account " + getCurrentSubject().getName() + " have insufficient privileges on collection " + collection.getURI());
         }
@@ -2105,23 +2157,6 @@ public class NativeBroker extends DBBroker {
         } catch(final LockException e) {
             LOG.error("LockException while reindexing documents of collection '{}'. Skipping...", collection.getURI(), e);
         }
-
-        // descend into child collections
-        try {
-            for (final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
-                final XmldbURI childName = i.next();
-                final XmldbURI childUri = collection.getURI().append(childName);
-                try(final Collection child = openCollection(childUri, LockMode.READ_LOCK)) {
-                    if (child == null) {
-                        throw new IOException("Collection '" + childUri + "' not found");
-                    } else {
-                        reindexCollection(transaction, child, mode);
-                    }
-                }
-            }
-        } catch(final LockException e) {
-            LOG.error("LockException while reindexing child collections of collection '" + collection.getURI() + ". Skipping...", e);
-        }
     }
 
     private void dropCollectionIndex(final Txn transaction,
@@ -2328,6 +2363,7 @@ public class NativeBroker extends DBBroker {
             doc.write(os);
             final Value key = new CollectionStore.DocumentKey(doc.getCollection().getId(), doc.getResourceType(), doc.getDocId());
             collectionsDb.put(transaction, key, os.data(), true);
+            pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.modified(transaction, doc.getURI()));
             //} catch (ReadOnlyException e) {
             //LOG.warn(DATABASE_IS_READ_ONLY);
         } catch(final LockException e) {
@@ -2357,6 +2393,18 @@ public class NativeBroker extends DBBroker {
 
     public Path getCollectionBinaryFileFsPath(
             @EnsureLocked(mode=LockMode.READ_LOCK, type=LockType.COLLECTION) final XmldbURI uri) {
+        final Optional<BlobStore> blobStore = pool.getBlobStore();
+        if (blobStore.isPresent()) {
+            try {
+                final Path blobFile = blobStore.get().getBlobFile(uri);
+                if (blobFile != null) {
+                    return blobFile;
+                }
+            } catch (final IOException e) {
+                LOG.warn("Unable to read the blob store entry of " + uri + ": " + e.getMessage(), e);
+            }
+        }
+
         String suri = uri.getURI().toString();
         if(suri.startsWith("/")) {
             suri = suri.substring(1);
@@ -2398,6 +2446,12 @@ public class NativeBroker extends DBBroker {
     @Override
     public void storeBinaryResource(final Txn transaction, final BinaryDocument blob, final byte[] data)
             throws IOException {
+        if (pool.getBlobStore().isPresent()) {
+            try (final InputStream is = new FastByteArrayInputStream(data)) {
+                storeBinaryResource(transaction, blob, is);
+            }
+            return;
+        }
         storeBinaryResource(transaction, blob, dest -> {
             try(final InputStream is = new FastByteArrayInputStream(data)) {
                 Files.copy(is, dest);
@@ -2408,6 +2462,13 @@ public class NativeBroker extends DBBroker {
     @Override
     public void storeBinaryResource(final Txn transaction, final BinaryDocument blob, final InputStream is)
             throws IOException {
+        final Optional<BlobStore> blobStore = pool.getBlobStore();
+        if (blobStore.isPresent()) {
+            blobStore.get().store(transaction, blob.getURI(), is);
+            // the content may have been stored before the blob store was enabled
+            Files.deleteIfExists(getCollectionFile(getFsDir(), blob.getURI(), false));
+            return;
+        }
         storeBinaryResource(transaction, blob, dest -> Files.copy(is, dest));
     }
 
@@ -2588,12 +2649,27 @@ public class NativeBroker extends DBBroker {
 
     @Override
     public Path getBinaryFile(final BinaryDocument blob) throws IOException {
+        final Optional<BlobStore> blobStore = pool.getBlobStore();
+        if (blobStore.isPresent()) {
+            final Path blobFile = blobStore.get().getBlobFile(blob.getURI());
+            if (blobFile != null) {
+                return blobFile;
+            }
+        }
         return getCollectionFile(getFsDir(), blob.getURI(), false);
     }
 
     @Override
     public InputStream getBinaryResource(final BinaryDocument blob)
         throws IOException {
+        final Optional<BlobStore> blobStore = pool.getBlobStore();
+        if (blobStore.isPresent()) {
+            // the stream lets storeBinaryResource copy the blob by reference
+            final InputStream is = blobStore.get().getBlob(blob.getURI());
+            if (is != null) {
+                return is;
+            }
+        }
         return Files.newInputStream(getBinaryFile(blob));
     }
 
@@ -2965,7 +3041,8 @@ public class NativeBroker extends DBBroker {
                 // reindexing
                 reindexXMLResource(transaction, sourceDocument, IndexMode.REPAIR);
             }
-        } else {
+            pool.getFragmentationMonitor().move(sourceDocumentUri, destinationDocumentUri);
+        } else if (!(pool.getBlobStore().isPresent() && pool.getBlobStore().get().move(transaction, sourceDocumentUri, destinationDocumentUri))) {
             // binary resource
             final Path fsSourceDocument = getCollectionFile(getFsDir(), sourceDocumentUri, false);
             final Path fsTargetCollection = getCollectionFile(getFsDir(), targetCollectionUri, true);
@@ -3071,6 +3148,7 @@ public class NativeBroker extends DBBroker {
                 }
             }.run();
             removeResourceMetadata(transaction, document);
+            pool.getFragmentationMonitor().remove(document.getURI());
             if(freeDocId) {
                 collectionsDb.freeResourceId(document.getDocId());
 
@@ -3110,7 +3188,7 @@ public class NativeBroker extends DBBroker {
         }
 
         final Path binFile = getCollectionFile(getFsDir(), blob.getURI(), false);
-        if(Files.exists(binFile)) {
+        if(!removeBlob(transaction, blob.getURI()) && Files.exists(binFile)) {
             if(fsJournalDir.isPresent()) {
                 final StreamableDigest streamableDigest = BINARY_RESOURCE_DIGEST_TYPE.newStreamableDigest();
                 FileUtils.digest(binFile, streamableDigest);
@@ -3144,6 +3222,18 @@ public class NativeBroker extends DBBroker {
         getIndexController().flush();
     }
 
+    /**
+     * Releases the content of a binary document held by the blob store.
+     *
+     * @param transaction The transaction
+     * @param uri The URI of the binary document
+     * @return true if the content was held by the blob store, false if it is stored in the fs directory
+     */
+    private boolean removeBlob(final Txn transaction, final XmldbURI uri) throws IOException {
+        final Optional<BlobStore> blobStore = pool.getBlobStore();
+        return blobStore.isPresent() && blobStore.get().remove(transaction, uri);
+    }
+
     @Override
     public void removeResourceMetadata(final Txn transaction,
             @EnsureLocked(mode=LockMode.WRITE_LOCK) final DocumentImpl document) {
@@ -3154,6 +3244,7 @@ public class NativeBroker extends DBBroker {
             }
             final Value key = new CollectionStore.DocumentKey(document.getCollection().getId(), document.getResourceType(), document.getDocId());
             collectionsDb.remove(transaction, key);
+            pool.getBackupChangeLog().ifPresent(changeLog -> changeLog.deleted(transaction, document.getURI()));
         } catch(final LockException e) {
             LOG.error("Failed to acquire lock on " + FileUtils.fileName(collectionsDb.getFile()));
         }
@@ -3295,6 +3386,7 @@ public class NativeBroker extends DBBroker {
             doc.getMetadata().setPageCount(tempDoc.getMetadata().getPageCount());
             storeXMLResource(transaction, doc);
             closeDocument();
+            pool.getFragmentationMonitor().update(doc);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Defragmentation took " + (System.currentTimeMillis() - start) + "ms.");
             }
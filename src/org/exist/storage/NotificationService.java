@@ -21,22 +21,64 @@
  */
 package org.exist.storage;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.numbering.NodeId;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.exist.dom.persistent.IStoredNode;
 
+import static org.exist.util.ThreadUtils.newInstanceThread;
+
 /**
  * Global notification service for document updates. Other classes
  * can subscribe to this service to be notified of document modifications,
  * removals or additions.
  *
+ * {@link UpdateListener}s are notified on the thread which made the change,
+ * before its transaction has committed. {@link AfterCommitListener}s and
+ * the triggers configured to run after commit are notified once the
+ * transaction has committed, on a pool of worker threads. The events of a
+ * collection are always delivered by the same worker, in commit order, and
+ * in batches of up to {@link #PROPERTY_BATCH_SIZE} events.
+ *
+ * The queue of each worker is bounded. A transaction which commits while a
+ * queue is full waits for the slow listeners up to
+ * {@link #PROPERTY_QUEUE_TIMEOUT} milliseconds in total, as it may still hold
+ * its locks. The events which still do not fit are then delivered by the
+ * committing thread itself once the transaction has been closed, so that no
+ * event is lost and the transaction is slowed down to the pace of the
+ * listeners. Such an event may be delivered before the events of its
+ * collection which are still queued, and while the worker delivers another
+ * batch to the same listener. The queue metrics are available from the
+ * service and through JMX.
+ *
  * @author wolf
  */
 @ThreadSafe
@@ -45,12 +87,131 @@ public class NotificationService implements BrokerPoolService {
     private static final long serialVersionUID = -3629584664969740903L;
     private static final Logger LOG = LogManager.getLogger(NotificationService.class);
 
-    private final Map<UpdateListener, Object> listeners = new IdentityHashMap<>();
+    public static final String CONFIGURATION_ELEMENT_NAME = "notifications";
+    public static final String WORKERS_ATTRIBUTE = "workers";
+    public static final String PROPERTY_WORKERS = "db-connection.notifications.workers";
+    public static final String QUEUE_SIZE_ATTRIBUTE = "queue-size";
+    public static final String PROPERTY_QUEUE_SIZE = "db-connection.notifications.queue-size";
+    public static final String BATCH_SIZE_ATTRIBUTE = "batch-size";
+    public static final String PROPERTY_BATCH_SIZE = "db-connection.notifications.batch-size";
+    public static final String QUEUE_TIMEOUT_ATTRIBUTE = "queue-timeout";
+    public static final String PROPERTY_QUEUE_TIMEOUT = "db-connection.notifications.queue-timeout";
+
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 1000;
+
+    private static final long STOP_TIMEOUT = 30000;
+
+    @GuardedBy("this") private final Map<UpdateListener, Object> listeners = new IdentityHashMap<>();
+    private volatile UpdateListener[] listenerArray = new UpdateListener[0];
+    private final Set<AfterCommitListener> afterCommitListeners = new CopyOnWriteArraySet<>();
+
+    /**
+     * The events of the running transactions, by transaction id
+     */
+    private final ConcurrentMap<Long, PendingEvents> pending = new ConcurrentHashMap<>();
+
+    private int workerCount = DEFAULT_WORKERS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+
+    private BrokerPool pool;
+    private Worker[] workers = new Worker[0];
+    private volatile boolean started = false;
+
+    /**
+     * The events committed before the workers are started
+     */
+    @GuardedBy("this") private final List<Queued> beforeStart = new ArrayList<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder blockedTime = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong maxDeliveryLag = new AtomicLong();
 
     public NotificationService() {
         super();
     }
 
+    @Override
+    public void configure(final Configuration configuration) {
+        this.workerCount = Math.max(1, configuration.getProperty(PROPERTY_WORKERS, DEFAULT_WORKERS));
+        this.queueSize = Math.max(workerCount, configuration.getProperty(PROPERTY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+        this.batchSize = Math.max(1, configuration.getProperty(PROPERTY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.queueTimeout = Math.max(0, configuration.getProperty(PROPERTY_QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT));
+    }
+
+    @Override
+    public void prepare(final BrokerPool brokerPool) {
+        this.pool = brokerPool;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, queueSize / workerCount);
+        }
+    }
+
+    @Override
+    public void startMultiUser(final BrokerPool brokerPool) {
+        final List<Queued> overflow = new ArrayList<>();
+        synchronized (this) {
+            for (final Worker worker : workers) {
+                worker.thread.start();
+            }
+            started = true;
+            final long deadline = deadline();
+            for (final Queued event : beforeStart) {
+                if (!enqueue(event.listener, event.event, deadline)) {
+                    overflow.add(event);
+                }
+            }
+            beforeStart.clear();
+        }
+        if (!overflow.isEmpty()) {
+            LOG.warn("Delivering " + overflow.size() + " events committed during startup on the starting thread, " +
+                    "the queues are full");
+            deliver(overflow);
+        }
+    }
+
+    @Override
+    public void stop(final DBBroker systemBroker) {
+        stopWorkers();
+    }
+
+    @Override
+    public void shutdown() {
+        stopWorkers();
+    }
+
+    private void stopWorkers() {
+        // deliver the events which are queued already
+        final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (final Worker worker : workers) {
+            worker.running = false;
+        }
+        for (final Worker worker : workers) {
+            try {
+                worker.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.thread.isAlive()) {
+                LOG.warn("Discarding " + worker.queue.size() + " undelivered events of " + worker.thread.getName());
+                worker.thread.interrupt();
+            }
+        }
+    }
+
     /**
      * Subscribe an {@link UpdateListener} to receive notifications.
      *
@@ -58,6 +219,7 @@ public class NotificationService implements BrokerPoolService {
      */
     public synchronized void subscribe(final UpdateListener listener) {
         listeners.put(listener, new Object());
+        listenerArray = listeners.keySet().toArray(new UpdateListener[0]);
     }
 
     /**
@@ -70,26 +232,162 @@ public class NotificationService implements BrokerPoolService {
         if (i == null) {
             throw new RuntimeException(hashCode() + " listener not found: " + listener.hashCode());
         }
+        listenerArray = listeners.keySet().toArray(new UpdateListener[0]);
         listener.unsubscribe();
     }
 
+    /**
+     * Subscribe an {@link AfterCommitListener} to receive the changes
+     * to documents after they have been committed.
+     *
+     * @param listener
+     */
+    public void subscribeAfterCommit(final AfterCommitListener listener) {
+        afterCommitListeners.add(listener);
+    }
+
+    /**
+     * Unsubscribe an {@link AfterCommitListener}.
+     *
+     * @param listener
+     */
+    public void unsubscribeAfterCommit(final AfterCommitListener listener) {
+        afterCommitListeners.remove(listener);
+    }
+
     /**
      * Notify all subscribers that a document has been updated/removed or
      * a new document has been added.
      *
+     * The {@link AfterCommitListener}s are notified immediately, use
+     * {@link #notifyUpdate(Txn, DocumentImpl, int)} when the change is made
+     * by a transaction.
+     *
+     * @param document
+     * @param event
+     */
+    public void notifyUpdate(final DocumentImpl document, final int event) {
+        notifyUpdate(null, document, event);
+    }
+
+    /**
+     * Notify all subscribers that a document has been updated/removed or
+     * a new document has been added by a transaction. The
+     * {@link AfterCommitListener}s are notified when the transaction commits.
+     *
+     * @param transaction the transaction which made the change, or null
      * @param document
      * @param event
      */
-    public synchronized void notifyUpdate(final DocumentImpl document, final int event) {
-        listeners.keySet().forEach(listener -> listener.documentUpdated(document, event));
+    public void notifyUpdate(@Nullable final Txn transaction, final DocumentImpl document, final int event) {
+        for (final UpdateListener listener : listenerArray) {
+            listener.documentUpdated(document, event);
+        }
+        if (!afterCommitListeners.isEmpty()) {
+            final DocumentEvent documentEvent = new DocumentEvent(DocumentEvent.Type.fromUpdateListenerEvent(event), document, null);
+            for (final AfterCommitListener listener : afterCommitListeners) {
+                afterCommit(transaction, listener, documentEvent);
+            }
+        }
     }
 
     /**
      * Notify all subscribers that a node has been moved. Nodes may be moved during a
      * defragmentation run.
      */
-    public synchronized void notifyMove(final NodeId oldNodeId, final IStoredNode newNode) {
-        listeners.keySet().forEach(listener -> listener.nodeMoved(oldNodeId, newNode));
+    public void notifyMove(final NodeId oldNodeId, final IStoredNode newNode) {
+        for (final UpdateListener listener : listenerArray) {
+            listener.nodeMoved(oldNodeId, newNode);
+        }
+    }
+
+    /**
+     * Deliver an event to a listener once a transaction has committed.
+     * The event is discarded if the transaction is aborted.
+     *
+     * @param transaction the transaction, or null to deliver the event immediately
+     * @param listener the listener
+     * @param event the event
+     */
+    public void afterCommit(@Nullable final Txn transaction, final AfterCommitListener listener, final DocumentEvent event) {
+        if (transaction == null) {
+            if (!submit(listener, event, deadline())) {
+                LOG.warn("Delivering " + event + " to " + listener + " on the calling thread, the queue is full, " +
+                        "the listeners may be too slow");
+                deliver(Collections.singletonList(new Queued(listener, event)));
+            }
+        } else {
+            pending.computeIfAbsent(transaction.getId(), id -> {
+                final PendingEvents pendingEvents = new PendingEvents(id);
+                transaction.registerListener(pendingEvents);
+                return pendingEvents;
+            }).add(listener, event);
+        }
+    }
+
+    /**
+     * @return the time until which a committing thread may wait for space in the queues, see {@link System#nanoTime()}
+     */
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+    }
+
+    /**
+     * @return false if the event has not been queued as the queue is full,
+     *     the calling thread has to deliver it then
+     */
+    private boolean submit(final AfterCommitListener listener, final DocumentEvent event, final long deadline) {
+        submitted.increment();
+        if (!started) {
+            synchronized (this) {
+                if (!started) {
+                    beforeStart.add(new Queued(listener, event));
+                    return true;
+                }
+            }
+        }
+        return enqueue(listener, event, deadline);
+    }
+
+    /**
+     * @return false if the queue of the worker is still full at the deadline
+     */
+    private boolean enqueue(final AfterCommitListener listener, final DocumentEvent event, final long deadline) {
+        if (worker(event.getCollectionUri()).enqueue(listener, event, deadline)) {
+            return true;
+        }
+        overflowed.increment();
+        return false;
+    }
+
+    /**
+     * Delivers events in batches, on a worker or on a committing thread
+     * for the events which do not fit in the queues.
+     */
+    private void deliver(final List<Queued> events) {
+        final Map<BatchKey, Batch> byListener = new LinkedHashMap<>();
+        for (final Queued event : events) {
+            byListener.computeIfAbsent(new BatchKey(event.listener, event.event.getCollectionUri()), key -> new Batch())
+                    .add(event.event);
+        }
+
+        for (final Map.Entry<BatchKey, Batch> batch : byListener.entrySet()) {
+            final List<DocumentEvent> batchEvents = batch.getValue().events;
+            maxDeliveryLag.accumulateAndGet(System.nanoTime() - batchEvents.get(0).getCreated(), Math::max);
+            try {
+                batch.getKey().listener.afterCommit(pool, batch.getKey().collectionUri, batchEvents);
+                delivered.add(batchEvents.size());
+            } catch (final Throwable t) {
+                failed.add(batchEvents.size());
+                LOG.error("Failed to deliver " + batchEvents.size() + " events of " + batch.getKey().collectionUri
+                        + " to " + batch.getKey().listener + ": " + t.getMessage(), t);
+            }
+            batches.increment();
+        }
+    }
+
+    private Worker worker(final XmldbURI collectionUri) {
+        return workers[(collectionUri.hashCode() & Integer.MAX_VALUE) % workers.length];
     }
 
     public synchronized void debug() {
@@ -97,5 +395,284 @@ public class NotificationService implements BrokerPoolService {
             LOG.debug("Registered UpdateListeners:");
         }
         listeners.keySet().forEach(UpdateListener::debug);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Registered AfterCommitListeners: " + afterCommitListeners.size() + ", queued events: " + queued.get());
+        }
+    }
+
+    /**
+     * @return the number of events submitted for delivery after commit
+     */
+    public long getSubmittedEvents() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of events delivered after commit
+     */
+    public long getDeliveredEvents() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of update events which were coalesced with the
+     *     previous update of the same document in a batch
+     */
+    public long getCoalescedEvents() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of events whose listener failed
+     */
+    public long getFailedEvents() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of batches delivered
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the number of events currently queued for the workers
+     */
+    public int getQueuedEvents() {
+        return queued.get();
+    }
+
+    /**
+     * @return the maximum number of events queued for the workers
+     */
+    public int getMaxQueuedEvents() {
+        return maxQueued.get();
+    }
+
+    /**
+     * @return the capacity of the queues of the workers
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @return the number of times a thread waited for the listeners as a queue was full
+     */
+    public long getBlockedEnqueues() {
+        return blocked.sum();
+    }
+
+    /**
+     * @return the total time threads waited for the listeners as a queue was full, in milliseconds
+     */
+    public long getBlockedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedTime.sum());
+    }
+
+    /**
+     * @return the number of events delivered by the committing thread as a
+     *     queue was full after waiting for the listeners timed out
+     */
+    public long getOverflowedEvents() {
+        return overflowed.sum();
+    }
+
+    /**
+     * @return the maximum time from the creation of an event to its delivery, in milliseconds
+     */
+    public long getMaxDeliveryLag() {
+        return TimeUnit.NANOSECONDS.toMillis(maxDeliveryLag.get());
+    }
+
+    /**
+     * Discard the maximums recorded so far.
+     */
+    public void resetMaximums() {
+        maxQueued.set(queued.get());
+        maxDeliveryLag.set(0);
+    }
+
+    /**
+     * The events of a transaction, which are submitted when it commits.
+     */
+    private class PendingEvents implements TxnListener {
+        private final long transactionId;
+        private final List<Queued> events = new ArrayList<>();
+        /**
+         * The events which did not fit in the queues, delivered when the transaction is closed
+         */
+        private final List<Queued> overflow = new ArrayList<>();
+
+        PendingEvents(final long transactionId) {
+            this.transactionId = transactionId;
+        }
+
+        synchronized void add(final AfterCommitListener listener, final DocumentEvent event) {
+            events.add(new Queued(listener, event));
+        }
+
+        @Override
+        public void commit() {
+            pending.remove(transactionId);
+            synchronized (this) {
+                // the transaction may still hold its locks, so it waits for the queues once
+                final long deadline = deadline();
+                for (final Queued event : events) {
+                    if (!submit(event.listener, event.event, deadline)) {
+                        overflow.add(event);
+                    }
+                }
+                events.clear();
+            }
+        }
+
+        @Override
+        public void close() {
+            final List<Queued> overflowed;
+            synchronized (this) {
+                if (overflow.isEmpty()) {
+                    return;
+                }
+                overflowed = new ArrayList<>(overflow);
+                overflow.clear();
+            }
+            // the transaction has released its locks and a trigger can begin its own transaction
+            LOG.warn("Delivering " + overflowed.size() + " events of transaction " + transactionId
+                    + " on the committing thread, the queues are full, the listeners may be too slow");
+            deliver(overflowed);
+        }
+
+        @Override
+        public void abort() {
+            pending.remove(transactionId);
+        }
+    }
+
+    private static class Queued {
+        final AfterCommitListener listener;
+        final DocumentEvent event;
+
+        Queued(final AfterCommitListener listener, final DocumentEvent event) {
+            this.listener = listener;
+            this.event = event;
+        }
+    }
+
+    /**
+     * The listener and collection of a batch of events.
+     */
+    private static class BatchKey {
+        final AfterCommitListener listener;
+        final XmldbURI collectionUri;
+
+        BatchKey(final AfterCommitListener listener, final XmldbURI collectionUri) {
+            this.listener = listener;
+            this.collectionUri = collectionUri;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            final BatchKey other = (BatchKey) o;
+            return listener.equals(other.listener) && collectionUri.equals(other.collectionUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * listener.hashCode() + collectionUri.hashCode();
+        }
+    }
+
+    /**
+     * The events of a batch for a listener and collection, where an update
+     * of a document replaces the previous update of the document if no other
+     * event of the document came in between.
+     */
+    private class Batch {
+        final List<DocumentEvent> events = new ArrayList<>();
+        final Map<XmldbURI, Integer> lastEvent = new HashMap<>();
+
+        void add(final DocumentEvent event) {
+            final Integer last = lastEvent.get(event.getDocumentUri());
+            if (last != null && event.getType() == DocumentEvent.Type.UPDATE
+                    && events.get(last).getType() == DocumentEvent.Type.UPDATE) {
+                events.set(last, event);
+                coalesced.increment();
+                return;
+            }
+            lastEvent.put(event.getDocumentUri(), events.size());
+            events.add(event);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<Queued> queue = new LinkedBlockingQueue<>();
+        private final Semaphore capacity;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Worker(final int id, final int capacity) {
+            this.capacity = new Semaphore(Math.max(1, capacity));
+            this.thread = newInstanceThread(pool, "notification-worker-" + id, this);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @param deadline the time until which to wait for space in the queue, see {@link System#nanoTime()}
+         * @return false if the queue is still full at the deadline
+         */
+        boolean enqueue(final AfterCommitListener listener, final DocumentEvent event, final long deadline) {
+            if (!capacity.tryAcquire()) {
+                final long start = System.nanoTime();
+                boolean acquired = false;
+                if (deadline - start > 0) {
+                    blocked.increment();
+                    try {
+                        acquired = capacity.tryAcquire(deadline - start, TimeUnit.NANOSECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    blockedTime.add(System.nanoTime() - start);
+                }
+                if (!acquired) {
+                    return false;
+                }
+            }
+            queue.add(new Queued(listener, event));
+            final int size = queued.incrementAndGet();
+            maxQueued.accumulateAndGet(size, Math::max);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final List<Queued> events = new ArrayList<>(batchSize);
+            while (true) {
+                final Queued first;
+                try {
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                if (first == null) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+                events.add(first);
+                queue.drainTo(events, batchSize - 1);
+
+                capacity.release(events.size());
+                queued.addAndGet(-events.size());
+
+                deliver(events);
+                events.clear();
+            }
+        }
     }
 }
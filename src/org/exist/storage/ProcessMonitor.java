@@ -143,6 +143,8 @@ public class ProcessMonitor implements BrokerPoolService {
     }
 
     public void queryStarted(XQueryWatchDog watchdog) {
+        // attribute the resources used by this thread to the query
+        watchdog.getResourceUsage().start();
         synchronized (runningQueries) {
             watchdog.setRunningThread(Thread.currentThread().getName());
             runningQueries.add(watchdog);
@@ -154,6 +156,8 @@ public class ProcessMonitor implements BrokerPoolService {
         synchronized (runningQueries) {
             found = runningQueries.remove(watchdog);
         }
+        final ResourceUsage usage = watchdog.getResourceUsage();
+        usage.stop();
 
         // add to query history if elapsed time > minTime
         final long elapsed = System.currentTimeMillis() - watchdog.getStartTime();
@@ -164,6 +168,7 @@ public class ProcessMonitor implements BrokerPoolService {
                 QueryHistory qh = new QueryHistory(sourceKey, historyTimespan);
                 qh.setMostRecentExecutionTime(watchdog.getStartTime());
                 qh.setMostRecentExecutionDuration(elapsed);
+                qh.setMostRecentResourceUsage(usage);
                 qh.incrementInvocationCount();
                 if (trackRequests) {
                     qh.setRequestURI(getRequestURI(watchdog));
@@ -229,6 +234,13 @@ public class ProcessMonitor implements BrokerPoolService {
         private long mostRecentExecutionTime;
         private long mostRecentExecutionDuration;
         private int invocationCount = 0;
+        private long pageReads;
+        private long pageWrites;
+        private long cacheHits;
+        private long cacheMisses;
+        private long nodeProxies;
+        private long memtreeNodes;
+        private long allocatedBytes;
         private long expires;
 
         public QueryHistory(String source, long delay) {
@@ -272,6 +284,44 @@ public class ProcessMonitor implements BrokerPoolService {
             requestURI = uri;
         }
 
+        public void setMostRecentResourceUsage(ResourceUsage usage) {
+            this.pageReads = usage.getPageReads();
+            this.pageWrites = usage.getPageWrites();
+            this.cacheHits = usage.getCacheHits();
+            this.cacheMisses = usage.getCacheMisses();
+            this.nodeProxies = usage.getNodeProxies();
+            this.memtreeNodes = usage.getMemtreeNodes();
+            this.allocatedBytes = usage.getAllocatedBytes();
+        }
+
+        public long getPageReads() {
+            return pageReads;
+        }
+
+        public long getPageWrites() {
+            return pageWrites;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        public long getNodeProxies() {
+            return nodeProxies;
+        }
+
+        public long getMemtreeNodes() {
+            return memtreeNodes;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
         @Override
         public long getDelay(TimeUnit unit) {
             return unit.convert(expires - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
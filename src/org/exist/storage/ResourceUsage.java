@@ -0,0 +1,264 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Low-level resources used by a query: pages read from and written to the
+ * paged files, hits and misses of the page caches per file, persistent node
+ * proxies and in-memory nodes created, and the bytes allocated by the
+ * thread running the query.
+ *
+ * A query's usage is bound to the thread executing the query between
+ * {@link #start()} and {@link #stop()}, the storage code attributes the
+ * resources it uses to the usage bound to the current thread. The counters
+ * are only written by that thread, other threads may read slightly outdated
+ * values while the query is running. The usage of a query started while
+ * another query is running on the same thread, e.g. through util:eval, is
+ * added to the usage of the outer query when it stops. Likewise, the usage
+ * of a task evaluating a part of the query on another thread is added to
+ * the usage of the query when the task has completed.
+ */
+public class ResourceUsage {
+
+    private static final ThreadLocal<ResourceUsage> CURRENT = new ThreadLocal<>();
+
+    private static final com.sun.management.ThreadMXBean THREADS;
+    static {
+        com.sun.management.ThreadMXBean threads = null;
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+                threads = null;
+            }
+        }
+        THREADS = threads;
+    }
+
+    private long pageReads = 0;
+    private long pageWrites = 0;
+    private long nodeProxies = 0;
+    private long memtreeNodes = 0;
+    private final Map<String, long[]> caches = new ConcurrentHashMap<>();
+
+    private volatile long threadId = -1;
+    private long allocatedAtStart = 0;
+    private long allocatedBytes = 0;
+    private long taskAllocatedBytes = 0;
+
+    private ResourceUsage outer = null;
+    private int depth = 0;
+
+    /**
+     * Reset the counters and bind the usage to the current thread.
+     */
+    public void start() {
+        if (depth++ > 0) {
+            // the query is re-entered on the same thread
+            return;
+        }
+        pageReads = 0;
+        pageWrites = 0;
+        nodeProxies = 0;
+        memtreeNodes = 0;
+        caches.clear();
+        allocatedBytes = 0;
+        taskAllocatedBytes = 0;
+        allocatedAtStart = threadAllocatedBytes(Thread.currentThread().getId());
+        threadId = Thread.currentThread().getId();
+        outer = CURRENT.get();
+        CURRENT.set(this);
+    }
+
+    /**
+     * Unbind the usage from the current thread, which must be the thread
+     * which started it.
+     */
+    public void stop() {
+        if (depth == 0 || --depth > 0) {
+            return;
+        }
+        allocatedBytes = getAllocatedBytes();
+        threadId = -1;
+        if (outer != null) {
+            outer.add(this);
+            CURRENT.set(outer);
+            outer = null;
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * @return the usage bound to the current thread, or null if no query is running on it
+     */
+    public static ResourceUsage current() {
+        return CURRENT.get();
+    }
+
+    public static void pageRead() {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.pageReads++;
+        }
+    }
+
+    public static void pageWritten() {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.pageWrites++;
+        }
+    }
+
+    public static void cacheHit(final String cache) {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.cache(cache)[0]++;
+        }
+    }
+
+    public static void cacheMiss(final String cache) {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.cache(cache)[1]++;
+        }
+    }
+
+    public static void nodeProxyCreated() {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.nodeProxies++;
+        }
+    }
+
+    public static void memtreeNodeCreated() {
+        final ResourceUsage usage = CURRENT.get();
+        if (usage != null) {
+            usage.memtreeNodes++;
+        }
+    }
+
+    private long[] cache(final String cache) {
+        long[] counts = caches.get(cache);
+        if (counts == null) {
+            counts = new long[2];
+            caches.put(cache, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Add the usage of a task which has evaluated a part of the query on
+     * another thread, and has stopped. Must be called by the thread running
+     * the query.
+     *
+     * @param task the usage of the task
+     */
+    public void addTaskUsage(final ResourceUsage task) {
+        add(task);
+        taskAllocatedBytes += task.getAllocatedBytes();
+    }
+
+    private void add(final ResourceUsage other) {
+        pageReads += other.pageReads;
+        pageWrites += other.pageWrites;
+        nodeProxies += other.nodeProxies;
+        memtreeNodes += other.memtreeNodes;
+        for (final Map.Entry<String, long[]> entry : other.caches.entrySet()) {
+            final long[] counts = cache(entry.getKey());
+            counts[0] += entry.getValue()[0];
+            counts[1] += entry.getValue()[1];
+        }
+    }
+
+    public long getPageReads() {
+        return pageReads;
+    }
+
+    public long getPageWrites() {
+        return pageWrites;
+    }
+
+    public long getNodeProxies() {
+        return nodeProxies;
+    }
+
+    public long getMemtreeNodes() {
+        return memtreeNodes;
+    }
+
+    public long getCacheHits() {
+        long hits = 0;
+        for (final long[] counts : caches.values()) {
+            hits += counts[0];
+        }
+        return hits;
+    }
+
+    public long getCacheMisses() {
+        long misses = 0;
+        for (final long[] counts : caches.values()) {
+            misses += counts[1];
+        }
+        return misses;
+    }
+
+    /**
+     * @return the cache hits and misses by cache name, which is the name of the cached file
+     */
+    public Map<String, long[]> getCaches() {
+        final Map<String, long[]> copy = new TreeMap<>();
+        for (final Map.Entry<String, long[]> entry : caches.entrySet()) {
+            copy.put(entry.getKey(), new long[] { entry.getValue()[0], entry.getValue()[1] });
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the bytes allocated by the thread running the query in total,
+     *     including objects which were garbage collected since, or 0 if the
+     *     JVM does not measure the memory allocated by threads
+     */
+    public long getAllocatedBytes() {
+        final long id = threadId;
+        if (id == -1) {
+            return allocatedBytes;
+        }
+        final long allocated = threadAllocatedBytes(id);
+        return (allocated < 0 ? 0 : allocated - allocatedAtStart) + taskAllocatedBytes;
+    }
+
+    private static long threadAllocatedBytes(final long threadId) {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(threadId);
+    }
+
+    @Override
+    public String toString() {
+        return "page reads: " + pageReads + ", page writes: " + pageWrites +
+                ", cache hits: " + getCacheHits() + ", cache misses: " + getCacheMisses() +
+                ", node proxies: " + nodeProxies + ", memtree nodes: " + memtreeNodes +
+                ", allocated bytes: " + getAllocatedBytes();
+    }
+}
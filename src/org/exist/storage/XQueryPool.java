@@ -20,9 +20,16 @@
 package org.exist.storage;
 
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
@@ -31,9 +38,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
+import org.exist.source.DBSource;
 import org.exist.source.Source;
 import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.*;
+import org.exist.xquery.Module;
 import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
 
 /**
@@ -43,11 +53,22 @@ import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
  * {@link org.exist.source.Source} objects from which they were created.
  *
  * For each XQuery, a maximum of {@link #DEFAULT_MAX_QUERY_STACK_SIZE} compiled
- * expressions are kept in the pool.
+ * expressions are kept in the pool. A compiled expression carries the state of
+ * the execution it is used for, so concurrent executions of the same XQuery
+ * each need their own copy. Copies which have not been needed for the timeout,
+ * e.g. those compiled during a burst of requests, are dropped again, keeping one.
  * An XQuery expression will be removed from the pool if it has not been
  * used for a pre-defined timeout (default is {@link #DEFAULT_TIMEOUT}); these
  * settings can be configured in conf.xml.
  *
+ * By default, the validity of the sources of a pooled query is not checked each time
+ * it is borrowed. Instead {@link XQueryPoolTrigger} removes the queries whose source,
+ * or any imported module, is stored in a database document which is changed. Sources
+ * outside of the database, e.g. files, are still checked on every borrow. A pooled
+ * query is checked in full once after it has entered the pool and, if a
+ * {@link #VALIDITY_TTL_ATTRIBUTE} is configured, again whenever it has not
+ * been checked for that time.
+ *
  * @author <a href="mailto:adam@evolvedbinary.com">Adam Retter</a>
  */
 @ThreadSafe
@@ -59,21 +80,45 @@ public class XQueryPool implements BrokerPoolService {
     public static final String MAX_STACK_SIZE_ATTRIBUTE = "max-stack-size";
     public static final String POOL_SIZE_ATTTRIBUTE = "size";
     public static final String TIMEOUT_ATTRIBUTE = "timeout";
+    public static final String INVALIDATE_ON_CHANGE_ATTRIBUTE = "invalidate-on-change";
+    public static final String VALIDITY_TTL_ATTRIBUTE = "validity-ttl";
 
     public static final String PROPERTY_MAX_STACK_SIZE = "db-connection.query-pool.max-stack-size";
     public static final String PROPERTY_POOL_SIZE = "db-connection.query-pool.size";
     public static final String PROPERTY_TIMEOUT = "db-connection.query-pool.timeout";
+    public static final String PROPERTY_INVALIDATE_ON_CHANGE = "db-connection.query-pool.invalidate-on-change";
+    public static final String PROPERTY_VALIDITY_TTL = "db-connection.query-pool.validity-ttl";
 
     private static final int DEFAULT_MAX_POOL_SIZE = 128;
     private static final int DEFAULT_MAX_QUERY_STACK_SIZE = 64;
     private static final long DEFAULT_TIMEOUT = 120_000L;   // ms (i.e. 2 mins)
+    private static final boolean DEFAULT_INVALIDATE_ON_CHANGE = true;
+    private static final long DEFAULT_VALIDITY_TTL = -1;    // i.e. never check again
 
     private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
     private int maxQueryStackSize = DEFAULT_MAX_QUERY_STACK_SIZE;
     private long timeout = DEFAULT_TIMEOUT;
+    private boolean invalidateOnChange = DEFAULT_INVALIDATE_ON_CHANGE;
+    private long validityTtl = DEFAULT_VALIDITY_TTL;
 
     private final AtomicBoolean configured = new AtomicBoolean();
-    private Cache<Source, Queue<CompiledXQuery>> cache;
+    private Cache<Source, PooledQueries> cache;
+
+    /**
+     * Supplies the current time in milliseconds.
+     */
+    private final LongSupplier clock;
+
+    public XQueryPool() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock supplies the current time in milliseconds
+     */
+    XQueryPool(final LongSupplier clock) {
+        this.clock = clock;
+    }
 
     @Override
     public void configure(final Configuration configuration) {
@@ -82,6 +127,8 @@ public class XQueryPool implements BrokerPoolService {
             final Integer maxStSz = (Integer) configuration.getProperty(PROPERTY_MAX_STACK_SIZE);
             final Integer maxPoolSz = (Integer) configuration.getProperty(PROPERTY_POOL_SIZE);
             final Long t = (Long) configuration.getProperty(PROPERTY_TIMEOUT);
+            final Boolean invalidate = (Boolean) configuration.getProperty(PROPERTY_INVALIDATE_ON_CHANGE);
+            final Long ttl = (Long) configuration.getProperty(PROPERTY_VALIDITY_TTL);
             final NumberFormat nf = NumberFormat.getNumberInstance();
 
             if (maxPoolSz != null) {
@@ -102,20 +149,43 @@ public class XQueryPool implements BrokerPoolService {
                 this.timeout = DEFAULT_TIMEOUT;
             }
 
+            if (invalidate != null) {
+                this.invalidateOnChange = invalidate;
+            } else {
+                this.invalidateOnChange = DEFAULT_INVALIDATE_ON_CHANGE;
+            }
+
+            if (ttl != null) {
+                this.validityTtl = ttl;
+            } else {
+                this.validityTtl = DEFAULT_VALIDITY_TTL;
+            }
+
             this.cache = Caffeine.newBuilder()
                     .maximumSize(maxPoolSize)
                     .expireAfterAccess(timeout, TimeUnit.MILLISECONDS)
+                    .ticker(() -> TimeUnit.MILLISECONDS.toNanos(clock.getAsLong()))
                     .build();
 
             LOG.info("QueryPool: " +
             "size = " + nf.format(maxPoolSize) + "; " +
             "maxQueryStackSize = " + nf.format(maxQueryStackSize) + "; " +
-            "timeout = " + nf.format(timeout) + "; ");
+            "timeout = " + nf.format(timeout) + "; " +
+            "invalidateOnChange = " + invalidateOnChange + "; " +
+            "validityTtl = " + nf.format(validityTtl) + "; ");
         } else {
             throw new IllegalStateException("XQuery Pool has already been configured");
         }
     }
 
+    @Override
+    public void prepare(final BrokerPool brokerPool) {
+        if (invalidateOnChange) {
+            brokerPool.registerDocumentTrigger(XQueryPoolTrigger.class);
+            brokerPool.registerCollectionTrigger(XQueryPoolTrigger.class);
+        }
+    }
+
     /**
      * Returns a compiled XQuery to the XQuery pool.
      *
@@ -128,16 +198,17 @@ public class XQueryPool implements BrokerPoolService {
         }
 
         cache.asMap().compute(source, (key, value) -> {
-            final Queue<CompiledXQuery> queue;
-            if (value != null) {
-                queue = value;
-            } else {
-                queue = new MpmcAtomicArrayQueue<>(maxQueryStackSize);
+            if (value == null) {
+                return new PooledQueries(compiledXQuery, maxQueryStackSize, clock.getAsLong());
             }
 
-            queue.offer(compiledXQuery);
+            // a query compiled from other versions of the database documents
+            // than the pooled ones is stale or will soon replace them
+            if (!invalidateOnChange || value.dependencies.equals(getDependencies(compiledXQuery))) {
+                value.queue.offer(compiledXQuery);
+            }
 
-            return queue;
+            return value;
         });
     }
 
@@ -160,42 +231,57 @@ public class XQueryPool implements BrokerPoolService {
         }
 
         // get (compute by checking validity) the stack of compiled XQuerys for the source
-        final Queue<CompiledXQuery> queue = cache.asMap().computeIfPresent(source, (key, value) -> {
-            if(!value.isEmpty()) {
+        final PooledQueries pooled = cache.asMap().computeIfPresent(source, (key, value) -> {
+            final CompiledXQuery firstCompiledXQuery = value.queue.peek();
+            if (firstCompiledXQuery != null) {
+                final long now = clock.getAsLong();
+
+                // changes to database documents remove the stack, others must be checked
+                final boolean checkAll = !invalidateOnChange || value.validated == -1
+                        || (validityTtl > -1 && now - value.validated > validityTtl);
 
                 // remove any stack of compiled queries which are now invalid
-                final CompiledXQuery firstCompiledXQuery = value.peek();
                 final Source cachedSource = firstCompiledXQuery.getSource();
-                Source.Validity validity = cachedSource.isValid(broker);
-                if (validity == Source.Validity.UNKNOWN) {
-                    validity = cachedSource.isValid(source);
-                }
+                if (checkAll || !(cachedSource instanceof DBSource)) {
+                    Source.Validity validity = cachedSource.isValid(broker);
+                    if (validity == Source.Validity.UNKNOWN) {
+                        validity = cachedSource.isValid(source);
+                    }
 
-                if (validity == Source.Validity.INVALID || validity == Source.Validity.UNKNOWN) {
-                    if(LOG.isDebugEnabled()) {
-                        LOG.debug(source.getKey() + " is invalid, removing from XQuery Pool...");
+                    if (validity == Source.Validity.INVALID || validity == Source.Validity.UNKNOWN) {
+                        if(LOG.isDebugEnabled()) {
+                            LOG.debug(source.getKey() + " is invalid, removing from XQuery Pool...");
+                        }
+                        return null;    // returning null will remove the entry from the cache
                     }
-                    return null;    // returning null will remove the entry from the cache
                 }
 
                 // the compiled query is no longer valid: one of the imported
                 // modules may have changed
-                if(!firstCompiledXQuery.isValid()) {
+                if (checkAll) {
+                    if (!firstCompiledXQuery.isValid()) {
+                        return null;    // returning null will remove the entry from the cache
+                    }
+                    value.validated = now;
+                } else if (!value.untrackedModulesValid(broker)) {
                     return null;    // returning null will remove the entry from the cache
                 }
+
+                value.trim(now, timeout);
             }
 
             return value;
         });
 
-        if(queue == null) {
+        if(pooled == null) {
             return null;
         }
 
-        final CompiledXQuery query = queue.poll();
+        final CompiledXQuery query = pooled.queue.poll();
         if(query == null) {
             return null;
         }
+        pooled.borrowed();
 
         //check execution permission
         source.validate(broker.getCurrentSubject(), Permission.EXECUTE);
@@ -209,4 +295,125 @@ public class XQueryPool implements BrokerPoolService {
     public void clear() {
         cache.invalidateAll();
     }
+
+    /**
+     * Removes the compiled queries whose source, or any imported module,
+     * is stored in the document or below the collection.
+     *
+     * @param uri the URI of a changed document or collection
+     */
+    public void invalidate(final XmldbURI uri) {
+        for (final Iterator<PooledQueries> it = cache.asMap().values().iterator(); it.hasNext(); ) {
+            final PooledQueries pooled = it.next();
+            for (final XmldbURI dependency : pooled.dependencies.keySet()) {
+                if (dependency.startsWith(uri)) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(dependency + " has changed, removing dependent query from XQuery Pool...");
+                    }
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the database documents which a compiled query was compiled from,
+     * with their modification time.
+     */
+    private static Map<XmldbURI, Long> getDependencies(final CompiledXQuery compiledXQuery) {
+        final Map<XmldbURI, Long> dependencies = new HashMap<>();
+        addDependency(dependencies, compiledXQuery.getSource());
+        for (final Iterator<Module> it = compiledXQuery.getContext().getAllModules(); it.hasNext(); ) {
+            final Module module = it.next();
+            if (!module.isInternalModule()) {
+                addDependency(dependencies, ((ExternalModule) module).getSource());
+            }
+        }
+        return dependencies;
+    }
+
+    private static void addDependency(final Map<XmldbURI, Long> dependencies, final Source source) {
+        if (source instanceof DBSource) {
+            dependencies.put(((DBSource) source).getDocumentPath(), ((DBSource) source).getLastModified());
+        }
+    }
+
+    /**
+     * The compiled queries of a source, all compiled from the same
+     * versions of the database documents.
+     */
+    private static class PooledQueries {
+        private final Queue<CompiledXQuery> queue;
+        private final Map<XmldbURI, Long> dependencies;
+        private final ExternalModule[] untrackedModules;
+
+        /**
+         * When the queries were last checked in full, or -1 if they
+         * have not been checked since they entered the pool.
+         */
+        private volatile long validated = -1;
+
+        /**
+         * The fewest compiled queries left idle in the queue by a borrow
+         * since {@link #lastTrim}.
+         */
+        private final AtomicInteger idleLow = new AtomicInteger(Integer.MAX_VALUE);
+        private volatile long lastTrim;
+
+        PooledQueries(final CompiledXQuery compiledXQuery, final int maxQueryStackSize, final long now) {
+            this.lastTrim = now;
+            this.queue = new MpmcAtomicArrayQueue<>(maxQueryStackSize);
+            this.queue.offer(compiledXQuery);
+            this.dependencies = getDependencies(compiledXQuery);
+
+            final List<ExternalModule> untracked = new ArrayList<>();
+            for (final Iterator<Module> it = compiledXQuery.getContext().getAllModules(); it.hasNext(); ) {
+                final Module module = it.next();
+                if (!module.isInternalModule() && !(((ExternalModule) module).getSource() instanceof DBSource)) {
+                    untracked.add((ExternalModule) module);
+                }
+            }
+            this.untrackedModules = untracked.toArray(new ExternalModule[0]);
+        }
+
+        void borrowed() {
+            idleLow.accumulateAndGet(queue.size(), Math::min);
+        }
+
+        /**
+         * Drops the compiled queries which were not needed by any borrow
+         * for the timeout, so that a burst of concurrent executions does
+         * not keep its copies in the pool for as long as the source is
+         * used. At least one compiled query is kept.
+         *
+         * @param now the current time
+         * @param timeout the time after which unused copies are dropped
+         */
+        void trim(final long now, final long timeout) {
+            if (now - lastTrim < timeout) {
+                return;
+            }
+
+            final int surplus = Math.min(idleLow.get(), queue.size() - 1);
+            for (int i = 0; i < surplus; i++) {
+                queue.poll();
+            }
+            if (surplus > 0 && LOG.isDebugEnabled()) {
+                LOG.debug("Dropped " + surplus + " unused compiled queries from XQuery Pool");
+            }
+
+            idleLow.set(queue.size());
+            lastTrim = now;
+        }
+
+        boolean untrackedModulesValid(final DBBroker broker) {
+            for (final ExternalModule module : untrackedModules) {
+                if (!module.moduleIsValid(broker)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import java.util.List;
+import java.util.Map;
+
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.CollectionTrigger;
+import org.exist.collections.triggers.DocumentTrigger;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Removes the compiled queries which depend on a changed document or
+ * collection from the {@link XQueryPool}.
+ *
+ * Registered for all collections by the {@link XQueryPool} when
+ * {@link XQueryPool#INVALIDATE_ON_CHANGE_ATTRIBUTE} is enabled.
+ */
+public class XQueryPoolTrigger implements DocumentTrigger, CollectionTrigger {
+
+    private boolean validating = false;
+
+    @Override
+    public void configure(final DBBroker broker, final Txn transaction, final Collection parent,
+            final Map<String, List<? extends Object>> parameters) throws TriggerException {
+        //Nothing to configure
+    }
+
+    private static void invalidate(final DBBroker broker, final XmldbURI uri) {
+        broker.getBrokerPool().getXQueryPool().invalidate(uri);
+    }
+
+    @Override
+    public void beforeCreateDocument(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+    }
+
+    @Override
+    public void afterCreateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        invalidate(broker, document.getURI());
+    }
+
+    @Override
+    public void beforeUpdateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        invalidate(broker, document.getURI());
+    }
+
+    @Override
+    public void beforeUpdateDocumentMetadata(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocumentMetadata(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+        invalidate(broker, document.getURI());
+    }
+
+    @Override
+    public void beforeCopyDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterCopyDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI oldUri) {
+        invalidate(broker, document.getURI());
+    }
+
+    @Override
+    public void beforeMoveDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterMoveDocument(final DBBroker broker, final Txn txn, final DocumentImpl document, final XmldbURI oldUri) {
+        invalidate(broker, oldUri);
+        invalidate(broker, document.getURI());
+    }
+
+    @Override
+    public void beforeDeleteDocument(final DBBroker broker, final Txn txn, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterDeleteDocument(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+        invalidate(broker, uri);
+    }
+
+    @Override
+    public boolean isValidating() {
+        return validating;
+    }
+
+    @Override
+    public void setValidating(final boolean validating) {
+        this.validating = validating;
+    }
+
+    @Override
+    public void beforeCreateCollection(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+    }
+
+    @Override
+    public void afterCreateCollection(final DBBroker broker, final Txn txn, final Collection collection) {
+    }
+
+    @Override
+    public void beforeCopyCollection(final DBBroker broker, final Txn txn, final Collection collection, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterCopyCollection(final DBBroker broker, final Txn txn, final Collection collection, final XmldbURI oldUri) {
+        invalidate(broker, collection.getURI());
+    }
+
+    @Override
+    public void beforeMoveCollection(final DBBroker broker, final Txn txn, final Collection collection, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterMoveCollection(final DBBroker broker, final Txn txn, final Collection collection, final XmldbURI oldUri) {
+        invalidate(broker, oldUri);
+        invalidate(broker, collection.getURI());
+    }
+
+    @Override
+    public void beforeDeleteCollection(final DBBroker broker, final Txn txn, final Collection collection) {
+    }
+
+    @Override
+    public void afterDeleteCollection(final DBBroker broker, final Txn txn, final XmldbURI uri) {
+        invalidate(broker, uri);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.Source;
+import org.exist.source.SourceFactory;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.util.MimeType;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+
+/**
+ * Startup Trigger which compiles the XQueries stored in the database, so that
+ * the first requests after a restart do not pay for parsing and compiling
+ * them, nor for loading and optimizing the classes involved.
+ *
+ * Main modules are compiled into the {@link XQueryPool}. Library modules are
+ * compiled once, which reports errors in them and warms up the compiler, as
+ * they are compiled again by every main module which imports them.
+ *
+ * <pre>
+ * {@code
+ * <trigger class="org.exist.storage.XQueryPoolWarmupTrigger">
+ *     <parameter name="collection" value="/db/apps"/>
+ *     <parameter name="replay" value="/db/system/warmup"/>
+ * </trigger>
+ * }
+ * </pre>
+ *
+ * The collection parameters name the collections which are scanned,
+ * recursively, for stored XQueries; by default /db/apps, where the
+ * application packages are installed. The optional replay parameters name
+ * stored XQueries, or collections of them, which are executed as the guest
+ * user, e.g. a recorded set of representative queries.
+ */
+public class XQueryPoolWarmupTrigger implements StartupTrigger {
+
+    private final static Logger LOG = LogManager.getLogger(XQueryPoolWarmupTrigger.class);
+
+    public static final String COLLECTION_PARAM = "collection";
+    public static final String REPLAY_PARAM = "replay";
+
+    private static final String DEFAULT_COLLECTION = "/db/apps";
+
+    private int mainModules = 0;
+    private int libraryModules = 0;
+    private int replayed = 0;
+    private int failed = 0;
+
+    @Override
+    public void execute(final DBBroker sysBroker, final Txn transaction, final Map<String, List<? extends Object>> params) {
+        final long start = System.currentTimeMillis();
+
+        for (final XmldbURI collectionUri : getUris(params, COLLECTION_PARAM, DEFAULT_COLLECTION)) {
+            for (final XmldbURI uri : findQueries(sysBroker, collectionUri)) {
+                compile(sysBroker, uri);
+            }
+        }
+
+        final List<XmldbURI> replay = getUris(params, REPLAY_PARAM, null);
+        if (!replay.isEmpty()) {
+            sysBroker.pushSubject(sysBroker.getBrokerPool().getSecurityManager().getGuestSubject());
+            try {
+                for (final XmldbURI uri : replay) {
+                    for (final XmldbURI queryUri : findQueries(sysBroker, uri)) {
+                        execute(sysBroker, queryUri);
+                    }
+                }
+            } finally {
+                sysBroker.popSubject();
+            }
+        }
+
+        LOG.info("XQuery warm-up compiled " + mainModules + " main modules and " + libraryModules
+                + " library modules, replayed " + replayed + " queries, " + failed + " failed, in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static List<XmldbURI> getUris(final Map<String, List<? extends Object>> params, final String name,
+            final String defaultValue) {
+        final List<? extends Object> values = params.get(name);
+        if (values == null || values.isEmpty()) {
+            return defaultValue == null ? Collections.emptyList() : Collections.singletonList(XmldbURI.create(defaultValue));
+        }
+
+        final List<XmldbURI> uris = new ArrayList<>();
+        for (final Object value : values) {
+            if (value instanceof String) {
+                uris.add(XmldbURI.create((String) value));
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Finds the stored XQueries in a collection and its descendants.
+     *
+     * @param broker the database broker
+     * @param uri the URI of a collection, or of a single XQuery
+     * @return the URIs of the stored XQueries
+     */
+    private List<XmldbURI> findQueries(final DBBroker broker, final XmldbURI uri) {
+        final List<XmldbURI> queries = new ArrayList<>();
+        try {
+            final List<XmldbURI> children = new ArrayList<>();
+            try (final Collection collection = broker.openCollection(uri, LockMode.READ_LOCK)) {
+                if (collection == null) {
+                    try (final LockedDocument lockedDoc = broker.getXMLResource(uri, LockMode.READ_LOCK)) {
+                        if (lockedDoc != null && isXQuery(lockedDoc.getDocument())) {
+                            queries.add(uri);
+                        }
+                    }
+                    return queries;
+                }
+
+                for (final Iterator<DocumentImpl> i = collection.iteratorNoLock(broker); i.hasNext(); ) {
+                    final DocumentImpl doc = i.next();
+                    if (isXQuery(doc)) {
+                        queries.add(doc.getURI());
+                    }
+                }
+                for (final Iterator<XmldbURI> i = collection.collectionIteratorNoLock(broker); i.hasNext(); ) {
+                    children.add(uri.append(i.next()));
+                }
+            }
+
+            for (final XmldbURI child : children) {
+                queries.addAll(findQueries(broker, child));
+            }
+        } catch (final PermissionDeniedException e) {
+            LOG.warn("Unable to scan " + uri + " for XQueries: " + e.getMessage());
+        }
+        return queries;
+    }
+
+    private static boolean isXQuery(final DocumentImpl doc) {
+        return doc.getResourceType() == DocumentImpl.BINARY_FILE
+                && MimeType.XQUERY_TYPE.getName().equals(doc.getMetadata().getMimeType());
+    }
+
+    private void compile(final DBBroker broker, final XmldbURI uri) {
+        final String path = XmldbURI.EMBEDDED_SERVER_URI_PREFIX + uri.toString();
+        try {
+            final Source source = SourceFactory.getSource(broker, null, path, false);
+            if (source == null) {
+                return;
+            }
+
+            final XQueryContext context = newContext(broker, uri);
+            final QName module = source.isModule();
+            if (module != null) {
+                context.importModule(module.getNamespaceURI(), module.getLocalPart(), path);
+                context.reset();
+                libraryModules++;
+            } else {
+                final CompiledXQuery compiled = broker.getBrokerPool().getXQueryService().compile(broker, context, source);
+                context.reset();
+                broker.getBrokerPool().getXQueryPool().returnCompiledXQuery(source, compiled);
+                mainModules++;
+            }
+        } catch (final IOException | PermissionDeniedException | XPathException | RuntimeException e) {
+            LOG.warn("Unable to compile " + uri + " during warm-up: " + e.getMessage());
+            failed++;
+        }
+    }
+
+    private void execute(final DBBroker broker, final XmldbURI uri) {
+        final String path = XmldbURI.EMBEDDED_SERVER_URI_PREFIX + uri.toString();
+        final XQueryPool pool = broker.getBrokerPool().getXQueryPool();
+        final XQuery xquery = broker.getBrokerPool().getXQueryService();
+
+        Source source = null;
+        CompiledXQuery compiled = null;
+        try {
+            source = SourceFactory.getSource(broker, null, path, false);
+            if (source == null) {
+                return;
+            }
+
+            compiled = pool.borrowCompiledXQuery(broker, source);
+            final XQueryContext context;
+            if (compiled == null) {
+                context = newContext(broker, uri);
+                compiled = xquery.compile(broker, context, source);
+            } else {
+                context = compiled.getContext();
+                context.prepareForReuse();
+            }
+
+            try {
+                xquery.execute(broker, compiled, null);
+                replayed++;
+            } finally {
+                context.runCleanupTasks();
+            }
+        } catch (final IOException | PermissionDeniedException | XPathException | RuntimeException e) {
+            LOG.warn("Unable to replay " + uri + " during warm-up: " + e.getMessage());
+            failed++;
+        } finally {
+            if (compiled != null) {
+                pool.returnCompiledXQuery(source, compiled);
+            }
+        }
+    }
+
+    private static XQueryContext newContext(final DBBroker broker, final XmldbURI uri) {
+        final XQueryContext context = new XQueryContext(broker.getBrokerPool());
+        context.setModuleLoadPath(XmldbURI.EMBEDDED_SERVER_URI_PREFIX + uri.removeLastSegment().toString());
+        return context;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.blob;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.MessageDigester;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.NativeBroker;
+import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.LogException;
+import org.exist.xmldb.XmldbURI;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Journal entry for a change of the blob a document refers to in the {@link BlobStore}.
+ * Both redo and undo set the reference to a fixed value, so they can be
+ * applied more than once.
+ *
+ * Serialized binary format is as follows:
+ *
+ * [uriLen, uri, previousLen, previous?, digestLen, digest?]
+ *
+ * uriLen:          2 bytes, unsigned short
+ * uri:             var length bytes, UTF-8 encoded java.lang.String
+ * previousLen:     1 byte, 0 if the document had no reference before the change
+ * previous:        previousLen bytes, digest of the blob referenced before the change
+ * digestLen:       1 byte, 0 if the reference was removed
+ * digest:          digestLen bytes, digest of the blob referenced after the change
+ */
+public class BlobReferenceLoggable extends AbstractLoggable {
+
+    private static final Logger LOG = LogManager.getLogger(BlobReferenceLoggable.class);
+
+    @Nullable private final BrokerPool pool;
+    private byte[] uri;
+    @Nullable private byte[] previous;
+    @Nullable private byte[] digest;
+
+    /**
+     * Creates a new instance of BlobReferenceLoggable.
+     *
+     * @param transactionId The database transaction id.
+     * @param uri the URI of the document.
+     * @param previous the digest referenced before the change, or null.
+     * @param digest the digest referenced after the change, or null if the reference is removed.
+     */
+    BlobReferenceLoggable(final long transactionId, final XmldbURI uri, @Nullable final byte[] previous,
+            @Nullable final byte[] digest) {
+        super(NativeBroker.LOG_BLOB_REFERENCE, transactionId);
+        this.pool = null;
+        this.uri = uri.toString().getBytes(UTF_8);
+        this.previous = previous;
+        this.digest = digest;
+    }
+
+    /**
+     * Creates a new instance of BlobReferenceLoggable.
+     *
+     * @param broker The database broker.
+     * @param transactionId The database transaction id.
+     */
+    public BlobReferenceLoggable(final DBBroker broker, final long transactionId) {
+        super(NativeBroker.LOG_BLOB_REFERENCE, transactionId);
+        this.pool = broker.getBrokerPool();
+    }
+
+    @Override
+    public int getLogSize() {
+        return 2 + uri.length + 1 + (previous == null ? 0 : previous.length) + 1 + (digest == null ? 0 : digest.length);
+    }
+
+    @Override
+    public void write(final ByteBuffer out) {
+        out.putShort((short) (uri.length & 0xFFFF));
+        out.put(uri);
+        writeDigest(out, previous);
+        writeDigest(out, digest);
+    }
+
+    @Override
+    public void read(final ByteBuffer in) {
+        this.uri = new byte[in.getShort() & 0xFFFF];
+        in.get(uri);
+        this.previous = readDigest(in);
+        this.digest = readDigest(in);
+    }
+
+    @Override
+    public void redo() throws LogException {
+        restore(digest);
+    }
+
+    @Override
+    public void undo() throws LogException {
+        restore(previous);
+    }
+
+    private void restore(@Nullable final byte[] reference) throws LogException {
+        final Optional<BlobStore> blobStore = pool == null ? Optional.empty() : pool.getBlobStore();
+        if (!blobStore.isPresent()) {
+            LOG.warn("The blob store is disabled, ignoring the journalled blob reference of " + new String(uri, UTF_8));
+            return;
+        }
+        try {
+            blobStore.get().restoreReference(XmldbURI.create(new String(uri, UTF_8)), reference);
+        } catch (final IOException e) {
+            throw new LogException("Cannot restore the blob reference of " + new String(uri, UTF_8) + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeDigest(final ByteBuffer out, @Nullable final byte[] digest) {
+        if (digest == null) {
+            out.put((byte) 0);
+        } else {
+            out.put((byte) digest.length);
+            out.put(digest);
+        }
+    }
+
+    @Nullable
+    private static byte[] readDigest(final ByteBuffer in) {
+        final int len = in.get() & 0xFF;
+        if (len == 0) {
+            return null;
+        }
+        final byte[] digest = new byte[len];
+        in.get(digest);
+        return digest;
+    }
+
+    @Override
+    public String dump() {
+        return super.dump() + " - blob reference of " + new String(uri, UTF_8) + ": "
+                + (previous == null ? "none" : MessageDigester.byteArrayToHex(previous)) + " -> "
+                + (digest == null ? "none" : MessageDigester.byteArrayToHex(digest));
+    }
+}
@@ -0,0 +1,635 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.blob;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.backup.RawDataBackup;
+import org.exist.security.MessageDigester;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerPoolService;
+import org.exist.storage.BrokerPoolServiceException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.btree.BTreeException;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.storage.journal.JournalException;
+import org.exist.storage.journal.JournalManager;
+import org.exist.storage.lock.LockManager;
+import org.exist.storage.lock.ManagedLock;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.*;
+import org.exist.util.crypto.digest.DigestOutputStream;
+import org.exist.util.crypto.digest.DigestType;
+import org.exist.util.crypto.digest.StreamableDigest;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.TerminatedException;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed store for the content of binary documents.
+ *
+ * Every distinct content is written once to a file named after its BLAKE-256 digest
+ * below data/blob. The content of a new binary document is streamed to a staging file
+ * while its digest is computed, then the staging file is renamed into place, or simply
+ * dropped if a blob with the same digest already exists.
+ *
+ * Documents refer to blobs by their URI. The references and a reference count per blob
+ * are kept in blobs.dbx, so copying or moving a binary document only changes the
+ * references. Every change of a reference is journalled with a {@link BlobReferenceLoggable}
+ * and reverted when its transaction aborts. Blobs whose reference count dropped to zero are kept until
+ * {@link #collectGarbage()} is called from {@link BlobStoreGarbageCollectorTask},
+ * which runs while no other operation is active.
+ *
+ * The store is enabled with the blob-store attribute of the binary-manager element in
+ * conf.xml. When disabled, the content of binary documents is stored below data/fs as before.
+ */
+public class BlobStore implements BrokerPoolService {
+
+    private final static Logger LOG = LogManager.getLogger(BlobStore.class);
+
+    public static final String CONFIGURATION_ATTRIBUTE = "blob-store";
+    public static final String PROPERTY_BLOB_STORE = "binary-manager.blob-store";
+
+    public static final short FILE_FORMAT_VERSION_ID = 1;
+    public static final byte BLOB_STORE_ID = 0x14;
+    public static final String FILE_NAME = "blobs.dbx";
+
+    public static final DigestType DIGEST_TYPE = DigestType.BLAKE_256;
+
+    /** first key byte of a document reference: [0][uri] -> digest */
+    private static final byte KEY_REFERENCE = 0;
+    /** first key byte of a reference count: [1][digest] -> count */
+    private static final byte KEY_BLOB = 1;
+
+    private static final String BLOB_DIR = "blob";
+    private static final String STAGING_DIR = "staging";
+
+    private BrokerPool pool;
+    private Path blobDir;
+    private Path stagingDir;
+    private BFile db;
+
+    /** reference changes of running transactions, by transaction id */
+    private final Map<Long, PendingChanges> pendingChanges = new ConcurrentHashMap<>();
+
+    @Override
+    public void prepare(final BrokerPool brokerPool) throws BrokerPoolServiceException {
+        this.pool = brokerPool;
+        final Path dataDir = (Path) brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        try {
+            this.blobDir = Files.createDirectories(dataDir.resolve(BLOB_DIR));
+            this.stagingDir = Files.createDirectories(blobDir.resolve(STAGING_DIR));
+            // files left from an interrupted store, they have no reference
+            for (final Path staged : FileUtils.list(stagingDir)) {
+                FileUtils.deleteQuietly(staged);
+            }
+            this.db = new BFile(brokerPool, BLOB_STORE_ID, FILE_FORMAT_VERSION_ID, false, dataDir.resolve(FILE_NAME),
+                    brokerPool.getCacheManager(), 1.4, 0.07);
+        } catch (final IOException | DBException e) {
+            throw new BrokerPoolServiceException("Unable to open the blob store in " + dataDir.toAbsolutePath().toString(), e);
+        }
+    }
+
+    @Override
+    public void stop(final DBBroker systemBroker) throws BrokerPoolServiceException {
+        if (db != null) {
+            try {
+                db.close();
+            } catch (final DBException e) {
+                throw new BrokerPoolServiceException(e);
+            }
+        }
+    }
+
+    /**
+     * Stores content for a document. A previous content of the document
+     * is released.
+     *
+     * @param transaction the transaction, the reference is reverted if it aborts
+     * @param uri the URI of the binary document
+     * @param is the content
+     *
+     * @return the blob file holding the content
+     *
+     * @throws IOException if the content cannot be stored
+     */
+    public Path store(final Txn transaction, final XmldbURI uri, final InputStream is) throws IOException {
+        if (is instanceof BlobInputStream && !((BlobInputStream) is).isConsumed()) {
+            // the content of another document: just add a reference
+            final byte[] digest = ((BlobInputStream) is).getDigest();
+            try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+                changeReference(transaction, uri, digest);
+                flush();
+            } catch (final LockException e) {
+                throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+            }
+            return getBlobFile(digest);
+        }
+
+        final StreamableDigest streamableDigest = DIGEST_TYPE.newStreamableDigest();
+        final Path staged = stagingDir.resolve(UUID.randomUUID().toString());
+        try {
+            try (final OutputStream os = new DigestOutputStream(Files.newOutputStream(staged), streamableDigest)) {
+                final byte[] buf = new byte[65536];
+                int read;
+                while ((read = is.read(buf)) > -1) {
+                    os.write(buf, 0, read);
+                }
+            }
+            final byte[] digest = streamableDigest.copyMessageDigest().getValue();
+            final Path blobFile = getBlobFile(digest);
+
+            try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+                if (Files.exists(blobFile)) {
+                    Files.delete(staged);
+                } else {
+                    Files.createDirectories(blobFile.getParent());
+                    Files.move(staged, blobFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+                changeReference(transaction, uri, digest);
+                flush();
+            } catch (final LockException e) {
+                throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+            }
+            return blobFile;
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    /**
+     * Moves the reference of a document to a new URI. The content is not touched.
+     *
+     * @param transaction the transaction, the references are reverted if it aborts
+     * @param sourceUri the current URI of the document
+     * @param targetUri the new URI of the document
+     *
+     * @return true if the document has content in the store
+     *
+     * @throws IOException if the store cannot be updated
+     */
+    public boolean move(final Txn transaction, final XmldbURI sourceUri, final XmldbURI targetUri) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+            final byte[] digest = get(referenceKey(sourceUri));
+            if (digest == null) {
+                return false;
+            }
+            changeReference(transaction, targetUri, digest);
+            changeReference(transaction, sourceUri, null);
+            flush();
+            return true;
+        } catch (final LockException e) {
+            throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+        }
+    }
+
+    /**
+     * Moves the references of the documents in a collection, but not those of its
+     * sub-collections, to another collection.
+     *
+     * @param transaction the transaction, the references are reverted if it aborts
+     * @param sourceCollectionUri the current URI of the collection
+     * @param targetCollectionUri the new URI of the collection
+     *
+     * @throws IOException if the store cannot be updated
+     */
+    public void moveCollection(final Txn transaction, final XmldbURI sourceCollectionUri, final XmldbURI targetCollectionUri) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+            final String prefix = sourceCollectionUri.toString() + '/';
+            final Value prefixKey = referenceKey(prefix);
+            final List<XmldbURI> documents = new ArrayList<>();
+            db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, prefixKey), (key, value) -> {
+                final String name = new String(key.data(), key.start() + prefixKey.getLength(),
+                        key.getLength() - prefixKey.getLength(), StandardCharsets.UTF_8);
+                if (name.indexOf('/') < 0) {
+                    documents.add(XmldbURI.create(name));
+                }
+                return true;
+            });
+            for (final XmldbURI name : documents) {
+                final XmldbURI sourceUri = sourceCollectionUri.append(name);
+                changeReference(transaction, targetCollectionUri.append(name), get(referenceKey(sourceUri)));
+                changeReference(transaction, sourceUri, null);
+            }
+            flush();
+        } catch (final LockException | BTreeException | TerminatedException e) {
+            throw new IOException("Unable to move the blob references of " + sourceCollectionUri + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the reference of a document. The content stays in the store
+     * until the next garbage collection.
+     *
+     * @param transaction the transaction, the reference is reverted if it aborts
+     * @param uri the URI of the document
+     *
+     * @return true if the document had content in the store
+     *
+     * @throws IOException if the store cannot be updated
+     */
+    public boolean remove(final Txn transaction, final XmldbURI uri) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+            final boolean removed = changeReference(transaction, uri, null);
+            if (removed) {
+                flush();
+            }
+            return removed;
+        } catch (final LockException e) {
+            throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+        }
+    }
+
+    /**
+     * Returns the file holding the content of a document.
+     *
+     * @param uri the URI of the document
+     *
+     * @return the blob file or null if the document has no content in the store
+     *
+     * @throws IOException if the store cannot be read
+     */
+    public Path getBlobFile(final XmldbURI uri) throws IOException {
+        final byte[] digest = getDigest(uri);
+        return digest == null ? null : getBlobFile(digest);
+    }
+
+    /**
+     * Gets the digest of the content of a document, e.g. to use it as an entity tag.
+     *
+     * @param uri the URI of the document
+     *
+     * @return the digest as a hex string or null if the document has no content in the store
+     *
+     * @throws IOException if the store cannot be read
+     */
+    public String getContentDigest(final XmldbURI uri) throws IOException {
+        final byte[] digest = getDigest(uri);
+        return digest == null ? null : MessageDigester.byteArrayToHex(digest);
+    }
+
+    /**
+     * Opens the content of a document.
+     *
+     * The stream can be passed to {@link #store(XmldbURI, InputStream)} to copy
+     * the content without reading it.
+     *
+     * @param uri the URI of the document
+     *
+     * @return the content or null if the document has no content in the store
+     *
+     * @throws IOException if the content cannot be read
+     */
+    public InputStream getBlob(final XmldbURI uri) throws IOException {
+        final byte[] digest = getDigest(uri);
+        return digest == null ? null : new BlobInputStream(Files.newInputStream(getBlobFile(digest)), digest);
+    }
+
+    private byte[] getDigest(final XmldbURI uri) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeReadLock(db.getLockName())) {
+            return get(referenceKey(uri));
+        } catch (final LockException e) {
+            throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+        }
+    }
+
+    /**
+     * Deletes the blobs which are no longer referenced by any document, as well
+     * as blob files left without a reference count by an interrupted store.
+     *
+     * Must only be called while no other operation is using the store,
+     * i.e. from a {@link org.exist.storage.SystemTask}.
+     *
+     * @return the number of deleted blobs
+     *
+     * @throws IOException if the store cannot be read or updated
+     */
+    public int collectGarbage() throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+            final Set<String> referenced = new HashSet<>();
+            final List<byte[]> unreferenced = new ArrayList<>();
+            db.find(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(new byte[] { KEY_BLOB })), (key, value) -> {
+                final byte[] digest = Arrays.copyOfRange(key.data(), key.start() + 1, key.start() + key.getLength());
+                if (ByteConversion.byteToInt(value.data(), value.start()) > 0) {
+                    referenced.add(MessageDigester.byteArrayToHex(digest));
+                } else {
+                    unreferenced.add(digest);
+                }
+                return true;
+            });
+
+            int count = 0;
+            for (final byte[] digest : unreferenced) {
+                Files.deleteIfExists(getBlobFile(digest));
+                db.remove(blobKey(digest));
+                count++;
+            }
+
+            try (final Stream<Path> files = Files.walk(blobDir)) {
+                for (final Iterator<Path> i = files.iterator(); i.hasNext(); ) {
+                    final Path file = i.next();
+                    if (Files.isRegularFile(file) && !referenced.contains(FileUtils.fileName(file))) {
+                        Files.delete(file);
+                        if (!file.getParent().equals(stagingDir)) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            flush();
+
+            LOG.info("Removed " + count + " unreferenced blobs from the blob store");
+            return count;
+        } catch (final LockException | BTreeException | TerminatedException e) {
+            throw new IOException("Unable to collect the garbage of the blob store: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes blobs.dbx and the blob files to a raw backup.
+     *
+     * @param backup the backup
+     *
+     * @throws IOException if the backup cannot be written
+     */
+    public void backupToArchive(final RawDataBackup backup) throws IOException {
+        // do not use try-with-resources here, closing the OutputStream will close the entire backup
+        try {
+            final OutputStream os = backup.newEntry(FileUtils.fileName(db.getFile()));
+            db.backupToStream(os);
+        } finally {
+            backup.closeEntry();
+        }
+
+        try (final Stream<Path> files = Files.walk(blobDir)) {
+            for (final Iterator<Path> i = files.iterator(); i.hasNext(); ) {
+                final Path file = i.next();
+                if (Files.isRegularFile(file) && !file.getParent().equals(stagingDir)) {
+                    try {
+                        final OutputStream os = backup.newEntry(BLOB_DIR + '/' + blobDir.relativize(file).toString().replace('\\', '/'));
+                        Files.copy(file, os);
+                    } finally {
+                        backup.closeEntry();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the reference of a document to a blob, without journalling the change. Called
+     * by {@link BlobReferenceLoggable} during recovery.
+     *
+     * @param uri the URI of the document
+     * @param digest the digest of the blob, or null to remove the reference
+     *
+     * @throws IOException if the store cannot be updated
+     */
+    void restoreReference(final XmldbURI uri, @Nullable final byte[] digest) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+            setReference(uri, digest);
+            flush();
+        } catch (final LockException e) {
+            throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+        }
+    }
+
+    /**
+     * Returns the number of documents referring to the blob of a document.
+     */
+    int getReferenceCount(final XmldbURI uri) throws IOException {
+        try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeReadLock(db.getLockName())) {
+            final byte[] digest = get(referenceKey(uri));
+            if (digest == null) {
+                return 0;
+            }
+            final byte[] count = get(blobKey(digest));
+            return count == null ? 0 : ByteConversion.byteToInt(count, 0);
+        } catch (final LockException e) {
+            throw new IOException("Unable to lock " + FileUtils.fileName(db.getFile()), e);
+        }
+    }
+
+    /**
+     * Changes the reference of a document. The change is written to the journal before
+     * blobs.dbx is modified, and it is reverted if the transaction aborts.
+     *
+     * @return false if the reference was not changed
+     */
+    private boolean changeReference(@Nullable final Txn transaction, final XmldbURI uri, @Nullable final byte[] digest)
+            throws IOException {
+        final byte[] previous = get(referenceKey(uri));
+        if (Arrays.equals(previous, digest)) {
+            return false;
+        }
+        if (transaction != null) {
+            journal(new BlobReferenceLoggable(transaction.getId(), uri, previous, digest));
+            pendingChanges.computeIfAbsent(transaction.getId(), id -> {
+                final PendingChanges changes = new PendingChanges(id);
+                transaction.registerListener(changes);
+                return changes;
+            }).add(uri, previous);
+        }
+        setReference(uri, digest);
+        return true;
+    }
+
+    private void journal(final BlobReferenceLoggable loggable) throws IOException {
+        final Optional<JournalManager> journalManager = pool.getJournalManager();
+        if (journalManager.isPresent()) {
+            try {
+                journalManager.get().journal(loggable);
+                // blobs.dbx is flushed after every change, so the entry has to be on disk first
+                journalManager.get().flush(true, false);
+            } catch (final JournalException e) {
+                throw new IOException("Unable to journal the blob reference of " + loggable.dump(), e);
+            }
+        }
+    }
+
+    private void setReference(final XmldbURI uri, @Nullable final byte[] digest) {
+        final Value key = referenceKey(uri);
+        final byte[] previous = get(key);
+        if (Arrays.equals(previous, digest)) {
+            return;
+        }
+        if (digest == null) {
+            db.remove(key);
+        } else {
+            db.put(key, new FixedByteArray(digest), true);
+            updateCount(digest, 1);
+        }
+        if (previous != null) {
+            updateCount(previous, -1);
+        }
+    }
+
+    private void updateCount(final byte[] digest, final int delta) {
+        final Value key = blobKey(digest);
+        final byte[] current = get(key);
+        final int count = (current == null ? 0 : ByteConversion.byteToInt(current, 0)) + delta;
+        final byte[] data = new byte[4];
+        ByteConversion.intToByte(Math.max(count, 0), data, 0);
+        db.put(key, new FixedByteArray(data), true);
+    }
+
+    /**
+     * Copies a value out of the BFile, whose buffers are reused by the next operation.
+     */
+    private byte[] get(final Value key) {
+        final Value value = db.get(key);
+        return value == null ? null : Arrays.copyOfRange(value.data(), value.start(), value.start() + value.getLength());
+    }
+
+    private void flush() throws IOException {
+        try {
+            db.flush();
+        } catch (final DBException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private Path getBlobFile(final byte[] digest) {
+        final String hex = MessageDigester.byteArrayToHex(digest);
+        return blobDir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private LockManager lockManager() {
+        return pool.getLockManager();
+    }
+
+    private static Value blobKey(final byte[] digest) {
+        final byte[] data = new byte[digest.length + 1];
+        data[0] = KEY_BLOB;
+        System.arraycopy(digest, 0, data, 1, digest.length);
+        return new Value(data);
+    }
+
+    private static Value referenceKey(final XmldbURI uri) {
+        return referenceKey(uri.toString());
+    }
+
+    private static Value referenceKey(final String uri) {
+        final byte[] uriData = uri.getBytes(StandardCharsets.UTF_8);
+        final byte[] data = new byte[uriData.length + 1];
+        data[0] = KEY_REFERENCE;
+        System.arraycopy(uriData, 0, data, 1, uriData.length);
+        return new Value(data);
+    }
+
+    /**
+     * The references changed by a running transaction. If the transaction aborts,
+     * they are set back in reverse order, and the reverting changes are journalled
+     * as part of the transaction.
+     */
+    private class PendingChanges implements TxnListener {
+        private final long transactionId;
+        private final List<XmldbURI> uris = new ArrayList<>();
+        private final List<byte[]> previous = new ArrayList<>();
+
+        PendingChanges(final long transactionId) {
+            this.transactionId = transactionId;
+        }
+
+        void add(final XmldbURI uri, @Nullable final byte[] digest) {
+            uris.add(uri);
+            previous.add(digest);
+        }
+
+        @Override
+        public void commit() {
+            pendingChanges.remove(transactionId);
+        }
+
+        @Override
+        public void abort() {
+            pendingChanges.remove(transactionId);
+            try (final ManagedLock<ReentrantLock> dbLock = lockManager().acquireBtreeWriteLock(db.getLockName())) {
+                for (int i = uris.size() - 1; i >= 0; i--) {
+                    final XmldbURI uri = uris.get(i);
+                    final byte[] current = get(referenceKey(uri));
+                    journal(new BlobReferenceLoggable(transactionId, uri, current, previous.get(i)));
+                    setReference(uri, previous.get(i));
+                }
+                flush();
+            } catch (final LockException | IOException e) {
+                LOG.error("Unable to revert the blob references of aborted transaction " + transactionId + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Stream over the content of a blob, which remembers the digest of
+     * the blob as long as nothing has been read from it.
+     */
+    public static class BlobInputStream extends FilterInputStream {
+
+        private final byte[] digest;
+        private boolean consumed = false;
+
+        BlobInputStream(final InputStream in, final byte[] digest) {
+            super(in);
+            this.digest = digest;
+        }
+
+        byte[] getDigest() {
+            return digest;
+        }
+
+        boolean isConsumed() {
+            return consumed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            consumed = true;
+            return super.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            consumed = true;
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            consumed = true;
+            return super.skip(n);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.blob;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.SystemTask;
+import org.exist.util.Configuration;
+
+/**
+ * Deletes the blobs of the {@link BlobStore} which are no longer referenced
+ * by any binary document. Schedule it in conf.xml with:
+ *
+ * <pre>
+ * &lt;job type="system" class="org.exist.storage.blob.BlobStoreGarbageCollectorTask" period="86400000"/&gt;
+ * </pre>
+ */
+public class BlobStoreGarbageCollectorTask implements SystemTask {
+
+    private final static Logger LOG = LogManager.getLogger(BlobStoreGarbageCollectorTask.class);
+
+    @Override
+    public String getName() {
+        return "Blob Store Garbage Collector Task";
+    }
+
+    @Override
+    public void configure(final Configuration config, final Properties properties) throws EXistException {
+        //Nothing to configure
+    }
+
+    @Override
+    public void execute(final DBBroker broker) throws EXistException {
+        final Optional<BlobStore> blobStore = broker.getBrokerPool().getBlobStore();
+        if (!blobStore.isPresent()) {
+            LOG.debug("The blob store is not enabled, nothing to collect");
+            return;
+        }
+        try {
+            blobStore.get().collectGarbage();
+        } catch (final IOException e) {
+            throw new EXistException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean afterCheckpoint() {
+        return false;
+    }
+}
@@ -74,6 +74,7 @@ package org.exist.storage.btree;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.ResourceUsage;
 import org.exist.storage.journal.Lsn;
 import org.exist.util.ByteConversion;
 import org.exist.util.FileUtils;
@@ -945,6 +946,7 @@ public abstract class Paged implements AutoCloseable {
                 // Read the working data
                 final byte[] workData = new byte[header.dataLen];
                 raf.read(workData);
+                ResourceUsage.pageRead();
                 return workData;
             } catch(final Exception e) {
                 LOG.warn("error while reading page: " + getPageInfo(), e);
@@ -981,6 +983,7 @@ public abstract class Paged implements AutoCloseable {
                 raf.seek(offset);
             }
             raf.write(tempPageData);
+            ResourceUsage.pageWritten();
         }
 
         @Override
@@ -23,6 +23,7 @@ import net.jcip.annotations.NotThreadSafe;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.CacheManager;
+import org.exist.storage.ResourceUsage;
 import org.exist.util.hashtable.Long2ObjectHashMap;
 
 import java.lang.reflect.Array;
@@ -118,8 +119,10 @@ public class GClockCache<T extends Cacheable> implements Cache<T> {
 		final T item = map.get(key);
 		if (item == null) {
 			accounting.missesIncrement();
+			ResourceUsage.cacheMiss(name);
 		} else {
 		    accounting.hitIncrement();
+		    ResourceUsage.cacheHit(name);
 		}
 		return item;
 	}
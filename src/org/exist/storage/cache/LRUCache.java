@@ -23,6 +23,7 @@ import net.jcip.annotations.NotThreadSafe;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.CacheManager;
+import org.exist.storage.ResourceUsage;
 import org.exist.util.hashtable.SequencedLongHashMap;
 
 /**
@@ -98,8 +99,10 @@ public class LRUCache<T extends Cacheable> implements Cache<T> {
 		final T obj = map.get(key);
 		if(obj == null) {
 		    accounting.missesIncrement();
+		    ResourceUsage.cacheMiss(name);
 		} else {
 		    accounting.hitIncrement();
+		    ResourceUsage.cacheHit(name);
 		}
 		return obj;
 	}
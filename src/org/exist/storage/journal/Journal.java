@@ -29,6 +29,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 import net.jpountz.xxhash.XXHash64;
@@ -190,10 +191,17 @@ public final class Journal implements Closeable {
      */
     private FileChannel channel;
 
+    /**
+     * lock used to synchronize writes to the buffer, a lock rather than
+     * a monitor so that virtual threads do not pin their carrier thread
+     * while the journal is flushed to disk
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
      * latch used to synchronize writes to the channel
      */
-    private final Object latch = new Object();
+    private final ReentrantLock latch = new ReentrantLock();
 
     /**
      * the data directory where journal files are written to
@@ -320,57 +328,62 @@ public final class Journal implements Closeable {
      * @param entry the journal entry to write
      * @throws JournalException if the entry could not be written
      */
-    public synchronized void writeToLog(final Loggable entry) throws JournalException {
-        if (currentBuffer == null) {
-            throw new JournalException("Database is shut down.");
-        }
+    public void writeToLog(final Loggable entry) throws JournalException {
+        lock.lock();
+        try {
+            if (currentBuffer == null) {
+                throw new JournalException("Database is shut down.");
+            }
 
-        SanityCheck.ASSERT(!inRecovery, "Write to log during recovery. Should not happen!");
-        final int size = entry.getLogSize();
+            SanityCheck.ASSERT(!inRecovery, "Write to log during recovery. Should not happen!");
+            final int size = entry.getLogSize();
 
-        if (size > Short.MAX_VALUE) {
-            throw new JournalException("Journal can only write log entries of less that 32KB");
-        }
+            if (size > Short.MAX_VALUE) {
+                throw new JournalException("Journal can only write log entries of less that 32KB");
+            }
 
-        final int required = size + LOG_ENTRY_BASE_LEN;
-        if (required > currentBuffer.remaining()) {
-            flushToLog(false);
-        }
+            final int required = size + LOG_ENTRY_BASE_LEN;
+            if (required > currentBuffer.remaining()) {
+                flushToLog(false);
+            }
 
-        try {
-            if (currentFile > Short.MAX_VALUE) {
-                throw new JournalException("Journal can only support " + Short.MAX_VALUE + " log files");
+            try {
+                if (currentFile > Short.MAX_VALUE) {
+                    throw new JournalException("Journal can only support " + Short.MAX_VALUE + " log files");
+                }
+                currentLsn = new Lsn((short)currentFile, channel.position() + currentBuffer.position() + 1);
+            } catch (final IOException e) {
+                throw new JournalException("Unable to create LSN for: " + entry.dump());
             }
-            currentLsn = new Lsn((short)currentFile, channel.position() + currentBuffer.position() + 1);
-        } catch (final IOException e) {
-            throw new JournalException("Unable to create LSN for: " + entry.dump());
-        }
-        entry.setLsn(currentLsn);
+            entry.setLsn(currentLsn);
 
-        try {
-            final int currentBufferEntryOffset = currentBuffer.position();
+            try {
+                final int currentBufferEntryOffset = currentBuffer.position();
 
-            // write entryHeader
-            currentBuffer.put(entry.getLogType());
-            currentBuffer.putLong(entry.getTransactionId());
-            currentBuffer.putShort((short) size);
+                // write entryHeader
+                currentBuffer.put(entry.getLogType());
+                currentBuffer.putLong(entry.getTransactionId());
+                currentBuffer.putShort((short) size);
 
-            // write entry data
-            entry.write(currentBuffer);
+                // write entry data
+                entry.write(currentBuffer);
 
-            // write backlink
-            currentBuffer.putShort((short) (size + LOG_ENTRY_HEADER_LEN));
+                // write backlink
+                currentBuffer.putShort((short) (size + LOG_ENTRY_HEADER_LEN));
 
-            // write checksum
-            final long checksum = xxHash64.hash(currentBuffer, currentBufferEntryOffset, currentBuffer.position() - currentBufferEntryOffset, XXHASH64_SEED);
-            currentBuffer.putLong(checksum);
-        } catch (final BufferOverflowException e) {
-            throw new JournalException("Buffer overflow while writing log record: " + entry.dump(), e);
-        }
+                // write checksum
+                final long checksum = xxHash64.hash(currentBuffer, currentBufferEntryOffset, currentBuffer.position() - currentBufferEntryOffset, XXHASH64_SEED);
+                currentBuffer.putLong(checksum);
+            } catch (final BufferOverflowException e) {
+                throw new JournalException("Buffer overflow while writing log record: " + entry.dump(), e);
+            }
 
-        // NOTE: we don't track operations on txnStart or checkpoints!
-        if (!(entry instanceof TxnStart || entry instanceof Checkpoint)) {
-            pool.getTransactionManager().trackOperation(entry.getTransactionId());
+            // NOTE: we don't track operations on txnStart or checkpoints!
+            if (!(entry instanceof TxnStart || entry instanceof Checkpoint)) {
+                pool.getTransactionManager().trackOperation(entry.getTransactionId());
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -400,28 +413,33 @@ public final class Journal implements Closeable {
      * @param fsync     forces all changes to disk if true and syncMode is set to SYNC_ON_COMMIT.
      * @param forceSync force changes to disk even if syncMode doesn't require it.
      */
-    public synchronized void flushToLog(final boolean fsync, final boolean forceSync) {
-        if (inRecovery) {
-            return;
-        }
+    public void flushToLog(final boolean fsync, final boolean forceSync) {
+        lock.lock();
+        try {
+            if (inRecovery) {
+                return;
+            }
 
-        flushBuffer();
+            flushBuffer();
 
-        try {
-            if (forceSync || (fsync && syncOnCommit && currentLsn.compareTo(lastSyncLsn) > 0)) {
-                sync();
-                lastSyncLsn = currentLsn;
+            try {
+                if (forceSync || (fsync && syncOnCommit && currentLsn.compareTo(lastSyncLsn) > 0)) {
+                    sync();
+                    lastSyncLsn = currentLsn;
+                }
+            } catch (final IOException e) {
+                LOG.error("Could not sync Journal to disk: " + e.getMessage(), e);
             }
-        } catch (final IOException e) {
-            LOG.error("Could not sync Journal to disk: " + e.getMessage(), e);
-        }
 
-        try {
-            if (channel != null && channel.size() >= journalSizeLimit) {
-                pool.triggerCheckpoint();
+            try {
+                if (channel != null && channel.size() >= journalSizeLimit) {
+                    pool.triggerCheckpoint();
+                }
+            } catch (final IOException e) {
+                LOG.warn("Failed to trigger checkpoint!", e);
             }
-        } catch (final IOException e) {
-            LOG.warn("Failed to trigger checkpoint!", e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -436,7 +454,8 @@ public final class Journal implements Closeable {
         if (currentBuffer == null || channel == null) {
             return; // the db has probably been shut down already or not fully initialized
         }
-        synchronized (latch) {
+        latch.lock();
+        try {
             try {
                 if (currentBuffer.position() > 0) {
                     currentBuffer.flip();
@@ -452,6 +471,8 @@ public final class Journal implements Closeable {
             } finally {
                 currentBuffer.clear();
             }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -546,7 +567,8 @@ public final class Journal implements Closeable {
             LOG.debug("Creating new journal: " + file.toAbsolutePath().toString());
         }
 
-        synchronized (latch) {
+        latch.lock();
+        try {
             try {
                 // close current file
                 close();
@@ -558,6 +580,8 @@ public final class Journal implements Closeable {
             } catch (final IOException e) {
                 throw new LogException("Failed to open new journal: " + file.toAbsolutePath().toString(), e);
             }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -32,6 +32,7 @@ import org.exist.util.ReadOnlyException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 /**
@@ -47,6 +48,13 @@ public class JournalManager implements BrokerPoolService {
     private boolean journallingDisabled = false;
     private boolean initialized = false;
 
+    /**
+     * Serializes the access to the journal. A lock rather than a monitor, so
+     * that virtual threads do not pin their carrier thread while the journal
+     * is flushed to disk
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     @Override
     public void configure(final Configuration configuration) {
         this.journalDir = (Path) Optional.ofNullable(configuration.getProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR))
@@ -81,9 +89,14 @@ public class JournalManager implements BrokerPoolService {
      *
      * @param loggable The entry to write in the journal
      */
-    public synchronized void journal(final Loggable loggable) throws JournalException {
-        if(!journallingDisabled) {
-            journal.writeToLog(loggable);
+    public void journal(final Loggable loggable) throws JournalException {
+        lock.lock();
+        try {
+            if(!journallingDisabled) {
+                journal.writeToLog(loggable);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -95,12 +108,17 @@ public class JournalManager implements BrokerPoolService {
      *
      * @param loggable The entry to write in the journalGroup
      */
-    public synchronized void journalGroup(final Loggable loggable) throws JournalException {
-        if(!journallingDisabled) {
-            journal.writeToLog(loggable);
-            if (!groupCommits) {
-                journal.flushToLog(true);
+    public void journalGroup(final Loggable loggable) throws JournalException {
+        lock.lock();
+        try {
+            if(!journallingDisabled) {
+                journal.writeToLog(loggable);
+                if (!groupCommits) {
+                    journal.flushToLog(true);
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -120,17 +138,27 @@ public class JournalManager implements BrokerPoolService {
      *
      * @throws JournalException
      */
-    public synchronized void checkpoint(final long transactionId, final boolean switchFiles) throws JournalException {
-        if(!journallingDisabled) {
-            journal.checkpoint(transactionId, switchFiles);
+    public void checkpoint(final long transactionId, final boolean switchFiles) throws JournalException {
+        lock.lock();
+        try {
+            if(!journallingDisabled) {
+                journal.checkpoint(transactionId, switchFiles);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * @see Journal#flushToLog(boolean, boolean)
      */
-    public synchronized void flush(final boolean fsync, final boolean forceSync) {
-        journal.flushToLog(fsync, forceSync);
+    public void flush(final boolean fsync, final boolean forceSync) {
+        lock.lock();
+        try {
+            journal.flushToLog(fsync, forceSync);
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -143,10 +171,15 @@ public class JournalManager implements BrokerPoolService {
      * @param transactionId The id of the transaction for the shutdown
      * @param checkpoint Whether to write a checkpoint before shutdown
      */
-    public synchronized void shutdown(final long transactionId, final boolean checkpoint) {
-        if(initialized) {
-            journal.shutdown(transactionId, checkpoint);
-            initialized = false;
+    public void shutdown(final long transactionId, final boolean checkpoint) {
+        lock.lock();
+        try {
+            if(initialized) {
+                journal.shutdown(transactionId, checkpoint);
+                initialized = false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
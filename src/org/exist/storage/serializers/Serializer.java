@@ -1006,6 +1006,46 @@ public abstract class Serializer implements XMLReader {
             receiver.endDocument();
 	}
         
+    /**
+     * Starts serializing a sequence whose items are not known yet. The items
+     * are passed one by one to {@link #itemToSAX(Item, boolean)}, and the
+     * sequence is ended by {@link #endSequence()}. The output is the same as
+     * for {@link #toSAX(Sequence, int, int, boolean, boolean, long, long)}
+     * without a wrapper element.
+     *
+     * @throws SAXException If an error occurs during serialization
+     */
+    public void startSequence() throws SAXException {
+        try {
+            setStylesheetFromProperties(null);
+        } catch (final TransformerConfigurationException e) {
+            throw new SAXException(e.getMessage(), e);
+        }
+        setXSLHandler(null, false);
+        receiver.startDocument();
+    }
+
+    /**
+     * Serializes the next item of a sequence started by {@link #startSequence()}.
+     *
+     * @param item The item to serialize
+     * @param typed Indicates whether the output types should be wrapped
+     *
+     * @throws SAXException If an error occurs during serialization
+     */
+    public void itemToSAX(final Item item, final boolean typed) throws SAXException {
+        itemToSAX(item, typed, false);
+    }
+
+    /**
+     * Ends a sequence started by {@link #startSequence()}.
+     *
+     * @throws SAXException If an error occurs during serialization
+     */
+    public void endSequence() throws SAXException {
+        receiver.endDocument();
+    }
+
 	private void itemToSAX(final Item item, final boolean typed, final boolean wrap) throws SAXException {
 		if(Type.subTypeOf(item.getType(), Type. NODE)) {
 			final NodeValue node = (NodeValue) item;
@@ -36,6 +36,7 @@ import org.exist.dom.persistent.NodeSet;
 import org.exist.collections.Collection;
 import org.exist.indexing.*;
 import org.exist.indexing.StreamListener.ReindexMode;
+import org.exist.numbering.DLN;
 import org.exist.numbering.NodeId;
 import org.exist.storage.*;
 import org.exist.storage.btree.BTree;
@@ -351,6 +352,8 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         NewArrayNodeSet result;
         boolean selfAsContext = false;
         Expression parent;
+        byte[] ancestorBits = new byte[8];
+        int ancestorUnits;
 
         FindDescendantsCallback(byte type, int axis, QName qname, int contextId, NewArrayNodeSet result, Expression parent) {
         	this(type, axis, qname, contextId, false, result, parent);
@@ -373,21 +376,29 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         void setAncestor(DocumentImpl doc, NodeProxy ancestor) {
             this.doc = doc;
             this.ancestor = ancestor;
+            final NodeId ancestorId = ancestor.getNodeId();
+            if (ancestorBits.length < ancestorId.size())
+                {ancestorBits = new byte[ancestorId.size()];}
+            ancestorId.serialize(ancestorBits, 0);
+            ancestorUnits = ancestorId.units();
         }
 
         public boolean indexInfo(Value value, long pointer) throws TerminatedException {
             if (parent != null) {
                 parent.getContext().proceed(parent);
             }
-            final NodeId nodeId = readNodeId(value.getData(), pointer);
 
             boolean match = axis == Constants.DESCENDANT_SELF_AXIS || axis == Constants.DESCENDANT_ATTRIBUTE_AXIS;
             if (!match) {
-                final int relation = nodeId.computeRelation(ancestor.getNodeId());
+                // decide on the encoded node id in the key, so that no NodeId is created for the
+                // nodes in the range of the ancestor which are not children
+                final int relation = DLN.computeRelation(value.data(), value.start() + 9, readNodeIdUnits(value.getLength(), pointer),
+                    ancestorBits, 0, ancestorUnits);
                 match = (((axis == Constants.CHILD_AXIS) || (axis == Constants.ATTRIBUTE_AXIS)) && (relation == NodeId.IS_CHILD)) ||
                     ((axis == Constants.DESCENDANT_AXIS) && ((relation == NodeId.IS_DESCENDANT) || (relation == NodeId.IS_CHILD)));
             }
             if (match) {
+                final NodeId nodeId = readNodeId(value.getData(), pointer);
                 final NodeProxy storedNode =
                     new NodeProxy(doc, nodeId, type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE, pointer);
                 if (qname != null) {
@@ -762,13 +773,16 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
     }
 
     private NodeId readNodeId(byte[] key, long value) {
+        return index.getBrokerPool().getNodeFactory().createFromData(readNodeIdUnits(key.length, value), key, 9);
+    }
+
+    private static int readNodeIdUnits(int keyLength, long value) {
         // extra number of bits of the node id is encoded in the long address
         short bits = (short)((value >>> 24) & 0xFFL);
         if (bits == 0)
             {bits = 8;}
         // compute total number of bits for node id
-        final int units = (key.length - 10) * 8 + bits;
-        return index.getBrokerPool().getNodeFactory().createFromData(units, key, 9);
+        return (keyLength - 10) * 8 + bits;
     }
 
     private QName readQName(byte[] key) {
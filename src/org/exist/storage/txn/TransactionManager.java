@@ -416,6 +416,7 @@ public class TransactionManager implements BrokerPoolService {
         } finally {
             txn.setState(Txn.State.CLOSED); //transaction is now closed!
         }
+        txn.signalClose();
     }
 
     /**
@@ -124,6 +124,12 @@ public class Txn implements Transaction {
         }
     }
 
+    protected void signalClose() {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).close();
+        }
+    }
+
     private static class LockInfo<T> {
         final T lock;
         final Runnable closer;
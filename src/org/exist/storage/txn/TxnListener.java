@@ -5,4 +5,11 @@ public interface TxnListener {
     public void commit();
 
     public void abort();
+
+    /**
+     * Called when the transaction is closed, after it has been committed
+     * or aborted and has released its locks.
+     */
+    default void close() {
+    }
 }
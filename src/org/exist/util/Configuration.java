@@ -22,6 +22,7 @@ package org.exist.util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import org.exist.backup.BackupChangeLog;
 import org.exist.backup.SystemExport;
 import org.exist.collections.CollectionCache;
 import org.exist.repo.Deployment;
@@ -50,7 +51,9 @@ import org.exist.storage.DefaultCacheManager;
 import org.exist.storage.IndexSpec;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.NativeValueIndex;
+import org.exist.storage.NotificationService;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.blob.BlobStore;
 import org.exist.storage.journal.Journal;
 import org.exist.storage.serializers.CustomMatchListenerFactory;
 import org.exist.storage.serializers.Serializer;
@@ -58,8 +61,11 @@ import org.exist.validation.GrammarPool;
 import org.exist.validation.resolver.eXistXMLCatalogResolver;
 import org.exist.xmldb.DatabaseImpl;
 import org.exist.xquery.FunctionFactory;
+import org.exist.xquery.ParallelPathEvaluator;
 import org.exist.xquery.PerformanceStats;
+import org.exist.xquery.QueryMetrics;
 import org.exist.xquery.XQueryContext;
+import org.exist.xquery.XQueryParseCache;
 import org.exist.xquery.XQueryWatchDog;
 import org.exist.xslt.TransformerFactoryAllocator;
 
@@ -289,6 +295,10 @@ public class Configuration implements ErrorHandler
 
 
     private void configureBinaryManager(Element binaryManager) throws DatabaseConfigurationException {
+        final String blobStore = getConfigAttributeValue(binaryManager, BlobStore.CONFIGURATION_ATTRIBUTE);
+        config.put(BlobStore.PROPERTY_BLOB_STORE, parseBoolean(blobStore, false));
+        LOG.debug(BlobStore.PROPERTY_BLOB_STORE + ": " + config.get(BlobStore.PROPERTY_BLOB_STORE));
+
         final NodeList nlCache = binaryManager.getElementsByTagName("cache");
         if(nlCache.getLength() > 0) {
             final Element cache = (Element)nlCache.item(0);
@@ -338,6 +348,32 @@ public class Configuration implements ErrorHandler
         final String trace = getConfigAttributeValue( xquery, PerformanceStats.CONFIG_ATTR_TRACE );
         config.put( PerformanceStats.CONFIG_PROPERTY_TRACE, trace );
 
+        final String metrics = getConfigAttributeValue( xquery, QueryMetrics.CONFIG_ATTR_METRICS );
+        config.put( QueryMetrics.PROPERTY_METRICS, parseBoolean( metrics, true ) );
+        LOG.debug( QueryMetrics.PROPERTY_METRICS + ": " + config.get( QueryMetrics.PROPERTY_METRICS ) );
+
+        final String parallelThreshold = getConfigAttributeValue( xquery, ParallelPathEvaluator.CONFIG_ATTR_THRESHOLD );
+        if( parallelThreshold != null ) {
+            try {
+                config.put( ParallelPathEvaluator.PROPERTY_THRESHOLD, Integer.valueOf( parallelThreshold ) );
+                LOG.debug( ParallelPathEvaluator.PROPERTY_THRESHOLD + ": " + config.get( ParallelPathEvaluator.PROPERTY_THRESHOLD ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String parallelism = getConfigAttributeValue( xquery, ParallelPathEvaluator.CONFIG_ATTR_PARALLELISM );
+        if( parallelism != null ) {
+            try {
+                config.put( ParallelPathEvaluator.PROPERTY_PARALLELISM, Integer.valueOf( parallelism ) );
+                LOG.debug( ParallelPathEvaluator.PROPERTY_PARALLELISM + ": " + config.get( ParallelPathEvaluator.PROPERTY_PARALLELISM ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
         // built-in-modules
         final Map<String, Class<?>> classMap      = new HashMap<String, Class<?>>();
         final Map<String, String>   knownMappings = new HashMap<String, String>();
@@ -479,6 +515,13 @@ public class Configuration implements ErrorHandler
             LOG.debug( DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR + ": " + config.get( DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR ) );
         }
 
+        final String backgroundDefragmentation = getConfigAttributeValue( xupdate, DBBroker.XUPDATE_BACKGROUND_DEFRAGMENTATION_ATTRIBUTE );
+
+        if( backgroundDefragmentation != null ) {
+            config.put( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION, parseBoolean( backgroundDefragmentation, false ) );
+            LOG.debug( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION + ": " + config.get( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION ) );
+        }
+
         final String consistencyCheck = getConfigAttributeValue( xupdate, DBBroker.XUPDATE_CONSISTENCY_CHECKS_ATTRIBUTE );
 
         if( consistencyCheck != null ) {
@@ -541,6 +584,25 @@ public class Configuration implements ErrorHandler
             config.put( TransformerFactoryAllocator.PROPERTY_CACHING_ATTRIBUTE, parseBoolean( cachingValue, false ) );
             LOG.debug( TransformerFactoryAllocator.PROPERTY_CACHING_ATTRIBUTE + ": " + config.get( TransformerFactoryAllocator.PROPERTY_CACHING_ATTRIBUTE ) );
         }
+
+        final String cacheSize = getConfigAttributeValue( transformer, TransformerFactoryAllocator.TRANSFORMER_CACHE_SIZE_ATTRIBUTE );
+
+        if( cacheSize != null ) {
+            try {
+                config.put( TransformerFactoryAllocator.PROPERTY_CACHE_SIZE, Integer.valueOf( cacheSize ) );
+                LOG.debug( TransformerFactoryAllocator.PROPERTY_CACHE_SIZE + ": " + config.get( TransformerFactoryAllocator.PROPERTY_CACHE_SIZE ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String precompile = getConfigAttributeValue( transformer, TransformerFactoryAllocator.TRANSFORMER_PRECOMPILE_ATTRIBUTE );
+
+        if( precompile != null ) {
+            config.put( TransformerFactoryAllocator.PROPERTY_PRECOMPILE, precompile );
+            LOG.debug( TransformerFactoryAllocator.PROPERTY_PRECOMPILE + ": " + config.get( TransformerFactoryAllocator.PROPERTY_PRECOMPILE ) );
+        }
     }
 
     private void configureParser(final Element parser) {
@@ -1043,6 +1105,10 @@ public class Configuration implements ErrorHandler
         }
         config.put(DBBroker.PRESERVE_ON_COPY_PROPERTY, preserveOnCopy);
 
+        final String backupChangeLog = getConfigAttributeValue(con, BackupChangeLog.CONFIGURATION_ATTRIBUTE);
+        config.put(BackupChangeLog.PROPERTY_BACKUP_CHANGE_LOG, parseBoolean(backupChangeLog, false));
+        LOG.debug(BackupChangeLog.PROPERTY_BACKUP_CHANGE_LOG + ": " + config.get(BackupChangeLog.PROPERTY_BACKUP_CHANGE_LOG));
+
         final NodeList securityConf             = con.getElementsByTagName( BrokerPool.CONFIGURATION_SECURITY_ELEMENT_NAME );
         String   securityManagerClassName = BrokerPool.DEFAULT_SECURITY_CLASS;
 
@@ -1108,6 +1174,12 @@ public class Configuration implements ErrorHandler
             configureWatchdog( (Element)watchConf.item( 0 ) );
         }
 
+        final NodeList notificationsConf = con.getElementsByTagName( NotificationService.CONFIGURATION_ELEMENT_NAME );
+
+        if( notificationsConf.getLength() > 0 ) {
+            configureNotifications( (Element)notificationsConf.item( 0 ) );
+        }
+
         final NodeList recoveries = con.getElementsByTagName( BrokerPool.CONFIGURATION_RECOVERY_ELEMENT_NAME );
 
         if( recoveries.getLength() > 0 ) {
@@ -1180,6 +1252,43 @@ public class Configuration implements ErrorHandler
         LOG.debug( BrokerPool.PROPERTY_RECOVERY_CHECK + ": " + config.get( BrokerPool.PROPERTY_RECOVERY_CHECK ) );
     }
 
+    private void configureNotifications( final Element notifications )
+    {
+        configureIntegerAttribute( notifications, NotificationService.WORKERS_ATTRIBUTE, NotificationService.PROPERTY_WORKERS );
+        configureIntegerAttribute( notifications, NotificationService.QUEUE_SIZE_ATTRIBUTE, NotificationService.PROPERTY_QUEUE_SIZE );
+        configureIntegerAttribute( notifications, NotificationService.BATCH_SIZE_ATTRIBUTE, NotificationService.PROPERTY_BATCH_SIZE );
+
+        final String queueTimeout = getConfigAttributeValue( notifications, NotificationService.QUEUE_TIMEOUT_ATTRIBUTE );
+
+        if( queueTimeout != null ) {
+
+            try {
+                config.put( NotificationService.PROPERTY_QUEUE_TIMEOUT, Long.valueOf(queueTimeout) );
+                LOG.debug( NotificationService.PROPERTY_QUEUE_TIMEOUT + ": " + config.get( NotificationService.PROPERTY_QUEUE_TIMEOUT ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+    }
+
+    private void configureIntegerAttribute( final Element element, final String attributeName, final String propertyName )
+    {
+        final String value = getConfigAttributeValue( element, attributeName );
+
+        if( value != null ) {
+
+            try {
+                config.put( propertyName, Integer.valueOf(value) );
+                LOG.debug( propertyName + ": " + config.get( propertyName ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+    }
+
+
     /**
      * DOCUMENT ME!
      *
@@ -1212,6 +1321,32 @@ public class Configuration implements ErrorHandler
                 LOG.warn( e );
             }
         }
+
+        final String allocationLimit = getConfigAttributeValue( watchDog, "allocation-limit" );
+
+        if( allocationLimit != null ) {
+
+            try {
+                config.put( XQueryWatchDog.PROPERTY_ALLOCATION_LIMIT, Long.valueOf(allocationLimit) );
+                LOG.debug( XQueryWatchDog.PROPERTY_ALLOCATION_LIMIT + ": " + config.get( XQueryWatchDog.PROPERTY_ALLOCATION_LIMIT ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String ioLimit = getConfigAttributeValue( watchDog, "io-limit" );
+
+        if( ioLimit != null ) {
+
+            try {
+                config.put( XQueryWatchDog.PROPERTY_IO_LIMIT, Long.valueOf(ioLimit) );
+                LOG.debug( XQueryWatchDog.PROPERTY_IO_LIMIT + ": " + config.get( XQueryWatchDog.PROPERTY_IO_LIMIT ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
     }
 
 
@@ -1260,6 +1395,43 @@ public class Configuration implements ErrorHandler
                 LOG.warn( e );
             }
         }
+
+        final String invalidateOnChange = getConfigAttributeValue( queryPool, XQueryPool.INVALIDATE_ON_CHANGE_ATTRIBUTE );
+
+        if( invalidateOnChange != null ) {
+            config.put( XQueryPool.PROPERTY_INVALIDATE_ON_CHANGE, parseBoolean( invalidateOnChange, true ) );
+            LOG.debug( XQueryPool.PROPERTY_INVALIDATE_ON_CHANGE + ": " + config.get( XQueryPool.PROPERTY_INVALIDATE_ON_CHANGE ) );
+        }
+
+        final String parseCache = getConfigAttributeValue( queryPool, XQueryParseCache.PARSE_CACHE_ATTRIBUTE );
+        config.put( XQueryParseCache.PROPERTY_PARSE_CACHE, parseBoolean( parseCache, false ) );
+        LOG.debug( XQueryParseCache.PROPERTY_PARSE_CACHE + ": " + config.get( XQueryParseCache.PROPERTY_PARSE_CACHE ) );
+
+        final String parseCacheSize = getConfigAttributeValue( queryPool, XQueryParseCache.PARSE_CACHE_SIZE_ATTRIBUTE );
+
+        if( parseCacheSize != null ) {
+
+            try {
+                config.put( XQueryParseCache.PROPERTY_PARSE_CACHE_SIZE, Integer.valueOf(parseCacheSize) );
+                LOG.debug( XQueryParseCache.PROPERTY_PARSE_CACHE_SIZE + ": " + config.get( XQueryParseCache.PROPERTY_PARSE_CACHE_SIZE ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
+        final String validityTtl = getConfigAttributeValue( queryPool, XQueryPool.VALIDITY_TTL_ATTRIBUTE );
+
+        if( validityTtl != null ) {
+
+            try {
+                config.put( XQueryPool.PROPERTY_VALIDITY_TTL, Long.valueOf(validityTtl) );
+                LOG.debug( XQueryPool.PROPERTY_VALIDITY_TTL + ": " + config.get( XQueryPool.PROPERTY_VALIDITY_TTL ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
     }
     
     public static class StartupTriggerConfig {
@@ -21,6 +21,10 @@ package org.exist.util;
 
 import org.exist.Database;
 
+import javax.annotation.Nullable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
 /**
  * Simple utility functions for creating named threads
  *
@@ -28,6 +32,29 @@ import org.exist.Database;
  */
 public class ThreadUtils {
 
+    /**
+     * Thread.ofVirtual(), Thread.Builder#name(String) and Thread.Builder#unstarted(Runnable),
+     * looked up reflectively as virtual threads are only available from Java 21,
+     * or null if they are not available
+     */
+    private static final @Nullable Method[] VIRTUAL_THREAD_BUILDER = lookupVirtualThreadBuilder();
+
+    private static @Nullable Method[] lookupVirtualThreadBuilder() {
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            final Method[] methods = new Method[] {
+                    Thread.class.getMethod("ofVirtual"),
+                    builder.getMethod("name", String.class),
+                    builder.getMethod("unstarted", Runnable.class)
+            };
+            // the methods exist but throw when virtual threads are a preview feature which is not enabled
+            methods[0].invoke(null);
+            return methods;
+        } catch (final ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            return null;
+        }
+    }
+
     public static String nameInstanceThreadGroup(final String instanceId) {
         return "exist.db." + instanceId;
     }
@@ -63,4 +90,33 @@ public class ThreadUtils {
     public static Thread newGlobalThread(final String threadName, final Runnable runnable) {
         return new Thread(runnable, nameGlobalThread(threadName));
     }
+
+    /**
+     * Determines whether the JVM supports virtual threads.
+     *
+     * @return true if {@link #newVirtualThread(String, Runnable)} creates virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_BUILDER != null;
+    }
+
+    /**
+     * Creates an unstarted virtual thread, or a platform thread if the JVM
+     * does not support virtual threads.
+     *
+     * @param threadName the name of the thread
+     * @param runnable the task of the thread
+     * @return the thread
+     */
+    public static Thread newVirtualThread(final String threadName, final Runnable runnable) {
+        if (VIRTUAL_THREAD_BUILDER == null) {
+            return new Thread(runnable, threadName);
+        }
+        try {
+            final Object builder = VIRTUAL_THREAD_BUILDER[1].invoke(VIRTUAL_THREAD_BUILDER[0].invoke(null), threadName);
+            return (Thread) VIRTUAL_THREAD_BUILDER[2].invoke(builder, runnable);
+        } catch (final IllegalAccessException | InvocationTargetException e) {
+            return new Thread(runnable, threadName);
+        }
+    }
 }
@@ -25,6 +25,10 @@ public class XQuerySerializer {
     private final DBBroker broker;
     private final Writer writer;
 
+    private Serializer sequenceSerializer = null;
+    private SAXSerializer sequenceSax = null;
+    private boolean sequenceTyped = false;
+
     public XQuerySerializer(DBBroker broker, Properties outputProperties, Writer writer) {
         super();
         this.broker = broker;
@@ -57,6 +61,82 @@ public class XQuerySerializer {
         return !("json".equals(method) || "adaptive".equals(method));
     }
 
+    /**
+     * Checks if the output method allows to serialize a sequence in parts,
+     * by {@link #startSequence(boolean)}, {@link #serializeItem(Item)}
+     * and {@link #endSequence()}. The json and adaptive methods need the
+     * whole sequence at once.
+     *
+     * @return true if the sequence can be serialized in parts
+     */
+    public boolean canSerializeInParts() {
+        return normalize();
+    }
+
+    /**
+     * Starts serializing a sequence whose items are passed one by one to
+     * {@link #serializeItem(Item)}, while the rest of the sequence is
+     * not known yet. The items are written as by {@link #serialize(Sequence)}.
+     *
+     * A new serializer is used, since the one of the broker may be used
+     * by the query producing the items.
+     *
+     * @param typed Indicates whether the output types should be wrapped
+     * @throws SAXException if the serializer cannot be set up
+     */
+    public void startSequence(final boolean typed) throws SAXException {
+        sequenceSerializer = broker.newSerializer();
+        sequenceSax = (SAXSerializer) SerializerPool.getInstance().borrowObject(SAXSerializer.class);
+        sequenceTyped = typed;
+        try {
+            sequenceSax.setOutput(writer, outputProperties);
+            sequenceSerializer.setProperties(outputProperties);
+            sequenceSerializer.setSAXHandlers(sequenceSax, sequenceSax);
+            sequenceSerializer.startSequence();
+        } catch (SAXNotSupportedException | SAXNotRecognizedException e) {
+            SerializerPool.getInstance().returnObject(sequenceSax);
+            sequenceSax = null;
+            sequenceSerializer = null;
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Serializes the next item of a sequence started by {@link #startSequence(boolean)}.
+     *
+     * @param item the item
+     * @throws SAXException if an error occurs during serialization
+     */
+    public void serializeItem(final Item item) throws SAXException {
+        sequenceSerializer.itemToSAX(item, sequenceTyped);
+    }
+
+    /**
+     * Ends a sequence started by {@link #startSequence(boolean)}.
+     *
+     * @throws SAXException if an error occurs during serialization
+     */
+    public void endSequence() throws SAXException {
+        try {
+            sequenceSerializer.endSequence();
+        } finally {
+            releaseSequence();
+        }
+    }
+
+    /**
+     * Releases the serializer of a sequence started by {@link #startSequence(boolean)},
+     * if the sequence has not been ended by {@link #endSequence()}, e.g. because
+     * the query producing its items failed.
+     */
+    public void releaseSequence() {
+        if (sequenceSax != null) {
+            SerializerPool.getInstance().returnObject(sequenceSax);
+            sequenceSax = null;
+            sequenceSerializer = null;
+        }
+    }
+
     private void serializeXML(final Sequence sequence, final int start, final int howmany, final boolean wrap, final boolean typed, final long compilationTime, final long executionTime) throws SAXException, XPathException {
         final Serializer serializer = broker.getSerializer();
         serializer.reset();
@@ -71,6 +71,25 @@ public abstract class AbstractFLWORClause extends AbstractExpression implements
         return previousClause;
     }
 
+    /**
+     * Checks if the tuples of this clause and of the clauses following it
+     * can be returned one by one, as needed to stream the result of the
+     * FLWOR expression. An "order by" or "group by" clause needs all of them.
+     *
+     * @return true if there is no "order by" or "group by" clause
+     */
+    protected boolean canStreamClauses() {
+        Expression next = this;
+        while (next instanceof FLWORClause) {
+            final ClauseType type = ((FLWORClause) next).getType();
+            if (type == ClauseType.ORDERBY || type == ClauseType.GROUPBY) {
+                return false;
+            }
+            next = ((FLWORClause) next).getReturnExpression();
+        }
+        return true;
+    }
+
     protected void setActualReturnType(int type) {
         this.actualReturnType = type;
     }
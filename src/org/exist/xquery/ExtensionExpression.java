@@ -50,10 +50,18 @@ public class ExtensionExpression extends AbstractExpression {
         this.innerExpression = inner;
     }
 
+    public Expression getExpression() {
+        return innerExpression;
+    }
+
     public void addPragma(Pragma pragma) {
         pragmas.add(pragma);
     }
 
+    public List<Pragma> getPragmas() {
+        return pragmas;
+    }
+
     /**
      * For every pragma in the list, calls {@link Pragma#before(XQueryContext, Expression)} before evaluation.
      * The method then tries to call {@link Pragma#eval(Sequence, Item)} on every pragma.
@@ -24,20 +24,38 @@ package org.exist.xquery;
 
 import org.exist.dom.QName;
 import org.exist.dom.persistent.NodeSet;
+import org.exist.xquery.Constants.Comparison;
+import org.exist.xquery.Constants.StringTruncationOperator;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.value.*;
 
+import com.ibm.icu.text.Collator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Represents an XQuery "for" expression.
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class ForExpr extends BindingExpression {
+public class ForExpr extends BindingExpression implements StreamableExpression {
 
     private String positionalVariable = null;
     private boolean allowEmpty = false;
     private boolean isOuterFor = true;
 
+    // equality comparison in the "where" clause between this variable and an
+    // outer binding, which is evaluated as a hash join, see findJoin
+    private BinaryOp joinComparison = null;
+    private Expression joinInner = null;
+    private Expression joinOuter = null;
+    private Sequence joinInput = null;
+    private Item[] joinItems = null;
+    private HashJoinTable joinTable = null;
+    private boolean joinFailed = false;
+
     public ForExpr(XQueryContext context, boolean allowingEmpty) {
         super(context);
         this.allowEmpty = allowingEmpty;
@@ -90,6 +108,8 @@ public class ForExpr extends BindingExpression {
             final AnalyzeContextInfo newContextInfo = new AnalyzeContextInfo(contextInfo);
             newContextInfo.addFlag(SINGLE_STEP_EXECUTION);
             returnExpr.analyze(newContextInfo);
+
+            findJoin(inVar.getQName());
         } catch (final QName.IllegalQNameException e) {
             throw new XPathException(ErrorCodes.XPST0081, "No namespace defined for prefix");
         } finally {
@@ -107,6 +127,25 @@ public class ForExpr extends BindingExpression {
      */
     public Sequence eval(Sequence contextSequence, Item contextItem)
             throws XPathException {
+        return eval(contextSequence, contextItem, null);
+    }
+
+    @Override
+    public boolean canStream() {
+        return sequenceType == null && canStreamClauses();
+    }
+
+    @Override
+    public void stream(final Sequence contextSequence, final ResultStream stream) throws XPathException {
+        eval(contextSequence, null, stream);
+    }
+
+    /**
+     * @param stream receives the result of each iteration if not null,
+     *     in which case the empty sequence is returned
+     */
+    private Sequence eval(Sequence contextSequence, Item contextItem, final ResultStream stream)
+            throws XPathException {
         if (context.getProfiler().isEnabled()) {
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -127,6 +166,7 @@ public class ForExpr extends BindingExpression {
         try {
             // Evaluate the "in" expression
             in = inputSequence.eval(contextSequence, null);
+            final Sequence input = in;
             clearContext(getExpressionId(), in);
             // Declare the iteration variable
             var = createVariable(varName);
@@ -182,11 +222,17 @@ public class ForExpr extends BindingExpression {
 
             // Loop through each variable binding
             int p = 0;
+            final int[] candidates;
             if (in.isEmpty() && allowEmpty) {
-                processItem(var, AtomicValue.EMPTY_VALUE, Sequence.EMPTY_SEQUENCE, resultSequence, at, p);
+                processItem(var, AtomicValue.EMPTY_VALUE, Sequence.EMPTY_SEQUENCE, resultSequence, stream, at, p);
+            } else if (joinComparison != null && in == input && (candidates = probeJoin(var, in)) != null) {
+                // the "where" clause is still evaluated for each candidate
+                for (final int candidate : candidates) {
+                    processItem(var, joinItems[candidate], in, resultSequence, stream, at, candidate);
+                }
             } else {
                 for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
-                    processItem(var, i.nextItem(), in, resultSequence, at, p);
+                    processItem(var, i.nextItem(), in, resultSequence, stream, at, p);
                 }
             }
         } catch (final QName.IllegalQNameException e) {
@@ -197,6 +243,13 @@ public class ForExpr extends BindingExpression {
         }
 
         clearContext(getExpressionId(), in);
+        if (stream != null) {
+            if (callPostEval()) {
+                postEval(resultSequence);
+            }
+            context.expressionEnd(this);
+            return Sequence.EMPTY_SEQUENCE;
+        }
         if (sequenceType != null) {
             //Type.EMPTY is *not* a subtype of other types ; checking cardinality first
             //only a check on empty sequence is accurate here
@@ -233,8 +286,8 @@ public class ForExpr extends BindingExpression {
         return resultSequence;
     }
 
-    private void processItem(LocalVariable var, Item contextItem, Sequence in, Sequence resultSequence, LocalVariable
-            at, int p) throws XPathException {
+    private void processItem(LocalVariable var, Item contextItem, Sequence in, Sequence resultSequence,
+            ResultStream stream, LocalVariable at, int p) throws XPathException {
         context.proceed(this);
         context.setContextSequencePosition(p, in);
         if (positionalVariable != null) {
@@ -248,12 +301,202 @@ public class ForExpr extends BindingExpression {
         //Reset the context position
         context.setContextSequencePosition(0, null);
 
-        resultSequence.addAll(returnExpr.eval(null));
+        if (stream != null) {
+            StreamableExpression.eval(returnExpr, null, stream);
+        } else {
+            resultSequence.addAll(returnExpr.eval(null));
+        }
 
         // free resources
         var.destroy(context, resultSequence);
     }
 
+    /**
+     * Looks for an equality comparison in the "where" clause, or in one of its
+     * "and" operands, between a path on this variable and a path on another
+     * variable, e.g. {@code $c/@id = $o/customer}. Such a comparison can be
+     * evaluated as a hash join: the values of the inner operand are hashed
+     * once for all the items of the input sequence, and looked up with the
+     * values of the outer operand, which does not change while the input
+     * sequence is iterated.
+     *
+     * @param name the name of this variable
+     */
+    private void findJoin(final QName name) {
+        joinComparison = null;
+        if (positionalVariable != null || allowEmpty || !(returnExpr instanceof WhereClause)) {
+            return;
+        }
+        final List<BinaryOp> conjuncts = new ArrayList<>();
+        collectConjuncts(((WhereClause) returnExpr).getWhereExpr(), conjuncts);
+        for (final BinaryOp comparison : conjuncts) {
+            final Expression left = simplify(comparison.getLeft());
+            final Expression right = simplify(comparison.getRight());
+            final QName leftVar = getPathVariable(left);
+            final QName rightVar = getPathVariable(right);
+            if (leftVar == null || rightVar == null || leftVar.equals(rightVar)) {
+                continue;
+            }
+            if (name.equals(leftVar)) {
+                joinInner = left;
+                joinOuter = right;
+            } else if (name.equals(rightVar)) {
+                joinInner = right;
+                joinOuter = left;
+            } else {
+                continue;
+            }
+            joinComparison = comparison;
+            return;
+        }
+    }
+
+    private static void collectConjuncts(Expression expr, final List<BinaryOp> conjuncts) {
+        expr = simplify(expr);
+        if (expr instanceof OpAnd) {
+            collectConjuncts(((OpAnd) expr).getLeft(), conjuncts);
+            collectConjuncts(((OpAnd) expr).getRight(), conjuncts);
+        } else if (expr instanceof GeneralComparison) {
+            // includes value comparisons
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            if (comparison.getRelation() == Comparison.EQ && comparison.getTruncation() == StringTruncationOperator.NONE
+                    && !(comparison.collationArg instanceof Expression)) {
+                conjuncts.add(comparison);
+            }
+        }
+    }
+
+    private static Expression simplify(Expression expr) {
+        while (true) {
+            if (expr instanceof DebuggableExpression) {
+                expr = ((DebuggableExpression) expr).getFirst();
+            } else if (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+                expr = ((PathExpr) expr).getExpression(0);
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    /**
+     * Returns the variable of an expression which only depends on the value
+     * of that variable: a variable reference followed by location steps
+     * without predicates.
+     *
+     * @return the name of the variable, or null
+     */
+    private static QName getPathVariable(final Expression expr) {
+        if (expr instanceof VariableReference) {
+            return ((VariableReference) expr).getName();
+        }
+        if (expr.getClass() != PathExpr.class) {
+            return null;
+        }
+        final PathExpr path = (PathExpr) expr;
+        if (path.getLength() < 2 || !(simplify(path.getExpression(0)) instanceof VariableReference)) {
+            return null;
+        }
+        for (int i = 1; i < path.getLength(); i++) {
+            final Expression step = path.getExpression(i);
+            if (!(step instanceof LocationStep) || ((LocationStep) step).hasPredicates()) {
+                return null;
+            }
+        }
+        return ((VariableReference) simplify(path.getExpression(0))).getName();
+    }
+
+    /**
+     * Finds the items of the input sequence which may satisfy the join
+     * comparison. The hash table is built the second time the same input
+     * sequence is iterated, i.e. if it is bound to a variable by an outer
+     * clause or it is cached.
+     *
+     * @return the positions of the candidate items, or null if all the items
+     *     have to be processed
+     */
+    private int[] probeJoin(final LocalVariable var, final Sequence in) throws XPathException {
+        if (joinFailed) {
+            return null;
+        }
+        if (in != joinInput) {
+            joinInput = in;
+            joinItems = null;
+            joinTable = null;
+            return null;
+        }
+        final Collator collator = ((GeneralComparison) joinComparison).getCollator(null);
+        if (joinTable == null) {
+            if (context.getProfiler().isEnabled()) {
+                context.getProfiler().message(this, Profiler.OPTIMIZATION_FLAGS, "OPTIMIZATION CHOICE", "hash join");
+            }
+            final HashJoinTable table = new HashJoinTable(collator, joinComparison instanceof ValueComparison);
+            final Item[] items = new Item[in.getItemCount()];
+            try {
+                int p = 0;
+                for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
+                    items[p] = i.nextItem();
+                    var.setValue(items[p].toSequence());
+                    if (sequenceType == null) {
+                        var.checkType();
+                    }
+                    final Sequence values = joinInner.eval(null);
+                    if (values.isEmpty()) {
+                        table.add(p, AtomicValue.EMPTY_VALUE);
+                    }
+                    for (final SequenceIterator j = Atomize.atomize(values).iterate(); j.hasNext(); ) {
+                        table.add(p, j.nextItem().atomize());
+                    }
+                }
+            } catch (final XPathException e) {
+                // the inner operand may not apply to every item, e.g. if it
+                // is guarded by another condition: process all the items
+                joinFailed = true;
+                return null;
+            } finally {
+                var.setValue(in);
+            }
+            joinItems = items;
+            joinTable = table;
+        }
+
+        final Sequence values;
+        try {
+            values = joinOuter.eval(null);
+        } catch (final XPathException e) {
+            // report the error from the "where" clause itself
+            return null;
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        int[] candidates = null;
+        for (final SequenceIterator i = Atomize.atomize(values).iterate(); i.hasNext(); ) {
+            final int[] positions = joinTable.lookup(i.nextItem().atomize());
+            if (positions == null) {
+                return null;
+            }
+            candidates = candidates == null ? positions : union(candidates, positions);
+        }
+        return candidates;
+    }
+
+    private static int[] union(final int[] a, final int[] b) {
+        final int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, len = 0;
+        while (i < a.length || j < b.length) {
+            final int next;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (len == 0 || result[len - 1] != next) {
+                result[len++] = next;
+            }
+        }
+        return Arrays.copyOf(result, len);
+    }
+
     private boolean callPostEval() {
         FLWORClause prev = getPreviousClause();
         while (prev != null) {
@@ -274,6 +517,11 @@ public class ForExpr extends BindingExpression {
     public Sequence preEval(Sequence seq) throws XPathException {
         // if preEval gets called, we know we're inside another FOR
         isOuterFor = false;
+        if (joinComparison != null) {
+            // the "where" clause of a join depends on the variable bound here,
+            // so it cannot be evaluated in one step against the outer input
+            return seq;
+        }
         return super.preEval(seq);
     }
 
@@ -294,6 +542,9 @@ public class ForExpr extends BindingExpression {
             {dumper.display(" at ").display(positionalVariable);}
         dumper.display(" in ");
         inputSequence.dump(dumper);
+        if (joinComparison != null) {
+            dumper.display(" (: hash join on ").display(joinComparison.toString()).display(" :)");
+        }
         dumper.endIndent().nl();
         //TODO : QuantifiedExpr
         if (returnExpr instanceof LetExpr)
@@ -334,6 +585,10 @@ public class ForExpr extends BindingExpression {
     */
     public void resetState(boolean postOptimization) {
         super.resetState(postOptimization);
+        joinInput = null;
+        joinItems = null;
+        joinTable = null;
+        joinFailed = false;
     }
 
     public void accept(ExpressionVisitor visitor) {
@@ -53,6 +53,8 @@ public class FunctionCall extends Function {
 	
     private boolean recursive = false;
 
+    private String metricsName = null;
+
     protected VariableReference varDeps[];
 
     public FunctionCall(XQueryContext context, QName name, List<Expression> arguments) {
@@ -286,6 +288,7 @@ public class FunctionCall extends Function {
             //XXX: should we have it? org.exist.xquery.UserDefinedFunction do a call -shabanovd
             context.stackEnter(this);
 
+            final long callStart = System.nanoTime();
             long start = System.currentTimeMillis();
             if(context.getProfiler().traceFunctions()) {
                 if (context.tailRecursiveCall(getSignature()))
@@ -315,6 +318,8 @@ public class FunctionCall extends Function {
                 if(context.isProfilingEnabled()) {
                     context.getProfiler().end(this, "", returnSeq);
                 }
+
+                context.getDatabase().getQueryMetrics().recordFunctionCall(getMetricsName(), System.nanoTime() - callStart);
                 
                 return returnSeq;
     		
@@ -336,6 +341,17 @@ public class FunctionCall extends Function {
         }
     }
 
+    /**
+     * @return the name under which calls of the function are recorded in the query metrics
+     */
+    private String getMetricsName() {
+        if(metricsName == null) {
+            final FunctionSignature signature = functionDef.getSignature();
+            metricsName = signature.getName().getStringValue() + '#' + signature.getArgumentCount();
+        }
+        return metricsName;
+    }
+
     /**
      * @see org.exist.xquery.PathExpr#resetState(boolean)
      */
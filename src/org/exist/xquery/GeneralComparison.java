@@ -100,6 +100,9 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
 
     private IndexFlags     idxflags         = new IndexFlags();
 
+    /** Number of value comparisons from which an equality comparison of two sequences is evaluated as a hash join. */
+    protected static final int HASH_JOIN_MIN_COMPARISONS = 1024;
+
     public GeneralComparison( XQueryContext context, Comparison relation )
     {
         this( context, relation, StringTruncationOperator.NONE );
@@ -406,6 +409,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
             }
         }
 
+        context.getDatabase().getQueryMetrics().recordIndexUse( PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.OPTIMIZED_INDEX );
         if( context.getProfiler().traceFunctions() ) {
             context.getProfiler().traceIndexUsage( context, PerformanceStats.RANGE_IDX_TYPE, this, PerformanceStats.OPTIMIZED_INDEX, System.currentTimeMillis() - start );
         }
@@ -551,6 +555,8 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
             }
         } else if( ls.hasOne() && rs.hasOne() && ls.itemAt(0).getType() != Type.ARRAY && rs.itemAt(0).getType() != Type.ARRAY) {
             result = BooleanValue.valueOf( compareAtomic( collator, ls.itemAt( 0 ).atomize(), rs.itemAt( 0 ).atomize() ) );
+        } else if( ( relation == Comparison.EQ ) && ( truncation == StringTruncationOperator.NONE ) && ( ( long )ls.getItemCount() * rs.getItemCount() >= HASH_JOIN_MIN_COMPARISONS ) ) {
+            result = BooleanValue.valueOf( hashJoinCompare( collator, ls, rs ) );
         } else {
 
             for( final SequenceIterator i1 = Atomize.atomize(ls).iterate(); i1.hasNext(); ) {
@@ -583,6 +589,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
             }
         }
 
+        context.getDatabase().getQueryMetrics().recordIndexUse( PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.NO_INDEX );
         if( context.getProfiler().traceFunctions() ) {
             context.getProfiler().traceIndexUsage( context, PerformanceStats.RANGE_IDX_TYPE, this, PerformanceStats.NO_INDEX, System.currentTimeMillis() - start );
         }
@@ -590,6 +597,59 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Equality comparison of two large sequences: the values of the right operand are hashed, and only the values
+     * which may be equal to a value of the left operand are compared with it.
+     *
+     * @param   collator  the collation to compare strings with
+     * @param   ls        the left operand
+     * @param   rs        the right operand
+     *
+     * @return  true if a value of the left operand is equal to a value of the right operand
+     *
+     * @throws  XPathException
+     */
+    private boolean hashJoinCompare( Collator collator, Sequence ls, Sequence rs ) throws XPathException
+    {
+        if( context.getProfiler().isEnabled() ) {
+            context.getProfiler().message( this, Profiler.OPTIMIZATION_FLAGS, "OPTIMIZATION CHOICE", "hash join" );
+        }
+        final Sequence      right  = Atomize.atomize( rs );
+        final AtomicValue[] values = new AtomicValue[right.getItemCount()];
+        final HashJoinTable table  = new HashJoinTable( collator, false );
+        int                 p      = 0;
+
+        for( final SequenceIterator i = right.iterate(); i.hasNext(); p++ ) {
+            values[p] = i.nextItem().atomize();
+            table.add( p, values[p] );
+        }
+
+        for( final SequenceIterator i1 = Atomize.atomize( ls ).iterate(); i1.hasNext(); ) {
+            final AtomicValue lv         = i1.nextItem().atomize();
+            final int[]       candidates = table.lookup( lv );
+
+            if( candidates == null ) {
+
+                for( final AtomicValue rv : values ) {
+
+                    if( compareAtomic( collator, lv, rv ) ) {
+                        return( true );
+                    }
+                }
+            } else {
+
+                for( final int candidate : candidates ) {
+
+                    if( compareAtomic( collator, lv, values[candidate] ) ) {
+                        return( true );
+                    }
+                }
+            }
+        }
+        return( false );
+    }
+
+
     /**
      * Optimized implementation, which can be applied if the left operand returns a node set. In this case, the left expression is executed first. All
      * matching context nodes are then passed to the right expression.
@@ -652,6 +712,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
             }
         }
 
+        context.getDatabase().getQueryMetrics().recordIndexUse( PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.NO_INDEX );
         if( context.getProfiler().traceFunctions() ) {
             context.getProfiler().traceIndexUsage( context, PerformanceStats.RANGE_IDX_TYPE, this, PerformanceStats.NO_INDEX, System.currentTimeMillis() - start );
         }
@@ -905,6 +966,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                 }
             }
 
+            context.getDatabase().getQueryMetrics().recordIndexUse( PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.BASIC_INDEX );
             if( context.getProfiler().traceFunctions() ) {
                 context.getProfiler().traceIndexUsage( context, PerformanceStats.RANGE_IDX_TYPE, this, PerformanceStats.BASIC_INDEX, System.currentTimeMillis() - start );
             }
@@ -0,0 +1,218 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import com.ibm.icu.text.Collator;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.NumericValue;
+import org.exist.xquery.value.Type;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash table over the atomized values of one operand of an equality
+ * comparison, which finds the positions whose value may be equal to a value
+ * of the other operand, so that the comparison does not have to be evaluated
+ * for every pair of values (hash join).
+ *
+ * Lookups may return false positives, the comparison must still be evaluated
+ * for each position returned, but never miss a position whose value compares
+ * equal. Numbers are keyed by their double value, strings, URIs and untyped
+ * values by their collation key, untyped values which can be cast to
+ * xs:double are additionally keyed as numbers. xs:float values, which may be
+ * promoted to a less precise type, and values of any other type are returned
+ * by every lookup.
+ *
+ * A value whose comparison with a value in the table would raise a type
+ * error, e.g. a number with a string, cannot be looked up, so that the
+ * comparison is evaluated for every position and raises the error as it
+ * would without the table.
+ */
+public class HashJoinTable {
+
+    // the kinds of values added, a value of another kind may not be comparable
+    // with them
+    private static final int NUMBER = 1;
+    private static final int STRING = 2;
+    private static final int UNTYPED_STRING = 4;
+
+    private final @Nullable Collator collator;
+    private final boolean valueComparison;
+    private int kinds = 0;
+    private final Map<Double, Positions> numbers = new HashMap<>();
+    private final Map<Object, Positions> strings = new HashMap<>();
+    private final Positions always = new Positions();
+
+    /**
+     * @param collator the collation to compare strings with, or null to
+     *     compare them by code points
+     * @param valueComparison true if the values are compared by a value
+     *     comparison, which casts untyped values to xs:string, false for a
+     *     general comparison
+     */
+    public HashJoinTable(@Nullable final Collator collator, final boolean valueComparison) {
+        this.collator = collator;
+        this.valueComparison = valueComparison;
+    }
+
+    /**
+     * Adds a value at a position, positions must be added in ascending order.
+     *
+     * @param position the position of the item the value was atomized from
+     * @param value the value, or the empty value if the item has no value
+     * @throws XPathException if the value cannot be keyed
+     */
+    public void add(final int position, final AtomicValue value) throws XPathException {
+        final int type = value.getType();
+        if (isNumber(type)) {
+            kinds |= NUMBER;
+            add(numbers, numberKey(value), position);
+        } else if (isString(type) || (type == Type.UNTYPED_ATOMIC && valueComparison)) {
+            kinds |= STRING;
+            add(strings, stringKey(value), position);
+        } else if (type == Type.UNTYPED_ATOMIC) {
+            add(strings, stringKey(value), position);
+            final Double number = castToNumber(value);
+            if (number != null) {
+                add(numbers, number, position);
+            } else {
+                kinds |= UNTYPED_STRING;
+            }
+        } else {
+            always.add(position);
+        }
+    }
+
+    /**
+     * Finds the positions whose value may be equal to a value.
+     *
+     * @param value the value to look up
+     * @return the candidate positions in ascending order, or null if the value
+     *     cannot be looked up and every position is a candidate
+     * @throws XPathException if the value cannot be keyed
+     */
+    public @Nullable int[] lookup(final AtomicValue value) throws XPathException {
+        final int type = value.getType();
+        if (isNumber(type)) {
+            if ((kinds & (STRING | UNTYPED_STRING)) != 0) {
+                return null;
+            }
+            return merge(numbers.get(numberKey(value)), null);
+        } else if (isString(type) || (type == Type.UNTYPED_ATOMIC && valueComparison)) {
+            if ((kinds & NUMBER) != 0) {
+                return null;
+            }
+            return merge(strings.get(stringKey(value)), null);
+        } else if (type == Type.UNTYPED_ATOMIC) {
+            final Double number = castToNumber(value);
+            if (number == null && (kinds & NUMBER) != 0) {
+                // cannot be cast to the type of the numbers
+                return null;
+            }
+            return merge(strings.get(stringKey(value)), number == null ? null : numbers.get(number));
+        }
+        return null;
+    }
+
+    private static boolean isNumber(final int type) {
+        return Type.subTypeOf(type, Type.NUMBER) && !Type.subTypeOf(type, Type.FLOAT);
+    }
+
+    private static boolean isString(final int type) {
+        // an untyped value is cast to the subtypes of xs:string, which may fail
+        return type == Type.STRING || type == Type.ANY_URI;
+    }
+
+    private static Double numberKey(final AtomicValue value) throws XPathException {
+        final double d = ((NumericValue) value).getDouble();
+        // -0.0 and 0.0 compare equal
+        return d == 0.0 ? 0.0 : d;
+    }
+
+    private static @Nullable Double castToNumber(final AtomicValue value) {
+        try {
+            return numberKey(value.convertTo(Type.DOUBLE));
+        } catch (final XPathException e) {
+            return null;
+        }
+    }
+
+    private Object stringKey(final AtomicValue value) throws XPathException {
+        final String s = value.getStringValue();
+        return collator == null ? s : collator.getCollationKey(s);
+    }
+
+    private static <K> void add(final Map<K, Positions> map, final K key, final int position) {
+        map.computeIfAbsent(key, k -> new Positions()).add(position);
+    }
+
+    private int[] merge(@Nullable final Positions first, @Nullable final Positions second) {
+        if (second == null && always.size == 0) {
+            return first == null ? new int[0] : first.toArray();
+        }
+        final int[] merged = new int[size(first) + size(second) + always.size];
+        int len = copy(first, merged, 0);
+        len = copy(second, merged, len);
+        len = copy(always, merged, len);
+        Arrays.sort(merged, 0, len);
+        int distinct = 0;
+        for (int i = 0; i < len; i++) {
+            if (distinct == 0 || merged[distinct - 1] != merged[i]) {
+                merged[distinct++] = merged[i];
+            }
+        }
+        return Arrays.copyOf(merged, distinct);
+    }
+
+    private static int size(@Nullable final Positions positions) {
+        return positions == null ? 0 : positions.size;
+    }
+
+    private static int copy(@Nullable final Positions positions, final int[] dest, final int offset) {
+        if (positions == null) {
+            return offset;
+        }
+        System.arraycopy(positions.positions, 0, dest, offset, positions.size);
+        return offset + positions.size;
+    }
+
+    private static class Positions {
+        private int[] positions = new int[1];
+        private int size = 0;
+
+        void add(final int position) {
+            // a value may occur several times at the same position
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
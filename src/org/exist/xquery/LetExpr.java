@@ -33,7 +33,7 @@ import org.exist.xquery.value.Type;
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class LetExpr extends BindingExpression {
+public class LetExpr extends BindingExpression implements StreamableExpression {
 
     public LetExpr(XQueryContext context) {
         super(context);
@@ -75,6 +75,25 @@ public class LetExpr extends BindingExpression {
      */
     public Sequence eval(Sequence contextSequence, Item contextItem)
             throws XPathException {
+        return eval(contextSequence, contextItem, null);
+    }
+
+    @Override
+    public boolean canStream() {
+        return canStreamClauses();
+    }
+
+    @Override
+    public void stream(final Sequence contextSequence, final ResultStream stream) throws XPathException {
+        eval(contextSequence, null, stream);
+    }
+
+    /**
+     * @param stream receives the result of the return expression if not
+     *     null, in which case the empty sequence is returned
+     */
+    private Sequence eval(Sequence contextSequence, Item contextItem, final ResultStream stream)
+            throws XPathException {
         if (context.getProfiler().isEnabled()){
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -108,7 +127,11 @@ public class LetExpr extends BindingExpression {
                 var.setContextDocs(inputSequence.getContextDocSet());
                 registerUpdateListener(in);
 
-                resultSequence = returnExpr.eval(contextSequence, null);
+                if (stream != null) {
+                    StreamableExpression.eval(returnExpr, contextSequence, stream);
+                } else {
+                    resultSequence = returnExpr.eval(contextSequence, null);
+                }
 
                 if (sequenceType != null) {
                     int actualCardinality;
@@ -148,6 +171,12 @@ public class LetExpr extends BindingExpression {
             clearContext(getExpressionId(), in);
             if (context.getProfiler().isEnabled())
                 {context.getProfiler().end(this, "", resultSequence);}
+            if (stream != null) {
+                if (getPreviousClause() == null) {
+                    postEval(Sequence.EMPTY_SEQUENCE);
+                }
+                return Sequence.EMPTY_SEQUENCE;
+            }
             if (resultSequence == null)
                 {return Sequence.EMPTY_SEQUENCE;}
             if (!(resultSequence instanceof DeferredFunctionCall)) {
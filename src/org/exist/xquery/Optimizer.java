@@ -180,6 +180,25 @@ public class Optimizer extends DefaultExpressionVisitor {
         }
     }
 
+    public void visitOrderByClause(OrderByClause orderBy) {
+        super.visitOrderByClause(orderBy);
+        // check query rewriters if they want to replace a sort expression
+        for (final OrderSpec spec : orderBy.getOrderSpecs()) {
+            for (final QueryRewriter rewriter : rewriters) {
+                try {
+                    final Expression sortExpr = rewriter.rewriteOrderSpec(spec);
+                    if (sortExpr != null) {
+                        spec.replace(spec.getSortExpression(), sortExpr);
+                        hasOptimized = true;
+                        break;
+                    }
+                } catch (XPathException e) {
+                    LOG.warn("Exception called while rewriting order spec: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
     public void visitFilteredExpr(FilteredExpression filtered) {
         super.visitFilteredExpr(filtered);
 
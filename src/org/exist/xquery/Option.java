@@ -37,6 +37,8 @@ public class Option {
 
 	public final static QName TIMEOUT_QNAME = new QName("timeout", Namespaces.EXIST_NS);
 	public final static QName OUTPUT_SIZE_QNAME = new QName("output-size-limit", Namespaces.EXIST_NS);
+	public final static QName ALLOCATION_LIMIT_QNAME = new QName("allocation-limit", Namespaces.EXIST_NS);
+	public final static QName IO_LIMIT_QNAME = new QName("io-limit", Namespaces.EXIST_NS);
 	public final static QName SERIALIZE_QNAME = new QName("serialize", Namespaces.EXIST_NS);
     public final static QName PROFILE_QNAME = new QName("profiling", Namespaces.EXIST_NS);
     public final static QName OPTIMIZE_QNAME = new QName("optimize", Namespaces.EXIST_NS);
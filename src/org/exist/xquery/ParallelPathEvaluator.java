@@ -0,0 +1,571 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.DocumentSet;
+import org.exist.dom.persistent.NewArrayNodeSet;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.dom.persistent.VirtualNodeSet;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerPoolService;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ResourceUsage;
+import org.exist.util.Configuration;
+import org.exist.xquery.Constants.StringTruncationOperator;
+import org.exist.xquery.pragmas.Optimize;
+import org.exist.xquery.value.Sequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.exist.util.ThreadUtils.nameInstanceThread;
+
+/**
+ * Evaluates the last steps of a path expression in parallel for the
+ * documents of its context, e.g. the steps <code>//record[price &gt; 100]/title</code>
+ * of <code>collection('/db/big')//record[price &gt; 100]/title</code>.
+ *
+ * The documents of the context are split into ranges of document ids. The
+ * thread running the query and tasks running on a fork-join pool take the
+ * ranges one by one and evaluate the steps for the context nodes in each
+ * range, and the results are merged in document order. Expressions keep
+ * state while they are evaluated, so each task evaluates its own copy of the
+ * steps, in a copy of the query context, with its own broker which it only
+ * uses to read the documents. A task which cannot lease a broker without
+ * waiting leaves the ranges to the other threads, so queries never wait for
+ * the brokers leased by the tasks of other queries.
+ *
+ * Only steps which do not depend on other nodes than the context node and
+ * its document are evaluated in parallel: location steps with predicates
+ * made of location steps, comparisons, <code>and</code>, <code>or</code>
+ * and literals, but no positional predicates, variables or function calls.
+ * Comparisons and literals are only allowed in predicates, so that the
+ * result of the steps is a node set.
+ * Their context has to hold at least the configured number of documents.
+ */
+public class ParallelPathEvaluator implements BrokerPoolService {
+
+    private static final Logger LOG = LogManager.getLogger(ParallelPathEvaluator.class);
+
+    public static final String CONFIG_ATTR_THRESHOLD = "parallel-threshold";
+    public static final String PROPERTY_THRESHOLD = "xquery.parallel-threshold";
+    public static final String CONFIG_ATTR_PARALLELISM = "parallelism";
+    public static final String PROPERTY_PARALLELISM = "xquery.parallelism";
+
+    /**
+     * The number of document ranges per thread, so that a thread which is
+     * done early takes over ranges of a thread with more work.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * The interval in milliseconds in which the thread running the query
+     * checks its watchdog while it waits for the tasks.
+     */
+    private static final long WATCHDOG_INTERVAL = 100;
+
+    private int threshold = 0;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private BrokerPool brokerPool;
+    private ForkJoinPool pool = null;
+
+    @Override
+    public void configure(final Configuration configuration) {
+        final Integer threshold = (Integer) configuration.getProperty(PROPERTY_THRESHOLD);
+        if (threshold != null) {
+            this.threshold = threshold;
+        }
+        final Integer parallelism = (Integer) configuration.getProperty(PROPERTY_PARALLELISM);
+        if (parallelism != null) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    @Override
+    public void prepare(final BrokerPool brokerPool) {
+        this.brokerPool = brokerPool;
+        if (threshold > 0 && parallelism > 0) {
+            final AtomicLong threadId = new AtomicLong();
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName(nameInstanceThread(brokerPool, "parallel-query-" + threadId.getAndIncrement()));
+                return thread;
+            }, null, false);
+            LOG.info("Evaluating path expressions in parallel on " + parallelism +
+                    " threads for contexts of at least " + threshold + " documents");
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Finds the last steps of a path expression which can be evaluated in
+     * parallel. The first step of the path is never included, since it is
+     * evaluated against the context of the path.
+     *
+     * @param path the path expression, after its steps have been analyzed
+     * @param flags the flags the path expression was analyzed with
+     * @return the steps, or null if there are none
+     */
+    static Steps findSteps(final PathExpr path, final int flags) {
+        if (path.getContext().hasParent() || path.getContextId() != Expression.NO_CONTEXT_ID ||
+                (flags & (Expression.IN_PREDICATE | Expression.IN_UPDATE)) != 0) {
+            return null;
+        }
+        int start = path.getLength();
+        while (start > 1 && isStep(path.getSubExpression(start - 1))) {
+            start--;
+        }
+        return start < path.getLength() ? new Steps(path, start, flags) : null;
+    }
+
+    /**
+     * Evaluates the last steps of a path expression in parallel, if the
+     * context is large enough.
+     *
+     * @param steps the steps
+     * @param contextSequence the context of the first of the steps
+     * @return the result of the last step, or null if the steps have not
+     *     been evaluated, and have to be evaluated by the path expression
+     * @throws XPathException if the evaluation of a step fails
+     */
+    Sequence eval(final Steps steps, final Sequence contextSequence) throws XPathException {
+        final XQueryContext context = steps.path.getContext();
+        if (pool == null || !(contextSequence instanceof NodeSet) || contextSequence instanceof VirtualNodeSet ||
+                !contextSequence.isPersistentSet() || context.getProfiler().isEnabled()) {
+            return null;
+        }
+        final NodeSet contextSet = (NodeSet) contextSequence;
+        final DocumentSet docs = contextSet.getDocumentSet();
+        if (docs.getDocumentCount() < threshold) {
+            return null;
+        }
+
+        final NodeSet[] ranges = split(contextSet, docs, Math.min(docs.getDocumentCount(),
+                (parallelism + 1) * RANGES_PER_THREAD));
+        final Sequence[] results = new Sequence[ranges.length];
+        final AtomicInteger next = new AtomicInteger();
+
+        final Optional<Subject> subject = Optional.of(context.getSubject());
+        final List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, ranges.length - 1); i++) {
+            final XQueryContext taskContext = context.copyContextForTask();
+            final Task task = new Task(taskContext, subject, steps.copy(taskContext), steps.isPath(), ranges,
+                    results, next);
+            task.future = pool.submit(task);
+            tasks.add(task);
+        }
+
+        try {
+            evalRanges(context, steps.getExpressions(), steps.isPath(), ranges, results, next);
+
+            final XQueryWatchDog watchDog = context.getWatchDog();
+            for (final Task task : tasks) {
+                // a task which has not started yet is not needed anymore
+                if (task.started.compareAndSet(false, true)) {
+                    continue;
+                }
+                final ResourceUsage usage = waitFor(task.future, steps.path, watchDog);
+                if (usage != null) {
+                    watchDog.getResourceUsage().addTaskUsage(usage);
+                }
+            }
+        } catch (final XPathException | RuntimeException | Error e) {
+            cancel(tasks, ranges, next);
+            throw e;
+        }
+
+        final NodeSet result = new NewArrayNodeSet();
+        for (final Sequence part : results) {
+            if (!part.isEmpty()) {
+                result.addAll(part.toNodeSet());
+            }
+        }
+        return result;
+    }
+
+    private static ResourceUsage waitFor(final Future<ResourceUsage> future, final Expression path,
+            final XQueryWatchDog watchDog) throws XPathException {
+        while (true) {
+            try {
+                return future.get(WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                watchDog.proceed(path);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(path, ErrorCodes.ERROR, "Interrupted while waiting for the parallel evaluation of a path", null, e);
+            } catch (final ExecutionException e) {
+                Throwable cause = e.getCause();
+                // the fork-join pool wraps the checked exceptions of a task
+                while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof XPathException) {
+                    throw (XPathException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new XPathException(path, ErrorCodes.ERROR, cause.getMessage(), null, cause);
+            }
+        }
+    }
+
+    /**
+     * Stops the tasks once the evaluation has failed, and waits for the
+     * running tasks, so that none of them still uses the query context or
+     * a broker when the query fails.
+     */
+    private static void cancel(final List<Task> tasks, final NodeSet[] ranges, final AtomicInteger next) {
+        next.set(ranges.length);
+        boolean interrupted = false;
+        for (final Task task : tasks) {
+            if (task.started.compareAndSet(false, true)) {
+                task.future.cancel(false);
+                continue;
+            }
+            while (true) {
+                try {
+                    task.future.get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException | CancellationException e) {
+                    // the failure which is reported is the first one
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits the context into ranges of about the same number of documents,
+     * in ascending order of the document ids.
+     */
+    private static NodeSet[] split(final NodeSet contextSet, final DocumentSet docs, final int count) {
+        final int[] docIds = new int[docs.getDocumentCount()];
+        int i = 0;
+        for (final Iterator<DocumentImpl> iter = docs.getDocumentIterator(); iter.hasNext(); ) {
+            docIds[i++] = iter.next().getDocId();
+        }
+        Arrays.sort(docIds);
+
+        // the first document id of each range
+        final int[] firstDocIds = new int[count];
+        final NodeSet[] ranges = new NodeSet[count];
+        for (int r = 0; r < count; r++) {
+            firstDocIds[r] = docIds[(int) ((long) r * docIds.length / count)];
+            ranges[r] = new NewArrayNodeSet();
+        }
+        for (final NodeProxy node : contextSet) {
+            int r = Arrays.binarySearch(firstDocIds, node.getOwnerDocument().getDocId());
+            if (r < 0) {
+                r = -r - 2;
+            }
+            ranges[r].add(node);
+        }
+        return ranges;
+    }
+
+    /**
+     * Evaluates the steps for the ranges which have not been taken by
+     * another thread yet.
+     */
+    private static void evalRanges(final XQueryContext context, final List<Expression> steps, final boolean isPath,
+            final NodeSet[] ranges, final Sequence[] results, final AtomicInteger next) throws XPathException {
+        try {
+            int r;
+            while ((r = next.getAndIncrement()) < ranges.length) {
+                Sequence result = ranges[r];
+                for (final Expression step : steps) {
+                    context.getWatchDog().proceed(step);
+                    step.setContextDocSet(null);
+                    result = step.eval(result);
+                    if (isPath) {
+                        result.removeDuplicates();
+                    }
+                }
+                results[r] = result;
+            }
+        } catch (final XPathException | RuntimeException e) {
+            // leave the other ranges, the query fails anyway
+            next.set(ranges.length);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if an expression is a step of the path which can be evaluated
+     * in parallel: only location steps, which the optimizer may have wrapped
+     * in a pragma, since the results of the ranges are merged as node sets.
+     */
+    private static boolean isStep(final Expression expr) {
+        if (expr.getClass() == ExtensionExpression.class) {
+            return canCopy(expr) && isStep(((ExtensionExpression) expr).getExpression());
+        }
+        return expr.getClass() == LocationStep.class && canCopy(expr);
+    }
+
+    /**
+     * Checks if an expression can be copied by {@link #copy(XQueryContext, Expression)}.
+     */
+    private static boolean canCopy(final Expression expr) {
+        final Class<?> type = expr.getClass();
+        if (type == LocationStep.class) {
+            for (final Predicate predicate : ((LocationStep) expr).getPredicates()) {
+                if (!canCopy(predicate)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (type == Predicate.class) {
+            final Predicate predicate = (Predicate) expr;
+            if (predicate.getExecutionMode() == Predicate.POSITIONAL || predicate.getLength() == 0 ||
+                    (predicate.getLength() == 1 && predicate.getSubExpression(0) instanceof LiteralValue)) {
+                return false;
+            }
+            return canCopySteps(predicate);
+        } else if (type == PathExpr.class || type == OpAnd.class || type == OpOr.class) {
+            return canCopySteps((PathExpr) expr);
+        } else if (type == GeneralComparison.class || type == ValueComparison.class) {
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            return comparison.collationArg == null &&
+                    (type == GeneralComparison.class || comparison.getTruncation() == StringTruncationOperator.NONE) &&
+                    canCopySteps(comparison);
+        } else if (type == LiteralValue.class) {
+            return true;
+        } else if (type == ExtensionExpression.class) {
+            final ExtensionExpression extension = (ExtensionExpression) expr;
+            for (final Pragma pragma : extension.getPragmas()) {
+                if (pragma.getClass() != Optimize.class) {
+                    return false;
+                }
+            }
+            return canCopy(extension.getExpression());
+        }
+        return false;
+    }
+
+    private static boolean canCopySteps(final PathExpr path) {
+        for (int i = 0; i < path.getLength(); i++) {
+            if (!canCopy(path.getSubExpression(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies an expression, which has been analyzed, into another context.
+     * The copy has to be analyzed.
+     */
+    private static Expression copy(final XQueryContext context, final Expression expr) throws XPathException {
+        final Class<?> type = expr.getClass();
+        final Expression copy;
+        if (type == LocationStep.class) {
+            final LocationStep step = (LocationStep) expr;
+            final LocationStep stepCopy = new LocationStep(context, step.getAxis(), step.getTest());
+            stepCopy.setAbbreviated(step.isAbbreviated());
+            for (final Predicate predicate : step.getPredicates()) {
+                stepCopy.addPredicate(copy(context, predicate));
+            }
+            copy = stepCopy;
+        } else if (type == Predicate.class) {
+            copy = copySteps(context, (Predicate) expr, new Predicate(context));
+        } else if (type == PathExpr.class) {
+            copy = copySteps(context, (PathExpr) expr, new PathExpr(context));
+        } else if (type == OpAnd.class) {
+            copy = copySteps(context, (PathExpr) expr, new OpAnd(context));
+        } else if (type == OpOr.class) {
+            copy = copySteps(context, (PathExpr) expr, new OpOr(context));
+        } else if (type == GeneralComparison.class) {
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            copy = new GeneralComparison(context, copy(context, comparison.getLeft()),
+                    copy(context, comparison.getRight()), comparison.getRelation(), comparison.getTruncation());
+        } else if (type == ValueComparison.class) {
+            final ValueComparison comparison = (ValueComparison) expr;
+            copy = new ValueComparison(context, copy(context, comparison.getLeft()),
+                    copy(context, comparison.getRight()), comparison.getRelation());
+        } else if (type == LiteralValue.class) {
+            copy = new LiteralValue(context, ((LiteralValue) expr).getValue());
+        } else if (type == ExtensionExpression.class) {
+            final ExtensionExpression extension = (ExtensionExpression) expr;
+            final ExtensionExpression extensionCopy = new ExtensionExpression(context);
+            for (final Pragma pragma : extension.getPragmas()) {
+                extensionCopy.addPragma(new Optimize(context, pragma.getQName(), pragma.getContents(),
+                        ((Optimize) pragma).isEnabled()));
+            }
+            extensionCopy.setExpression(copy(context, extension.getExpression()));
+            copy = extensionCopy;
+        } else {
+            throw new IllegalArgumentException("Cannot copy expression " + type.getName());
+        }
+        copy.setLocation(expr.getLine(), expr.getColumn());
+        return copy;
+    }
+
+    private static PathExpr copySteps(final XQueryContext context, final PathExpr path, final PathExpr copy)
+            throws XPathException {
+        for (int i = 0; i < path.getLength(); i++) {
+            copy.add(copy(context, path.getSubExpression(i)));
+        }
+        return copy;
+    }
+
+    /**
+     * The last steps of a path expression, which can be evaluated in parallel.
+     */
+    static final class Steps {
+        private final PathExpr path;
+        private final int start;
+        private final int flags;
+
+        private Steps(final PathExpr path, final int start, final int flags) {
+            this.path = path;
+            this.start = start;
+            this.flags = flags;
+        }
+
+        /**
+         * @return the position of the first of the steps in the path expression
+         */
+        int getStart() {
+            return start;
+        }
+
+        private List<Expression> getExpressions() {
+            final List<Expression> steps = new ArrayList<>(path.getLength() - start);
+            for (int i = start; i < path.getLength(); i++) {
+                steps.add(path.getSubExpression(i));
+            }
+            return steps;
+        }
+
+        /**
+         * Checks if duplicates are removed from the result of each step, as
+         * {@link PathExpr#eval(Sequence, org.exist.xquery.value.Item)} does.
+         */
+        private boolean isPath() {
+            return path.getLastExpression() instanceof Step;
+        }
+
+        /**
+         * Copies and analyzes the steps in the context of a task. The copies
+         * are analyzed as the steps have been by the path expression.
+         */
+        private List<Expression> copy(final XQueryContext context) throws XPathException {
+            final List<Expression> copies = new ArrayList<>(path.getLength() - start);
+            final AnalyzeContextInfo contextInfo = new AnalyzeContextInfo(path, flags);
+            for (int i = start; i < path.getLength(); i++) {
+                final Expression copy = ParallelPathEvaluator.copy(context, path.getSubExpression(i));
+                if (i > start) {
+                    contextInfo.setContextStep(copies.get(copies.size() - 1));
+                }
+                contextInfo.setParent(path);
+                copy.analyze(contextInfo);
+                copies.add(copy);
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * Evaluates copies of the steps for the ranges not taken by another
+     * thread yet, with its own broker.
+     */
+    private final class Task implements Callable<ResourceUsage> {
+        private final XQueryContext context;
+        private final Optional<Subject> subject;
+        private final List<Expression> steps;
+        private final boolean isPath;
+        private final NodeSet[] ranges;
+        private final Sequence[] results;
+        private final AtomicInteger next;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private Future<ResourceUsage> future;
+
+        private Task(final XQueryContext context, final Optional<Subject> subject, final List<Expression> steps,
+                final boolean isPath, final NodeSet[] ranges, final Sequence[] results, final AtomicInteger next) {
+            this.context = context;
+            this.subject = subject;
+            this.steps = steps;
+            this.isPath = isPath;
+            this.ranges = ranges;
+            this.results = results;
+            this.next = next;
+        }
+
+        @Override
+        public ResourceUsage call() throws XPathException, EXistException {
+            if (!started.compareAndSet(false, true) || next.get() >= ranges.length) {
+                return null;
+            }
+            final Optional<DBBroker> leased = brokerPool.tryGet(subject);
+            if (!leased.isPresent()) {
+                return null;
+            }
+            final ResourceUsage usage = context.getWatchDog().getResourceUsage();
+            // the context reads the documents with the broker leased by this thread
+            try {
+                usage.start();
+                try {
+                    evalRanges(context, steps, isPath, ranges, results, next);
+                } finally {
+                    usage.stop();
+                    context.clearUpdateListeners();
+                }
+            } finally {
+                leased.get().close();
+            }
+            return usage;
+        }
+    }
+}
@@ -57,6 +57,12 @@ public class PathExpr extends AbstractExpression implements CompiledXQuery,
 
     protected Expression parent;
 
+    /**
+     * The last steps of this path which can be evaluated in parallel for the
+     * documents of their context, or null
+     */
+    private ParallelPathEvaluator.Steps parallelSteps = null;
+
     public PathExpr(final XQueryContext context) {
         super(context);
     }
@@ -159,7 +165,7 @@ public class PathExpr extends AbstractExpression implements CompiledXQuery,
         inPredicate = (contextInfo.getFlags() & IN_PREDICATE) > 0;
         unordered = (contextInfo.getFlags() & UNORDERED) > 0;
         contextId = contextInfo.getContextId();
-
+        final int flags = contextInfo.getFlags();
 
         for (int i = 0; i < steps.size(); i++) {
             // if this is a sequence of steps, the IN_PREDICATE flag
@@ -183,6 +189,10 @@ public class PathExpr extends AbstractExpression implements CompiledXQuery,
             contextInfo.setParent(this);
             expr.analyze(contextInfo);
         }
+
+        if (getClass() == PathExpr.class) {
+            parallelSteps = ParallelPathEvaluator.findSteps(this, flags);
+        }
     }
 
     @Override
@@ -227,10 +237,21 @@ public class PathExpr extends AbstractExpression implements CompiledXQuery,
             //TODO : let the parser do it ? -pb
             boolean gotAtomicResult = false;
             Expression prev = null;
-            for (final Iterator<Expression> iter = steps.iterator(); iter.hasNext(); ) {
+            int i = 0;
+            for (final Iterator<Expression> iter = steps.iterator(); iter.hasNext(); i++) {
                 prev = expr;
                 expr = iter.next();
                 context.getWatchDog().proceed(expr);
+                if (parallelSteps != null && i == parallelSteps.getStart() && !staticContext) {
+                    final Sequence parallelResult = context.getBroker().getBrokerPool()
+                            .getParallelPathEvaluator().eval(parallelSteps, currentContext);
+                    if (parallelResult != null) {
+                        result = parallelResult;
+                        prev = steps.get(steps.size() - 2);
+                        expr = steps.get(steps.size() - 1);
+                        break;
+                    }
+                }
                 //TODO : maybe this could be detected by the parser ? -pb
                 if (gotAtomicResult && !Type.subTypeOf(expr.returnsType(), Type.NODE)
                         //Ugly workaround to allow preceding *text* nodes.
@@ -26,6 +26,7 @@ import org.exist.Database;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.storage.BrokerPoolService;
+import org.exist.storage.ResourceUsage;
 import org.xml.sax.helpers.AttributesImpl;
 
 import java.util.HashMap;
@@ -90,6 +91,11 @@ public class PerformanceStats implements BrokerPoolService {
         String source;
         long executionTime = 0;
         int callCount = 1;
+        long pageReads = 0;
+        long pageWrites = 0;
+        long cacheMisses = 0;
+        long nodes = 0;
+        long allocatedBytes = 0;
 
         QueryStats(String source) {
             this.source = source;
@@ -102,6 +108,24 @@ public class PerformanceStats implements BrokerPoolService {
             callCount++;
         }
 
+        public void recordResources(ResourceUsage usage) {
+            pageReads += usage.getPageReads();
+            pageWrites += usage.getPageWrites();
+            cacheMisses += usage.getCacheMisses();
+            nodes += usage.getNodeProxies() + usage.getMemtreeNodes();
+            allocatedBytes += usage.getAllocatedBytes();
+        }
+
+        void add(QueryStats other) {
+            callCount += other.callCount;
+            executionTime += other.executionTime;
+            pageReads += other.pageReads;
+            pageWrites += other.pageWrites;
+            cacheMisses += other.cacheMisses;
+            nodes += other.nodes;
+            allocatedBytes += other.allocatedBytes;
+        }
+
         public int hashCode() {
             return source.hashCode();
         }
@@ -175,6 +199,10 @@ public class PerformanceStats implements BrokerPoolService {
     }
 
     public void recordQuery(String source, long elapsed) {
+        recordQuery(source, elapsed, null);
+    }
+
+    public void recordQuery(String source, long elapsed, ResourceUsage usage) {
         if (source == null)
             {return;}
         QueryStats stats = queries.get(source);
@@ -185,6 +213,8 @@ public class PerformanceStats implements BrokerPoolService {
         } else {
             stats.recordCall(elapsed);
         }
+        if (usage != null)
+            {stats.recordResources(usage);}
     }
 
     public void recordFunctionCall(QName qname, String source, long elapsed) {
@@ -215,8 +245,7 @@ public class PerformanceStats implements BrokerPoolService {
             if (mine == null) {
                 queries.put(other.source, other);
             } else {
-                mine.callCount += other.callCount;
-                mine.executionTime += other.executionTime;
+                mine.add(other);
             }
         }
         for (final FunctionStats other: otherStats.functions.values()) {
@@ -278,6 +307,11 @@ public class PerformanceStats implements BrokerPoolService {
             attrs.addAttribute("", "source", "source", "CDATA", stats.source);
             attrs.addAttribute("", "elapsed", "elapsed", "CDATA", Double.toString(stats.executionTime / 1000.0));
             attrs.addAttribute("", "calls", "calls", "CDATA", Integer.toString(stats.callCount));
+            attrs.addAttribute("", "page-reads", "page-reads", "CDATA", Long.toString(stats.pageReads));
+            attrs.addAttribute("", "page-writes", "page-writes", "CDATA", Long.toString(stats.pageWrites));
+            attrs.addAttribute("", "cache-misses", "cache-misses", "CDATA", Long.toString(stats.cacheMisses));
+            attrs.addAttribute("", "nodes", "nodes", "CDATA", Long.toString(stats.nodes));
+            attrs.addAttribute("", "allocated", "allocated", "CDATA", Long.toString(stats.allocatedBytes));
             builder.startElement(new QName("query", XML_NAMESPACE, XML_PREFIX), attrs);
             builder.endElement();
         }
@@ -28,6 +28,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.Database;
 import org.exist.storage.DBBroker;
+import org.exist.storage.ResourceUsage;
 import org.exist.xquery.value.Sequence;
 
 /**
@@ -171,7 +172,11 @@ public class Profiler {
     }
 
     public final void traceQueryEnd(XQueryContext context) {
-        stats.recordQuery(context.getSource().path(), (System.currentTimeMillis() - queryStart));
+        final ResourceUsage usage = context.getWatchDog().getResourceUsage();
+        stats.recordQuery(context.getSource().path(), (System.currentTimeMillis() - queryStart), usage);
+        if (enabled && context.getRootExpression() != null) {
+            message(context.getRootExpression(), TIME, "RESOURCES", usage.toString());
+        }
     }
 
     public final void traceFunctionStart(Function function) {
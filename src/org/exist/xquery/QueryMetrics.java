@@ -0,0 +1,455 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.storage.BrokerPoolService;
+import org.exist.util.Configuration;
+
+import java.beans.ConstructorProperties;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on metrics of query execution: latency histograms and the number of
+ * items returned per query source, latency histograms per user-declared
+ * function and the number of index uses per index type and mode.
+ *
+ * Unlike {@link PerformanceStats}, which is only active while tracing is
+ * enabled, the metrics are recorded for every query. Each thread records
+ * into its own recorder, which only that thread writes to, so recording
+ * needs no locks and causes no contention; the recorders are merged when
+ * the metrics are read. The recorders of terminated threads are folded into
+ * a single one whenever their number has doubled since the last fold, so
+ * short-lived threads do not accumulate recorders.
+ *
+ * The number of distinct query sources and functions is limited, further
+ * sources or functions are recorded under {@link #OTHER}.
+ */
+public class QueryMetrics implements BrokerPoolService {
+
+    public static final String CONFIG_ATTR_METRICS = "metrics";
+    public static final String PROPERTY_METRICS = "xquery.metrics";
+
+    /**
+     * Upper bounds of the latency histogram buckets, in seconds. A last
+     * bucket counts the latencies above the highest bound.
+     */
+    public static final double[] LATENCY_BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+
+    public static final int MAX_NAMES = 1000;
+    public static final String OTHER = "other";
+
+    private static final long[] BUCKET_NANOS = new long[LATENCY_BUCKETS.length];
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (LATENCY_BUCKETS[i] * 1_000_000_000L);
+        }
+    }
+
+    private static final String[] INDEX_MODES = { "none", "basic", "optimized" };
+
+    /**
+     * The least number of recorders at which the recorders of terminated
+     * threads are folded when a new recorder is registered.
+     */
+    static final int MIN_FOLD_RECORDERS = 16;
+
+    private volatile boolean enabled = true;
+
+    private final Map<Recorder, Boolean> recorders = new ConcurrentHashMap<>();
+    private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(this::newRecorder);
+
+    /**
+     * Holds the metrics of the recorders of terminated threads.
+     */
+    private final Recorder retired = new Recorder(null);
+
+    /**
+     * The number of recorders at which the next new recorder folds those of
+     * terminated threads, guarded by {@link #retired}.
+     */
+    private int foldAt = MIN_FOLD_RECORDERS;
+
+    private final ConcurrentMap<String, Boolean> queryNames = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Boolean> functionNames = new ConcurrentHashMap<>();
+
+    @Override
+    public void configure(final Configuration configuration) {
+        final Boolean metrics = (Boolean) configuration.getProperty(PROPERTY_METRICS);
+        if (metrics != null) {
+            enabled = metrics;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records the execution of a query.
+     *
+     * @param source the path of the query source
+     * @param elapsed the execution time in nanoseconds
+     * @param items the number of items returned
+     */
+    public void recordQuery(final String source, final long elapsed, final long items) {
+        if (enabled) {
+            final Recorder r = recorder.get();
+            r.histogram(r.queries, name(queryNames, source)).record(elapsed, items);
+        }
+    }
+
+    /**
+     * Records a call of a user-declared function.
+     *
+     * @param function the name of the function
+     * @param elapsed the execution time in nanoseconds
+     */
+    public void recordFunctionCall(final String function, final long elapsed) {
+        if (enabled) {
+            final Recorder r = recorder.get();
+            r.histogram(r.functions, name(functionNames, function)).record(elapsed, 0);
+        }
+    }
+
+    /**
+     * Records the use of an index.
+     *
+     * @param indexType the type of the index
+     * @param mode the mode of use, one of the index modes of {@link PerformanceStats}
+     */
+    public void recordIndexUse(final String indexType, final int mode) {
+        if (enabled) {
+            final Recorder r = recorder.get();
+            AtomicLong[] counts = r.indexUses.get(indexType);
+            if (counts == null) {
+                counts = new AtomicLong[INDEX_MODES.length];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = new AtomicLong();
+                }
+                r.indexUses.put(indexType, counts);
+            }
+            final AtomicLong count = counts[mode];
+            count.lazySet(count.get() + 1);
+        }
+    }
+
+    /**
+     * @return the latency histograms of the query sources, sorted by source
+     */
+    public List<Latency> getQueries() {
+        return merge(r -> r.queries);
+    }
+
+    /**
+     * @return the latency histograms of the user-declared functions, sorted by name
+     */
+    public List<Latency> getFunctions() {
+        return merge(r -> r.functions);
+    }
+
+    /**
+     * @return the number of index uses, sorted by index type and mode
+     */
+    public List<IndexUse> getIndexUses() {
+        final Map<String, long[]> merged = new TreeMap<>();
+        for (final Recorder r : recorders()) {
+            for (final Map.Entry<String, AtomicLong[]> entry : r.indexUses.entrySet()) {
+                final long[] counts = merged.computeIfAbsent(entry.getKey(), k -> new long[INDEX_MODES.length]);
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += entry.getValue()[i].get();
+                }
+            }
+        }
+        final List<IndexUse> uses = new ArrayList<>();
+        for (final Map.Entry<String, long[]> entry : merged.entrySet()) {
+            for (int i = 0; i < INDEX_MODES.length; i++) {
+                if (entry.getValue()[i] > 0) {
+                    uses.add(new IndexUse(entry.getKey(), INDEX_MODES[i], entry.getValue()[i]));
+                }
+            }
+        }
+        return uses;
+    }
+
+    /**
+     * Discards all metrics recorded so far.
+     */
+    public void reset() {
+        for (final Recorder r : recorders()) {
+            r.queries.clear();
+            r.functions.clear();
+            r.indexUses.clear();
+        }
+        queryNames.clear();
+        functionNames.clear();
+    }
+
+    private Recorder newRecorder() {
+        final Recorder r = new Recorder(Thread.currentThread());
+        synchronized (retired) {
+            if (recorders.size() >= foldAt) {
+                foldTerminated();
+                foldAt = Math.max(MIN_FOLD_RECORDERS, recorders.size() * 2);
+            }
+            recorders.put(r, Boolean.TRUE);
+        }
+        return r;
+    }
+
+    /**
+     * @return the number of recorders not yet folded, for testing
+     */
+    int getRecorderCount() {
+        return recorders.size();
+    }
+
+    private static String name(final ConcurrentMap<String, Boolean> names, final String name) {
+        if (name == null) {
+            return OTHER;
+        }
+        if (names.containsKey(name)) {
+            return name;
+        }
+        if (names.size() >= MAX_NAMES) {
+            return OTHER;
+        }
+        names.putIfAbsent(name, Boolean.TRUE);
+        return name;
+    }
+
+    /**
+     * Returns the recorders to merge, after folding the recorders of
+     * terminated threads into the retired recorder.
+     */
+    private List<Recorder> recorders() {
+        synchronized (retired) {
+            foldTerminated();
+            final List<Recorder> all = new ArrayList<>(recorders.keySet());
+            all.add(retired);
+            return all;
+        }
+    }
+
+    /**
+     * Folds the recorders of terminated threads, which are no longer written
+     * to, into the retired recorder. The caller holds the lock of {@link #retired}.
+     */
+    private void foldTerminated() {
+        for (final Iterator<Recorder> i = recorders.keySet().iterator(); i.hasNext(); ) {
+            final Recorder r = i.next();
+            final Thread owner = r.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                retired.add(r);
+                i.remove();
+            }
+        }
+    }
+
+    private List<Latency> merge(final java.util.function.Function<Recorder, Map<String, Histogram>> histograms) {
+        final Map<String, Histogram> merged = new TreeMap<>();
+        for (final Recorder r : recorders()) {
+            for (final Map.Entry<String, Histogram> entry : histograms.apply(r).entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), k -> new Histogram()).add(entry.getValue());
+            }
+        }
+        final List<Latency> latencies = new ArrayList<>(merged.size());
+        for (final Map.Entry<String, Histogram> entry : merged.entrySet()) {
+            latencies.add(entry.getValue().toLatency(entry.getKey()));
+        }
+        return latencies;
+    }
+
+    private static class Recorder {
+        private final WeakReference<Thread> owner;
+        private final Map<String, Histogram> queries = new ConcurrentHashMap<>();
+        private final Map<String, Histogram> functions = new ConcurrentHashMap<>();
+        private final Map<String, AtomicLong[]> indexUses = new ConcurrentHashMap<>();
+
+        Recorder(final Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        Histogram histogram(final Map<String, Histogram> histograms, final String name) {
+            Histogram histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(name, histogram);
+            }
+            return histogram;
+        }
+
+        void add(final Recorder other) {
+            for (final Map.Entry<String, Histogram> entry : other.queries.entrySet()) {
+                histogram(queries, entry.getKey()).add(entry.getValue());
+            }
+            for (final Map.Entry<String, Histogram> entry : other.functions.entrySet()) {
+                histogram(functions, entry.getKey()).add(entry.getValue());
+            }
+            for (final Map.Entry<String, AtomicLong[]> entry : other.indexUses.entrySet()) {
+                final AtomicLong[] counts = indexUses.computeIfAbsent(entry.getKey(), k -> {
+                    final AtomicLong[] c = new AtomicLong[INDEX_MODES.length];
+                    for (int i = 0; i < c.length; i++) {
+                        c[i] = new AtomicLong();
+                    }
+                    return c;
+                });
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i].addAndGet(entry.getValue()[i].get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Latency histogram of a single recorder. It is only written to by the
+     * thread owning the recorder, which publishes its updates with lazySet
+     * instead of a more expensive atomic increment.
+     */
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+
+        void record(final long elapsed, final long returned) {
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length && elapsed > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets.lazySet(bucket, buckets.get(bucket) + 1);
+            count.lazySet(count.get() + 1);
+            totalTime.lazySet(totalTime.get() + elapsed);
+            items.lazySet(items.get() + returned);
+        }
+
+        void add(final Histogram other) {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.addAndGet(i, other.buckets.get(i));
+            }
+            count.addAndGet(other.count.get());
+            totalTime.addAndGet(other.totalTime.get());
+            items.addAndGet(other.items.get());
+        }
+
+        Latency toLatency(final String name) {
+            final long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new Latency(name, count.get(), totalTime.get(), items.get(), counts);
+        }
+    }
+
+    /**
+     * Latency histogram of a query source or function.
+     */
+    public static class Latency {
+        private final String name;
+        private final long count;
+        private final long totalTime;
+        private final long items;
+        private final long[] buckets;
+
+        /**
+         * @param name the query source or function name
+         * @param count the number of executions
+         * @param totalTime the total execution time in nanoseconds
+         * @param items the total number of items returned
+         * @param buckets the number of executions per bucket of {@link #LATENCY_BUCKETS}, not cumulative
+         */
+        @ConstructorProperties({"name", "count", "totalTime", "items", "buckets"})
+        public Latency(final String name, final long count, final long totalTime, final long items, final long[] buckets) {
+            this.name = name;
+            this.count = count;
+            this.totalTime = totalTime;
+            this.items = items;
+            this.buckets = buckets;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        public long[] getBuckets() {
+            return Arrays.copyOf(buckets, buckets.length);
+        }
+    }
+
+    /**
+     * Number of uses of an index type in one mode.
+     */
+    public static class IndexUse {
+        private final String indexType;
+        private final String mode;
+        private final long count;
+
+        /**
+         * @param indexType the type of the index
+         * @param mode the mode of use: none, basic or optimized
+         * @param count the number of uses
+         */
+        @ConstructorProperties({"indexType", "mode", "count"})
+        public IndexUse(final String indexType, final String mode, final long count) {
+            this.indexType = indexType;
+            this.mode = mode;
+            this.count = count;
+        }
+
+        public String getIndexType() {
+            return indexType;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -48,6 +48,19 @@ public class QueryRewriter {
         return null;
     }
 
+    /**
+     * Rewrite the sort expression of an order by clause to make use of indexes.
+     * If an expression is returned, it replaces the original sort expression
+     * of the order spec.
+     *
+     * @param orderSpec
+     * @return the new sort expression or null if the order spec should not be changed
+     * @throws XPathException
+     */
+    public Expression rewriteOrderSpec(OrderSpec orderSpec) throws XPathException {
+        return null;
+    }
+
     protected XQueryContext getContext() {
         return context;
     }
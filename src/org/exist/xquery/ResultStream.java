@@ -0,0 +1,42 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.xquery.value.Sequence;
+
+/**
+ * Receives the items of the result of a query while the query is evaluated,
+ * so that they can be serialized without holding the whole result in memory.
+ *
+ * @see XQuery#execute(org.exist.storage.DBBroker, CompiledXQuery, Sequence, java.util.Properties, ResultStream)
+ * @see StreamableExpression
+ */
+@FunctionalInterface
+public interface ResultStream {
+
+    /**
+     * Receives the next items of the result.
+     *
+     * @param items the items, following the items received before
+     * @throws XPathException if the items cannot be processed, which
+     *     terminates the query
+     */
+    void add(Sequence items) throws XPathException;
+}
@@ -33,7 +33,7 @@ import org.exist.xquery.value.ValueSequence;
  * 
  * @author wolf
  */
-public class SequenceConstructor extends PathExpr {
+public class SequenceConstructor extends PathExpr implements StreamableExpression {
 
     /**
      * @param context
@@ -94,6 +94,23 @@ public class SequenceConstructor extends PathExpr {
         return result;
     }
 
+    @Override
+    public boolean canStream() {
+        return true;
+    }
+
+    @Override
+    public void stream(final Sequence contextSequence, final ResultStream stream) throws XPathException {
+        for (final Expression step : steps) {
+            context.pushDocumentContext();
+            try {
+                StreamableExpression.eval(step, contextSequence, stream);
+            } finally {
+                context.popDocumentContext();
+            }
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.exist.xquery.PathExpr#dump(org.exist.xquery.util.ExpressionDumper)
      */
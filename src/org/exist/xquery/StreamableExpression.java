@@ -0,0 +1,77 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.xquery.value.Sequence;
+
+/**
+ * An expression which can pass the items of its result to a
+ * {@link ResultStream} as they are produced, instead of returning them
+ * all at once. Implemented by the expressions which typically make up the
+ * body of a large query: FLWOR expressions and sequence constructors.
+ */
+public interface StreamableExpression extends Expression {
+
+    /**
+     * Checks if the result of the expression can be streamed. If not,
+     * it has to be evaluated with {@link #eval(Sequence)}.
+     *
+     * @return true if {@link #stream(Sequence, ResultStream)} can be called
+     */
+    boolean canStream();
+
+    /**
+     * Evaluates the expression, passing its result to the stream instead
+     * of returning it.
+     *
+     * @param contextSequence the context sequence, or null
+     * @param stream receives the result
+     * @throws XPathException if the evaluation fails
+     */
+    void stream(Sequence contextSequence, ResultStream stream) throws XPathException;
+
+    /**
+     * Evaluates an expression, passing its result to a stream. The result
+     * is streamed as it is produced if the expression is streamable, or
+     * else passed on at once after the expression has been evaluated.
+     *
+     * @param expr the expression
+     * @param contextSequence the context sequence, or null
+     * @param stream receives the result
+     * @throws XPathException if the evaluation fails
+     */
+    static void eval(Expression expr, final Sequence contextSequence, final ResultStream stream)
+            throws XPathException {
+        // the body of a query is wrapped into a path expression of one step
+        while (contextSequence == null && expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+            expr = ((PathExpr) expr).getExpression(0);
+        }
+        if (expr instanceof StreamableExpression && ((StreamableExpression) expr).canStream()
+                && !expr.getContext().getProfiler().isEnabled()) {
+            expr.getContext().getWatchDog().proceed(expr);
+            ((StreamableExpression) expr).stream(contextSequence, stream);
+        } else {
+            final Sequence result = expr.eval(contextSequence);
+            if (result != null && !result.isEmpty()) {
+                stream.add(result);
+            }
+        }
+    }
+}
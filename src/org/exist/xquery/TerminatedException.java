@@ -23,6 +23,8 @@
 
 package org.exist.xquery;
 
+import org.exist.xquery.ErrorCodes.ErrorCode;
+
 /**
  * @author wolf
  */
@@ -38,6 +40,10 @@ public class TerminatedException extends XPathException {
         super(line, column, message);
     }
 
+    public TerminatedException(Expression expr, ErrorCode errorCode, String message) {
+        super(expr, errorCode, message);
+    }
+
     public final static class TimeoutException extends TerminatedException {
         
 		private static final long serialVersionUID = 1193758368058763151L;
@@ -55,4 +61,13 @@ public class TerminatedException extends XPathException {
             super(line, column, message);
         }
     }
+
+    public final static class ResourceLimitException extends TerminatedException {
+
+		private static final long serialVersionUID = 2817204915628367310L;
+
+		public ResourceLimitException(Expression expr, ErrorCode errorCode, String message) {
+            super(expr, errorCode, message);
+        }
+    }
 }
@@ -27,9 +27,14 @@ import antlr.collections.AST;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.text.NumberFormat;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.debuggee.Debuggee;
@@ -41,6 +46,7 @@ import org.exist.source.DBSource;
 import org.exist.source.FileSource;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.xquery.parser.XQueryLexer;
 import org.exist.xquery.parser.XQueryParser;
@@ -82,7 +88,7 @@ public class XQuery {
         }
     }
     
-    private CompiledXQuery compile(final DBBroker broker, final XQueryContext context, final Reader reader, final boolean xpointer) throws XPathException, PermissionDeniedException {
+    private CompiledXQuery compile(final DBBroker broker, final XQueryContext context, final Reader reader, final boolean xpointer) throws XPathException, IOException, PermissionDeniedException {
         
         //check read permission
         context.getSource().validate(broker.getCurrentSubject(), Permission.READ);
@@ -100,22 +106,12 @@ public class XQuery {
     	 */
     	
     	final long start = System.currentTimeMillis();
-        final XQueryLexer lexer = new XQueryLexer(context, reader);
-        final XQueryParser parser = new XQueryParser(lexer);
         final XQueryTreeParser treeParser = new XQueryTreeParser(context);
         try {
-            if(xpointer) {
-                parser.xpointer();
-            } else {
-                parser.xpath();
-            }
-            
-            if(parser.foundErrors()) {
-            	LOG.debug(parser.getErrorMessage());
-            	throw new StaticXQueryException(parser.getErrorMessage());
-            }
-
-            final AST ast = parser.getAST();
+            final AST ast = parse(broker.getBrokerPool(), context, reader, xpointer, errorMessage -> {
+                LOG.debug(errorMessage);
+                return new StaticXQueryException(errorMessage);
+            });
             if(ast == null) {
                 throw new XPathException("Unknown XQuery parser error: the parser returned an empty syntax tree.");
             }
@@ -176,6 +172,52 @@ public class XQuery {
     }
     
     
+    /**
+     * Parses an XQuery into a syntax tree, or takes the syntax tree from
+     * the {@link XQueryParseCache} if the same text has been parsed before.
+     *
+     * @param pool the broker pool
+     * @param context the context the XQuery is compiled in
+     * @param reader the text of the XQuery
+     * @param xpointer true to parse an XPointer
+     * @param parseError creates the exception thrown for the errors reported by the parser
+     *
+     * @return the syntax tree, or null if the parser returned none
+     */
+    static AST parse(final BrokerPool pool, final XQueryContext context, final Reader reader, final boolean xpointer,
+            final Function<String, XPathException> parseError) throws IOException, RecognitionException, TokenStreamException, XPathException {
+        final Optional<XQueryParseCache> parseCache = pool.getXQueryParseCache();
+        String key = null;
+        Reader input = reader;
+        if (parseCache.isPresent()) {
+            final String text = IOUtils.toString(reader);
+            key = XQueryParseCache.getKey(text, xpointer);
+            final AST ast = parseCache.get().get(key);
+            if (ast != null) {
+                return ast;
+            }
+            input = new StringReader(text);
+        }
+
+        final XQueryLexer lexer = new XQueryLexer(context, input);
+        final XQueryParser parser = new XQueryParser(lexer);
+        if (xpointer) {
+            parser.xpointer();
+        } else {
+            parser.xpath();
+        }
+
+        if (parser.foundErrors()) {
+            throw parseError.apply(parser.getErrorMessage());
+        }
+
+        final AST ast = parser.getAST();
+        if (ast != null && key != null) {
+            parseCache.get().put(key, ast);
+        }
+        return ast;
+    }
+
     public Sequence execute(final DBBroker broker, final CompiledXQuery expression, final Sequence contextSequence) throws XPathException, PermissionDeniedException {
     	return execute(broker, expression, contextSequence, null);
     }
@@ -194,7 +236,36 @@ public class XQuery {
     	return execute(broker, expression, contextSequence, null, resetContext);
     }
     
-    public Sequence execute(final DBBroker broker, final CompiledXQuery expression, Sequence contextSequence, final Properties outputProperties, final boolean resetContext) throws XPathException, PermissionDeniedException {
+    public Sequence execute(final DBBroker broker, final CompiledXQuery expression, final Sequence contextSequence, final Properties outputProperties, final boolean resetContext) throws XPathException, PermissionDeniedException {
+        return execute(broker, expression, contextSequence, outputProperties, resetContext, null);
+    }
+
+    /**
+     * Executes a query, passing the items of its result to a stream while
+     * the query is evaluated, instead of returning them all at once. The body
+     * of the query, or parts of it, are streamed if they are FLWOR expressions
+     * without "order by" or "group by" clauses, or sequence constructors
+     * (see {@link StreamableExpression}); any other expression is evaluated
+     * before its result is passed on.
+     *
+     * The serialization options declared in the prolog of the query are
+     * added to the output properties before the query is evaluated, so that
+     * they are known when the first items are serialized. Options declared
+     * while the query is evaluated are ignored.
+     *
+     * @param broker the broker
+     * @param expression the compiled query
+     * @param contextSequence the context sequence, or null
+     * @param outputProperties the serialization properties
+     * @param stream receives the result
+     * @throws XPathException if the evaluation fails
+     * @throws PermissionDeniedException if the query may not be executed
+     */
+    public void execute(final DBBroker broker, final CompiledXQuery expression, final Sequence contextSequence, final Properties outputProperties, final ResultStream stream) throws XPathException, PermissionDeniedException {
+        execute(broker, expression, contextSequence, outputProperties, true, stream);
+    }
+
+    private Sequence execute(final DBBroker broker, final CompiledXQuery expression, Sequence contextSequence, final Properties outputProperties, final boolean resetContext, final ResultStream stream) throws XPathException, PermissionDeniedException {
     	
         //check execute permissions
         expression.getContext().getSource().validate(broker.getCurrentSubject(), Permission.EXECUTE);
@@ -249,6 +320,9 @@ public class XQuery {
             
             context.getProfiler().traceQueryStart();
             broker.getBrokerPool().getProcessMonitor().queryStarted(context.getWatchDog());
+            final long queryStart = System.nanoTime();
+            Sequence result = null;
+            final int[] streamed = { 0 };
             try {
 
                 // support for XQuery 3.0 - declare context item :=
@@ -258,19 +332,37 @@ public class XQuery {
                     }
                 }
 
-                final Sequence result = expression.eval(contextSequence);
+                if(stream != null) {
+                    if(outputProperties != null) {
+                        context.checkOptions(outputProperties);
+                    }
+                    final ResultStream counted = items -> {
+                        streamed[0] += items.getItemCount();
+                        stream.add(items);
+                    };
+                    if(expression instanceof Expression) {
+                        StreamableExpression.eval((Expression) expression, contextSequence, counted);
+                    } else {
+                        counted.add(expression.eval(contextSequence));
+                    }
+                    result = Sequence.EMPTY_SEQUENCE;
+                } else {
+                    result = expression.eval(contextSequence);
+                }
                 if(LOG.isDebugEnabled()) {
                     final NumberFormat nf = NumberFormat.getNumberInstance();
                     LOG.debug("Execution took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
                 }
 
-                if(outputProperties != null) {
+                if(outputProperties != null && stream == null) {
                     context.checkOptions(outputProperties); //must be done before context.reset!
                 }
 
                 return result;
             } finally {
                 context.getProfiler().traceQueryEnd(context);
+                broker.getBrokerPool().getQueryMetrics().recordQuery(context.getSource().path(),
+                        System.nanoTime() - queryStart, stream != null ? streamed[0] : result == null ? 0 : result.getItemCount());
                 // track query stats before context is reset
                 broker.getBrokerPool().getProcessMonitor().queryCompleted(context.getWatchDog());
                 expression.reset();
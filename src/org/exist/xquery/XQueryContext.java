@@ -521,6 +521,22 @@ public class XQueryContext implements BinaryValueManager, Context {
         return ctx;
     }
 
+    /**
+     * Creates a copy of this context for a task evaluating copies of some
+     * expressions of the query on another thread, see {@link ParallelPathEvaluator}.
+     * The expressions created in the copy get other ids than the expressions
+     * of the query, and the task gets a watchdog which is killed with the
+     * watchdog of the query.
+     *
+     * @return the context of the task
+     */
+    XQueryContext copyContextForTask() {
+        final XQueryContext ctx = copyContext();
+        ctx.expressionCounter = expressionCounter;
+        ctx.watchdog = new XQueryWatchDog(ctx, getWatchDog());
+        return ctx;
+    }
+
     @Override
     public void updateContext(final XQueryContext from) {
         this.watchdog = from.watchdog;
@@ -2481,20 +2497,15 @@ public class XQueryContext implements BinaryValueManager, Context {
             setModule(namespaceURI, modExternal);
             final XQueryContext modContext = new ModuleContext(this, prefix, namespaceURI, location);
             modExternal.setContext(modContext);
-            final XQueryLexer lexer = new XQueryLexer(modContext, reader);
-            final XQueryParser parser = new XQueryParser(lexer);
             final XQueryTreeParser astParser = new XQueryTreeParser(modContext, modExternal);
 
             try {
-                parser.xpath();
-
-                if (parser.foundErrors()) {
+                final AST ast = XQuery.parse(getBroker().getBrokerPool(), modContext, reader, false, errorMessage -> {
                     if (LOG.isDebugEnabled()) {
-                        LOG.debug(parser.getErrorMessage());
+                        LOG.debug(errorMessage);
                     }
-                    throw new XPathException("error found while loading module from " + location + ": " + parser.getErrorMessage());
-                }
-                final AST ast = parser.getAST();
+                    return new XPathException("error found while loading module from " + location + ": " + errorMessage);
+                });
 
                 final PathExpr path = new PathExpr(modContext);
                 astParser.xpath(ast, path);
@@ -2700,6 +2711,12 @@ public class XQueryContext implements BinaryValueManager, Context {
         } else if (Option.OUTPUT_SIZE_QNAME.compareTo(qn) == 0) {
             watchdog.setMaxNodesFromOption(option);
 
+        } else if (Option.ALLOCATION_LIMIT_QNAME.compareTo(qn) == 0) {
+            watchdog.setAllocationLimitFromOption(option);
+
+        } else if (Option.IO_LIMIT_QNAME.compareTo(qn) == 0) {
+            watchdog.setIoLimitFromOption(option);
+
         } else if (Option.OPTIMIZE_QNAME.compareTo(qn) == 0) {
             final String[] params = option.tokenizeContents();
             if (params.length > 0) {
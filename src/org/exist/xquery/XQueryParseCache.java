@@ -0,0 +1,414 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import antlr.collections.AST;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Version;
+import org.exist.security.MessageDigester;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerPoolService;
+import org.exist.storage.BrokerPoolServiceException;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.util.NamedThreadFactory;
+import org.exist.util.crypto.digest.DigestType;
+import org.exist.util.crypto.digest.StreamableDigest;
+import org.exist.xquery.parser.XQueryAST;
+import org.exist.xquery.parser.XQueryFunctionAST;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cache for the syntax trees produced by the XQuery parser, so that
+ * compiling an XQuery or a library module whose text has been parsed
+ * before skips lexing and parsing.
+ *
+ * Syntax trees are keyed by a digest of the XQuery text and of the eXist
+ * version, so a changed source, or a changed parser after an upgrade, is
+ * simply parsed again. The parser does not depend on the configuration or
+ * on other modules: imported modules are compiled from their own text,
+ * and everything after parsing, e.g. static analysis, is still done for
+ * each compilation. Syntax trees are never modified once parsed and are
+ * shared by concurrent compilations.
+ *
+ * The most recently used trees are kept in memory; the trees are also
+ * written below data/xquery-cache by a background thread, so that they
+ * survive a restart. The number of files is limited to a multiple of the
+ * number of trees kept in memory: when it is exceeded, the files of the
+ * least recently used trees are removed. The cache is enabled with the
+ * parse-cache attribute of the query-pool element in conf.xml.
+ */
+@ThreadSafe
+public class XQueryParseCache implements BrokerPoolService {
+
+    private static final Logger LOG = LogManager.getLogger(XQueryParseCache.class);
+
+    public static final String PARSE_CACHE_ATTRIBUTE = "parse-cache";
+    public static final String PARSE_CACHE_SIZE_ATTRIBUTE = "parse-cache-size";
+    public static final String PROPERTY_PARSE_CACHE = "db-connection.query-pool.parse-cache";
+    public static final String PROPERTY_PARSE_CACHE_SIZE = "db-connection.query-pool.parse-cache-size";
+
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    /** the number of trees kept on disk, relative to the number kept in memory */
+    private static final int DISK_FACTOR = 16;
+
+    /** the number of trees waiting to be written, beyond which new trees are not written */
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    private static final String CACHE_DIR = "xquery-cache";
+    private static final String FILE_SUFFIX = ".ast";
+    private static final int FILE_MAGIC = 0x58514153;    // XQAS
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private static final byte FLAG_CHILD = 1;
+    private static final byte FLAG_SIBLING = 2;
+    private static final byte FLAG_FUNCTION = 4;
+    private static final byte FLAG_DOC = 8;
+
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private Cache<String, AST> cache;
+    private Path cacheDir;
+    private ExecutorService writer;
+
+    /** the number of files in the cache directory, maintained by the writer */
+    private int fileCount;
+
+    @Override
+    public void configure(final Configuration configuration) {
+        final Integer size = (Integer) configuration.getProperty(PROPERTY_PARSE_CACHE_SIZE);
+        if (size != null) {
+            this.cacheSize = size;
+        }
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+    }
+
+    @Override
+    public void prepare(final BrokerPool brokerPool) throws BrokerPoolServiceException {
+        final Path dataDir = (Path) brokerPool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        try {
+            this.cacheDir = Files.createDirectories(dataDir.resolve(CACHE_DIR));
+            prune(maxFiles());
+        } catch (final IOException e) {
+            throw new BrokerPoolServiceException("Unable to open the XQuery parse cache in " + dataDir.toAbsolutePath().toString(), e);
+        }
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_WRITES), new NamedThreadFactory(brokerPool.getThreadGroup(), brokerPool.getId(), "xquery-parse-cache"),
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @Override
+    public void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        // let the pending trees be written, so that they are available after a restart
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Not all syntax trees were written to the XQuery parse cache before shutdown");
+                writer.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            writer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Computes the key of an XQuery text.
+     *
+     * @param text the XQuery text
+     * @param xpointer true if the text is parsed as an XPointer
+     *
+     * @return the key
+     */
+    public static String getKey(final String text, final boolean xpointer) {
+        final StreamableDigest digest = DigestType.BLAKE_256.newStreamableDigest();
+        digest.update((Version.getVersion() + '\u0000' + Version.getBuild() + '\u0000' + Version.getGitCommit()
+                + '\u0000' + FILE_FORMAT_VERSION + '\u0000' + xpointer + '\u0000').getBytes(UTF_8));
+        digest.update(text.getBytes(UTF_8));
+        return MessageDigester.byteArrayToHex(digest.getMessageDigest());
+    }
+
+    /**
+     * Gets the syntax tree of a previously parsed XQuery text.
+     *
+     * @param key the key of the XQuery text
+     *
+     * @return the syntax tree, or null if the text has not been parsed before
+     */
+    public AST get(final String key) {
+        AST ast = cache.getIfPresent(key);
+        if (ast == null) {
+            ast = read(key);
+            if (ast != null) {
+                cache.put(key, ast);
+            }
+        }
+        return ast;
+    }
+
+    /**
+     * Adds the syntax tree of an XQuery text which was parsed
+     * without errors. The tree is written to disk later; if too
+     * many trees are waiting to be written, it is only kept in memory.
+     *
+     * @param key the key of the XQuery text
+     * @param ast the syntax tree, which must not be modified afterwards
+     */
+    public void put(final String key, final AST ast) {
+        cache.put(key, ast);
+        writer.execute(() -> write(key, ast));
+    }
+
+    /**
+     * Removes all syntax trees from the cache.
+     */
+    public void clear() {
+        cache.invalidateAll();
+        try {
+            for (final Path file : FileUtils.list(cacheDir)) {
+                FileUtils.deleteQuietly(file);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Unable to clear the XQuery parse cache: " + e.getMessage());
+        }
+    }
+
+    private AST read(final String key) {
+        final Path file = cacheDir.resolve(key + FILE_SUFFIX);
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_FORMAT_VERSION) {
+                FileUtils.deleteQuietly(file);
+                return null;
+            }
+            final AST ast = readTree(is);
+            // the files of the least recently used trees are pruned at startup
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return ast;
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            LOG.warn("Unable to read " + file.toAbsolutePath().toString() + " from the XQuery parse cache: " + e.getMessage());
+            FileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a syntax tree to disk. Only called by the {@link #writer}.
+     */
+    private void write(final String key, final AST ast) {
+        final Path file = cacheDir.resolve(key + FILE_SUFFIX);
+        Path tmp = null;
+        try {
+            final boolean exists = Files.exists(file);
+            // write to a temporary file first so that concurrent readers never see a partial file
+            tmp = Files.createTempFile(cacheDir, key, ".tmp");
+            try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                os.writeInt(FILE_MAGIC);
+                os.writeInt(FILE_FORMAT_VERSION);
+                writeTree(os, ast);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // prune a quarter of the files at once, rather than one file for each tree written
+            if (!exists && ++fileCount > maxFiles()) {
+                prune(maxFiles() - maxFiles() / 4);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Unable to write " + file.toAbsolutePath().toString() + " to the XQuery parse cache: " + e.getMessage());
+            if (tmp != null) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+
+    private long maxFiles() {
+        return (long) cacheSize * DISK_FACTOR;
+    }
+
+    /**
+     * Removes the files of the least recently used trees beyond the
+     * given number, and any temporary files.
+     *
+     * @param maxFiles the number of files to keep
+     */
+    private void prune(final long maxFiles) throws IOException {
+        final List<Path> files = FileUtils.list(cacheDir);
+        files.removeIf(file -> {
+            if (!FileUtils.fileName(file).endsWith(FILE_SUFFIX)) {
+                FileUtils.deleteQuietly(file);
+                return true;
+            }
+            return false;
+        });
+
+        if (files.size() > maxFiles) {
+            files.sort(Comparator.comparingLong(XQueryParseCache::lastModified).reversed());
+            for (int i = (int) maxFiles; i < files.size(); i++) {
+                FileUtils.deleteQuietly(files.get(i));
+            }
+        }
+        fileCount = (int) Math.min(files.size(), maxFiles);
+    }
+
+    private static long lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a syntax tree in pre-order. Written iteratively, as the
+     * siblings of a node may form very long chains.
+     */
+    static void writeTree(final DataOutputStream os, final AST root) throws IOException {
+        final Deque<AST> stack = new ArrayDeque<>();
+        AST node = root;
+        while (node != null) {
+            final String doc = ((XQueryAST) node).getDoc();
+            byte flags = 0;
+            if (node.getFirstChild() != null) {
+                flags |= FLAG_CHILD;
+            }
+            if (node.getNextSibling() != null) {
+                flags |= FLAG_SIBLING;
+            }
+            if (node instanceof XQueryFunctionAST) {
+                flags |= FLAG_FUNCTION;
+            }
+            if (doc != null) {
+                flags |= FLAG_DOC;
+            }
+            os.writeByte(flags);
+            os.writeInt(node.getType());
+            writeString(os, node.getText());
+            os.writeInt(node.getLine());
+            os.writeInt(node.getColumn());
+            if (doc != null) {
+                writeString(os, doc);
+            }
+
+            if (node.getFirstChild() != null) {
+                if (node.getNextSibling() != null) {
+                    stack.push(node.getNextSibling());
+                }
+                node = node.getFirstChild();
+            } else if (node.getNextSibling() != null) {
+                node = node.getNextSibling();
+            } else {
+                node = stack.poll();
+            }
+        }
+    }
+
+    static AST readTree(final DataInputStream is) throws IOException {
+        // nodes whose next sibling follows after their children
+        final Deque<AST> stack = new ArrayDeque<>();
+        AST root = null;
+        AST parent = null;
+        AST previous = null;
+        while (true) {
+            final byte flags = is.readByte();
+            final XQueryAST node = (flags & FLAG_FUNCTION) != 0 ? new XQueryFunctionAST() : new XQueryAST();
+            node.setType(is.readInt());
+            node.setText(readString(is));
+            node.setLine(is.readInt());
+            node.setColumn(is.readInt());
+            if ((flags & FLAG_DOC) != 0) {
+                node.setDoc(readString(is));
+            }
+
+            if (root == null) {
+                root = node;
+            } else if (parent != null) {
+                parent.setFirstChild(node);
+            } else {
+                previous.setNextSibling(node);
+            }
+
+            parent = null;
+            previous = node;
+            if ((flags & FLAG_CHILD) != 0) {
+                if ((flags & FLAG_SIBLING) != 0) {
+                    stack.push(node);
+                }
+                parent = node;
+            } else if ((flags & FLAG_SIBLING) == 0) {
+                previous = stack.poll();
+                if (previous == null) {
+                    return root;
+                }
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream os, final String s) throws IOException {
+        if (s == null) {
+            os.writeInt(-1);
+        } else {
+            final byte[] data = s.getBytes(UTF_8);
+            os.writeInt(data.length);
+            os.write(data);
+        }
+    }
+
+    private static String readString(final DataInputStream is) throws IOException {
+        final int len = is.readInt();
+        if (len < 0) {
+            return null;
+        }
+        final byte[] data = new byte[len];
+        is.readFully(data);
+        return new String(data, UTF_8);
+    }
+}
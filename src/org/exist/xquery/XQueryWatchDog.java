@@ -29,6 +29,7 @@ import org.exist.config.annotation.ConfigurationClass;
 import org.exist.config.annotation.ConfigurationFieldAsAttribute;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.storage.DBBroker;
+import org.exist.storage.ResourceUsage;
 import org.exist.util.Configuration;
 import org.exist.xquery.util.ExpressionDumper;
 
@@ -45,6 +46,14 @@ public class XQueryWatchDog {
     
     public final static String PROPERTY_QUERY_TIMEOUT = "db-connection.watchdog.query-timeout";
     public final static String PROPERTY_OUTPUT_SIZE_LIMIT = "db-connection.watchdog.output-size-limit";
+    public final static String PROPERTY_ALLOCATION_LIMIT = "db-connection.watchdog.allocation-limit";
+    public final static String PROPERTY_IO_LIMIT = "db-connection.watchdog.io-limit";
+
+    /**
+     * Number of calls to {@link #proceed(Expression)} between two checks of the
+     * allocation limit, which are more expensive than the other checks.
+     */
+    private final static int ALLOCATION_CHECK_INTERVAL = 1024;
 
     private final XQueryContext context;
     
@@ -53,22 +62,59 @@ public class XQueryWatchDog {
     
     @ConfigurationFieldAsAttribute("output-size-limit")
     private int maxNodesLimit = Integer.MAX_VALUE;
+
+    @ConfigurationFieldAsAttribute("allocation-limit")
+    private long allocationLimit = Long.MAX_VALUE;
+
+    @ConfigurationFieldAsAttribute("io-limit")
+    private long ioLimit = Long.MAX_VALUE;
+
+    private final ResourceUsage resourceUsage = new ResourceUsage();
+
+    private int allocationCheckCountdown = ALLOCATION_CHECK_INTERVAL;
     
     private long startTime;
     
-    private boolean terminate = false;
+    private volatile boolean terminate = false;
 
     private String runningThread = null;
 
+    /**
+     * The watchdog of the query, if this is the watchdog of a task
+     * evaluating a part of the query on another thread
+     */
+    private final XQueryWatchDog query;
+
     /**
      * 
      */
     public XQueryWatchDog(XQueryContext context) {
         this.context = context;
+        this.query = null;
         configureDefaults();
         reset();
     }
 
+    /**
+     * Creates the watchdog of a task evaluating a part of a query on another
+     * thread. The task is killed with the query, and has the time and resource
+     * limits of the query. The resources used by the task are checked against
+     * the limits separately, until they are added to the resources used by the
+     * query when the task has completed.
+     *
+     * @param context the context of the task
+     * @param query the watchdog of the query
+     */
+    public XQueryWatchDog(XQueryContext context, XQueryWatchDog query) {
+        this.context = context;
+        this.query = query;
+        this.timeout = query.timeout;
+        this.maxNodesLimit = query.maxNodesLimit;
+        this.allocationLimit = query.allocationLimit;
+        this.ioLimit = query.ioLimit;
+        this.startTime = query.startTime;
+    }
+
     /**
      * Track the name of the thread currently running this query.
      * Used for JMX stats.
@@ -99,6 +145,12 @@ public class XQueryWatchDog {
         option = conf.getProperty(PROPERTY_OUTPUT_SIZE_LIMIT);
         if(option != null)
             {maxNodesLimit = ((Integer)option).intValue();}
+        option = conf.getProperty(PROPERTY_ALLOCATION_LIMIT);
+        if(option != null)
+            {setAllocationLimit((Long)option);}
+        option = conf.getProperty(PROPERTY_IO_LIMIT);
+        if(option != null)
+            {setIoLimit((Long)option);}
     }
     
     public void setTimeoutFromOption(Option option) throws XPathException {
@@ -139,8 +191,56 @@ public class XQueryWatchDog {
 		}
     }
     
+    /**
+     * Set the maximum number of bytes the thread running the query may allocate
+     * in total. This is not a limit on the memory the query retains: the bytes
+     * of objects which were garbage collected in the meantime are counted too.
+     *
+     * @param limit the limit in bytes, a value &lt;= 0 disables the limit
+     */
+    public void setAllocationLimit(long limit) {
+        allocationLimit = limit <= 0 ? Long.MAX_VALUE : limit;
+    }
+
+    public void setAllocationLimitFromOption(Option option) throws XPathException {
+        setAllocationLimit(parseLimit(option));
+    }
+
+    /**
+     * Set the maximum number of pages the query may read from or write to disk.
+     *
+     * @param limit the number of pages, a value &lt;= 0 disables the limit
+     */
+    public void setIoLimit(long limit) {
+        ioLimit = limit <= 0 ? Long.MAX_VALUE : limit;
+    }
+
+    public void setIoLimitFromOption(Option option) throws XPathException {
+        setIoLimit(parseLimit(option));
+    }
+
+    private long parseLimit(Option option) throws XPathException {
+        final String[] contents = option.tokenizeContents();
+        if(contents.length != 1)
+            {throw new XPathException(ErrorCodes.XQST0013, "Option '" + option.getQName().getLocalPart() + "' should have exactly one parameter: the limit value.");}
+        try {
+            return Long.parseLong(contents[0]);
+        } catch (final NumberFormatException e) {
+            throw new XPathException(ErrorCodes.XQST0013, "Error parsing limit value in option " + option.getQName().getStringValue());
+        }
+    }
+
+    /**
+     * Get the resources used by the query while it is running on a thread.
+     *
+     * @return the resource usage of the query
+     */
+    public ResourceUsage getResourceUsage() {
+        return resourceUsage;
+    }
+
     public void proceed(Expression expr) throws TerminatedException {
-    	if(terminate) {
+    	if(terminate || (query != null && query.terminate)) {
     		if(expr == null)
     			{expr = context.getRootExpression();}
     		cleanUp();
@@ -160,6 +260,31 @@ public class XQueryWatchDog {
                         "The query exceeded the predefined timeout and has been killed.");
             }
         }
+        if (ioLimit != Long.MAX_VALUE) {
+            final long pages = resourceUsage.getPageReads() + resourceUsage.getPageWrites();
+            if (pages > ioLimit) {
+                throw resourceLimitExceeded(expr, "io-limit", "pages read or written", pages, ioLimit);
+            }
+        }
+        if (allocationLimit != Long.MAX_VALUE && --allocationCheckCountdown == 0) {
+            allocationCheckCountdown = ALLOCATION_CHECK_INTERVAL;
+            final long allocated = resourceUsage.getAllocatedBytes();
+            if (allocated > allocationLimit) {
+                throw resourceLimitExceeded(expr, "allocation-limit", "bytes allocated", allocated, allocationLimit);
+            }
+        }
+    }
+
+    private TerminatedException resourceLimitExceeded(Expression expr, String limitName, String what, long used, long limit) {
+        if(expr == null)
+            {expr = context.getRootExpression();}
+        final NumberFormat nf = NumberFormat.getNumberInstance();
+        LOG.warn("Query exceeded predefined " + limitName + " (" + nf.format(limit) + " " + what + "): " +
+                ExpressionDumper.dump(expr));
+        cleanUp();
+        return new TerminatedException.ResourceLimitException(expr, ErrorCodes.EXXQDY0005,
+                "The query exceeded the predefined " + limitName + " (current: " + nf.format(used) + " " + what +
+                "; allowed: " + nf.format(limit) + "). The query has been killed.");
     }
     
     public void proceed(Expression expr, MemTreeBuilder builder) throws TerminatedException {
@@ -196,10 +321,11 @@ public class XQueryWatchDog {
     public void reset() {
         startTime = System.currentTimeMillis();
         terminate = false;
+        allocationCheckCountdown = ALLOCATION_CHECK_INTERVAL;
     }
     
     public boolean isTerminating()
     {
-    	return( terminate );
+    	return( terminate || (query != null && query.terminate) );
     }
 }
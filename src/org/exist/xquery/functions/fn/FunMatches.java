@@ -244,6 +244,7 @@ public class FunMatches extends Function implements Optimizable, IndexUseReporte
         } catch (final EXistException e) {
             throw new XPathException(this, "Error during index lookup: " + e.getMessage(), e);
         }
+        context.getDatabase().getQueryMetrics().recordIndexUse(PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.OPTIMIZED_INDEX);
         if (context.getProfiler().traceFunctions())
             {context.getProfiler().traceIndexUsage(context, PerformanceStats.RANGE_IDX_TYPE, this,
                 PerformanceStats.OPTIMIZED_INDEX, System.currentTimeMillis() - start);}
@@ -329,6 +330,7 @@ public class FunMatches extends Function implements Optimizable, IndexUseReporte
                     {result = Sequence.EMPTY_SEQUENCE;}
                 else
                     {result = evalWithIndex(contextSequence, contextItem, input);}
+                context.getDatabase().getQueryMetrics().recordIndexUse(PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.BASIC_INDEX);
                 if (context.getProfiler().traceFunctions())
                     {context.getProfiler().traceIndexUsage(context, PerformanceStats.RANGE_IDX_TYPE, this,
                         PerformanceStats.BASIC_INDEX, System.currentTimeMillis() - start);}
@@ -339,6 +341,7 @@ public class FunMatches extends Function implements Optimizable, IndexUseReporte
                     {result = BooleanValue.FALSE;}
                 else
                     {result = evalGeneric(contextSequence, contextItem, input);}
+                context.getDatabase().getQueryMetrics().recordIndexUse(PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.NO_INDEX);
                 if (context.getProfiler().traceFunctions())
                     {context.getProfiler().traceIndexUsage(context, PerformanceStats.RANGE_IDX_TYPE, this,
                         PerformanceStats.NO_INDEX, System.currentTimeMillis() - start);}
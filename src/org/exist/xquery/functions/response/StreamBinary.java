@@ -25,6 +25,10 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import org.exist.dom.QName;
+import org.exist.http.BinaryResponse;
+import org.exist.http.servlets.HttpRequestWrapper;
+import org.exist.http.servlets.HttpResponseWrapper;
+import org.exist.http.servlets.RequestWrapper;
 import org.exist.http.servlets.ResponseWrapper;
 import org.exist.xquery.*;
 import org.exist.xquery.value.FunctionParameterSequenceType;
@@ -33,7 +37,6 @@ import org.exist.xquery.value.SequenceType;
 import org.exist.xquery.value.Type;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import org.exist.xquery.value.BinaryValue;
 
 import javax.annotation.Nonnull;
@@ -84,9 +87,12 @@ public class StreamBinary extends StrictResponseFunction {
         }
 
         try {
-            final OutputStream os = response.getOutputStream();
-            binary.streamBinaryTo(response.getOutputStream());
-            os.close();
+            // answers range and conditional requests for binaries backed by a file or document
+            final RequestWrapper request = context.getHttpContext() == null ? null : context.getHttpContext().getRequest();
+            BinaryResponse.send(context.getBroker(),
+                    request instanceof HttpRequestWrapper ? ((HttpRequestWrapper) request).getServletRequest() : null,
+                    ((HttpResponseWrapper) response).getServletResponse(), binary);
+            response.getOutputStream().close();
 
             //commit the response
             response.flushBuffer();
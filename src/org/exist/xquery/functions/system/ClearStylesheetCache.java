@@ -0,0 +1,59 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.functions.system;
+
+import org.exist.dom.QName;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+/**
+ * Clears the cache of compiled XSLT stylesheets.
+ */
+public class ClearStylesheetCache extends BasicFunction {
+
+    public final static FunctionSignature signature = new FunctionSignature(
+        new QName("clear-stylesheet-cache", SystemModule.NAMESPACE_URI, SystemModule.PREFIX),
+        "Clear the cache of compiled XSLT stylesheets.",
+        FunctionSignature.NO_ARGS,
+        new SequenceType(Type.EMPTY, Cardinality.ZERO)
+    );
+
+    public ClearStylesheetCache(XQueryContext context) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        if (!context.getSubject().hasDbaRole()) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Only DBA can call clear-stylesheet-cache function.");
+        }
+
+        context.getBroker().getBrokerPool().getTemplatesFactory().clear();
+
+        return Sequence.EMPTY_SEQUENCE;
+    }
+}
@@ -33,6 +33,7 @@ import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
@@ -66,6 +67,11 @@ public class FnImport extends BasicFunction {
 		new FunctionParameterSequenceType("new-admin-pass", Type.STRING, Cardinality.ZERO_OR_ONE,
 				"Set the admin password to this new password.");
 
+	protected final static FunctionParameterSequenceType THREADS =
+		new FunctionParameterSequenceType("threads", Type.INTEGER, Cardinality.EXACTLY_ONE,
+				"The number of threads which restore collections concurrently. With more than one, " +
+				"the configured collections are reindexed in parallel after their documents are restored.");
+
 	protected final static FunctionReturnSequenceType RETURN =
 		new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "the import results");
 
@@ -90,6 +96,29 @@ public class FnImport extends BasicFunction {
 				NEW_ADMIN_PASS
 			}, 
 			RETURN
+		),
+		new FunctionSignature(
+			NAME,
+			DESCRIPTION,
+			new SequenceType[] {
+				DIRorFILE,
+				ADMIN_PASS,
+				NEW_ADMIN_PASS,
+				THREADS
+			},
+			RETURN
+		),
+		new FunctionSignature(
+			new QName("import-silently", SystemModule.NAMESPACE_URI, SystemModule.PREFIX),
+			DESCRIPTION +
+			" Messagers from exporter reroute to logs.",
+			new SequenceType[] {
+				DIRorFILE,
+				ADMIN_PASS,
+				NEW_ADMIN_PASS,
+				THREADS
+			},
+			RETURN
 		)
 	};
 
@@ -112,6 +141,9 @@ public class FnImport extends BasicFunction {
         String adminPassAfter = null;
         if (args[2].hasOne())
                 {adminPassAfter = args[2].getStringValue();}
+        int threads = 1;
+        if (args.length > 3)
+                {threads = ((IntegerValue) args[3].itemAt(0)).getInt();}
 
         MemTreeBuilder builder = null;
         if (NAME.equals( mySignature.getName() )) {
@@ -121,7 +153,7 @@ public class FnImport extends BasicFunction {
         }
         
         try {
-        	final SystemImport restore = new SystemImport(context.getDatabase());
+        	final SystemImport restore = new SystemImport(context.getDatabase(), threads);
             final RestoreListener listener = new XMLRestoreListener(builder);
             restore.restore(listener, org.exist.security.SecurityManager.DBA_USER, adminPass, adminPassAfter, Paths.get(dirOrFile), XmldbURI.EMBEDDED_SERVER_URI.toString());
         } catch (final Exception e) {
@@ -23,10 +23,12 @@
 package org.exist.xquery.functions.system;
 
 import java.util.Date;
+import java.util.Map;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.storage.ResourceUsage;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.FunctionSignature;
@@ -38,6 +40,7 @@ import org.exist.xquery.value.FunctionReturnSequenceType;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Return a list of the currently running XQueries (must be dba)
@@ -121,8 +124,39 @@ public class GetRunningXQueries extends BasicFunction
 		builder.startElement( new QName( "xqueryExpression", NAMESPACE_URI, PREFIX ), null );
 		builder.characters( context.getRootExpression().toString() );
 		builder.endElement();
+
+		getResourceUsage( builder, watchdog.getResourceUsage() );
 		
 		builder.endElement();
 	}
+
+	private void getResourceUsage( MemTreeBuilder builder, ResourceUsage usage )
+	{
+		final AttributesImpl attribs = new AttributesImpl();
+		addAttribute( attribs, "pageReads", usage.getPageReads() );
+		addAttribute( attribs, "pageWrites", usage.getPageWrites() );
+		addAttribute( attribs, "cacheHits", usage.getCacheHits() );
+		addAttribute( attribs, "cacheMisses", usage.getCacheMisses() );
+		addAttribute( attribs, "nodeProxies", usage.getNodeProxies() );
+		addAttribute( attribs, "memtreeNodes", usage.getMemtreeNodes() );
+		addAttribute( attribs, "allocatedBytes", usage.getAllocatedBytes() );
+		builder.startElement( new QName( "resources", NAMESPACE_URI, PREFIX ), attribs );
+
+		for( final Map.Entry<String, long[]> cache : usage.getCaches().entrySet() ) {
+			attribs.clear();
+			attribs.addAttribute( "", "file", "file", "CDATA", cache.getKey() );
+			addAttribute( attribs, "hits", cache.getValue()[0] );
+			addAttribute( attribs, "misses", cache.getValue()[1] );
+			builder.startElement( new QName( "cache", NAMESPACE_URI, PREFIX ), attribs );
+			builder.endElement();
+		}
+
+		builder.endElement();
+	}
+
+	private static void addAttribute( AttributesImpl attribs, String name, long value )
+	{
+		attribs.addAttribute( "", name, name, "CDATA", Long.toString( value ) );
+	}
 	
 }
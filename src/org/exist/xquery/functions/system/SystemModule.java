@@ -42,6 +42,8 @@ public class SystemModule extends AbstractInternalModule {
             new FunctionDef(FnExport.signatures[1], FnExport.class),
             new FunctionDef(FnImport.signatures[0], FnImport.class),
             new FunctionDef(FnImport.signatures[1], FnImport.class),
+            new FunctionDef(FnImport.signatures[2], FnImport.class),
+            new FunctionDef(FnImport.signatures[3], FnImport.class),
 
             new FunctionDef(CountInstances.countInstancesMax, CountInstances.class),
             new FunctionDef(CountInstances.countInstancesActive, CountInstances.class),
@@ -74,7 +76,8 @@ public class SystemModule extends AbstractInternalModule {
             new FunctionDef(GetUptime.signature, GetUptime.class),
             new FunctionDef(FunctionAvailable.signature, FunctionAvailable.class),
             
-            new FunctionDef(ClearXQueryCache.signature, ClearXQueryCache.class)
+            new FunctionDef(ClearXQueryCache.signature, ClearXQueryCache.class),
+            new FunctionDef(ClearStylesheetCache.signature, ClearStylesheetCache.class)
     };
 	
 	public SystemModule(Map<String, List<? extends Object>> parameters) {
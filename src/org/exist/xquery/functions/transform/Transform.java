@@ -366,7 +366,7 @@ public class Transform extends BasicFunction {
 
                         final String uri = XmldbURI.XMLDB_URI_PREFIX + context.getBroker().getBrokerPool().getId() + "://" + root.getOwnerDocument().getURI();
 
-                        stylesheet = TemplatesFactory.stylesheet(uri, context.getModuleLoadPath(), attributes, useCache);
+                        stylesheet = context.getBroker().getBrokerPool().getTemplatesFactory().stylesheet(uri, context.getModuleLoadPath(), attributes, useCache);
                     }
                 }
                 if (stylesheet == null) {
@@ -394,7 +394,7 @@ public class Transform extends BasicFunction {
 
                 final String uri = stylesheetItem.getStringValue();
 
-                stylesheet = TemplatesFactory.stylesheet(uri, baseUri, attributes, useCache);
+                stylesheet = context.getBroker().getBrokerPool().getTemplatesFactory().stylesheet(uri, baseUri, attributes, useCache);
             }
 
             handler = stylesheet.newTransformerHandler(getContext().getBroker(), errorListener);
@@ -116,6 +116,7 @@ public class BinaryDoc extends BasicFunction {
                 is.close(); */
                 final Base64BinaryDocument b64doc = Base64BinaryDocument.getInstance(context, is);
                 b64doc.setUrl(path);
+                b64doc.setLastModified(bin.getMetadata().getLastModified());
                 return b64doc;
             } else {
                 return BooleanValue.TRUE;
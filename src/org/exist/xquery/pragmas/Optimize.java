@@ -68,6 +68,10 @@ public class Optimize extends Pragma {
         }
     }
 
+    public boolean isEnabled() {
+        return enabled;
+    }
+
     public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
         super.analyze(contextInfo);
         this.contextId = contextInfo.getContextId();
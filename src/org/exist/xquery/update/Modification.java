@@ -40,6 +40,7 @@ import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.persistent.NodeHandle;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
+import org.exist.storage.FragmentationMonitor;
 import org.exist.storage.lock.LockManager;
 import org.exist.storage.lock.ManagedDocumentLock;
 import org.exist.storage.serializers.Serializer;
@@ -253,7 +254,8 @@ public abstract class Modification extends AbstractExpression
         if (property != null) {
             fragmentationLimit = (Integer) property;
         }
-        checkFragmentation(context, docs, fragmentationLimit);
+        checkFragmentation(context, docs, fragmentationLimit,
+                context.getBroker().getBrokerPool().getFragmentationMonitor().isBackground());
     }
 
     /**
@@ -265,16 +267,30 @@ public abstract class Modification extends AbstractExpression
      * @param docs
      */
     public static void checkFragmentation(XQueryContext context, DocumentSet docs, int splitCount) throws EXistException, LockException {
+        checkFragmentation(context, docs, splitCount, false);
+    }
+
+    /**
+     * Check if any of the modified documents needs defragmentation.
+     *
+     * @param docs
+     * @param background if true, the documents are not defragmented but left to the
+     *     {@link org.exist.storage.DefragmentationTask}
+     */
+    private static void checkFragmentation(XQueryContext context, DocumentSet docs, int splitCount, boolean background) throws EXistException, LockException {
         final DBBroker broker = context.getBroker();
+        final FragmentationMonitor fragmentationMonitor = broker.getBrokerPool().getFragmentationMonitor();
         final LockManager lockManager = broker.getBrokerPool().getLockManager();
         //if there is no batch update transaction, start a new individual transaction
         try(final Txn transaction = broker.continueOrBeginTransaction()) {
             for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
                 final DocumentImpl next = i.next();
-                if(next.getMetadata().getSplitCount() > splitCount) {
+                if(next.getMetadata().getSplitCount() > splitCount && !background) {
                     try(final ManagedDocumentLock nextLock = lockManager.acquireDocumentWriteLock(next.getURI())) {
                         broker.defragXMLResource(transaction, next);
                     }
+                } else {
+                    fragmentationMonitor.update(next);
                 }
                 broker.checkXMLResourceConsistency(next);
             }
@@ -154,7 +154,7 @@ public class Rename extends Modification {
                     doc.getMetadata().setLastModified(System.currentTimeMillis());
                     modifiedDocuments.add(doc);
                     context.getBroker().storeXMLResource(transaction, doc);
-                    notifier.notifyUpdate(doc, UpdateListener.UPDATE);
+                    notifier.notifyUpdate(transaction, doc, UpdateListener.UPDATE);
                 }
                 finishTriggers(transaction);
                 
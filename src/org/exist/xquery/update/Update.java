@@ -176,7 +176,7 @@ public class Update extends Modification {
                     doc.getMetadata().setLastModified(System.currentTimeMillis());
                     modifiedDocuments.add(doc);
                     context.getBroker().storeXMLResource(transaction, doc);
-                    notifier.notifyUpdate(doc, UpdateListener.UPDATE);
+                    notifier.notifyUpdate(transaction, doc, UpdateListener.UPDATE);
                 }
                 finishTriggers(transaction);
                 //commit the transaction
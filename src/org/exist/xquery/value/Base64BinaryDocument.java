@@ -33,6 +33,7 @@ import java.io.InputStream;
 public class Base64BinaryDocument extends BinaryValueFromInputStream {
 
     private String url = null;
+    private long lastModified = -1;
 
     private Base64BinaryDocument(final BinaryValueManager manager, final InputStream is) throws XPathException {
         super(manager, new Base64BinaryValueType(), is);
@@ -51,4 +52,15 @@ public class Base64BinaryDocument extends BinaryValueFromInputStream {
     public void setUrl(final String url) {
         this.url = url;
     }
+
+    /**
+     * @return the last modification time of the document when it was read, or -1 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(final long lastModified) {
+        this.lastModified = lastModified;
+    }
 }
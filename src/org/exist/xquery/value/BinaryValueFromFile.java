@@ -54,6 +54,10 @@ public class BinaryValueFromFile extends BinaryValue {
         return binaryFile;
     }
 
+    public Path getFile() {
+        return file;
+    }
+
     @Override
     public BinaryValue convertTo(final BinaryValueType binaryValueType) throws XPathException {
         final BinaryValueFromFile binaryFile = new BinaryValueFromFile(getManager(), binaryValueType, file, Optional.empty());
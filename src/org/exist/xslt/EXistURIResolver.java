@@ -25,6 +25,11 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
@@ -51,14 +56,43 @@ public class EXistURIResolver implements URIResolver {
   final BrokerPool db;
   final String basePath;
 
+  private final ConcurrentMap<XmldbURI, Long> documents;
+  private final AtomicLong contentLength = new AtomicLong();
+
   public EXistURIResolver(final BrokerPool db, final String docPath) {
+    this(db, docPath, false);
+  }
+
+  /**
+   * @param db the database
+   * @param docPath the base path for resolving relative paths
+   * @param recordDocuments whether the resolved database documents are
+   *     recorded, see {@link #getDocuments()}
+   */
+  EXistURIResolver(final BrokerPool db, final String docPath, final boolean recordDocuments) {
     this.db = db;
+    this.documents = recordDocuments ? new ConcurrentHashMap<>() : null;
     this.basePath = normalize(docPath);
     if (LOG.isDebugEnabled()) {
       LOG.debug("EXistURIResolver base path set to " + basePath);
     }
   }
 
+  /**
+   * @return the database documents which were resolved, with their last
+   *     modification time
+   */
+  Map<XmldbURI, Long> getDocuments() {
+    return documents == null ? new HashMap<>() : new HashMap<>(documents);
+  }
+
+  /**
+   * @return the total size of the database documents which were resolved
+   */
+  long getContentLength() {
+    return contentLength.get();
+  }
+
   private String normalize(String uri) {
     if (uri.startsWith(XmldbURI.EMBEDDED_SERVER_URI_PREFIX)) {
       return uri.substring(XmldbURI.EMBEDDED_SERVER_URI_PREFIX.length());
@@ -183,6 +217,10 @@ public class EXistURIResolver implements URIResolver {
         throw new TransformerException("Resource " + path + " not found in database.");
       }
 
+      if (documents != null && documents.put(doc.getURI(), doc.getMetadata().getLastModified()) == null) {
+        contentLength.addAndGet(doc.getContentLength());
+      }
+
       final Source source;
       if (doc instanceof BinaryDocument) {
         final Path p = broker.getBinaryFile((BinaryDocument) doc);
@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import javax.annotation.Nullable;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.sax.SAXTransformerFactory;
@@ -36,6 +38,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
@@ -55,18 +58,54 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
 
   protected final static Logger LOG = LogManager.getLogger(StylesheetResolverAndCompiler.class);
 
+  /**
+   * The estimated size of a stylesheet which has not been compiled yet,
+   * or whose source size is unknown.
+   */
+  final static int DEFAULT_ESTIMATED_SIZE = 64 * 1024;
+
+  /**
+   * Compiled stylesheets take several times the memory of their source.
+   */
+  final static int SOURCE_SIZE_FACTOR = 4;
+
   SAXTransformerFactory factory;
 
-  long lastModified = -1;
-  Templates templates = null;
+  volatile long lastModified = -1;
+  volatile Templates templates = null;
 
   String uri;
   String base;
 
   Properties properties;
 
+  /**
+   * The factory whose cache holds this instance and removes it when one
+   * of its {@link #dependencies} changes, or null if it is not cached.
+   */
+  @Nullable final TemplatesFactory templatesFactory;
+
+  /**
+   * Whether this instance is held by the cache of the {@link #templatesFactory}.
+   */
+  final boolean cached;
+
+  /**
+   * The database documents the compiled templates were read from,
+   * with their last modification time.
+   */
+  volatile Map<XmldbURI, Long> dependencies = Collections.emptyMap();
+
+  volatile int estimatedSize = DEFAULT_ESTIMATED_SIZE;
+
   public StylesheetResolverAndCompiler(String uri) {
+    this(uri, (TemplatesFactory) null);
+  }
+
+  StylesheetResolverAndCompiler(String uri, @Nullable TemplatesFactory templatesFactory) {
     this.uri = uri;
+    this.templatesFactory = templatesFactory;
+    this.cached = templatesFactory != null;
 
     final int p = uri.lastIndexOf("/");
     if (p != Constants.STRING_NOT_FOUND) {
@@ -82,25 +121,75 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
     this.properties = properties;
   }
 
+  /**
+   * @return the estimated size of the compiled templates in bytes
+   */
+  int getEstimatedSize() {
+    return estimatedSize;
+  }
+
+  /**
+   * @param uri the URI of a document or collection
+   * @return true if the compiled templates were read from the document,
+   *     or from a document below the collection
+   */
+  boolean dependsOn(XmldbURI uri) {
+    for (final XmldbURI dependency : dependencies.keySet()) {
+      if (dependency.startsWith(uri)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public <E extends Exception> Templates templates(DBBroker broker, XSLTErrorsListener<E> errorListener)
       throws E, TransformerConfigurationException, IOException, PermissionDeniedException, SAXException {
 
     if (uri.startsWith(XmldbURI.EMBEDDED_SERVER_URI_PREFIX)) {
-      final String docPath = uri.substring(XmldbURI.EMBEDDED_SERVER_URI_PREFIX.length());
-      try (final LockedDocument lockedDocument = broker.getXMLResource(XmldbURI.create(docPath), LockMode.READ_LOCK)) {
-        if (lockedDocument == null) {
-          throw new IOException("XSL stylesheet not found: "+docPath);
+      // a cached instance is removed from the cache when the stylesheet changes,
+      // so there is no need to check the document again
+      final Templates compiled = templates;
+      if (cached && compiled != null) {
+        return compiled;
+      }
+
+      synchronized (this) {
+        if (cached && templates != null) {
+          return templates;
         }
-        final DocumentImpl doc = lockedDocument.getDocument();
-        if (templates == null || doc.getMetadata().getLastModified() > lastModified) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("compiling stylesheet " + doc.getURI());
+
+        final String docPath = uri.substring(XmldbURI.EMBEDDED_SERVER_URI_PREFIX.length());
+        try (final LockedDocument lockedDocument = broker.getXMLResource(XmldbURI.create(docPath), LockMode.READ_LOCK)) {
+          if (lockedDocument == null) {
+            throw new IOException("XSL stylesheet not found: "+docPath);
+          }
+          final DocumentImpl doc = lockedDocument.getDocument();
+          if (templates == null || doc.getMetadata().getLastModified() > lastModified) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("compiling stylesheet " + doc.getURI());
+            }
+            final long start = System.nanoTime();
+            final EXistURIResolver resolver = new EXistURIResolver(broker.getBrokerPool(), base, true);
+            templates = compileTemplates(broker, doc, resolver, errorListener);
+            lastModified = doc.getMetadata().getLastModified();
+
+            final Map<XmldbURI, Long> documents = resolver.getDocuments();
+            documents.put(doc.getURI(), lastModified);
+            dependencies = documents;
+            estimatedSize = estimateSize(doc.getContentLength() + resolver.getContentLength());
+
+            if (cached) {
+              templatesFactory.compiled(this, System.nanoTime() - start);
+            }
           }
-          templates = compileTemplates(broker, doc, errorListener);
-          lastModified = doc.getMetadata().getLastModified();
         }
       }
 
+      // an included stylesheet may have changed before the dependencies were published
+      if (cached && !isCurrent(broker)) {
+        templatesFactory.remove(this);
+      }
+
     } else {
       final URL url = new URL(uri);
       final URLConnection connection = url.openConnection();
@@ -109,8 +198,15 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
         if (LOG.isDebugEnabled()) {
           LOG.debug("compiling stylesheet " + url);
         }
+        final long start = System.nanoTime();
         try (final InputStream is = connection.getInputStream()) {
-          templates = factory(broker.getBrokerPool(), errorListener).newTemplates(new StreamSource(is));
+          templates = factory(broker.getBrokerPool(), new EXistURIResolver(broker.getBrokerPool(), base), errorListener)
+              .newTemplates(new StreamSource(is));
+        }
+        final long contentLength = connection.getContentLengthLong();
+        estimatedSize = contentLength > 0 ? estimateSize(contentLength) : DEFAULT_ESTIMATED_SIZE;
+        if (cached) {
+          templatesFactory.compiled(this, System.nanoTime() - start);
         }
       }
       lastModified = modified;
@@ -119,6 +215,24 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
     return templates;
   }
 
+  private static int estimateSize(final long contentLength) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(contentLength, 1) * SOURCE_SIZE_FACTOR);
+  }
+
+  /**
+   * Checks whether the database documents the templates were compiled from
+   * are unchanged.
+   */
+  private boolean isCurrent(DBBroker broker) throws PermissionDeniedException {
+    for (final Map.Entry<XmldbURI, Long> dependency : dependencies.entrySet()) {
+      final DocumentImpl doc = broker.getResource(dependency.getKey(), Permission.READ);
+      if (doc == null || doc.getMetadata().getLastModified() != dependency.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override
   public <E extends Exception> TransformerHandler newTransformerHandler(DBBroker broker, XSLTErrorsListener<E> errorListener)
       throws E, PermissionDeniedException, SAXException, TransformerConfigurationException, IOException {
@@ -134,12 +248,11 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
   private <E extends Exception> Templates compileTemplates(
       DBBroker broker,
       DocumentImpl stylesheet,
+      EXistURIResolver resolver,
       XSLTErrorsListener<E> errorListener)
       throws E, TransformerConfigurationException, SAXException
   {
-    //factory.setURIResolver(new EXistURIResolver(broker, stylesheet.getCollection().getURI().toString()));
-
-    final TemplatesHandler handler = factory(broker.getBrokerPool(), errorListener).newTemplatesHandler();
+    final TemplatesHandler handler = factory(broker.getBrokerPool(), resolver, errorListener).newTemplatesHandler();
 
     handler.startDocument();
 
@@ -173,7 +286,8 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
     return factory;
   }
 
-  private <E extends Exception> SAXTransformerFactory factory(BrokerPool db, XSLTErrorsListener<E> errorListener) {
+  private <E extends Exception> SAXTransformerFactory factory(BrokerPool db, EXistURIResolver resolver,
+      XSLTErrorsListener<E> errorListener) {
     SAXTransformerFactory newFactory = TransformerFactoryAllocator.getTransformerFactory(db);
 
     if (properties != null) {
@@ -182,7 +296,7 @@ public class StylesheetResolverAndCompiler implements Stylesheet {
         newFactory.setAttribute((String) attribute.getKey(), attribute.getValue());
       }
     }
-    newFactory.setURIResolver(new EXistURIResolver(db, base));
+    newFactory.setURIResolver(resolver);
     newFactory.setErrorListener(errorListener);
     return newFactory;
   }
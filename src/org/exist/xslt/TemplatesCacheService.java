@@ -0,0 +1,142 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xslt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.BrokerPoolService;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Holds and configures the {@link TemplatesFactory} of a database instance,
+ * registers the {@link TemplatesCacheTrigger} which removes changed stylesheets
+ * from its cache, and optionally compiles the stylesheets stored in a collection at
+ * startup, see {@link TransformerFactoryAllocator#TRANSFORMER_PRECOMPILE_ATTRIBUTE}.
+ */
+public class TemplatesCacheService implements BrokerPoolService {
+
+  private final static Logger LOG = LogManager.getLogger(TemplatesCacheService.class);
+
+  private final TemplatesFactory templatesFactory = new TemplatesFactory();
+
+  private String precompile = null;
+
+  /**
+   * @return the factory which holds the compiled stylesheets of the database
+   */
+  public TemplatesFactory getTemplatesFactory() {
+    return templatesFactory;
+  }
+
+  @Override
+  public void configure(final Configuration configuration) {
+    final Integer cacheSize = (Integer) configuration.getProperty(TransformerFactoryAllocator.PROPERTY_CACHE_SIZE);
+    if (cacheSize != null) {
+      templatesFactory.setCacheSize(cacheSize * 1024L * 1024L);
+    }
+    precompile = (String) configuration.getProperty(TransformerFactoryAllocator.PROPERTY_PRECOMPILE);
+  }
+
+  @Override
+  public void prepare(final BrokerPool brokerPool) {
+    brokerPool.registerDocumentTrigger(TemplatesCacheTrigger.class);
+    brokerPool.registerCollectionTrigger(TemplatesCacheTrigger.class);
+  }
+
+  @Override
+  public void startPreMultiUserSystem(final DBBroker systemBroker, final Txn transaction) {
+    if (precompile == null || precompile.isEmpty()) {
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    int compiled = 0;
+    int failed = 0;
+    for (final XmldbURI uri : findStylesheets(systemBroker, XmldbURI.create(precompile))) {
+      final String key = XmldbURI.XMLDB_URI_PREFIX + systemBroker.getBrokerPool().getId() + "://" + uri;
+      try {
+        templatesFactory.precompile(systemBroker, key, new XSLTErrorsListener<Exception>(true, false) {
+          @Override
+          protected void raiseError(final String error, final Exception ex) throws Exception {
+            throw new Exception(error, ex);
+          }
+        });
+        compiled++;
+      } catch (final Exception e) {
+        LOG.warn("Unable to compile stylesheet " + uri + ": " + e.getMessage());
+        failed++;
+      }
+    }
+    LOG.info("Compiled " + compiled + " stylesheets from " + precompile + ", " + failed + " failed, in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  @Override
+  public void shutdown() {
+    // the compiled stylesheets refer to the database
+    templatesFactory.clear();
+  }
+
+  /**
+   * Finds the stylesheets stored in a collection and its descendants.
+   */
+  private static List<XmldbURI> findStylesheets(final DBBroker broker, final XmldbURI uri) {
+    final List<XmldbURI> stylesheets = new ArrayList<>();
+    try {
+      final List<XmldbURI> children = new ArrayList<>();
+      try (final Collection collection = broker.openCollection(uri, LockMode.READ_LOCK)) {
+        if (collection == null) {
+          return stylesheets;
+        }
+
+        for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+          final DocumentImpl doc = i.next();
+          final String name = doc.getFileURI().toString();
+          if (doc.getResourceType() == DocumentImpl.XML_FILE && (name.endsWith(".xsl") || name.endsWith(".xslt"))) {
+            stylesheets.add(doc.getURI());
+          }
+        }
+        for (final Iterator<XmldbURI> i = collection.collectionIterator(broker); i.hasNext(); ) {
+          children.add(uri.append(i.next()));
+        }
+      }
+
+      for (final XmldbURI child : children) {
+        stylesheets.addAll(findStylesheets(broker, child));
+      }
+    } catch (final PermissionDeniedException | LockException e) {
+      LOG.warn("Unable to scan " + uri + " for stylesheets: " + e.getMessage());
+    }
+    return stylesheets;
+  }
+}
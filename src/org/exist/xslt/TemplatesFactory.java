@@ -19,22 +19,27 @@
  */
 package org.exist.xslt;
 
-import java.io.File;
+import java.beans.ConstructorProperties;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TemplatesHandler;
 import javax.xml.transform.sax.TransformerHandler;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import net.jcip.annotations.ThreadSafe;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.Constants;
 import org.exist.xquery.value.NodeValue;
 import org.w3c.dom.Document;
@@ -44,14 +49,43 @@ import org.xml.sax.SAXException;
  * Factory for stylesheet resolver and compiler instances
  * and if instance is safe for reuse then it cached.
  *
+ * Each database instance has its own factory, see
+ * {@link org.exist.storage.BrokerPool#getTemplatesFactory()}.
+ * The cache is bounded by the estimated size of the compiled stylesheets,
+ * see {@link TransformerFactoryAllocator#TRANSFORMER_CACHE_SIZE_ATTRIBUTE}.
+ * Stylesheets stored in the database are removed from the cache by
+ * {@link TemplatesCacheTrigger} when they, or a stylesheet they include
+ * or import, are changed.
+ *
  * @author <a href="mailto:shabanovd@gmail.com">Dmitriy Shabanov</a>
  */
 @ThreadSafe
 public class TemplatesFactory {
 
-  private final static ConcurrentMap<String, StylesheetResolverAndCompiler> cache = new ConcurrentHashMap<>();
+  private final static Logger LOG = LogManager.getLogger(TemplatesFactory.class);
+
+  public final static long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;   // bytes
+
+  private final Cache<String, StylesheetResolverAndCompiler> cache = Caffeine.newBuilder()
+      .maximumWeight(DEFAULT_CACHE_SIZE)
+      .weigher((String uri, StylesheetResolverAndCompiler stylesheet) -> stylesheet.getEstimatedSize())
+      .recordStats()
+      .build();
+
+  private final LongAdder compileCount = new LongAdder();
+  private final LongAdder totalCompileTime = new LongAdder();
+  private final LongAdder invalidationCount = new LongAdder();
+
+  /**
+   * Sets the maximum estimated size of the cached stylesheets.
+   *
+   * @param size the size in bytes
+   */
+  public void setCacheSize(final long size) {
+    cache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(size));
+  }
 
-  public static Stylesheet stylesheet(String stylesheet, String baseUri, Properties properties, boolean useCache) {
+  public Stylesheet stylesheet(String stylesheet, String baseUri, Properties properties, boolean useCache) {
 
     if (useCache && properties == null) {
       return stylesheet(stylesheet, baseUri);
@@ -62,14 +96,90 @@ public class TemplatesFactory {
     return new StylesheetResolverAndCompiler(uri, properties);
   }
 
-  private static Stylesheet stylesheet(String stylesheet, String baseUri) {
+  /**
+   * Compiles a stylesheet into the cache, unless it is already cached.
+   *
+   * @param broker the database broker
+   * @param uri the URI of the stylesheet
+   * @param errorListener receives the errors of the compilation
+   */
+  public <E extends Exception> void precompile(final DBBroker broker, final String uri,
+      final XSLTErrorsListener<E> errorListener)
+      throws E, TransformerConfigurationException, IOException, PermissionDeniedException, SAXException {
+    cache.get(uri, key -> new StylesheetResolverAndCompiler(key, this)).templates(broker, errorListener);
+  }
+
+  private Stylesheet stylesheet(String stylesheet, String baseUri) {
 
     String uri = uri(stylesheet, baseUri);
 
-    return cache.computeIfAbsent(uri, StylesheetResolverAndCompiler::new);
+    return cache.get(uri, key -> new StylesheetResolverAndCompiler(key, this));
+  }
+
+  /**
+   * Called by a cached stylesheet after it was compiled, so that its
+   * estimated size is accounted for.
+   */
+  void compiled(final StylesheetResolverAndCompiler stylesheet, final long time) {
+    compileCount.increment();
+    totalCompileTime.add(time);
+    // replacing the entry by itself weighs it again
+    cache.asMap().replace(stylesheet.uri, stylesheet, stylesheet);
+  }
+
+  /**
+   * Removes a stylesheet from the cache, if it is still cached.
+   */
+  void remove(final StylesheetResolverAndCompiler stylesheet) {
+    if (cache.asMap().remove(stylesheet.uri, stylesheet)) {
+      invalidationCount.increment();
+    }
+  }
+
+  /**
+   * Removes the compiled stylesheets which were compiled from a database
+   * document, or from a document below a collection.
+   *
+   * @param uri the URI of a changed document or collection
+   */
+  public void invalidate(final XmldbURI uri) {
+    for (final StylesheetResolverAndCompiler stylesheet : cache.asMap().values()) {
+      if (stylesheet.dependsOn(uri)) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(uri + " has changed, removing " + stylesheet.uri + " from the stylesheet cache");
+        }
+        remove(stylesheet);
+      }
+    }
   }
 
-  public static Stylesheet stylesheet(String stylesheet, String baseUri, boolean useCache) {
+  /**
+   * Removes all compiled stylesheets from the cache.
+   */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Get a statistics snapshot of the cache of compiled stylesheets.
+   *
+   * @return Statistics for the cache
+   */
+  public Statistics getStatistics() {
+    final CacheStats stats = cache.stats();
+    return new Statistics(
+        cache.estimatedSize(),
+        cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L),
+        cache.policy().eviction().map(eviction -> eviction.getMaximum()).orElse(0L),
+        stats.hitCount(),
+        stats.missCount(),
+        compileCount.sum(),
+        totalCompileTime.sum(),
+        stats.evictionCount(),
+        invalidationCount.sum());
+  }
+
+  public Stylesheet stylesheet(String stylesheet, String baseUri, boolean useCache) {
     if (useCache) {
       return stylesheet(stylesheet, baseUri);
     } else {
@@ -151,4 +261,91 @@ public class TemplatesFactory {
       }
     };
   }
+
+  /**
+   * Statistics of the cache of compiled stylesheets.
+   */
+  public static class Statistics {
+    private final long size;
+    private final long weightedSize;
+    private final long maximumWeight;
+    private final long hitCount;
+    private final long missCount;
+    private final long compileCount;
+    private final long totalCompileTime;
+    private final long evictionCount;
+    private final long invalidationCount;
+
+    /**
+     * @param size the number of cached stylesheets
+     * @param weightedSize the estimated size of the cached stylesheets in bytes
+     * @param maximumWeight the maximum estimated size in bytes
+     * @param hitCount the number of lookups which found a cached stylesheet
+     * @param missCount the number of lookups which did not find a cached stylesheet
+     * @param compileCount the number of compilations of cached stylesheets
+     * @param totalCompileTime the total time spent compiling cached stylesheets, in nanoseconds
+     * @param evictionCount the number of stylesheets evicted because of the size limit
+     * @param invalidationCount the number of stylesheets removed because they were changed
+     */
+    @ConstructorProperties({"size", "weightedSize", "maximumWeight", "hitCount", "missCount", "compileCount",
+        "totalCompileTime", "evictionCount", "invalidationCount"})
+    public Statistics(final long size, final long weightedSize, final long maximumWeight, final long hitCount,
+        final long missCount, final long compileCount, final long totalCompileTime, final long evictionCount,
+        final long invalidationCount) {
+      this.size = size;
+      this.weightedSize = weightedSize;
+      this.maximumWeight = maximumWeight;
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.compileCount = compileCount;
+      this.totalCompileTime = totalCompileTime;
+      this.evictionCount = evictionCount;
+      this.invalidationCount = invalidationCount;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getWeightedSize() {
+      return weightedSize;
+    }
+
+    public long getMaximumWeight() {
+      return maximumWeight;
+    }
+
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    public long getMissCount() {
+      return missCount;
+    }
+
+    public double getHitRate() {
+      final long requestCount = hitCount + missCount;
+      return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public long getCompileCount() {
+      return compileCount;
+    }
+
+    public long getTotalCompileTime() {
+      return totalCompileTime;
+    }
+
+    public double getAverageCompilePenalty() {
+      return compileCount == 0 ? 0.0 : (double) totalCompileTime / compileCount;
+    }
+
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    public long getInvalidationCount() {
+      return invalidationCount;
+    }
+  }
 }
@@ -53,6 +53,12 @@ public class TransformerFactoryAllocator {
     public final static String TRANSFORMER_CACHING_ATTRIBUTE = "caching";
     public final static String PROPERTY_CACHING_ATTRIBUTE = "transformer.caching";
 
+    public final static String TRANSFORMER_CACHE_SIZE_ATTRIBUTE = "cache-size";
+    public final static String PROPERTY_CACHE_SIZE = "transformer.cache-size";
+
+    public final static String TRANSFORMER_PRECOMPILE_ATTRIBUTE = "precompile";
+    public final static String PROPERTY_PRECOMPILE = "transformer.precompile";
+
     public final static String PROPERTY_BROKER_POOL = "transformer.brokerPool";
 
     //private constructor
@@ -103,7 +103,7 @@ public class Insert extends Modification {
                 doc.getMetadata().setLastModified(System.currentTimeMillis());
                 modifiedDocuments.add(doc);
                 broker.storeXMLResource(transaction, doc);
-                notifier.notifyUpdate(doc, UpdateListener.UPDATE);
+                notifier.notifyUpdate(transaction, doc, UpdateListener.UPDATE);
             }
             checkFragmentation(transaction, modifiedDocuments);
             return ql.length;
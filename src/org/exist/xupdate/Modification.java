@@ -46,6 +46,7 @@ import org.exist.security.PermissionDeniedException;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
+import org.exist.storage.FragmentationMonitor;
 import org.exist.storage.XQueryPool;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.ManagedDocumentLock;
@@ -288,10 +289,13 @@ public abstract class Modification {
         final Object property = broker.getBrokerPool().getConfiguration().getProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
         if (property != null)
 	        {fragmentationLimit = ((Integer)property).intValue();}		
+        final FragmentationMonitor fragmentationMonitor = broker.getBrokerPool().getFragmentationMonitor();
 	    for(final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
 	        final DocumentImpl next = i.next();
-	        if(next.getMetadata().getSplitCount() > fragmentationLimit)
+	        if(next.getMetadata().getSplitCount() > fragmentationLimit && !fragmentationMonitor.isBackground())
 	            {broker.defragXMLResource(transaction, next);}
+	        else
+	            {fragmentationMonitor.update(next);}
 	        broker.checkXMLResourceConsistency(next);
 	    }
 	}
@@ -100,7 +100,7 @@ public class Rename extends Modification {
                 doc.getMetadata().setLastModified(System.currentTimeMillis());
                 modifiedDocuments.add(doc);
                 broker.storeXMLResource(transaction, doc);
-                notifier.notifyUpdate(doc, UpdateListener.UPDATE);
+                notifier.notifyUpdate(transaction, doc, UpdateListener.UPDATE);
             }
             checkFragmentation(transaction, modifiedDocuments);
         } finally {
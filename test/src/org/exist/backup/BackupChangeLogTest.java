@@ -0,0 +1,187 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.backup;
+
+import org.exist.EXistException;
+import org.exist.backup.restore.listener.LogRestoreListener;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class BackupChangeLogTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/change-log-test");
+    private static final XmldbURI UNCHANGED_URI = COLLECTION_URI.append("unchanged");
+    private static final XmldbURI CHANGED_URI = COLLECTION_URI.append("changed");
+
+    private static final Properties CONFIG = new Properties();
+    static {
+        CONFIG.put(BackupChangeLog.PROPERTY_BACKUP_CHANGE_LOG, true);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(CONFIG, true, true);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void incrementalExportOfChanges() throws Exception {
+        BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, UNCHANGED_URI, "a.xml", "<a/>");
+            store(broker, CHANGED_URI, "b.xml", "<b/>");
+            store(broker, CHANGED_URI, "c.xml", "<c/>");
+        }
+
+        final String target = temporaryFolder.getRoot().toString();
+        final Path full = export(target);
+        assertTrue(Files.exists(full.resolve("db/change-log-test/unchanged/a.xml")));
+
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, CHANGED_URI, "b.xml", "<b>changed</b>");
+            remove(broker, CHANGED_URI, "c.xml");
+        }
+
+        // the changes survive a restart
+        existEmbeddedServer.restart();
+        pool = existEmbeddedServer.getBrokerPool();
+
+        final Path incremental = export(target);
+        assertTrue(Files.exists(incremental.resolve("db/change-log-test/changed/b.xml")));
+        assertFalse(Files.exists(incremental.resolve("db/change-log-test/unchanged")));
+        final String contents = new String(Files.readAllBytes(incremental.resolve("db/change-log-test/changed/__contents__.xml")), UTF_8);
+        assertTrue(contents.contains("<deleted name=\"c.xml\" type=\"resource\"/>"));
+
+        // the full and the incremental backup restore the database
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            broker.removeCollection(transaction, broker.getCollection(COLLECTION_URI));
+            transaction.commit();
+        }
+
+        final Database database = (Database) Class.forName("org.exist.xmldb.DatabaseImpl").newInstance();
+        DatabaseManager.registerDatabase(database);
+        try {
+            new SystemImport(pool).restore(new LogRestoreListener(), "admin", "", "", incremental, "xmldb:exist://");
+        } finally {
+            DatabaseManager.deregisterDatabase(database);
+        }
+
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            try (final Collection changed = broker.getCollection(CHANGED_URI)) {
+                assertNotNull(changed);
+                assertEquals("<b>changed</b>", serialize(broker, changed.getDocument(broker, XmldbURI.create("b.xml"))));
+                assertNull(changed.getDocument(broker, XmldbURI.create("c.xml")));
+            }
+            try (final Collection unchanged = broker.getCollection(UNCHANGED_URI)) {
+                assertNotNull(unchanged);
+                assertNotNull(unchanged.getDocument(broker, XmldbURI.create("a.xml")));
+            }
+        }
+    }
+
+    @Test
+    public void newEpochAfterUncleanShutdown() throws Exception {
+        final Path file = ((Path) existEmbeddedServer.getBrokerPool().getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR))
+                .resolve(BackupChangeLog.FILE_NAME);
+
+        // a clean restart keeps the epoch
+        final String epoch = getEpoch();
+        existEmbeddedServer.restart();
+        assertEquals(epoch, getEpoch());
+
+        // without the mark of a clean shutdown, the changes may be incomplete
+        existEmbeddedServer.stopDb(false);
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        assertTrue(lines.get(lines.size() - 1).startsWith("S "));
+        Files.write(file, lines.subList(0, lines.size() - 1), UTF_8);
+        existEmbeddedServer.startDb();
+        assertNotEquals(epoch, getEpoch());
+    }
+
+    private static String getEpoch() {
+        final Optional<BackupChangeLog> changeLog = existEmbeddedServer.getBrokerPool().getBackupChangeLog();
+        assertTrue(changeLog.isPresent());
+        return changeLog.get().getEpoch();
+    }
+
+    private static Path export(final String target) throws EXistException, PermissionDeniedException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Path file = new SystemExport(broker, null, null, true).export(target, true, false, null);
+            assertNotNull(file);
+            return file;
+        }
+    }
+
+    private static String serialize(final DBBroker broker, final DocumentImpl doc) throws SAXException {
+        assertNotNull(doc);
+        return broker.getSerializer().serialize(doc);
+    }
+
+    private static void store(final DBBroker broker, final XmldbURI collectionUri, final String name, final String xml)
+            throws EXistException, PermissionDeniedException, IOException, SAXException, LockException {
+        final BrokerPool pool = broker.getBrokerPool();
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+            collection.store(transaction, broker, info, xml);
+            transaction.commit();
+        }
+    }
+
+    private static void remove(final DBBroker broker, final XmldbURI collectionUri, final String name)
+            throws EXistException, PermissionDeniedException, TriggerException, LockException, IOException {
+        final BrokerPool pool = broker.getBrokerPool();
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(collectionUri);
+            collection.removeXMLResource(transaction, broker, XmldbURI.create(name));
+            transaction.commit();
+        }
+    }
+}
@@ -39,6 +39,8 @@ import org.exist.collections.IndexInfo;
 import org.exist.collections.triggers.TriggerException;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.security.PermissionDeniedException;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.serializers.EXistOutputKeys;
@@ -50,6 +52,7 @@ import org.exist.test.ExistEmbeddedServer;
 import org.exist.util.DatabaseConfigurationException;
 import org.exist.util.LockException;
 import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQueryContext;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -116,6 +119,8 @@ public class SystemExportImportTest {
 
     private static String BINARY = "test";
 
+    private static final Source QUERY = new StringSource("1 + 1");
+
     @Test
     public void exportImport() throws Exception {
         Path file;
@@ -127,6 +132,9 @@ public class SystemExportImportTest {
 
             final SystemExport sysexport = new SystemExport(broker, null, null, direct);
             file = sysexport.export("backup", false, zip, null);
+
+            final XQueryContext context = new XQueryContext(pool);
+            pool.getXQueryPool().returnCompiledXQuery(QUERY, pool.getXQueryService().compile(broker, context, QUERY));
         }
 
         clean();
@@ -148,6 +156,9 @@ public class SystemExportImportTest {
 
             doc = getDoc(broker, test, doc03uri.lastSegment());
             assertEquals(XML3_PROPER, serializer(broker, doc));
+
+            // the restored modules may differ from those the pooled queries were compiled from
+            assertNull(pool.getXQueryPool().borrowCompiledXQuery(broker, QUERY));
         }
 	}
 
@@ -0,0 +1,149 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.backup.restore;
+
+import org.exist.EXistException;
+import org.exist.backup.SystemExport;
+import org.exist.backup.SystemImport;
+import org.exist.backup.restore.listener.LogRestoreListener;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.IndexInfo;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ParallelRestoreTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/parallel-restore-test");
+    private static final int COLLECTIONS = 6;
+    private static final int DOCUMENTS = 10;
+
+    private static final String COLLECTION_CONFIG =
+            "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+            "    <index><create qname=\"item\" type=\"xs:string\"/></index>" +
+            "</collection>";
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void restoreWithWorkers() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            pool.getConfigurationManager().addConfiguration(transaction, broker, root, COLLECTION_CONFIG);
+            store(transaction, broker, root, "root.xml", "<item>root</item>");
+            for (int i = 0; i < COLLECTIONS; i++) {
+                final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI.append("c" + i));
+                broker.saveCollection(transaction, collection);
+                for (int j = 0; j < DOCUMENTS; j++) {
+                    store(transaction, broker, collection, "d" + j + ".xml", "<item>" + i + "-" + j + "</item>");
+                }
+            }
+            transaction.commit();
+        }
+
+        final Path backup;
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            backup = new SystemExport(broker, null, null, true).export(temporaryFolder.getRoot().toString(), false, false, null);
+        }
+        assertNotNull(backup);
+
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            broker.removeCollection(transaction, broker.getCollection(COLLECTION_URI));
+            broker.removeCollection(transaction, broker.getCollection(CollectionConfigurationManager.CONFIG_COLLECTION_URI.append(COLLECTION_URI)));
+            transaction.commit();
+        }
+
+        final RecordingRestoreListener listener = new RecordingRestoreListener();
+        new SystemImport(pool, 4).restore(listener, "admin", "", "", backup, "xmldb:exist://");
+        assertFalse(listener.warningsAndErrorsAsString(), listener.hasProblems());
+
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            for (int i = 0; i < COLLECTIONS; i++) {
+                try (final Collection collection = broker.getCollection(COLLECTION_URI.append("c" + i))) {
+                    assertNotNull(collection);
+                    assertEquals(DOCUMENTS, collection.getDocumentCount(broker));
+                }
+            }
+            try (final Collection config = broker.getCollection(CollectionConfigurationManager.CONFIG_COLLECTION_URI.append(COLLECTION_URI))) {
+                assertNotNull(config);
+                assertEquals(1, config.getDocumentCount(broker));
+            }
+
+            // the range index has been built by the reindex once the configuration was restored
+            final XQuery xquery = pool.getXQueryService();
+            final Sequence keys = xquery.execute(broker,
+                    "util:index-keys(collection('" + COLLECTION_URI + "')//item, '', function($key, $count) { $key }, -1)", null);
+            assertEquals(COLLECTIONS * DOCUMENTS + 1, keys.getItemCount());
+            final Sequence items = xquery.execute(broker, "collection('" + COLLECTION_URI + "')//item[. = '3-4']", null);
+            assertEquals(1, items.getItemCount());
+        }
+
+        // the configured collection and each of its sub-collections are reindexed separately
+        assertTrue(listener.messages.contains("Reindexing collection " + COLLECTION_URI));
+        for (int i = 0; i < COLLECTIONS; i++) {
+            assertTrue(listener.messages.contains("Reindexing collection " + COLLECTION_URI.append("c" + i)));
+        }
+    }
+
+    private static void store(final Txn transaction, final DBBroker broker, final Collection collection, final String name, final String xml)
+            throws EXistException, PermissionDeniedException, IOException, SAXException, LockException {
+        final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+        collection.store(transaction, broker, info, xml);
+    }
+
+    private static class RecordingRestoreListener extends LogRestoreListener {
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void info(final String message) {
+            super.info(message);
+            messages.add(message);
+        }
+    }
+}
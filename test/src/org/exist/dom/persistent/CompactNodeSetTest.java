@@ -0,0 +1,202 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.dom.persistent;
+
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
+import org.exist.xquery.value.SequenceIterator;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.*;
+
+public class CompactNodeSetTest {
+
+    @Test
+    public void sortsAndRemovesDuplicates() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+
+        final CompactNodeSet set = new CompactNodeSet();
+        set.add(node(doc2, "1.2"));
+        set.add(node(doc1, "1.3.1"));
+        set.add(node(doc1, "1"));
+        set.add(node(doc2, "1.1"));
+        set.add(node(doc1, "1.3"));
+        set.add(node(doc1, "1.3.1"));
+        set.add(node(doc1, "1.10"));
+
+        assertEquals(6, set.getLength());
+        assertEquals("1/1 1/1.3 1/1.3.1 1/1.10 2/1.1 2/1.2", ids(set));
+        assertEquals(4, set.getSizeHint(doc1));
+        assertEquals(2, set.getDocumentSet().getDocumentCount());
+    }
+
+    @Test
+    public void keepsNodeAttributes() {
+        final DocumentImpl doc = mockDoc(1);
+        final CompactNodeSet set = new CompactNodeSet();
+        set.add(new NodeProxy(doc, new DLN("1.2"), Node.ELEMENT_NODE, 4711));
+        set.add(new NodeProxy(doc, NodeId.DOCUMENT_NODE, Node.DOCUMENT_NODE, 42));
+
+        final NodeProxy document = set.get(0);
+        assertSame(NodeId.DOCUMENT_NODE, document.getNodeId());
+        assertEquals(Node.DOCUMENT_NODE, document.getNodeType());
+        assertEquals(42, document.getInternalAddress());
+
+        final NodeProxy element = set.get(1);
+        assertTrue(element.getNodeId().equals(new DLN("1.2")));
+        assertEquals(Node.ELEMENT_NODE, element.getNodeType());
+        assertEquals(4711, element.getInternalAddress());
+        assertSame(doc, element.getOwnerDocument());
+    }
+
+    @Test
+    public void lookup() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set = set(doc1, "1.1", "1.2.3", "1.5");
+
+        assertTrue(set.contains(node(doc1, "1.2.3")));
+        assertFalse(set.contains(node(doc1, "1.2")));
+        assertFalse(set.contains(node(doc2, "1.1")));
+        assertNotNull(set.get(doc1, new DLN("1.5")));
+        assertNull(set.get(doc1, new DLN("1.6")));
+        assertEquals("1.2.3", set.get(1).getNodeId().toString());
+        assertNull(set.get(3));
+    }
+
+    @Test
+    public void union() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set1 = set(doc1, "1.1", "1.3");
+        final CompactNodeSet set2 = set(doc1, "1.2", "1.3");
+        set2.add(node(doc2, "1"));
+
+        assertEquals("1/1.1 1/1.2 1/1.3 2/1", ids(set1.union(set2)));
+    }
+
+    @Test
+    public void intersection() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set1 = set(doc1, "1.1", "1.3", "1.4.1");
+        set1.add(node(doc2, "1"));
+        final CompactNodeSet set2 = set(doc1, "1.2", "1.3", "1.4.1");
+
+        assertEquals("1/1.3 1/1.4.1", ids(set1.intersection(set2)));
+    }
+
+    @Test
+    public void except() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set1 = set(doc1, "1.1", "1.3", "1.4.1");
+        set1.add(node(doc2, "1"));
+        final CompactNodeSet set2 = set(doc1, "1.2", "1.3");
+
+        assertEquals("1/1.1 1/1.4.1 2/1", ids(set1.except(set2)));
+    }
+
+    @Test
+    public void iterate_skip() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set = new CompactNodeSet();
+        for (int i = 1; i <= 50; i++) {
+            set.add(node(doc1, "1." + i));
+            set.add(node(doc2, "1." + i));
+        }
+
+        final SequenceIterator it = set.iterate();
+        assertEquals(100, it.skippable());
+        assertEquals(60, it.skip(60));
+        assertEquals(40, it.skippable());
+        assertEquals("1.11", ((NodeProxy) it.nextItem()).getNodeId().toString());
+
+        int count = 1;
+        while (it.hasNext()) {
+            it.nextItem();
+            count++;
+        }
+        assertEquals(40, count);
+    }
+
+    @Test
+    public void keepsReturnedProxies() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final CompactNodeSet set = set(doc1, "1.1", "1.2", "1.3");
+        set.add(node(doc2, "1"));
+
+        set.get(0).addContextNode(1, node(doc1, "1"));
+        set.get(doc1, new DLN("1.2")).addContextNode(1, node(doc1, "1"));
+        final NodeSetIterator it = set.iterator();
+        it.next();
+        it.next();
+        it.next().addContextNode(2, node(doc1, "1"));
+
+        assertSame(set.get(0), set.iterator().next());
+        assertNotNull(set.get(0).getContext());
+        assertNotNull(set.get(1).getContext());
+        assertEquals(2, set.get(doc1, new DLN("1.3")).getContext().getContextId());
+        assertNull(set.get(3).getContext());
+
+        // the proxies are still kept once the set has been sorted again
+        set.add(node(doc1, "1.1.5"));
+        assertEquals(5, set.getLength());
+        assertNotNull(set.get(doc1, new DLN("1.2")).getContext());
+    }
+
+    private static CompactNodeSet set(final DocumentImpl doc, final String... ids) {
+        final CompactNodeSet set = new CompactNodeSet();
+        for (final String id : ids) {
+            set.add(node(doc, id));
+        }
+        return set;
+    }
+
+    private static NodeProxy node(final DocumentImpl doc, final String id) {
+        return new NodeProxy(doc, new DLN(id), Node.ELEMENT_NODE);
+    }
+
+    private static String ids(final NodeSet set) {
+        final List<String> ids = new ArrayList<>();
+        for (final NodeProxy p : set) {
+            ids.add(p.getOwnerDocument().getDocId() + "/" + p.getNodeId());
+        }
+        return String.join(" ", ids);
+    }
+
+    private static DocumentImpl mockDoc(final int docId) {
+        final DocumentImpl doc = createMock(DocumentImpl.class);
+        expect(doc.getDocId()).andReturn(docId).anyTimes();
+        expect(doc.getCollection()).andReturn(null).anyTimes();
+        replay(doc);
+        return doc;
+    }
+}
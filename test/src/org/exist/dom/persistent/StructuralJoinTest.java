@@ -0,0 +1,225 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.dom.persistent;
+
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
+import org.exist.xquery.Expression;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+
+public class StructuralJoinTest {
+
+    @Test
+    public void computeRelation_encoded() {
+        final List<NodeId> nodes = tree(new Random(7), 300);
+        for (final NodeId ancestor : nodes) {
+            final byte[] a = encode(ancestor);
+            for (final NodeId node : nodes) {
+                final byte[] n = encode(node);
+                assertEquals(node + " to " + ancestor, node.computeRelation(ancestor),
+                        DLN.computeRelation(n, 0, node.units(), a, 0, ancestor.units()));
+            }
+        }
+    }
+
+    @Test
+    public void computeRelation_documentNode() {
+        final byte[] doc = encode(NodeId.DOCUMENT_NODE);
+        final NodeId root = NodeId.ROOT_NODE;
+        final NodeId child = root.newChild();
+        assertEquals(NodeId.IS_SELF, DLN.computeRelation(doc, 0, NodeId.DOCUMENT_NODE.units(), doc, 0,
+                NodeId.DOCUMENT_NODE.units()));
+        assertEquals(NodeId.IS_CHILD, DLN.computeRelation(encode(root), 0, root.units(), doc, 0,
+                NodeId.DOCUMENT_NODE.units()));
+        assertEquals(NodeId.IS_DESCENDANT, DLN.computeRelation(encode(child), 0, child.units(), doc, 0,
+                NodeId.DOCUMENT_NODE.units()));
+        assertEquals(-1, DLN.computeRelation(doc, 0, NodeId.DOCUMENT_NODE.units(), encode(root), 0, root.units()));
+    }
+
+    @Test
+    public void join() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            final List<NodeId> nodes = tree(random, 200);
+            final List<NodeId> ancestors = sample(random, nodes, random.nextInt(60) + 1);
+            final List<NodeId> descendants = sample(random, nodes, random.nextInt(100) + 1);
+            if (random.nextBoolean()) {
+                ancestors.add(0, NodeId.DOCUMENT_NODE);
+            }
+            final EncodedNodeIds a = encode(ancestors);
+            final EncodedNodeIds d = encode(descendants);
+
+            assertJoin(ancestors, descendants, a, d, true, false);
+            assertJoin(ancestors, descendants, a, d, false, false);
+            assertJoin(ancestors, descendants, a, d, false, true);
+        }
+    }
+
+    @Test
+    public void selectParentChild() {
+        final DocumentImpl doc1 = mockDoc(1);
+        final DocumentImpl doc2 = mockDoc(2);
+        final NewArrayNodeSet parents = new NewArrayNodeSet();
+        parents.add(node(doc1, "1.1"));
+        parents.add(node(doc1, "1.3"));
+        parents.add(node(doc2, "1"));
+        final CompactNodeSet children = new CompactNodeSet();
+        for (final String id : new String[] { "1.1.1", "1.1.2", "1.1.2.1", "1.2.1", "1.3", "1.3.4" }) {
+            children.add(node(doc1, id));
+        }
+        children.add(node(doc2, "1.5"));
+        children.add(node(mockDoc(3), "1.1"));
+
+        assertEquals("1/1.1.1 1/1.1.2 1/1.3.4 2/1.5",
+                ids(children.selectParentChild(parents, NodeSet.DESCENDANT, Expression.NO_CONTEXT_ID)));
+        assertEquals("1/1.1 1/1.3 2/1",
+                ids(children.selectParentChild(parents, NodeSet.ANCESTOR, Expression.NO_CONTEXT_ID)));
+        assertEquals("1/1.1.1 1/1.1.2 1/1.1.2.1 1/1.3.4 2/1.5",
+                ids(children.selectAncestorDescendant(parents, NodeSet.DESCENDANT, false, Expression.NO_CONTEXT_ID, true)));
+        assertEquals("1/1.1.1 1/1.1.2 1/1.1.2.1 1/1.3 1/1.3.4 2/1.5",
+                ids(children.selectAncestorDescendant(parents, NodeSet.DESCENDANT, true, Expression.NO_CONTEXT_ID, true)));
+    }
+
+    @Test
+    public void selectAncestors() {
+        final DocumentImpl doc = mockDoc(1);
+        final NewArrayNodeSet ancestors = new NewArrayNodeSet();
+        for (final String id : new String[] { "1", "1.1", "1.1.2", "1.2", "1.3.1" }) {
+            ancestors.add(node(doc, id));
+        }
+        final NewArrayNodeSet descendants = new NewArrayNodeSet();
+        descendants.add(node(doc, "1.1.2"));
+        descendants.add(node(doc, "1.3.1.1"));
+
+        assertEquals("1/1 1/1.1 1/1.3.1",
+                ids(ancestors.selectAncestors(descendants, false, Expression.NO_CONTEXT_ID)));
+        assertEquals("1/1 1/1.1 1/1.1.2 1/1.3.1",
+                ids(ancestors.selectAncestors(descendants, true, Expression.NO_CONTEXT_ID)));
+    }
+
+    private static void assertJoin(final List<NodeId> ancestors, final List<NodeId> descendants,
+            final EncodedNodeIds a, final EncodedNodeIds d, final boolean childOnly, final boolean includeSelf) {
+        final List<String> expected = new ArrayList<>();
+        for (int j = 0; j < descendants.size(); j++) {
+            for (int i = 0; i < ancestors.size(); i++) {
+                final int relation = relation(descendants.get(j), ancestors.get(i));
+                if (childOnly ? relation == NodeId.IS_CHILD
+                        : relation == NodeId.IS_CHILD || relation == NodeId.IS_DESCENDANT
+                            || (includeSelf && relation == NodeId.IS_SELF)) {
+                    expected.add(ancestors.get(i) + "/" + descendants.get(j));
+                }
+            }
+        }
+        final List<String> actual = new ArrayList<>();
+        new StructuralJoin(childOnly, includeSelf).join(a, d,
+                (i, j) -> actual.add(ancestors.get(i) + "/" + descendants.get(j)));
+        assertEquals(expected, actual);
+    }
+
+    private static int relation(final NodeId node, final NodeId ancestor) {
+        if (node == NodeId.DOCUMENT_NODE) {
+            return ancestor == NodeId.DOCUMENT_NODE ? NodeId.IS_SELF : -1;
+        }
+        return node.computeRelation(ancestor);
+    }
+
+    /**
+     * Creates the ids of a random tree in document order.
+     */
+    private static List<NodeId> tree(final Random random, final int size) {
+        final List<NodeId> nodes = new ArrayList<>();
+        final List<NodeId> parents = new ArrayList<>();
+        parents.add(NodeId.ROOT_NODE);
+        nodes.add(NodeId.ROOT_NODE);
+        while (nodes.size() < size) {
+            final NodeId parent = parents.get(random.nextInt(parents.size()));
+            final NodeId child = parent.getChild(random.nextInt(80) + 1);
+            nodes.add(child);
+            parents.add(child);
+            if (random.nextInt(4) == 0) {
+                // a node inserted before its sibling, which gets a sub-level id
+                nodes.add(child.insertBefore());
+            }
+        }
+        nodes.sort(NodeId::compareTo);
+        final List<NodeId> distinct = new ArrayList<>();
+        for (final NodeId node : nodes) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(node)) {
+                distinct.add(node);
+            }
+        }
+        return distinct;
+    }
+
+    private static List<NodeId> sample(final Random random, final List<NodeId> nodes, final int count) {
+        final List<NodeId> sample = new ArrayList<>();
+        final double p = Math.min(1.0, (double) count / nodes.size());
+        for (final NodeId node : nodes) {
+            if (random.nextDouble() < p) {
+                sample.add(node);
+            }
+        }
+        return sample;
+    }
+
+    private static EncodedNodeIds encode(final List<NodeId> nodes) {
+        final EncodedNodeIds ids = new EncodedNodeIds(4);
+        for (final NodeId node : nodes) {
+            ids.add(node);
+        }
+        return ids;
+    }
+
+    private static byte[] encode(final NodeId nodeId) {
+        final byte[] data = new byte[nodeId.size()];
+        nodeId.serialize(data, 0);
+        return data;
+    }
+
+    private static NodeProxy node(final DocumentImpl doc, final String id) {
+        return new NodeProxy(doc, new DLN(id), Node.ELEMENT_NODE);
+    }
+
+    private static String ids(final NodeSet set) {
+        final List<String> ids = new ArrayList<>();
+        for (final NodeProxy p : set) {
+            ids.add(p.getOwnerDocument().getDocId() + "/" + p.getNodeId());
+        }
+        return String.join(" ", ids);
+    }
+
+    private static DocumentImpl mockDoc(final int docId) {
+        final DocumentImpl doc = createMock(DocumentImpl.class);
+        expect(doc.getDocId()).andReturn(docId).anyTimes();
+        expect(doc.getCollection()).andReturn(null).anyTimes();
+        replay(doc);
+        return doc;
+    }
+}
@@ -76,6 +76,8 @@ public class RESTServiceTest {
             + "<para>\u00E4\u00E4\u00FC\u00FC\u00F6\u00F6\u00C4\u00C4\u00D6\u00D6\u00DC\u00DC</para>"
             + "</test>";
 
+    private static final String BINARY_DATA = "0123456789abcdefghijklmnopqrstuvwxyz";
+
     private static final String XUPDATE = "<xu:modifications xmlns:xu=\"http://www.xmldb.org/xupdate\" version=\"1.0\">"
             + "<xu:append select=\"/test\" child=\"1\">"
             + "<para>Inserted paragraph.</para>"
@@ -609,6 +611,30 @@ try {
         }
     }
 
+    @Test
+    public void queryGetStreamed() throws IOException {
+        final String query = URLEncoder.encode("(<items>{count(1 to 3)}</items>, " +
+                "for $i in 1 to 5 let $j := $i * 2 where $i != 3 return (<item>{$j}</item>, 'text'), " +
+                "for $i in 1 to 2 order by $i descending return <ordered>{$i}</ordered>)", UTF_8.displayName());
+        final String uri = getCollectionUri() + "?_query=" + query + "&_wrap=no";
+        assertEquals(getString(uri), getString(uri + "&_stream=yes"));
+        assertEquals(getString(uri + "&_start=3&_howmany=4"), getString(uri + "&_stream=yes&_start=3&_howmany=4"));
+
+        final String large = URLEncoder.encode("for $i in 1 to 50000 return <item>{$i}</item>", UTF_8.displayName());
+        final HttpURLConnection connect = getConnection(getCollectionUri() + "?_query=" + large + "&_wrap=no&_stream=yes&_howmany=0");
+        try {
+            connect.setRequestMethod("GET");
+            connect.connect();
+
+            final int r = connect.getResponseCode();
+            assertEquals("Server returned response code " + r, HttpStatus.OK_200, r);
+            assertEquals("chunked", connect.getHeaderField("Transfer-Encoding"));
+            assertTrue(readResponse(connect.getInputStream()).contains("<item>50000</item>"));
+        } finally {
+            connect.disconnect();
+        }
+    }
+
     @Test
     public void requestModule() throws IOException {
         String uri = getCollectionUri() + "?_query=request:get-uri()&_wrap=no";
@@ -695,6 +721,122 @@ try {
         doStoredQuery(true, true);
     }
 
+    @Test
+    public void binaryRanges() throws IOException {
+        doPut(BINARY_DATA, "ranges.txt", HttpStatus.CREATED_201);
+        final String uri = getCollectionUri() + "/ranges.txt";
+
+        HttpURLConnection connect = getRangeConnection(uri, "bytes=2-5");
+        try {
+            assertEquals(HttpStatus.PARTIAL_CONTENT_206, connect.getResponseCode());
+            assertEquals("bytes 2-5/" + BINARY_DATA.length(), connect.getHeaderField("Content-Range"));
+            assertEquals("2345", readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+
+        connect = getRangeConnection(uri, "bytes=-3");
+        try {
+            assertEquals(HttpStatus.PARTIAL_CONTENT_206, connect.getResponseCode());
+            assertEquals("xyz", readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+
+        // the overlapping ranges are coalesced
+        connect = getRangeConnection(uri, "bytes=0-1,10-12,11-13");
+        try {
+            assertEquals(HttpStatus.PARTIAL_CONTENT_206, connect.getResponseCode());
+            assertTrue(connect.getContentType().startsWith("multipart/byteranges"));
+            final String response = readResponse(connect.getInputStream());
+            assertTrue(response.contains("Content-Range: bytes 0-1/" + BINARY_DATA.length()));
+            assertTrue(response.contains("Content-Range: bytes 10-13/" + BINARY_DATA.length()));
+            assertTrue(response.contains("abcd"));
+        } finally {
+            connect.disconnect();
+        }
+
+        connect = getRangeConnection(uri, "bytes=1000-");
+        try {
+            assertEquals(HttpStatus.RANGE_NOT_SATISFIABLE_416, connect.getResponseCode());
+            assertEquals("bytes */" + BINARY_DATA.length(), connect.getHeaderField("Content-Range"));
+        } finally {
+            connect.disconnect();
+        }
+
+        // a range is only sent if the If-Range validator is current
+        connect = getRangeConnection(uri, "bytes=2-5");
+        try {
+            connect.setRequestProperty("If-Range", "\"outdated\"");
+            assertEquals(HttpStatus.OK_200, connect.getResponseCode());
+            assertEquals(BINARY_DATA, readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+    }
+
+    @Test
+    public void streamBinaryRanges() throws IOException {
+        doPut(BINARY_DATA, "stream.txt", HttpStatus.CREATED_201);
+        doPut("response:stream-binary(util:binary-doc('/db/test/stream.txt'), 'text/plain', ())", "stream.xq", HttpStatus.CREATED_201);
+
+        final HttpURLConnection connect = getRangeConnection(getCollectionUri() + "/stream.xq", "bytes=10-12");
+        try {
+            connect.setRequestProperty("Authorization", "Basic " + credentials);
+            assertEquals(HttpStatus.PARTIAL_CONTENT_206, connect.getResponseCode());
+            assertNotNull(connect.getHeaderField("ETag"));
+            assertEquals("abc", readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+    }
+
+    @Test
+    public void binaryETag() throws IOException {
+        doPut(BINARY_DATA, "etag.txt", HttpStatus.CREATED_201);
+        final String uri = getCollectionUri() + "/etag.txt";
+
+        final String etag;
+        HttpURLConnection connect = getConnection(uri);
+        try {
+            connect.setRequestMethod("GET");
+            assertEquals(HttpStatus.OK_200, connect.getResponseCode());
+            assertEquals("bytes", connect.getHeaderField("Accept-Ranges"));
+            etag = connect.getHeaderField("ETag");
+            assertNotNull(etag);
+            assertEquals(BINARY_DATA, readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+
+        connect = getConnection(uri);
+        try {
+            connect.setRequestMethod("GET");
+            connect.setRequestProperty("If-None-Match", etag);
+            assertEquals(HttpStatus.NOT_MODIFIED_304, connect.getResponseCode());
+        } finally {
+            connect.disconnect();
+        }
+
+        doPut(BINARY_DATA + "!", "etag.txt", HttpStatus.CREATED_201);
+        connect = getConnection(uri);
+        try {
+            connect.setRequestMethod("GET");
+            connect.setRequestProperty("If-None-Match", etag);
+            assertEquals(HttpStatus.OK_200, connect.getResponseCode());
+            assertEquals(BINARY_DATA + "!", readResponse(connect.getInputStream()).trim());
+        } finally {
+            connect.disconnect();
+        }
+    }
+
+    private HttpURLConnection getRangeConnection(final String uri, final String range) throws IOException {
+        final HttpURLConnection connect = getConnection(uri);
+        connect.setRequestMethod("GET");
+        connect.setRequestProperty("Range", range);
+        return connect;
+    }
+
     private void doPut(final String data, final String path, final int responseCode) throws IOException {
         final HttpURLConnection connect = getConnection(getCollectionUri() + '/' + path);
         try {
@@ -854,6 +996,20 @@ try {
         }
     }
 
+    private String getString(final String uri) throws IOException {
+        final HttpURLConnection connect = getConnection(uri);
+        try {
+            connect.setRequestMethod("GET");
+            connect.connect();
+
+            final int r = connect.getResponseCode();
+            assertEquals("Server returned response code " + r, HttpStatus.OK_200, r);
+            return readResponse(connect.getInputStream());
+        } finally {
+            connect.disconnect();
+        }
+    }
+
     private String readResponse(final InputStream is) throws IOException {
         try(final BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8))) {
             String line;
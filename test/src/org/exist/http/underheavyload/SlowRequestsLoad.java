@@ -0,0 +1,138 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.http.underheavyload;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Load harness for the thread pool of the web server: sends concurrent REST
+ * requests whose queries wait on a slow external HTTP service, and reports
+ * how long they took.
+ *
+ * Run it against a server started with and without
+ * -Djetty.threadPool.virtual=true to compare virtual threads with the
+ * pooled platform threads. The number of pooled threads is set with
+ * jetty.threadPool.maxThreads.
+ *
+ * Arguments: [server URL] [requests] [delay of the external service in ms],
+ * defaults: http://localhost:8080/exist 400 200
+ */
+public class SlowRequestsLoad {
+
+    public static void main(final String[] args) throws Exception {
+        final String server = args.length > 0 ? args[0] : "http://localhost:8080/exist";
+        final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        final long delay = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        // the external service must not be the bottleneck
+        final ExecutorService serviceThreads = Executors.newCachedThreadPool();
+        final HttpServer service = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), requests);
+        service.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(delay);
+                final byte[] body = "<done>ok</done>".getBytes(UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        service.setExecutor(serviceThreads);
+        service.start();
+
+        final ExecutorService clients = Executors.newFixedThreadPool(requests);
+        try {
+            final String serviceUrl = "http://127.0.0.1:" + service.getAddress().getPort() + "/slow";
+            final CountDownLatch done = new CountDownLatch(requests);
+            final AtomicInteger failures = new AtomicInteger();
+            final long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                final String query = "doc('" + serviceUrl + "?request=" + i + "')/done/string()";
+                clients.execute(() -> {
+                    try {
+                        if (!"ok".equals(execute(server, query))) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (final IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            if (!done.await(10, TimeUnit.MINUTES)) {
+                System.err.println("Requests did not complete within 10 minutes");
+                System.exit(1);
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            System.out.println(String.format("%d requests waiting %dms each on an external service: %dms, %d failed",
+                    requests, delay, elapsed, failures.get()));
+            if (failures.get() > 0) {
+                System.exit(1);
+            }
+        } finally {
+            clients.shutdownNow();
+            service.stop(0);
+            serviceThreads.shutdownNow();
+        }
+    }
+
+    private static String execute(final String server, final String query) throws IOException {
+        final URL url = new URL(server + "/rest/db?_wrap=no&_query=" + URLEncoder.encode(query, "UTF-8"));
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            try (final InputStream is = connection.getInputStream()) {
+                final byte[] buf = new byte[256];
+                int len = 0;
+                int read;
+                while ((read = is.read(buf, len, buf.length - len)) > 0) {
+                    len += read;
+                }
+                return new String(buf, 0, len, UTF_8).trim();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
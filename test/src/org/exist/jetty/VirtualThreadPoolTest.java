@@ -0,0 +1,48 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.jetty;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.exist.util.ThreadUtils;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadPoolTest {
+
+    @Test
+    public void create() {
+        assertTrue(VirtualThreadPool.create(false) instanceof QueuedThreadPool);
+        final ThreadPool threadPool = VirtualThreadPool.create(true);
+        if (ThreadUtils.isVirtualThreadSupported()) {
+            assertTrue(threadPool instanceof VirtualThreadPool);
+        } else {
+            assertTrue(threadPool instanceof QueuedThreadPool);
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void rejectWhenStopped() {
+        new VirtualThreadPool().execute(() -> {});
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.performance;
+
+import org.exist.dom.persistent.CompactNodeSet;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NewArrayNodeSet;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.numbering.NodeId;
+import org.exist.xquery.Expression;
+import org.w3c.dom.Node;
+
+import java.util.function.Supplier;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+/**
+ * Compares the heap used and the time taken by {@link CompactNodeSet} and
+ * {@link NewArrayNodeSet} to build large sets, to join them structurally and
+ * to compute their union, intersection and difference.
+ *
+ * The documents are synthetic, each has a root element with
+ * <code>children</code> child elements, which each have
+ * <code>children</code> child elements.
+ *
+ * Usage: NodeSetBenchmark [documents] [children] [rounds]
+ */
+public class NodeSetBenchmark {
+
+    public static void main(final String[] args) {
+        final int documents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int children = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final DocumentImpl[] docs = new DocumentImpl[documents];
+        for (int i = 0; i < documents; i++) {
+            final DocumentImpl doc = createNiceMock(DocumentImpl.class);
+            expect(doc.getDocId()).andReturn(i + 1).anyTimes();
+            replay(doc);
+            docs[i] = doc;
+        }
+
+        System.out.println(String.format("%d documents, %d nodes per set", documents, documents * children * children));
+        run("NewArrayNodeSet", NewArrayNodeSet::new, docs, children, rounds);
+        run("CompactNodeSet", CompactNodeSet::new, docs, children, rounds);
+    }
+
+    private static void run(final String name, final Supplier<NodeSet> factory, final DocumentImpl[] docs,
+            final int children, final int rounds) {
+        System.out.println(name + ":");
+
+        final long heapBefore = usedHeap();
+        final NodeSet grandChildren = build(factory, docs, children, 1);
+        grandChildren.getLength();
+        final long heapAfter = usedHeap();
+        System.out.println(String.format("  heap per node: %d bytes",
+                (heapAfter - heapBefore) / grandChildren.getLength()));
+
+        final NodeSet parents = build(factory, docs, 1, 1);
+        final NodeSet middle = buildChildren(factory, docs, children);
+        final NodeSet odd = build(factory, docs, children, 2);
+        final NodeSet third = build(factory, docs, children, 3);
+        middle.getLength();
+        odd.getLength();
+        third.getLength();
+
+        for (int round = 0; round < rounds; round++) {
+            final StringBuilder line = new StringBuilder("  round ").append(round + 1).append(':');
+            time(line, "build", () -> build(factory, docs, children, 1).getLength());
+            time(line, "child", () -> grandChildren.selectParentChild(parents, NodeSet.DESCENDANT, Expression.NO_CONTEXT_ID).getLength());
+            time(line, "descendant", () -> grandChildren.selectAncestorDescendant(parents, NodeSet.DESCENDANT, false, Expression.NO_CONTEXT_ID, true).getLength());
+            time(line, "child of children", () -> third.selectParentChild(middle, NodeSet.DESCENDANT, Expression.NO_CONTEXT_ID).getLength());
+            time(line, "parent", () -> third.selectParentChild(middle, NodeSet.ANCESTOR, Expression.NO_CONTEXT_ID).getLength());
+            time(line, "ancestor", () -> middle.selectAncestors(third, false, Expression.NO_CONTEXT_ID).getLength());
+            time(line, "union", () -> odd.union(third).getLength());
+            time(line, "intersect", () -> odd.intersection(third).getLength());
+            time(line, "except", () -> odd.except(third).getLength());
+            System.out.println(line);
+        }
+
+        // keep the sets reachable until the end of the run
+        if (grandChildren.getLength() + parents.getLength() + middle.getLength() < 0) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Builds a set with every step-th grand child element of the documents,
+     * or with the root element when children is 1.
+     */
+    private static NodeSet build(final Supplier<NodeSet> factory, final DocumentImpl[] docs, final int children,
+            final int step) {
+        final NodeSet set = factory.get();
+        for (final DocumentImpl doc : docs) {
+            if (children == 1) {
+                set.add(new NodeProxy(doc, NodeId.ROOT_NODE, Node.ELEMENT_NODE));
+                continue;
+            }
+            int n = 0;
+            for (int i = 1; i <= children; i++) {
+                final NodeId child = NodeId.ROOT_NODE.getChild(i);
+                for (int j = 1; j <= children; j++) {
+                    if (n++ % step == 0) {
+                        set.add(new NodeProxy(doc, child.getChild(j), Node.ELEMENT_NODE));
+                    }
+                }
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Builds a set with the child elements of the root element of the documents.
+     */
+    private static NodeSet buildChildren(final Supplier<NodeSet> factory, final DocumentImpl[] docs,
+            final int children) {
+        final NodeSet set = factory.get();
+        for (final DocumentImpl doc : docs) {
+            for (int i = 1; i <= children; i++) {
+                set.add(new NodeProxy(doc, NodeId.ROOT_NODE.getChild(i), Node.ELEMENT_NODE));
+            }
+        }
+        return set;
+    }
+
+    private static void time(final StringBuilder line, final String name, final Supplier<Integer> operation) {
+        final long start = System.nanoTime();
+        final int length = operation.get();
+        line.append(String.format(" %s %dms (%d)", name, (System.nanoTime() - start) / 1000000, length));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -68,8 +68,11 @@ public abstract class AbstractRecoverTest {
      * so that each test runs on its own data directory.
      */
     @Rule
-    public final ExistEmbeddedServer existEmbeddedServer =
-            new ExistEmbeddedServer(true, true);
+    public final ExistEmbeddedServer existEmbeddedServer = newExistEmbeddedServer();
+
+    protected ExistEmbeddedServer newExistEmbeddedServer() {
+        return new ExistEmbeddedServer(true, true);
+    }
 
     @After
     public void tearDown() {
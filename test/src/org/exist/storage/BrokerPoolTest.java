@@ -28,11 +28,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.xmldb.api.base.XMLDBException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 /**
@@ -176,6 +179,11 @@ public class BrokerPoolTest {
             Thread.sleep(500);  // just to ensure the other thread has done something
             assertEquals(0, additionalBrokerAcquiredLatch.getCount());
 
+            // the additional broker lease had to wait
+            assertTrue(pool.getBrokerWaits() >= 1);
+            assertTrue(pool.getMaxBrokerWaitTime() >= 500);
+            assertTrue(pool.getBrokerWaitTime() >= pool.getMaxBrokerWaitTime());
+
         } finally {
             // release all brokers from brokerUsers
             if(firstBrokerReleaseLatch.getCount() == 1) {
@@ -185,6 +193,74 @@ public class BrokerPoolTest {
         }
     }
 
+    /**
+     * Checks that many threads leasing brokers concurrently,
+     * more than there are brokers, all get one in turn.
+     */
+    @Test
+    public void concurrentLeases() throws InterruptedException, ExecutionException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final int threads = pool.getMax() * 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        try (final DBBroker broker = pool.getBroker()) {
+                            // nested leases re-use the broker of the thread
+                            try (final DBBroker nested = pool.getBroker()) {
+                                assertTrue(broker == nested);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, pool.countActiveBrokers());
+        assertEquals(pool.total(), pool.available());
+        assertTrue(pool.total() <= pool.getMax());
+    }
+
+    /**
+     * Checks that shutdown waits for the active brokers,
+     * and continues once they have been released.
+     */
+    @Test
+    public void shutdownWaitsForActiveBrokers() throws InterruptedException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+
+        final CountDownLatch acquiredLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final Thread brokerUser = new Thread(new BrokerUser(pool, acquiredLatch, releaseLatch), "brokerUser");
+        brokerUser.start();
+        acquiredLatch.await();
+
+        final Thread shutdown = new Thread(pool::shutdown, "shutdown");
+        try {
+            shutdown.start();
+
+            // the shutdown waits for the broker
+            shutdown.join(500);
+            assertTrue(shutdown.isAlive());
+            assertEquals(1, pool.countActiveBrokers());
+        } finally {
+            releaseLatch.countDown();
+        }
+
+        brokerUser.join();
+        shutdown.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(shutdown.isAlive());
+        assertTrue(pool.isShutDown());
+    }
+
     public static class BrokerUser implements Runnable {
 
         final BrokerPool brokerPool;
@@ -0,0 +1,157 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.scheduler.JobException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DefragmentationTaskTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/defragmentation-test");
+
+    private static final Properties CONFIG = new Properties();
+    static {
+        CONFIG.put(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR, 0);
+        CONFIG.put(DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAGMENTATION, true);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(CONFIG, true, true);
+
+    @Test
+    public void defragmentsInBackground() throws EXistException, PermissionDeniedException, IOException,
+            TriggerException, LockException, SAXException, XPathException, JobException {
+        final XmldbURI uri = COLLECTION_URI.append("background.xml");
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final FragmentationMonitor monitor = pool.getFragmentationMonitor();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final int splitCount = fragment(broker, uri);
+            assertEquals(splitCount, getTracked(monitor, uri).getSplitCount());
+
+            new DefragmentationTask().execute(pool, Collections.emptyMap());
+
+            assertEquals(0, getSplitCount(broker, uri));
+            assertNull(getTracked(monitor, uri));
+            assertEquals(1000, execute(broker, "count(doc('" + uri + "')/root/a/x)").itemAt(0).toJavaObject(Integer.class).intValue());
+        }
+    }
+
+    @Test
+    public void documentsBeyondMaxPagesSkipped() throws EXistException, PermissionDeniedException, IOException,
+            TriggerException, LockException, SAXException, XPathException, JobException {
+        final XmldbURI uri = COLLECTION_URI.append("large.xml");
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final int splitCount = fragment(broker, uri);
+
+            new DefragmentationTask().execute(pool, Collections.singletonMap(DefragmentationTask.MAX_PAGES_PROP_NAME, "1"));
+
+            assertEquals(splitCount, getSplitCount(broker, uri));
+            assertNotNull(getTracked(pool.getFragmentationMonitor(), uri));
+        }
+    }
+
+    @Test
+    public void trackedAfterMove() throws EXistException, PermissionDeniedException, IOException,
+            TriggerException, LockException, SAXException, XPathException {
+        final XmldbURI uri = COLLECTION_URI.append("moved.xml");
+        final XmldbURI destination = COLLECTION_URI.append("destination.xml");
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final FragmentationMonitor monitor = pool.getFragmentationMonitor();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final int splitCount = fragment(broker, uri);
+
+            execute(broker, "xmldb:rename('" + COLLECTION_URI + "', 'moved.xml', 'destination.xml')");
+
+            assertNull(getTracked(monitor, uri));
+            assertEquals(splitCount, getTracked(monitor, destination).getSplitCount());
+        }
+    }
+
+    /**
+     * Stores a document and splits its pages by inserting into its first element.
+     *
+     * @return the number of page splits
+     */
+    private static int fragment(final DBBroker broker, final XmldbURI uri) throws EXistException, PermissionDeniedException,
+            IOException, TriggerException, LockException, SAXException, XPathException {
+        store(broker, uri, "<root><a/><b/></root>");
+        execute(broker, "for $i in 1 to 1000 return update insert <x>{$i}</x> into doc('" + uri + "')/root/a");
+
+        final int splitCount = getSplitCount(broker, uri);
+        assertTrue(splitCount > 0);
+        return splitCount;
+    }
+
+    private static FragmentationMonitor.DocumentFragmentation getTracked(final FragmentationMonitor monitor, final XmldbURI uri) {
+        for (final FragmentationMonitor.DocumentFragmentation fragmentation : monitor.getDocuments()) {
+            if (fragmentation.getUri().equals(uri.toString())) {
+                return fragmentation;
+            }
+        }
+        return null;
+    }
+
+    private static int getSplitCount(final DBBroker broker, final XmldbURI uri) throws PermissionDeniedException {
+        try (final LockedDocument lockedDoc = broker.getXMLResource(uri, LockMode.READ_LOCK)) {
+            return lockedDoc.getDocument().getMetadata().getSplitCount();
+        }
+    }
+
+    private static Sequence execute(final DBBroker broker, final String query) throws XPathException, PermissionDeniedException {
+        final XQuery xquery = broker.getBrokerPool().getXQueryService();
+        return xquery.execute(broker, query, null);
+    }
+
+    private static void store(final DBBroker broker, final XmldbURI uri, final String content)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException, SAXException {
+        final BrokerPool pool = broker.getBrokerPool();
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, uri.removeLastSegment());
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, uri.lastSegment(), content);
+            collection.store(transaction, broker, info, content);
+            transaction.commit();
+        }
+    }
+}
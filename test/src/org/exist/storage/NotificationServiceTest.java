@@ -0,0 +1,437 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.SAXTrigger;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.exist.util.PropertiesBuilder.propertiesBuilder;
+import static org.junit.Assert.*;
+
+public class NotificationServiceTest {
+
+    private static final XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("notification-test");
+
+    private static final int QUEUE_SIZE = 4;
+    private static final long QUEUE_TIMEOUT = 200;
+
+    /**
+     * A single worker, so that a listener which blocks it holds back all the events
+     */
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(
+            propertiesBuilder()
+                    .put(NotificationService.PROPERTY_WORKERS, 1)
+                    .put(NotificationService.PROPERTY_QUEUE_SIZE, QUEUE_SIZE)
+                    .put(NotificationService.PROPERTY_QUEUE_TIMEOUT, QUEUE_TIMEOUT)
+                    .build(),
+            true,
+            true);
+
+    @Test
+    public void deliversAfterCommitInOrder() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final RecordingListener listener = new RecordingListener(3);
+        pool.getNotificationService().subscribeAfterCommit(listener);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                store(broker, transaction, "a.xml");
+                store(broker, transaction, "b.xml");
+                store(broker, transaction, "c.xml");
+
+                // nothing is delivered before the transaction commits
+                assertFalse(listener.latch.await(500, TimeUnit.MILLISECONDS));
+                assertTrue(listener.events().isEmpty());
+
+                transaction.commit();
+            }
+
+            assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+            final List<DocumentEvent> events = listener.events();
+            assertEquals(3, events.size());
+            assertEquals(TEST_COLLECTION_URI.append("a.xml"), events.get(0).getDocumentUri());
+            assertEquals(TEST_COLLECTION_URI.append("b.xml"), events.get(1).getDocumentUri());
+            assertEquals(TEST_COLLECTION_URI.append("c.xml"), events.get(2).getDocumentUri());
+            for (final DocumentEvent event : events) {
+                assertEquals(DocumentEvent.Type.CREATE, event.getType());
+                assertEquals(TEST_COLLECTION_URI, event.getCollectionUri());
+            }
+        } finally {
+            pool.getNotificationService().unsubscribeAfterCommit(listener);
+        }
+    }
+
+    @Test
+    public void discardsEventsOfAbortedTransaction() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final RecordingListener listener = new RecordingListener(1);
+        pool.getNotificationService().subscribeAfterCommit(listener);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                store(broker, transaction, "aborted.xml");
+                transaction.abort();
+            }
+
+            assertFalse(listener.latch.await(1, TimeUnit.SECONDS));
+            assertTrue(listener.events().isEmpty());
+        } finally {
+            pool.getNotificationService().unsubscribeAfterCommit(listener);
+        }
+    }
+
+    @Test
+    public void coalescesUpdatesOfQueuedEvents() throws Exception {
+        final NotificationService service = existEmbeddedServer.getBrokerPool().getNotificationService();
+        final BlockingListener listener = blockWorker(service, 2);
+        final long coalesced = service.getCoalescedEvents();
+        final List<DocumentEvent> updates = new ArrayList<>();
+        try {
+            for (int i = 0; i < QUEUE_SIZE; i++) {
+                final DocumentEvent update = event(DocumentEvent.Type.UPDATE, "updated.xml");
+                updates.add(update);
+                service.afterCommit(null, listener, update);
+            }
+        } finally {
+            listener.release.countDown();
+        }
+
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        // the queued updates are delivered in one batch, as the last of them
+        final List<DocumentEvent> events = listener.events();
+        assertEquals(2, events.size());
+        assertSame(updates.get(QUEUE_SIZE - 1), events.get(1));
+        assertEquals(QUEUE_SIZE - 1, service.getCoalescedEvents() - coalesced);
+    }
+
+    @Test
+    public void deliversOnCommittingThreadAfterQueueTimeout() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final NotificationService service = pool.getNotificationService();
+        final BlockingListener listener = blockWorker(service, 1 + QUEUE_SIZE + 2);
+        final long overflowed = service.getOverflowedEvents();
+        final long blocked = service.getBlockedEnqueues();
+        final List<DocumentEvent> deliveredOnCommit;
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                for (int i = 0; i < QUEUE_SIZE + 2; i++) {
+                    service.afterCommit(transaction, listener, event(DocumentEvent.Type.CREATE, "overflow" + i + ".xml"));
+                }
+                transaction.commit();
+            }
+            // the worker is still blocked, so these have been delivered by the committing thread
+            deliveredOnCommit = listener.events();
+        } finally {
+            listener.release.countDown();
+        }
+
+        // the transaction waits for the queue once, not for every event
+        assertEquals(1, service.getBlockedEnqueues() - blocked);
+        assertEquals(2, service.getOverflowedEvents() - overflowed);
+        assertEquals(3, deliveredOnCommit.size());
+        assertEquals(TEST_COLLECTION_URI.append("overflow" + QUEUE_SIZE + ".xml"), deliveredOnCommit.get(1).getDocumentUri());
+        assertEquals(TEST_COLLECTION_URI.append("overflow" + (QUEUE_SIZE + 1) + ".xml"), deliveredOnCommit.get(2).getDocumentUri());
+
+        // no event is lost
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        final List<DocumentEvent> events = listener.events();
+        assertEquals(1 + QUEUE_SIZE + 2, events.size());
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            assertEquals(TEST_COLLECTION_URI.append("overflow" + i + ".xml"), events.get(i + 3).getDocumentUri());
+        }
+    }
+
+    @Test
+    public void afterCommitTriggerSkipsRemovedDocuments() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XmldbURI collectionUri = TEST_COLLECTION_URI.append("triggered");
+        final BlockingQueue<String> triggered = new LinkedBlockingQueue<>();
+        RecordingTrigger.QUEUES.put(collectionUri.toString(), triggered);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            configureTrigger(pool, broker, collectionUri);
+
+            // the document is removed before the worker delivers its creation
+            final BlockingListener listener = blockWorker(pool.getNotificationService(), 1);
+            try {
+                try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                    store(broker, transaction, collectionUri, "removed.xml");
+                    transaction.commit();
+                }
+                try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                    final Collection collection = broker.getCollection(collectionUri);
+                    collection.removeXMLResource(transaction, broker, XmldbURI.create("removed.xml"));
+                    transaction.commit();
+                }
+            } finally {
+                listener.release.countDown();
+            }
+            assertEquals("delete " + collectionUri.append("removed.xml"), triggered.poll(10, TimeUnit.SECONDS));
+
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                store(broker, transaction, collectionUri, "kept.xml");
+                transaction.commit();
+            }
+            assertEquals("create " + collectionUri.append("kept.xml"), triggered.poll(10, TimeUnit.SECONDS));
+            assertNull(triggered.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            RecordingTrigger.QUEUES.remove(collectionUri.toString());
+        }
+    }
+
+    @Test
+    public void afterCommitTriggerOnCommittingThreadAfterQueueTimeout() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XmldbURI collectionUri = TEST_COLLECTION_URI.append("overflowing");
+        final BlockingQueue<String> triggered = new LinkedBlockingQueue<>();
+        RecordingTrigger.QUEUES.put(collectionUri.toString(), triggered);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            configureTrigger(pool, broker, collectionUri);
+
+            final BlockingListener listener = blockWorker(pool.getNotificationService(), 1);
+            final List<String> triggeredOnCommit = new ArrayList<>();
+            try {
+                try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                    for (int i = 0; i < QUEUE_SIZE + 1; i++) {
+                        store(broker, transaction, collectionUri, "doc" + i + ".xml");
+                    }
+                    transaction.commit();
+                }
+                // the worker is still blocked
+                triggered.drainTo(triggeredOnCommit);
+            } finally {
+                listener.release.countDown();
+            }
+            assertEquals(Collections.singletonList("create " + collectionUri.append("doc" + QUEUE_SIZE + ".xml")), triggeredOnCommit);
+
+            for (int i = 0; i < QUEUE_SIZE; i++) {
+                assertEquals("create " + collectionUri.append("doc" + i + ".xml"), triggered.poll(10, TimeUnit.SECONDS));
+            }
+            assertNull(triggered.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            RecordingTrigger.QUEUES.remove(collectionUri.toString());
+        }
+    }
+
+    /**
+     * Configures a {@link RecordingTrigger} which runs after commit and records
+     * the events in the queue registered for the collection.
+     */
+    private static void configureTrigger(final BrokerPool pool, final DBBroker broker, final XmldbURI collectionUri)
+            throws Exception {
+        final String config =
+                "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+                "    <triggers>" +
+                "        <trigger class=\"" + RecordingTrigger.class.getName() + "\" after-commit=\"yes\">" +
+                "            <parameter name=\"queue\" value=\"" + collectionUri + "\"/>" +
+                "        </trigger>" +
+                "    </triggers>" +
+                "</collection>";
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+            final CollectionConfigurationManager mgr = pool.getConfigurationManager();
+            mgr.addConfiguration(transaction, broker, collection, config);
+            transaction.commit();
+        }
+    }
+
+    /**
+     * Blocks the worker in the delivery of an event, until the listener is released.
+     */
+    private static BlockingListener blockWorker(final NotificationService service, final int expected)
+            throws InterruptedException {
+        final BlockingListener listener = new BlockingListener(expected);
+        service.afterCommit(null, listener, event(DocumentEvent.Type.CREATE, "blocking.xml"));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+        return listener;
+    }
+
+    private static DocumentEvent event(final DocumentEvent.Type type, final String name) {
+        return new DocumentEvent(type, TEST_COLLECTION_URI, TEST_COLLECTION_URI.append(name), null, null, null);
+    }
+
+    private static void store(final DBBroker broker, final Txn transaction, final String name)
+            throws EXistException, PermissionDeniedException, IOException, SAXException, LockException, TriggerException {
+        store(broker, transaction, TEST_COLLECTION_URI, name);
+    }
+
+    private static void store(final DBBroker broker, final Txn transaction, final XmldbURI collectionUri, final String name)
+            throws EXistException, PermissionDeniedException, IOException, SAXException, LockException, TriggerException {
+        final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+        broker.saveCollection(transaction, collection);
+        final String xml = "<doc name=\"" + name + "\"/>";
+        final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+        collection.store(transaction, broker, info, xml);
+    }
+
+    private static class RecordingListener implements AfterCommitListener {
+        private final List<DocumentEvent> events = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch latch;
+
+        RecordingListener(final int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void afterCommit(final BrokerPool pool, final XmldbURI collectionUri, final List<DocumentEvent> batch) {
+            for (final DocumentEvent event : batch) {
+                events.add(event);
+                latch.countDown();
+            }
+        }
+
+        List<DocumentEvent> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+
+    /**
+     * Records the events like {@link RecordingListener}, and blocks in the delivery of
+     * the first batch until it is released.
+     */
+    private static class BlockingListener implements AfterCommitListener {
+        private final List<DocumentEvent> events = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch latch;
+
+        /**
+         * @param expected the number of events to deliver, including the one which blocks
+         */
+        BlockingListener(final int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void afterCommit(final BrokerPool pool, final XmldbURI collectionUri, final List<DocumentEvent> batch) {
+            for (final DocumentEvent event : batch) {
+                events.add(event);
+                latch.countDown();
+            }
+            if (entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        List<DocumentEvent> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+
+    /**
+     * Records the events in the queue a test registered under the name given by the "queue" parameter.
+     */
+    public static class RecordingTrigger extends SAXTrigger {
+        static final Map<String, BlockingQueue<String>> QUEUES = new ConcurrentHashMap<>();
+
+        private BlockingQueue<String> events;
+
+        @Override
+        public void configure(final DBBroker broker, final Txn transaction, final Collection parent,
+                final Map<String, List<? extends Object>> parameters) throws TriggerException {
+            super.configure(broker, transaction, parent, parameters);
+            this.events = QUEUES.get(parameters.get("queue").get(0).toString());
+        }
+
+        @Override
+        public void beforeCreateDocument(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+        }
+
+        @Override
+        public void afterCreateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+            events.add("create " + document.getURI());
+        }
+
+        @Override
+        public void beforeUpdateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        }
+
+        @Override
+        public void afterUpdateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+            events.add("update " + document.getURI());
+        }
+
+        @Override
+        public void beforeUpdateDocumentMetadata(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        }
+
+        @Override
+        public void afterUpdateDocumentMetadata(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        }
+
+        @Override
+        public void beforeCopyDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI newUri) {
+        }
+
+        @Override
+        public void afterCopyDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI oldUri) {
+        }
+
+        @Override
+        public void beforeMoveDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI newUri) {
+        }
+
+        @Override
+        public void afterMoveDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI oldUri) {
+        }
+
+        @Override
+        public void beforeDeleteDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        }
+
+        @Override
+        public void afterDeleteDocument(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+            events.add("delete " + uri);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.DBSource;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.util.io.FastByteArrayInputStream;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class XQueryPoolTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/xquery-pool-test");
+
+    private static final String MODULE =
+            "module namespace lib = \"http://exist-db.org/xquery/pool-test\";\n" +
+            "declare function lib:f() { 1 };";
+
+    private static final String MAIN =
+            "import module namespace lib = \"http://exist-db.org/xquery/pool-test\" at \"xmldb:exist://" + COLLECTION_URI + "/lib.xqm\";\n" +
+            "lib:f()";
+
+    private static final long TIMEOUT = 2000;
+
+    private static final Properties CONFIG = new Properties();
+    static {
+        CONFIG.put(XQueryPool.PROPERTY_TIMEOUT, TIMEOUT);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(CONFIG, true, true);
+
+    @Test
+    public void invalidatedByChangedModule() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XQueryPool xqueryPool = pool.getXQueryPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, "lib.xqm", MODULE);
+            store(broker, "main.xq", MAIN);
+            store(broker, "other.xq", "2");
+
+            final Source source = getSource(broker, "main.xq");
+            xqueryPool.returnCompiledXQuery(source, compile(pool, broker, source));
+
+            CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, source);
+            assertNotNull(compiled);
+            xqueryPool.returnCompiledXQuery(source, compiled);
+
+            // an unrelated document does not affect the pooled query
+            store(broker, "other.xq", "3");
+            compiled = xqueryPool.borrowCompiledXQuery(broker, source);
+            assertNotNull(compiled);
+            xqueryPool.returnCompiledXQuery(source, compiled);
+
+            store(broker, "lib.xqm", MODULE.replace("{ 1 }", "{ 2 }"));
+            assertNull(xqueryPool.borrowCompiledXQuery(broker, source));
+        }
+    }
+
+    @Test
+    public void invalidatedByRemovedCollection() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XQueryPool xqueryPool = pool.getXQueryPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, "lib.xqm", MODULE);
+            store(broker, "main.xq", MAIN);
+
+            final Source source = getSource(broker, "main.xq");
+            xqueryPool.returnCompiledXQuery(source, compile(pool, broker, source));
+
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                final Collection collection = broker.getCollection(COLLECTION_URI);
+                assertTrue(broker.removeCollection(transaction, collection));
+                transaction.commit();
+            }
+            assertNull(xqueryPool.borrowCompiledXQuery(broker, source));
+        }
+    }
+
+    @Test
+    public void unusedCopiesDropped() throws EXistException, PermissionDeniedException, IOException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final AtomicLong clock = new AtomicLong();
+        final XQueryPool xqueryPool = new XQueryPool(clock::get);
+        xqueryPool.configure(pool.getConfiguration());
+        final Source source = new StringSource("1 + 1");
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            for (int i = 0; i < 3; i++) {
+                xqueryPool.returnCompiledXQuery(source, compile(pool, broker, source));
+            }
+
+            // only one copy is needed at a time
+            for (int i = 0; i < 6; i++) {
+                final CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, source);
+                assertNotNull(compiled);
+                xqueryPool.returnCompiledXQuery(source, compiled);
+                clock.addAndGet(TIMEOUT / 4);
+            }
+
+            final CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, source);
+            assertNotNull(compiled);
+            assertNull(xqueryPool.borrowCompiledXQuery(broker, source));
+            xqueryPool.returnCompiledXQuery(source, compiled);
+        }
+    }
+
+    private static CompiledXQuery compile(final BrokerPool pool, final DBBroker broker, final Source source) throws XPathException, IOException, PermissionDeniedException {
+        final XQueryContext context = new XQueryContext(pool);
+        final CompiledXQuery compiled = pool.getXQueryService().compile(broker, context, source);
+        context.reset();
+        return compiled;
+    }
+
+    private static Source getSource(final DBBroker broker, final String name) throws PermissionDeniedException {
+        try (final LockedDocument doc = broker.getXMLResource(COLLECTION_URI.append(name), LockMode.READ_LOCK)) {
+            return new DBSource(broker, (BinaryDocument) doc.getDocument(), true);
+        }
+    }
+
+    private static void store(final DBBroker broker, final String name, final String content)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final BrokerPool pool = broker.getBrokerPool();
+        final byte[] data = content.getBytes(UTF_8);
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            try (final InputStream is = new FastByteArrayInputStream(data)) {
+                collection.addBinaryResource(transaction, broker, XmldbURI.create(name), is, "application/xquery", data.length);
+            }
+            transaction.commit();
+        }
+    }
+}
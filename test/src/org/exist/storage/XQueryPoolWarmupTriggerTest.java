@@ -0,0 +1,95 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.Source;
+import org.exist.source.SourceFactory;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.util.io.FastByteArrayInputStream;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class XQueryPoolWarmupTriggerTest {
+
+    private static final XmldbURI APP_URI = XmldbURI.create("/db/warmup-test");
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @Test
+    public void compilesStoredQueries() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, APP_URI, "lib.xqm",
+                    "module namespace lib = \"http://exist-db.org/xquery/warmup-test\";\n" +
+                    "declare function lib:f() { 1 };");
+            store(broker, APP_URI.append("modules"), "main.xq",
+                    "import module namespace lib = \"http://exist-db.org/xquery/warmup-test\" at \"../lib.xqm\";\n" +
+                    "lib:f()");
+            store(broker, APP_URI, "broken.xq", "1 +");
+
+            final Map<String, List<? extends Object>> params = new HashMap<>();
+            params.put(XQueryPoolWarmupTrigger.COLLECTION_PARAM, Collections.singletonList(APP_URI.toString()));
+            try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+                new XQueryPoolWarmupTrigger().execute(broker, transaction, params);
+                transaction.commit();
+            }
+
+            final Source source = SourceFactory.getSource(broker, null,
+                    XmldbURI.EMBEDDED_SERVER_URI_PREFIX + APP_URI + "/modules/main.xq", false);
+            final CompiledXQuery compiled = pool.getXQueryPool().borrowCompiledXQuery(broker, source);
+            assertNotNull(compiled);
+            pool.getXQueryPool().returnCompiledXQuery(source, compiled);
+        }
+    }
+
+    private static void store(final DBBroker broker, final XmldbURI collectionUri, final String name, final String content)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final BrokerPool pool = broker.getBrokerPool();
+        final byte[] data = content.getBytes(UTF_8);
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+            try (final InputStream is = new FastByteArrayInputStream(data)) {
+                collection.addBinaryResource(transaction, broker, XmldbURI.create(name), is, "application/xquery", data.length);
+            }
+            transaction.commit();
+        }
+    }
+}
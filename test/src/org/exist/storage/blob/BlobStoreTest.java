@@ -0,0 +1,249 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.blob;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.util.io.FastByteArrayInputStream;
+import org.exist.util.io.FastByteArrayOutputStream;
+import org.exist.xmldb.XmldbURI;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+
+    private static final Properties CONFIG = new Properties();
+    static {
+        CONFIG.put(BlobStore.PROPERTY_BLOB_STORE, true);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(CONFIG, true, true);
+
+    @Test
+    public void deduplicate() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final XmldbURI collectionUri = XmldbURI.create("/db/blob-dedup-test");
+        final byte[] data = "same content".getBytes(UTF_8);
+        final long blobs = countBlobs();
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+
+            store(transaction, broker, collection, "a.bin", data);
+            store(transaction, broker, collection, "b.bin", data);
+            assertEquals(blobs + 1, countBlobs());
+            assertEquals(getBinaryFile(broker, collectionUri.append("a.bin")), getBinaryFile(broker, collectionUri.append("b.bin")));
+
+            // replacing the content leaves the other document alone
+            store(transaction, broker, collection, "b.bin", "other content".getBytes(UTF_8));
+            assertEquals(blobs + 2, countBlobs());
+            assertEquals("same content", read(broker, collectionUri.append("a.bin")));
+            assertEquals("other content", read(broker, collectionUri.append("b.bin")));
+
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void copyAndMove() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final XmldbURI collectionUri = XmldbURI.create("/db/blob-copy-test");
+        final XmldbURI targetUri = XmldbURI.create("/db/blob-copy-test/target");
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+            final Collection target = broker.getOrCreateCollection(transaction, targetUri);
+            broker.saveCollection(transaction, target);
+
+            store(transaction, broker, collection, "original.bin", "copy me".getBytes(UTF_8));
+            final Path blobFile = getBinaryFile(broker, collectionUri.append("original.bin"));
+            final long blobs = countBlobs();
+
+            try (final LockedDocument doc = broker.getXMLResource(collectionUri.append("original.bin"), LockMode.READ_LOCK)) {
+                broker.copyResource(transaction, doc.getDocument(), target, XmldbURI.create("copy.bin"), DBBroker.PreserveType.DEFAULT);
+            }
+            assertEquals(blobs, countBlobs());
+            assertEquals(blobFile, getBinaryFile(broker, targetUri.append("copy.bin")));
+
+            try (final LockedDocument doc = broker.getXMLResource(targetUri.append("copy.bin"), LockMode.WRITE_LOCK)) {
+                broker.moveResource(transaction, doc.getDocument(), collection, XmldbURI.create("moved.bin"));
+            }
+            assertNull(broker.getXMLResource(targetUri.append("copy.bin"), LockMode.READ_LOCK));
+            assertEquals("copy me", read(broker, collectionUri.append("moved.bin")));
+            assertEquals(blobs, countBlobs());
+
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void moveCollection() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final XmldbURI collectionUri = XmldbURI.create("/db/blob-move-collection-test");
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection parent = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, parent);
+            final Collection source = broker.getOrCreateCollection(transaction, collectionUri.append("source"));
+            broker.saveCollection(transaction, source);
+            final Collection child = broker.getOrCreateCollection(transaction, collectionUri.append("source/child"));
+            broker.saveCollection(transaction, child);
+
+            store(transaction, broker, source, "1.bin", "one".getBytes(UTF_8));
+            store(transaction, broker, child, "2.bin", "two".getBytes(UTF_8));
+
+            broker.moveCollection(transaction, source, parent, XmldbURI.create("target"));
+
+            assertEquals("one", read(broker, collectionUri.append("target/1.bin")));
+            assertEquals("two", read(broker, collectionUri.append("target/child/2.bin")));
+
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void collectGarbage() throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        final XmldbURI collectionUri = XmldbURI.create("/db/blob-gc-test");
+        final byte[] data = "garbage".getBytes(UTF_8);
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+
+            store(transaction, broker, collection, "a.bin", data);
+            store(transaction, broker, collection, "b.bin", data);
+            final Path blobFile = getBinaryFile(broker, collectionUri.append("a.bin"));
+
+            try (final LockedDocument doc = broker.getXMLResource(collectionUri.append("a.bin"), LockMode.WRITE_LOCK)) {
+                collection.removeBinaryResource(transaction, broker, doc.getDocument());
+            }
+            pool.getBlobStore().get().collectGarbage();
+            assertTrue(Files.exists(blobFile));
+
+            assertTrue(broker.removeCollection(transaction, collection));
+            // the blob is kept until it is collected
+            assertTrue(Files.exists(blobFile));
+            pool.getBlobStore().get().collectGarbage();
+            assertFalse(Files.exists(blobFile));
+
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void abort() throws EXistException, IOException {
+        final XmldbURI a = XmldbURI.create("/db/blob-abort-test/a.bin");
+        final XmldbURI b = XmldbURI.create("/db/blob-abort-test/b.bin");
+        final XmldbURI c = XmldbURI.create("/db/blob-abort-test/c.bin");
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final BlobStore blobStore = pool.getBlobStore().get();
+
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            blobStore.store(transaction, a, new FastByteArrayInputStream("abort a".getBytes(UTF_8)));
+            blobStore.store(transaction, b, new FastByteArrayInputStream("abort b".getBytes(UTF_8)));
+            transaction.commit();
+        }
+        final String digestA = blobStore.getContentDigest(a);
+        final String digestB = blobStore.getContentDigest(b);
+
+        final Path blobFileC;
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            // b gets the content of a, then a is moved to c and c is removed again
+            try (final InputStream is = blobStore.getBlob(a)) {
+                blobStore.store(transaction, b, is);
+            }
+            assertEquals(2, blobStore.getReferenceCount(a));
+            assertTrue(blobStore.move(transaction, a, c));
+            assertTrue(blobStore.remove(transaction, c));
+            blobFileC = blobStore.store(transaction, c, new FastByteArrayInputStream("abort c".getBytes(UTF_8)));
+            transaction.abort();
+        }
+
+        assertEquals(digestA, blobStore.getContentDigest(a));
+        assertEquals(digestB, blobStore.getContentDigest(b));
+        assertNull(blobStore.getContentDigest(c));
+        assertEquals(1, blobStore.getReferenceCount(a));
+        assertEquals(1, blobStore.getReferenceCount(b));
+
+        // the content stored by the aborted transaction is garbage
+        blobStore.collectGarbage();
+        assertFalse(Files.exists(blobFileC));
+        assertNotNull(blobStore.getBlobFile(a));
+        assertNotNull(blobStore.getBlobFile(b));
+    }
+
+    private static void store(final Txn transaction, final DBBroker broker, final Collection collection, final String name, final byte[] data)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException {
+        try (final InputStream is = new FastByteArrayInputStream(data)) {
+            collection.addBinaryResource(transaction, broker, XmldbURI.create(name), is, "application/octet-stream", data.length);
+        }
+    }
+
+    private static Path getBinaryFile(final DBBroker broker, final XmldbURI uri) throws PermissionDeniedException, IOException {
+        try (final LockedDocument doc = broker.getXMLResource(uri, LockMode.READ_LOCK)) {
+            return broker.getBinaryFile((BinaryDocument) doc.getDocument());
+        }
+    }
+
+    private static String read(final DBBroker broker, final XmldbURI uri) throws PermissionDeniedException, IOException {
+        try (final LockedDocument doc = broker.getXMLResource(uri, LockMode.READ_LOCK);
+             final FastByteArrayOutputStream os = new FastByteArrayOutputStream()) {
+            assertNotNull(doc);
+            broker.readBinaryResource((BinaryDocument) doc.getDocument(), os);
+            return new String(os.toByteArray(), UTF_8);
+        }
+    }
+
+    private static long countBlobs() throws IOException {
+        final Path blobDir = existEmbeddedServer.getTemporaryStorage().get().resolve("blob");
+        try (final Stream<Path> files = Files.walk(blobDir)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
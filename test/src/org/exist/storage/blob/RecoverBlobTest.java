@@ -0,0 +1,39 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2018 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.blob;
+
+import org.exist.storage.RecoverBinaryTest;
+import org.exist.test.ExistEmbeddedServer;
+
+import java.util.Properties;
+
+/**
+ * Runs the binary recovery tests with the content stored in the {@link BlobStore}, so
+ * that the references of uncommitted transactions have to be undone by recovery.
+ */
+public class RecoverBlobTest extends RecoverBinaryTest {
+
+    @Override
+    protected ExistEmbeddedServer newExistEmbeddedServer() {
+        final Properties config = new Properties();
+        config.put(BlobStore.PROPERTY_BLOB_STORE, true);
+        return new ExistEmbeddedServer(config, true, true);
+    }
+}
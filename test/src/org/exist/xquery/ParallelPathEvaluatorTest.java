@@ -0,0 +1,204 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.exist.util.PropertiesBuilder.propertiesBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ParallelPathEvaluatorTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/parallel-test");
+    private static final int DOCUMENTS = 50;
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(
+            propertiesBuilder()
+                    .put(ParallelPathEvaluator.PROPERTY_THRESHOLD, 2)
+                    .put(ParallelPathEvaluator.PROPERTY_PARALLELISM, 3)
+                    .build(),
+            true,
+            true);
+
+    @BeforeClass
+    public static void storeDocuments() throws EXistException, PermissionDeniedException, IOException, SAXException, LockException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            for (int d = 0; d < DOCUMENTS; d++) {
+                final StringBuilder xml = new StringBuilder("<records>");
+                for (int r = 0; r < 20; r++) {
+                    xml.append("<record id=\"").append(d).append('-').append(r).append("\">")
+                            .append("<price>").append((d * 7 + r * 13) % 200).append("</price>")
+                            .append("<title>").append(d).append('-').append(r).append("</title>")
+                            .append("<record><title>nested ").append(d).append('-').append(r).append("</title></record>")
+                            .append("</record>");
+                }
+                xml.append("</records>");
+                final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                        XmldbURI.create("records" + d + ".xml"), xml.toString());
+                collection.store(transaction, broker, info, xml.toString());
+            }
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void findSteps() throws EXistException, PermissionDeniedException, XPathException {
+        assertEquals(1, findSteps("collection('" + COLLECTION_URI + "')//record[price > 100]/title").getStart());
+        assertEquals(1, findSteps("collection('" + COLLECTION_URI + "')/records/record[@id = '1-1' or title]").getStart());
+        // positional predicates depend on the other nodes of the context
+        assertEquals(3, findSteps("collection('" + COLLECTION_URI + "')/records/record[2]/title").getStart());
+        // function calls are not evaluated by the tasks
+        assertEquals(3, findSteps("collection('" + COLLECTION_URI + "')/records/record[@id = concat('1-', '1')]/title").getStart());
+        assertNull(findSteps("collection('" + COLLECTION_URI + "')/records/record[2]"));
+    }
+
+    @Test
+    public void sameResultAsPerDocument() throws EXistException, PermissionDeniedException, XPathException {
+        final String[] paths = {
+                "//record[price > 100]/title",
+                "//record[price > 100][title = '7-3']/title/text()",
+                "/records/record[@id = '3-4' or price < 10]",
+                "//title",
+                "/records/record/record/title/parent::record/parent::record/@id",
+                "/records/record[2]/title",
+                "//record[price eq '42']/ancestor::records"
+        };
+        for (final String path : paths) {
+            final List<String> expected = execute("for $doc in collection('" + COLLECTION_URI + "') " +
+                    "return $doc" + path);
+            final List<String> actual = execute("collection('" + COLLECTION_URI + "')" + path);
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    @Test
+    public void nestedInFlwor() throws EXistException, PermissionDeniedException, XPathException {
+        final List<String> result = execute("for $title in collection('" + COLLECTION_URI + "')//record[price > 150]/title " +
+                "where starts-with($title, '1') order by $title return string($title)");
+        final List<String> expected = execute("for $doc in collection('" + COLLECTION_URI + "') " +
+                "for $title in $doc//record[price > 150]/title " +
+                "where starts-with($title, '1') order by $title return string($title)");
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void atomicValuedSteps() throws EXistException, PermissionDeniedException, XPathException {
+        // only location steps are evaluated in parallel, the results of the ranges are merged as node sets
+        assertNull(findSteps("collection('" + COLLECTION_URI + "')//record/(price > 100)"));
+        assertNull(findSteps("collection('" + COLLECTION_URI + "')//record/'x'"));
+
+        final String[] paths = {
+                "//record/(price > 100)",
+                "//record[price > 100]/title/string()"
+        };
+        for (final String path : paths) {
+            final List<String> expected = execute("for $doc in collection('" + COLLECTION_URI + "') " +
+                    "return $doc" + path);
+            final List<String> actual = execute("collection('" + COLLECTION_URI + "')" + path);
+            assertEquals(path, expected, actual);
+            assertEquals(path, Collections.singletonList(String.valueOf(expected.size())),
+                    execute("count(collection('" + COLLECTION_URI + "')" + path + ")"));
+        }
+        assertEquals(Collections.singletonList("2000"),
+                execute("count(collection('" + COLLECTION_URI + "')//record/(price > 100))"));
+        assertEquals(Collections.singletonList("x"), execute("distinct-values(collection('" + COLLECTION_URI + "')//record/'x')"));
+    }
+
+    @Test
+    public void failingTask() throws EXistException, PermissionDeniedException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        for (int i = 0; i < 20; i++) {
+            try {
+                // the titles cannot be cast to a number
+                execute("collection('" + COLLECTION_URI + "')//record[title > 5]/title");
+                fail("Expected a type error");
+            } catch (final XPathException e) {
+                assertEquals(ErrorCodes.FORG0001, e.getErrorCode());
+            }
+            // the tasks are done and have returned their brokers
+            assertEquals(0, pool.countActiveBrokers());
+        }
+
+        assertEquals(Collections.singletonList("1000"),
+                execute("count(collection('" + COLLECTION_URI + "')/records/record/title)"));
+    }
+
+    private static ParallelPathEvaluator.Steps findSteps(final String query) throws EXistException, PermissionDeniedException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool);
+            final CompiledXQuery compiled = pool.getXQueryService().compile(broker, context, new StringSource(query));
+            Expression expr = (Expression) compiled;
+            while (!(expr.getClass() == PathExpr.class && expr.getSubExpressionCount() > 1)) {
+                expr = expr.getSubExpression(expr.getSubExpressionCount() - 1);
+                assertNotNull(expr);
+            }
+            return ParallelPathEvaluator.findSteps((PathExpr) expr, 0);
+        } catch (final IOException e) {
+            throw new XPathException(e);
+        }
+    }
+
+    private static List<String> execute(final String query) throws EXistException, PermissionDeniedException, XPathException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool);
+            final CompiledXQuery compiled = pool.getXQueryService().compile(broker, context, new StringSource(query));
+            final Sequence result = pool.getXQueryService().execute(broker, compiled, null, false);
+            final List<String> values = new ArrayList<>();
+            for (final SequenceIterator i = result.iterate(); i.hasNext(); ) {
+                values.add(i.nextItem().getStringValue());
+            }
+            return values;
+        } catch (final IOException e) {
+            throw new XPathException(e);
+        }
+    }
+}
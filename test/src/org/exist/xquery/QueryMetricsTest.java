@@ -0,0 +1,158 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.EXistException;
+import org.exist.management.client.MetricsServlet;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.xquery.QueryMetrics.Latency;
+import org.exist.xquery.value.Sequence;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class QueryMetricsTest {
+
+    private static final String QUERY =
+            "declare function local:double($i) { $i * 2 };\n" +
+            "(1 to 5) ! local:double(.)";
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @Test
+    public void recordsQueriesAndFunctions() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final QueryMetrics metrics = existEmbeddedServer.getBrokerPool().getQueryMetrics();
+        metrics.reset();
+
+        execute();
+        // metrics recorded by another thread are merged
+        final Thread thread = new Thread(() -> {
+            try {
+                execute();
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Latency query = find(metrics.getQueries(), new StringSource(QUERY).path());
+        assertEquals(2, query.getCount());
+        assertEquals(10, query.getItems());
+        assertEquals(2, sum(query.getBuckets()));
+        assertTrue(query.getTotalTime() > 0);
+
+        final Latency function = find(metrics.getFunctions(), "local:double#1");
+        assertEquals(10, function.getCount());
+        assertEquals(10, sum(function.getBuckets()));
+
+        final StringWriter writer = new StringWriter();
+        MetricsServlet.writeMetrics(metrics, writer);
+        final String text = writer.toString();
+        assertTrue(text, text.contains("# TYPE exist_query_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("exist_query_duration_seconds_bucket{source=\"String\",le=\"+Inf\"} 2\n"));
+        assertTrue(text, text.contains("exist_query_duration_seconds_count{source=\"String\"} 2\n"));
+        assertTrue(text, text.contains("exist_query_items_returned_total{source=\"String\"} 10\n"));
+        assertTrue(text, text.contains("exist_function_duration_seconds_count{function=\"local:double#1\"} 10\n"));
+    }
+
+    @Test
+    public void foldsRecordersOfTerminatedThreads() throws InterruptedException {
+        final QueryMetrics metrics = new QueryMetrics();
+        for (int i = 0; i < 100; i++) {
+            final Thread thread = new Thread(() -> metrics.recordQuery("/db/short-lived.xq", 1000, 1));
+            thread.start();
+            thread.join();
+            assertTrue(metrics.getRecorderCount() <= QueryMetrics.MIN_FOLD_RECORDERS);
+        }
+
+        final Latency query = find(metrics.getQueries(), "/db/short-lived.xq");
+        assertEquals(100, query.getCount());
+        assertEquals(100, query.getItems());
+    }
+
+    @Test
+    public void limitsNames() {
+        final QueryMetrics metrics = new QueryMetrics();
+        for (int i = 0; i < QueryMetrics.MAX_NAMES + 10; i++) {
+            metrics.recordQuery("/db/query" + i + ".xq", 1000, 1);
+        }
+        final List<Latency> queries = metrics.getQueries();
+        assertEquals(QueryMetrics.MAX_NAMES + 1, queries.size());
+        assertEquals(10, find(queries, QueryMetrics.OTHER).getCount());
+    }
+
+    @Test
+    public void disabled() {
+        final QueryMetrics metrics = new QueryMetrics();
+        metrics.setEnabled(false);
+        metrics.recordQuery("/db/query.xq", 1000, 1);
+        metrics.recordIndexUse(PerformanceStats.RANGE_IDX_TYPE, PerformanceStats.OPTIMIZED_INDEX);
+        assertTrue(metrics.getQueries().isEmpty());
+        assertTrue(metrics.getIndexUses().isEmpty());
+    }
+
+    private static void execute() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XQuery xquery = pool.getXQueryService();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool);
+            final CompiledXQuery compiled = xquery.compile(broker, context, new StringSource(QUERY));
+            final Sequence result = xquery.execute(broker, compiled, null);
+            assertEquals(5, result.getItemCount());
+        }
+    }
+
+    private static Latency find(final List<Latency> latencies, final String name) {
+        final List<String> names = new ArrayList<>();
+        for (final Latency latency : latencies) {
+            if (latency.getName().equals(name)) {
+                return latency;
+            }
+            names.add(latency.getName());
+        }
+        fail("No metrics for " + name + " in " + names);
+        return null;
+    }
+
+    private static long sum(final long[] counts) {
+        long sum = 0;
+        for (final long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+}
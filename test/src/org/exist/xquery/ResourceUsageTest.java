@@ -0,0 +1,112 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ResourceUsage;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ResourceUsageTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/resource-usage-test");
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @BeforeClass
+    public static void storeDocument() throws EXistException, PermissionDeniedException, IOException, SAXException, LockException {
+        final StringBuilder xml = new StringBuilder("<items>");
+        for (int i = 0; i < 500; i++) {
+            xml.append("<item n=\"").append(i).append("\">item ").append(i).append("</item>");
+        }
+        xml.append("</items>");
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create("items.xml"), xml.toString());
+            collection.store(transaction, broker, info, xml.toString());
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void attributedToQuery() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final XQueryContext context = execute(
+                "for $item in doc('" + COLLECTION_URI + "/items.xml')//item[@n mod 2 = 0] " +
+                "return <copy>{$item/string()}</copy>", 250);
+
+        final ResourceUsage usage = context.getWatchDog().getResourceUsage();
+        assertTrue(usage.getNodeProxies() >= 500);
+        assertTrue(usage.getMemtreeNodes() >= 250);
+        assertTrue(usage.getCacheHits() + usage.getCacheMisses() > 0);
+        assertTrue(usage.getCaches().containsKey("dom.dbx"));
+        assertNull(ResourceUsage.current());
+    }
+
+    @Test
+    public void reportedForRunningQueries() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        execute("system:get-running-xqueries()//system:resources[@allocatedBytes][@pageReads][@cacheMisses]", 1);
+    }
+
+    @Test
+    public void allocationLimit() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        try {
+            execute("declare option exist:allocation-limit '1000000'; " +
+                    "count(for $i in 1 to 1000000 return <e>{$i}</e>)", 1);
+            fail("The query should have exceeded the allocation-limit");
+        } catch (final TerminatedException.ResourceLimitException e) {
+            assertEquals(ErrorCodes.EXXQDY0005, e.getErrorCode());
+        }
+    }
+
+    private static XQueryContext execute(final String query, final int expectedItems) throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XQuery xquery = pool.getXQueryService();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool);
+            final CompiledXQuery compiled = xquery.compile(broker, context, new StringSource(query));
+            final Sequence result = xquery.execute(broker, compiled, null, false);
+            assertEquals(expectedItems, result.getItemCount());
+            return context;
+        }
+    }
+}
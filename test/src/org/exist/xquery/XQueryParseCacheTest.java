@@ -0,0 +1,157 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xquery;
+
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
+import antlr.collections.AST;
+import org.exist.EXistException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.FileUtils;
+import org.exist.util.io.FastByteArrayInputStream;
+import org.exist.util.io.FastByteArrayOutputStream;
+import org.exist.xquery.parser.XQueryAST;
+import org.exist.xquery.parser.XQueryLexer;
+import org.exist.xquery.parser.XQueryParser;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class XQueryParseCacheTest {
+
+    private static final String QUERY =
+            "xquery version \"3.1\";\n" +
+            "(:~ adds one :)\n" +
+            "declare function local:inc($i as xs:integer) as xs:integer { $i + 1 };\n" +
+            "let $s := \"a string\"\n" +
+            "return (local:inc(41), <e a=\"{$s}\">text</e>, (1 to 3) ! (. * 2))";
+
+    private static final Properties CONFIG = new Properties();
+    static {
+        CONFIG.put(XQueryParseCache.PROPERTY_PARSE_CACHE, true);
+        // at most 16 trees are kept on disk
+        CONFIG.put(XQueryParseCache.PROPERTY_PARSE_CACHE_SIZE, 1);
+    }
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(CONFIG, true, true);
+
+    @Test
+    public void roundTrip() throws RecognitionException, TokenStreamException, XPathException, IOException {
+        final XQueryParser parser = new XQueryParser(new XQueryLexer(null, new StringReader(QUERY)));
+        parser.xpath();
+        assertFalse(parser.foundErrors());
+        final AST ast = parser.getAST();
+
+        final AST read;
+        try (final FastByteArrayOutputStream os = new FastByteArrayOutputStream()) {
+            try (final DataOutputStream dos = new DataOutputStream(os)) {
+                XQueryParseCache.writeTree(dos, ast);
+            }
+            try (final DataInputStream is = new DataInputStream(new FastByteArrayInputStream(os.toByteArray()))) {
+                read = XQueryParseCache.readTree(is);
+            }
+        }
+
+        assertTrue(ast.equalsList(read));
+        assertEquals(ast.toStringList(), read.toStringList());
+        assertSameLexInfo(ast, read);
+    }
+
+    @Test
+    public void compileFromCache() throws EXistException, PermissionDeniedException, XPathException, IOException, DatabaseConfigurationException {
+        final String key = XQueryParseCache.getKey(QUERY, false);
+        assertEquals("<e a=\"a string\">text</e>", execute());
+        assertNotNull(existEmbeddedServer.getBrokerPool().getXQueryParseCache().get().get(key));
+
+        // the syntax tree is read from disk after a restart
+        existEmbeddedServer.restart();
+        assertNotNull(existEmbeddedServer.getBrokerPool().getXQueryParseCache().get().get(key));
+        assertEquals("<e a=\"a string\">text</e>", execute());
+    }
+
+    @Test
+    public void filesLimited() throws EXistException, PermissionDeniedException, XPathException, IOException, DatabaseConfigurationException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final Path cacheDir = ((Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR)).resolve("xquery-cache");
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            for (int i = 0; i < 40; i++) {
+                pool.getXQueryService().compile(broker, new XQueryContext(pool), new StringSource("1 + " + i));
+            }
+        }
+
+        // the pending trees are written on shutdown, the files are not pruned before the next startup
+        existEmbeddedServer.stopDb(false);
+        try {
+            assertTrue(FileUtils.list(cacheDir).size() <= 16);
+        } finally {
+            existEmbeddedServer.startDb();
+        }
+    }
+
+    private static String execute() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final XQuery xquery = pool.getXQueryService();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool);
+            final CompiledXQuery compiled = xquery.compile(broker, context, new StringSource(QUERY));
+            final Sequence result = xquery.execute(broker, compiled, null);
+            assertEquals(5, result.getItemCount());
+            assertEquals(42, result.itemAt(0).toJavaObject(Integer.class).intValue());
+            return broker.getSerializer().serialize((NodeValue) result.itemAt(1));
+        } catch (final SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void assertSameLexInfo(final AST expectedList, final AST actualList) {
+        AST expected = expectedList;
+        AST actual = actualList;
+        while (expected != null) {
+            assertEquals(expected.getLine(), actual.getLine());
+            assertEquals(expected.getColumn(), actual.getColumn());
+            assertEquals(expected.getClass(), actual.getClass());
+            assertEquals(((XQueryAST) expected).getDoc(), ((XQueryAST) actual).getDoc());
+            if (expected.getFirstChild() != null) {
+                assertSameLexInfo(expected.getFirstChild(), actual.getFirstChild());
+            }
+            expected = expected.getNextSibling();
+            actual = actual.getNextSibling();
+        }
+        assertNull(actual);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2018 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.exist.xslt;
+
+import org.exist.EXistException;
+import org.exist.backup.SystemExport;
+import org.exist.backup.SystemImport;
+import org.exist.backup.restore.listener.LogRestoreListener;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class TemplatesFactoryTest {
+
+    private static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/templates-factory-test");
+
+    private static final String MAIN_XSL =
+            "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"1.0\">\n" +
+            "    <xsl:include href=\"inc.xsl\"/>\n" +
+            "    <xsl:output method=\"text\"/>\n" +
+            "</xsl:stylesheet>";
+
+    private static final String INC_XSL =
+            "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"1.0\">\n" +
+            "    <xsl:template match=\"/\">1</xsl:template>\n" +
+            "</xsl:stylesheet>";
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void cachedUntilIncludedStylesheetChanges() throws EXistException, PermissionDeniedException, IOException,
+            TriggerException, LockException, SAXException, TransformerException {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, "inc.xsl", INC_XSL);
+            store(broker, "main.xsl", MAIN_XSL);
+
+            final TemplatesFactory.Statistics before = broker.getBrokerPool().getTemplatesFactory().getStatistics();
+            final Templates templates = templates(broker);
+            assertEquals("1", transform(templates));
+            assertSame(templates, templates(broker));
+
+            final TemplatesFactory.Statistics after = broker.getBrokerPool().getTemplatesFactory().getStatistics();
+            assertEquals(before.getCompileCount() + 1, after.getCompileCount());
+            assertEquals(before.getHitCount() + 1, after.getHitCount());
+            assertTrue(after.getWeightedSize() > 0);
+
+            // an unrelated document does not affect the cached stylesheet
+            store(broker, "other.xml", "<other/>");
+            assertSame(templates, templates(broker));
+
+            store(broker, "inc.xsl", INC_XSL.replace(">1<", ">2<"));
+            final Templates recompiled = templates(broker);
+            assertNotSame(templates, recompiled);
+            assertEquals("2", transform(recompiled));
+            assertEquals(after.getInvalidationCount() + 1, broker.getBrokerPool().getTemplatesFactory().getStatistics().getInvalidationCount());
+        }
+    }
+
+    @Test
+    public void clearedByRestore() throws Exception {
+        // a stylesheet outside of the database is not removed by the trigger
+        final Path xsl = temporaryFolder.newFile("file.xsl").toPath();
+        Files.write(xsl, INC_XSL.getBytes(UTF_8));
+        final String uri = xsl.toUri().toASCIIString();
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final Path backup;
+        final Templates templates;
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            templates = templates(broker, uri);
+            assertSame(templates, templates(broker, uri));
+
+            backup = new SystemExport(broker, null, null, true).export(temporaryFolder.newFolder("backup").getAbsolutePath(), false, true, null);
+        }
+
+        new SystemImport(pool).restore(new LogRestoreListener(), "admin", "", "", backup, "xmldb:exist://");
+
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            assertNotSame(templates, templates(broker, uri));
+        }
+    }
+
+    private static Templates templates(final DBBroker broker) throws IOException, PermissionDeniedException,
+            SAXException, TransformerException {
+        return templates(broker, XmldbURI.EMBEDDED_SERVER_URI_PREFIX + COLLECTION_URI.append("main.xsl"));
+    }
+
+    private static Templates templates(final DBBroker broker, final String uri) throws IOException,
+            PermissionDeniedException, SAXException, TransformerException {
+        return broker.getBrokerPool().getTemplatesFactory().stylesheet(uri, "", true).templates(broker, new XSLTErrorsListener<TransformerException>(true, false) {
+            @Override
+            protected void raiseError(final String error, final Exception ex) throws TransformerException {
+                throw new TransformerException(error, ex);
+            }
+        });
+    }
+
+    private static String transform(final Templates templates) throws TransformerException {
+        final StringWriter writer = new StringWriter();
+        templates.newTransformer().transform(new StreamSource(new StringReader("<a/>")), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static void store(final DBBroker broker, final String name, final String content)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException, SAXException {
+        final BrokerPool pool = broker.getBrokerPool();
+        try (final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), content);
+            collection.store(transaction, broker, info, content);
+            transaction.commit();
+        }
+    }
+}